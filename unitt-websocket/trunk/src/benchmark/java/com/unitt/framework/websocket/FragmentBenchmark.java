@@ -0,0 +1,94 @@
+package com.unitt.framework.websocket;
+
+
+import com.unitt.framework.websocket.WebSocketFragment.MessageOpCode;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Parses and builds single frames across the payload sizes that matter for the
+ * header encoding (7 bit, 16 bit and 64 bit lengths) up to 16 MB. Run with
+ * -prof gc to see the bytes allocated per frame next to the throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FragmentBenchmark {
+    @Param({"0", "125", "1024", "65536", "1048576", "16777216"})
+    public int payloadSize;
+
+    @Param({"true", "false"})
+    public boolean masked;
+
+    private byte[] payload;
+    private byte[] frame;
+    private WebSocketFrameDecoder decoder;
+
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        payload = new byte[payloadSize];
+        random.nextBytes(payload);
+        frame = new WebSocketFragment(MessageOpCode.BINARY, true, masked, payload).getFragment();
+        decoder = new WebSocketFrameDecoder();
+    }
+
+    @TearDown
+    public void tearDown() {
+        decoder.release();
+    }
+
+    @Benchmark
+    public WebSocketFragment parseHeader() {
+        WebSocketFragment fragment = new WebSocketFragment();
+        fragment.parseHeader(frame, 0, frame.length);
+        return fragment;
+    }
+
+    @Benchmark
+    public WebSocketFragment parseContent() {
+        // setFragment parses the header and then the content
+        WebSocketFragment fragment = new WebSocketFragment();
+        fragment.setFragment(frame);
+        return fragment;
+    }
+
+    @Benchmark
+    public WebSocketFragment decode() {
+        decoder.append(frame, 0, frame.length);
+        WebSocketFragment fragment = decoder.nextFragment();
+        fragment.releasePayload();
+        return fragment;
+    }
+
+    @Benchmark
+    public byte[] buildFragment() {
+        return new WebSocketFragment(MessageOpCode.BINARY, true, masked, payload).getFragment();
+    }
+
+    @Benchmark
+    public ByteBuffer[] buildFragmentBuffers() {
+        // the gathering write path used by the connections
+        return new WebSocketFragment(MessageOpCode.BINARY, true, masked, payload).getFragmentBuffers();
+    }
+}
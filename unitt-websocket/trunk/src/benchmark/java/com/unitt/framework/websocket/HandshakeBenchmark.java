@@ -0,0 +1,75 @@
+package com.unitt.framework.websocket;
+
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Both sides of the opening handshake: the server parsing a client request and
+ * building its response, and the client verifying that response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandshakeBenchmark {
+    private WebSocketConnectConfig serverConfig;
+    private byte[] clientHandshakeBytes;
+    private WebSocketHandshake clientHandshake;
+    private byte[] serverHandshakeBytes;
+
+
+    @Setup
+    public void setup() throws Exception {
+        WebSocketConnectConfig clientConfig = new WebSocketConnectConfig();
+        clientConfig.setUrl(new URI("ws://localhost:8080/echo"));
+        clientConfig.setAvailableProtocol("chat");
+        clientConfig.setPerMessageDeflate(true);
+        clientHandshake = new WebSocketHandshake(clientConfig);
+        clientHandshakeBytes = clientHandshake.getClientHandshakeBytes();
+
+        serverConfig = new WebSocketConnectConfig();
+        serverConfig.setAvailableProtocol("chat");
+        serverConfig.setPerMessageDeflate(true);
+        serverHandshakeBytes = new WebSocketHandshake(clientHandshakeBytes, serverConfig).getServerHandshakeBytes();
+    }
+
+    @Benchmark
+    public WebSocketHandshake parseClientHandshake() {
+        return new WebSocketHandshake(clientHandshakeBytes, serverConfig);
+    }
+
+    @Benchmark
+    public byte[] acceptClientHandshake() {
+        // parse, compute the accept key and build the 101 response
+        return new WebSocketHandshake(clientHandshakeBytes, serverConfig).getServerHandshakeBytes();
+    }
+
+    @Benchmark
+    public byte[] buildClientHandshake() throws Exception {
+        WebSocketConnectConfig clientConfig = new WebSocketConnectConfig();
+        clientConfig.setUrl(new URI("ws://localhost:8080/echo"));
+        clientConfig.setAvailableProtocol("chat");
+        clientConfig.setPerMessageDeflate(true);
+        return new WebSocketHandshake(clientConfig).getClientHandshakeBytes();
+    }
+
+    @Benchmark
+    public boolean verifyServerHandshake() {
+        return clientHandshake.verifyServerHandshake(serverHandshakeBytes);
+    }
+}
@@ -0,0 +1,79 @@
+package com.unitt.framework.websocket;
+
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Accepts per second while 10k clients reconnect at once, as after a deploy:
+ * every accept parses a different request, computes its accept key and builds
+ * the 101 response against one shared server config. Runs on several threads
+ * so the per-thread digests and the shared template are both exercised.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class HandshakeStormBenchmark {
+    public static final int CLIENT_COUNT = 10000;
+
+    private static final WebSocketConnectConfig serverConfig = createServerConfig();
+
+    private byte[][] requests;
+    private int next;
+
+
+    @Setup
+    public void setup() throws Exception {
+        // every client has its own key
+        requests = new byte[CLIENT_COUNT][];
+        for (int i = 0; i < CLIENT_COUNT; i++) {
+            WebSocketConnectConfig clientConfig = new WebSocketConnectConfig();
+            clientConfig.setUrl(new URI("ws://localhost:8080/echo"));
+            clientConfig.setAvailableProtocol("chat");
+            clientConfig.setPerMessageDeflate(true);
+            requests[i] = new WebSocketHandshake(clientConfig).getClientHandshakeBytes();
+        }
+    }
+
+    @Benchmark
+    public byte[] accept() {
+        byte[] request = requests[next];
+        next = next + 1 < CLIENT_COUNT ? next + 1 : 0;
+        return new WebSocketHandshake(request, serverConfig).getServerHandshakeBytes();
+    }
+
+    @Benchmark
+    public byte[] acceptIncremental() {
+        // as the Netty server reads it: parsed once, straight into the handshake
+        byte[] request = requests[next];
+        next = next + 1 < CLIENT_COUNT ? next + 1 : 0;
+        WebSocketHandshakeParser parser = new WebSocketHandshakeParser(serverConfig.getMaxHandshakeSize());
+        parser.parse(request, 0, request.length);
+        parser.parse(WebSocketHandshakeParser.HANDSHAKE_END, 0, WebSocketHandshakeParser.HANDSHAKE_END.length);
+        return new WebSocketHandshake(parser, serverConfig).getServerHandshakeBytes();
+    }
+
+    protected static WebSocketConnectConfig createServerConfig() {
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setAvailableProtocol("chat");
+        config.setPerMessageDeflate(true);
+        return config;
+    }
+}
@@ -0,0 +1,80 @@
+package com.unitt.framework.websocket;
+
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Compares the old byte-at-a-time mask loop against {@link WebSocketMasker}.
+ * Throughput is reported per call; multiply by the payload size for bytes per
+ * second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MaskBenchmark {
+    @Param({"1024", "65536", "16777216"})
+    public int payloadSize;
+
+    private int mask;
+    private byte[] payload;
+    private ByteBuffer directPayload;
+
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        mask = random.nextInt();
+        payload = new byte[payloadSize];
+        random.nextBytes(payload);
+        directPayload = ByteBuffer.allocateDirect(payloadSize);
+        directPayload.put(payload);
+        directPayload.flip();
+    }
+
+    @Benchmark
+    public byte[] byteAtATime() {
+        // the original WebSocketFragment.mask loop
+        byte[] maskBytes = WebSocketUtil.convertIntToBytes(mask);
+        byte[] results = new byte[payload.length];
+        int m = 0;
+        for (int i = 0; i < payload.length; i++) {
+            results[i] = (byte) (payload[i] ^ maskBytes[m++ % 4]);
+        }
+        return results;
+    }
+
+    @Benchmark
+    public byte[] wordWideCopy() {
+        return WebSocketFragment.mask(mask, payload, 0, payload.length);
+    }
+
+    @Benchmark
+    public byte[] wordWideInPlace() {
+        WebSocketMasker.mask(mask, payload, 0, payload.length);
+        return payload;
+    }
+
+    @Benchmark
+    public ByteBuffer wordWideDirect() {
+        WebSocketMasker.mask(mask, directPayload);
+        return directPayload;
+    }
+}
@@ -0,0 +1,170 @@
+package com.unitt.framework.websocket;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Messages queued per second on one connection by 1, 4 and 16 producer
+ * threads, with the producers doing the writing as they do without a write
+ * executor. The network discards what it is given, so only the queue is
+ * measured. The locked variants run the queue design this one replaced: a
+ * synchronized linked list and draining flag, for comparison. The 1 producer
+ * runs show the uncontended cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutboundQueueBenchmark {
+    private static final ByteBuffer[] message = new ByteBuffer[]{ByteBuffer.wrap(new byte[2]), ByteBuffer.wrap(new byte[125])};
+
+    private WebSocketOutboundQueue queue;
+    private LockedQueue lockedQueue;
+
+
+    @Setup
+    public void setup() {
+        DiscardingNetworkSocket network = new DiscardingNetworkSocket();
+        queue = new WebSocketOutboundQueue(network, Integer.MAX_VALUE, Integer.MAX_VALUE, null, new WebSocketOutboundQueue.Listener() {
+            public void onWritabilityChanged(boolean aIsWritable) {
+                // never crosses the watermarks
+            }
+
+            public void onWriteError(IOException aException) {
+                // never fails
+            }
+        });
+        lockedQueue = new LockedQueue(network);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void lockFree1() {
+        queue.add(message, null);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void lockFree4() {
+        queue.add(message, null);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void lockFree16() {
+        queue.add(message, null);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void locked1() {
+        lockedQueue.add(message);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void locked4() {
+        lockedQueue.add(message);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void locked16() {
+        lockedQueue.add(message);
+    }
+
+
+    // baseline & network
+    // ---------------------------------------------------------------------------
+    protected static class LockedQueue {
+        private final NetworkSocketFacade network;
+        private final LinkedList<ByteBuffer[]> entries = new LinkedList<ByteBuffer[]>();
+        private long pendingBytes;
+        private boolean isDraining;
+
+        public LockedQueue(NetworkSocketFacade aNetwork) {
+            network = aNetwork;
+        }
+
+        public void add(ByteBuffer[] aBuffers) {
+            long length = WebSocketConnection.getRemaining(aBuffers);
+            synchronized (this) {
+                entries.add(aBuffers);
+                pendingBytes += length;
+                if (isDraining) {
+                    return;
+                }
+                isDraining = true;
+            }
+            drain();
+        }
+
+        protected void drain() {
+            while (true) {
+                List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+                long batchBytes = 0;
+                synchronized (this) {
+                    if (entries.isEmpty()) {
+                        isDraining = false;
+                        return;
+                    }
+                    while (!entries.isEmpty()) {
+                        ByteBuffer[] entry = entries.removeFirst();
+                        for (ByteBuffer buffer : entry) {
+                            buffers.add(buffer);
+                            batchBytes += buffer.remaining();
+                        }
+                    }
+                }
+                try {
+                    network.write(buffers.toArray(new ByteBuffer[buffers.size()]));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                synchronized (this) {
+                    pendingBytes -= batchBytes;
+                }
+            }
+        }
+    }
+
+    protected static class DiscardingNetworkSocket implements NetworkSocketFacade {
+        public void connect(WebSocketConnectConfig aConfig) {
+        }
+
+        public void disconnect() {
+        }
+
+        public void write(byte[] aBytes) {
+        }
+
+        public void write(ByteBuffer... aBuffers) {
+        }
+
+        public void upgrade() {
+        }
+
+        public void setObserver(NetworkSocketObserver aObserver) {
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.unitt.framework.websocket;
+
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * The text conversions done for every text message: strict decoding (what the
+ * connections did before incremental validation), validating and then building
+ * the string, and encoding outbound text. Plain ASCII and mixed text are
+ * measured separately because of the validator's ASCII fast path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Utf8Benchmark {
+    protected static final Charset utf8Charset = Charset.forName("UTF-8");
+
+    @Param({"0", "125", "1024", "65536", "1048576", "16777216"})
+    public int payloadSize;
+
+    @Param({"true", "false"})
+    public boolean ascii;
+
+    private byte[] data;
+    private String text;
+    private WebSocketUtf8Validator validator;
+
+
+    @Setup
+    public void setup() {
+        // repeat a sample until the encoded text is the requested size
+        String sample = ascii ? "The quick brown fox jumps over the lazy dog. " : "Gr\u00fc\u00dfe, \u00e7a va? \u20ac5 \ud83d\ude00 ";
+        int sampleLength = sample.getBytes(utf8Charset).length;
+        StringBuilder builder = new StringBuilder(payloadSize);
+        for (int i = 0; i < payloadSize / sampleLength; i++) {
+            builder.append(sample);
+        }
+        for (int i = 0; i < payloadSize % sampleLength; i++) {
+            builder.append('a');
+        }
+        text = builder.toString();
+        data = text.getBytes(utf8Charset);
+        validator = new WebSocketUtf8Validator();
+    }
+
+    @Benchmark
+    public String decodeStrict() throws CharacterCodingException {
+        return utf8Charset.newDecoder().decode(ByteBuffer.wrap(data)).toString();
+    }
+
+    @Benchmark
+    public String validateThenDecode() {
+        validator.reset();
+        if (!validator.update(data, 0, data.length) || !validator.isComplete()) {
+            throw new IllegalStateException("Invalid text");
+        }
+        return new String(data, utf8Charset);
+    }
+
+    @Benchmark
+    public boolean validate() {
+        validator.reset();
+        return validator.update(data, 0, data.length) && validator.isComplete();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeStrict() throws CharacterCodingException {
+        return utf8Charset.newEncoder().encode(CharBuffer.wrap(text));
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return text.getBytes(utf8Charset);
+    }
+}
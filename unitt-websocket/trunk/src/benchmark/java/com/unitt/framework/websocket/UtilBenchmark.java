@@ -0,0 +1,73 @@
+package com.unitt.framework.websocket;
+
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * The byte order conversions used for frame lengths, masks and close codes.
+ * These run once or twice per frame, so the interesting number is usually the
+ * allocation from -prof gc rather than the throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark {
+    private byte[] bytes;
+    private long longValue;
+    private int intValue;
+    private int shortValue;
+
+
+    @Setup
+    public void setup() {
+        bytes = new byte[]{0x01, 0x23, 0x45, 0x67, (byte) 0x89, (byte) 0xAB, (byte) 0xCD, (byte) 0xEF};
+        longValue = 0x0123456789ABCDEFL;
+        intValue = 0x01234567;
+        shortValue = 0x7E7F;
+    }
+
+    @Benchmark
+    public long convertBytesToLong() {
+        return WebSocketUtil.convertBytesToLong(bytes, 0);
+    }
+
+    @Benchmark
+    public int convertBytesToInt() {
+        return WebSocketUtil.convertBytesToInt(bytes, 2);
+    }
+
+    @Benchmark
+    public int convertBytesToShort() {
+        return WebSocketUtil.convertBytesToShort(bytes, 2);
+    }
+
+    @Benchmark
+    public byte[] convertLongToBytes() {
+        return WebSocketUtil.convertLongToBytes(longValue);
+    }
+
+    @Benchmark
+    public byte[] convertIntToBytes() {
+        return WebSocketUtil.convertIntToBytes(intValue);
+    }
+
+    @Benchmark
+    public byte[] convertShortToBytes() {
+        return WebSocketUtil.convertShortToBytes(shortValue);
+    }
+}
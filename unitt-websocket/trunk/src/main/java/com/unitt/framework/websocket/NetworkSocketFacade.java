@@ -1,12 +1,14 @@
 package com.unitt.framework.websocket;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public interface NetworkSocketFacade
 {
     public void connect(WebSocketConnectConfig oConfig);
     public void disconnect();
     public void write(byte[] aBytes) throws IOException;
+    public void write(ByteBuffer... aBuffers) throws IOException;
     public void upgrade();
     
     public void setObserver(NetworkSocketObserver aObserver);
@@ -0,0 +1,20 @@
+package com.unitt.framework.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Optional network facade for transports that write asynchronously. It says
+ * when a write has actually gone out, so lazily framed messages only produce
+ * their next frame once the last one is written, and it can send a file
+ * region straight from the file system without reading it into the heap.
+ */
+public interface NetworkSocketFileFacade extends NetworkSocketFacade
+{
+    //runs aAfterWrite once the buffers have been written, or the write failed
+    public void write(ByteBuffer[] aBuffers, Runnable aAfterWrite) throws IOException;
+
+    //writes aHeader followed by aCount bytes of aFile from aPosition, then runs aAfterWrite; the file is not closed
+    public void writeFile(ByteBuffer aHeader, FileChannel aFile, long aPosition, long aCount, Runnable aAfterWrite) throws IOException;
+}
@@ -8,4 +8,5 @@ public interface NetworkSocketObserver
     public void onConnect();
     public void onDisconnect(Exception aException);
     public void onReceivedData(byte[] aData);
+    public void onReceivedData(byte[] aData, int aOffset, int aLength);
 }
@@ -0,0 +1,13 @@
+package com.unitt.framework.websocket;
+
+/**
+ * Optional network facade for transports that can stop reading. The
+ * connection pauses reads while its observer is too far behind on the
+ * messages already read, and the peer is held back by TCP flow control
+ * instead of the messages piling up in memory.
+ */
+public interface NetworkSocketReadFacade extends NetworkSocketFacade
+{
+    //stops reading when false, resumes when true; may be called from any thread
+    public void setReadable(boolean aIsReadable);
+}
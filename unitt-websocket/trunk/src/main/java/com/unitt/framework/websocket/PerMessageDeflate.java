@@ -0,0 +1,420 @@
+package com.unitt.framework.websocket;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * RFC 7692 permessage-deflate for a single connection.
+ * <p>
+ * Outbound messages are compressed with a pooled {@link Deflater} that is
+ * finished and reset after every message, so we always negotiate
+ * no_context_takeover for our own direction and never hold a compressor
+ * between messages. Inbound messages use a pooled {@link Inflater} per
+ * message when the peer agreed to no_context_takeover; otherwise the
+ * connection keeps one inflater until {@link #release()}.
+ */
+public class PerMessageDeflate {
+    public static final String EXTENSION_NAME = "permessage-deflate";
+    public static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    public static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    public static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+    public static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+    public static final int MAX_WINDOW_BITS = 15;
+    public static final int MAX_POOLED_CODECS = 64;
+
+    protected static final byte[] TAIL = new byte[]{0x00, 0x00, (byte) 0xFF, (byte) 0xFF};
+    protected static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private static final AtomicInteger deflaterCount = new AtomicInteger();
+    private static final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+    private static final AtomicInteger inflaterCount = new AtomicInteger();
+
+    private boolean isClient;
+    private boolean peerNoContextTakeover;
+    private boolean requestPeerNoContextTakeover;
+    private String response;
+    private Inflater inflater;
+    private WebSocketBufferPool bufferPool;
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    protected PerMessageDeflate(boolean aIsClient, WebSocketConnectConfig aConfig) {
+        isClient = aIsClient;
+        requestPeerNoContextTakeover = aConfig.isDeflateNoContextTakeover();
+        bufferPool = aConfig.getBufferPool();
+    }
+
+
+    // getters & setters
+    // ---------------------------------------------------------------------------
+    public boolean isClient() {
+        return isClient;
+    }
+
+    /**
+     * Returns true if the peer resets its compressor after every message.
+     */
+    public boolean isPeerNoContextTakeover() {
+        return peerNoContextTakeover;
+    }
+
+    /**
+     * Returns the extension as accepted by the server, e.g.
+     * "permessage-deflate; server_no_context_takeover".
+     */
+    public String getResponse() {
+        return response;
+    }
+
+
+    // negotiation logic
+    // ---------------------------------------------------------------------------
+    /**
+     * Builds the offer a client sends in Sec-WebSocket-Extensions.
+     */
+    public static String createOffer(WebSocketConnectConfig aConfig) {
+        StringBuilder offer = new StringBuilder(EXTENSION_NAME);
+        offer.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+        if (aConfig.isDeflateNoContextTakeover()) {
+            offer.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+        }
+        return offer.toString();
+    }
+
+    /**
+     * Server side: returns the first offer we can accept from the client's
+     * Sec-WebSocket-Extensions values, or null if there is none.
+     */
+    public static PerMessageDeflate acceptOffer(List<String> aHeaderValues, WebSocketConnectConfig aConfig) {
+        for (String value : aHeaderValues) {
+            for (String offer : value.split(",")) {
+                try {
+                    Map<String, String> parameters = parseParameters(offer);
+                    if (parameters != null) {
+                        PerMessageDeflate deflate = new PerMessageDeflate(false, aConfig);
+                        if (deflate.acceptOfferParameters(parameters)) {
+                            return deflate;
+                        }
+                    }
+                } catch (IllegalArgumentException e) {
+                    // malformed offer - try the next one
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Client side: applies the server's response. Returns null if the server
+     * did not accept the extension.
+     *
+     * @throws IllegalArgumentException if the response is invalid or asks for something we cannot do
+     */
+    public static PerMessageDeflate acceptResponse(List<String> aHeaderValues, WebSocketConnectConfig aConfig) {
+        PerMessageDeflate result = null;
+        for (String value : aHeaderValues) {
+            for (String extension : value.split(",")) {
+                Map<String, String> parameters = parseParameters(extension);
+                if (parameters == null) {
+                    continue;
+                }
+                if (!aConfig.isPerMessageDeflate()) {
+                    throw new IllegalArgumentException("Server accepted " + EXTENSION_NAME + " without an offer.");
+                }
+                if (result != null) {
+                    throw new IllegalArgumentException("Server accepted " + EXTENSION_NAME + " more than once.");
+                }
+                result = new PerMessageDeflate(true, aConfig);
+                result.acceptResponseParameters(parameters);
+                result.response = extension.trim();
+            }
+        }
+
+        return result;
+    }
+
+    protected boolean acceptOfferParameters(Map<String, String> aParameters) {
+        boolean hasServerMaxWindowBits = false;
+        for (Map.Entry<String, String> parameter : aParameters.entrySet()) {
+            String name = parameter.getKey();
+            String value = parameter.getValue();
+            if (SERVER_NO_CONTEXT_TAKEOVER.equals(name) || CLIENT_NO_CONTEXT_TAKEOVER.equals(name)) {
+                if (value != null) {
+                    return false;
+                }
+                if (CLIENT_NO_CONTEXT_TAKEOVER.equals(name)) {
+                    peerNoContextTakeover = true;
+                }
+            } else if (SERVER_MAX_WINDOW_BITS.equals(name)) {
+                // our deflater always uses a 32K window
+                if (parseWindowBits(value) != MAX_WINDOW_BITS) {
+                    return false;
+                }
+                hasServerMaxWindowBits = true;
+            } else if (CLIENT_MAX_WINDOW_BITS.equals(name)) {
+                // our inflater handles any window, so we never limit the client
+                if (value != null) {
+                    parseWindowBits(value);
+                }
+            } else {
+                return false;
+            }
+        }
+
+        // build response - we never use context takeover ourselves
+        StringBuilder output = new StringBuilder(EXTENSION_NAME);
+        output.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+        if (requestPeerNoContextTakeover || peerNoContextTakeover) {
+            output.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+            peerNoContextTakeover = true;
+        }
+        if (hasServerMaxWindowBits) {
+            output.append("; ").append(SERVER_MAX_WINDOW_BITS).append("=").append(MAX_WINDOW_BITS);
+        }
+        response = output.toString();
+        return true;
+    }
+
+    protected void acceptResponseParameters(Map<String, String> aParameters) {
+        for (Map.Entry<String, String> parameter : aParameters.entrySet()) {
+            String name = parameter.getKey();
+            String value = parameter.getValue();
+            if (SERVER_NO_CONTEXT_TAKEOVER.equals(name) || CLIENT_NO_CONTEXT_TAKEOVER.equals(name)) {
+                if (value != null) {
+                    throw new IllegalArgumentException("Parameter " + name + " does not take a value.");
+                }
+                if (SERVER_NO_CONTEXT_TAKEOVER.equals(name)) {
+                    peerNoContextTakeover = true;
+                }
+            } else if (SERVER_MAX_WINDOW_BITS.equals(name)) {
+                parseWindowBits(value);
+            } else {
+                // includes client_max_window_bits, which we never offer
+                throw new IllegalArgumentException("Unexpected " + EXTENSION_NAME + " parameter: " + name);
+            }
+        }
+    }
+
+    /**
+     * Parses "permessage-deflate; a; b=1" into its parameters. Returns null if
+     * the extension is not permessage-deflate.
+     *
+     * @throws IllegalArgumentException if a parameter is repeated
+     */
+    protected static Map<String, String> parseParameters(String aExtension) {
+        String[] items = aExtension.split(";");
+        if (!EXTENSION_NAME.equalsIgnoreCase(items[0].trim())) {
+            return null;
+        }
+
+        Map<String, String> results = new LinkedHashMap<String, String>();
+        for (int i = 1; i < items.length; i++) {
+            String item = items[i].trim();
+            if (item.length() == 0) {
+                continue;
+            }
+            String name = item;
+            String value = null;
+            int index = item.indexOf('=');
+            if (index >= 0) {
+                name = item.substring(0, index).trim();
+                value = item.substring(index + 1).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+            }
+            name = name.toLowerCase();
+            if (results.containsKey(name)) {
+                throw new IllegalArgumentException("Duplicate " + EXTENSION_NAME + " parameter: " + name);
+            }
+            results.put(name, value);
+        }
+
+        return results;
+    }
+
+    protected static int parseWindowBits(String aValue) {
+        try {
+            int bits = Integer.parseInt(aValue);
+            if (bits >= 8 && bits <= MAX_WINDOW_BITS) {
+                return bits;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+
+        throw new IllegalArgumentException("Invalid window bits: " + aValue);
+    }
+
+
+    // compression logic
+    // ---------------------------------------------------------------------------
+    /**
+     * Compresses a whole message. The result is a complete DEFLATE stream
+     * (final block set), which RFC 7692 allows in place of a sync flush.
+     */
+    public byte[] compress(byte[] aData) {
+        return compress(aData, 0, aData.length);
+    }
+
+    /**
+     * Compresses a whole message held in aLength bytes of aData.
+     */
+    public byte[] compress(byte[] aData, int aOffset, int aLength) {
+        Deflater deflater = borrowDeflater();
+        byte[] buffer = bufferPool.leaseArray(Math.min(BUFFER_SIZE, aLength + 64));
+        try {
+            deflater.setInput(aData, aOffset, aLength);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, aLength / 2));
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                output.write(buffer, 0, length);
+            }
+            return output.toByteArray();
+        } finally {
+            bufferPool.release(buffer);
+            returnDeflater(deflater);
+        }
+    }
+
+    /**
+     * Decompresses a whole message.
+     *
+     * @throws DataFormatException if the payload is not valid DEFLATE data
+     */
+    public byte[] decompress(byte[] aData) throws DataFormatException {
+        return decompress(aData, 0, aData.length);
+    }
+
+    /**
+     * Decompresses a whole message held in aLength bytes of aData.
+     *
+     * @throws DataFormatException if the payload is not valid DEFLATE data
+     */
+    public byte[] decompress(byte[] aData, int aOffset, int aLength) throws DataFormatException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, aLength * 4));
+        try {
+            decompress(aData, aOffset, aLength, output);
+        } catch (IOException e) {
+            // cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Decompresses a whole message held in aLength bytes of aData, writing the
+     * inflated bytes to aOutput as they are produced so that the message never
+     * has to be held in memory. The output may stop the message by throwing.
+     *
+     * @throws DataFormatException if the payload is not valid DEFLATE data
+     * @throws IOException         if aOutput cannot take the data
+     */
+    public void decompress(byte[] aData, int aOffset, int aLength, OutputStream aOutput) throws DataFormatException, IOException {
+        Inflater messageInflater = peerNoContextTakeover ? borrowInflater() : getInflater();
+        byte[] buffer = bufferPool.leaseArray(BUFFER_SIZE);
+        try {
+            messageInflater.setInput(aData, aOffset, aLength);
+            boolean hasTail = false;
+            while (!messageInflater.finished()) {
+                int length = messageInflater.inflate(buffer);
+                if (length > 0) {
+                    aOutput.write(buffer, 0, length);
+                } else if (messageInflater.needsInput()) {
+                    // the sender strips the trailing empty block
+                    if (hasTail) {
+                        break;
+                    }
+                    messageInflater.setInput(TAIL);
+                    hasTail = true;
+                } else if (messageInflater.needsDictionary()) {
+                    throw new DataFormatException("Compressed message requires a dictionary.");
+                } else {
+                    break;
+                }
+            }
+        } finally {
+            bufferPool.release(buffer);
+            if (peerNoContextTakeover) {
+                returnInflater(messageInflater);
+            } else if (messageInflater.finished() || !messageInflater.needsInput()) {
+                // peer ended the stream instead of flushing it, or we stopped part way through
+                messageInflater.reset();
+            }
+        }
+    }
+
+    /**
+     * Returns any codec held by this connection to the pool.
+     */
+    public synchronized void release() {
+        if (inflater != null) {
+            returnInflater(inflater);
+            inflater = null;
+        }
+    }
+
+    protected synchronized Inflater getInflater() {
+        if (inflater == null) {
+            inflater = borrowInflater();
+        }
+        return inflater;
+    }
+
+
+    // pool logic
+    // ---------------------------------------------------------------------------
+    protected static Deflater borrowDeflater() {
+        Deflater deflater = deflaters.poll();
+        if (deflater != null) {
+            deflaterCount.decrementAndGet();
+            return deflater;
+        }
+        return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    protected static void returnDeflater(Deflater aDeflater) {
+        aDeflater.reset();
+        if (deflaterCount.incrementAndGet() <= MAX_POOLED_CODECS) {
+            deflaters.add(aDeflater);
+        } else {
+            deflaterCount.decrementAndGet();
+            aDeflater.end();
+        }
+    }
+
+    protected static Inflater borrowInflater() {
+        Inflater inflater = inflaters.poll();
+        if (inflater != null) {
+            inflaterCount.decrementAndGet();
+            return inflater;
+        }
+        return new Inflater(true);
+    }
+
+    protected static void returnInflater(Inflater aInflater) {
+        aInflater.reset();
+        if (inflaterCount.incrementAndGet() <= MAX_POOLED_CODECS) {
+            inflaters.add(aInflater);
+        } else {
+            inflaterCount.decrementAndGet();
+            aInflater.end();
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package com.unitt.framework.websocket;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
 /**
  * @author Josh Morris
  */
@@ -55,5 +60,15 @@ public interface WebSocket
     public void ping(String aMessage);
     public void sendMessage(byte[] aMessage);
     public void sendMessage(String aMessage);
+
+    //binary messages read and framed a fragment at a time as they are written; the file or stream is closed once sent
+    public void sendFile(File aFile) throws IOException;
+    public void sendFile(FileChannel aFile) throws IOException;
+    public void sendStream(InputStream aStream);
+
+    //sends that refuse the message instead of queueing past the write high watermark
+    public boolean trySend(byte[] aMessage);
+    public boolean trySend(String aMessage);
+    public boolean isWritable();
     
 }
@@ -0,0 +1,273 @@
+package com.unitt.framework.websocket;
+
+
+import com.unitt.framework.websocket.WebSocketFragment.MessageOpCode;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Sends one message to many connections, encoding and framing it only once.
+ * Unmasked (server side) connections all queue the same frame bytes; each
+ * holds a reference until its write completes, and text that was encoded into
+ * a pooled buffer goes back to the pool once the last connection has written
+ * it. Connections that compress share one compressed copy, since our
+ * compressor starts every message from a fresh context.
+ * <p>
+ * Masked (client side) connections and other {@link WebSocket}
+ * implementations fall back to their own send methods.
+ * <p>
+ * A target that cannot take the message does not stop the fan-out; it is
+ * reported in the returned {@link Result}. Failures of writes that complete
+ * later are reported to that connection's observer as usual.
+ */
+public class WebSocketBroadcaster {
+    protected static final Charset utf8Charset = Charset.forName("UTF-8");
+
+    private WebSocketBufferPool bufferPool;
+    private boolean dropWhenFull;
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    public WebSocketBroadcaster() {
+        this(WebSocketBufferPool.getDefault());
+    }
+
+    public WebSocketBroadcaster(WebSocketBufferPool aBufferPool) {
+        bufferPool = aBufferPool;
+    }
+
+
+    // getters & setters
+    // ---------------------------------------------------------------------------
+    public WebSocketBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * If true, targets whose outbound queue has reached its high watermark are
+     * skipped and reported as failures instead of queueing the message anyway.
+     */
+    public boolean isDropWhenFull() {
+        return dropWhenFull;
+    }
+
+    public void setDropWhenFull(boolean aDropWhenFull) {
+        dropWhenFull = aDropWhenFull;
+    }
+
+
+    // broadcast logic
+    // ---------------------------------------------------------------------------
+    public Result broadcast(String aMessage, Collection<? extends WebSocket> aTargets) {
+        SharedMessage message = encodeText(aMessage);
+        try {
+            return broadcast(message, aTargets);
+        } finally {
+            message.release();
+        }
+    }
+
+    /**
+     * Broadcasts a binary message. The array is shared with the queued frames
+     * and must not be modified afterwards.
+     */
+    public Result broadcast(byte[] aMessage, Collection<? extends WebSocket> aTargets) {
+        SharedMessage message = new SharedMessage(MessageOpCode.BINARY, aMessage, 0, aMessage.length, null, null);
+        try {
+            return broadcast(message, aTargets);
+        } finally {
+            message.release();
+        }
+    }
+
+    protected Result broadcast(SharedMessage aMessage, Collection<? extends WebSocket> aTargets) {
+        Result result = new Result();
+        for (WebSocket target : aTargets) {
+            try {
+                Exception failure = send(aMessage, target);
+                if (failure == null) {
+                    result.sentCount++;
+                } else {
+                    result.failures.put(target, failure);
+                }
+            } catch (RuntimeException e) {
+                result.failures.put(target, e);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Sends the message to one target and returns the reason it could not be
+     * sent, or null.
+     */
+    protected Exception send(SharedMessage aMessage, WebSocket aTarget) {
+        if (aTarget instanceof WebSocketConnection && !((WebSocketConnection) aTarget).sendWithMask()) {
+            WebSocketConnection connection = (WebSocketConnection) aTarget;
+            ByteBuffer[] frames = aMessage.getFrames(connection);
+            ByteBuffer[] buffers = new ByteBuffer[frames.length];
+            for (int i = 0; i < frames.length; i++) {
+                buffers[i] = frames[i].duplicate();
+            }
+
+            aMessage.retain();
+            if (!connection.sendFrames(buffers, aMessage.opCode, aMessage.getFrameCount(connection), aMessage, !dropWhenFull)) {
+                aMessage.release();
+                return getRefusal(aTarget);
+            }
+            return null;
+        }
+
+        // masked connections need their own copy of the payload anyway
+        if (aMessage.opCode == MessageOpCode.TEXT) {
+            if (dropWhenFull) {
+                return aTarget.trySend(aMessage.text) ? null : getRefusal(aTarget);
+            }
+            aTarget.sendMessage(aMessage.text);
+        } else {
+            if (dropWhenFull) {
+                return aTarget.trySend(aMessage.payload) ? null : getRefusal(aTarget);
+            }
+            aTarget.sendMessage(aMessage.payload);
+        }
+
+        return null;
+    }
+
+    protected Exception getRefusal(WebSocket aTarget) {
+        if (aTarget.getReadyState() != WebSocket.WebSocketReadyState.OPEN) {
+            return new IllegalStateException("Connection is not open: " + aTarget.getReadyState());
+        }
+        return new IllegalStateException("Outbound queue is full.");
+    }
+
+    /**
+     * Encodes the text as UTF-8 into a pooled buffer.
+     */
+    protected SharedMessage encodeText(String aMessage) {
+        CharsetEncoder encoder = utf8Charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        byte[] data = bufferPool.leaseArray((int) Math.ceil(aMessage.length() * (double) encoder.maxBytesPerChar()));
+        ByteBuffer output = ByteBuffer.wrap(data);
+        encoder.encode(CharBuffer.wrap(aMessage), output, true);
+        encoder.flush(output);
+
+        return new SharedMessage(MessageOpCode.TEXT, data, 0, output.position(), aMessage, bufferPool);
+    }
+
+
+    // shared message
+    // ---------------------------------------------------------------------------
+    /**
+     * A message and the frames built for it, shared by every target. The
+     * broadcast holds one reference and every queued write holds another;
+     * running the message releases one.
+     */
+    protected static class SharedMessage implements Runnable {
+        private final MessageOpCode opCode;
+        private final byte[] payload;
+        private final int offset;
+        private final int length;
+        private final String text;
+        private final WebSocketBufferPool pool;
+        private final AtomicInteger referenceCount = new AtomicInteger(1);
+        private final Map<Integer, ByteBuffer[]> frames = new HashMap<Integer, ByteBuffer[]>();
+        private final Map<Integer, ByteBuffer[]> compressedFrames = new HashMap<Integer, ByteBuffer[]>();
+        private byte[] compressedPayload;
+
+        public SharedMessage(MessageOpCode aOpCode, byte[] aPayload, int aOffset, int aLength, String aText, WebSocketBufferPool aPool) {
+            opCode = aOpCode;
+            payload = aPayload;
+            offset = aOffset;
+            length = aLength;
+            text = aText;
+            pool = aPool;
+        }
+
+        /**
+         * Returns the frames for the connection's fragment size and
+         * compression, building them the first time they are needed. Only
+         * called from the broadcasting thread.
+         */
+        public ByteBuffer[] getFrames(WebSocketConnection aConnection) {
+            boolean isCompressed = aConnection.shouldCompress(opCode, length);
+            Integer maxPayloadSize = aConnection.getMaxPayloadSize();
+            Map<Integer, ByteBuffer[]> cache = isCompressed ? compressedFrames : frames;
+            ByteBuffer[] results = cache.get(maxPayloadSize);
+            if (results == null) {
+                if (isCompressed) {
+                    if (compressedPayload == null) {
+                        compressedPayload = aConnection.getDeflate().compress(payload, offset, length);
+                    }
+                    results = WebSocketConnection.buildMessageBuffers(compressedPayload, 0, compressedPayload.length, opCode, true, false, maxPayloadSize);
+                } else {
+                    results = WebSocketConnection.buildMessageBuffers(payload, offset, length, opCode, false, false, maxPayloadSize);
+                }
+                cache.put(maxPayloadSize, results);
+            }
+
+            return results;
+        }
+
+        /**
+         * Returns the number of frames {@link #getFrames} built for the
+         * connection.
+         */
+        public int getFrameCount(WebSocketConnection aConnection) {
+            boolean isCompressed = aConnection.shouldCompress(opCode, length) && compressedPayload != null;
+            return WebSocketConnection.getFrameCount(isCompressed ? compressedPayload.length : length, aConnection.getMaxPayloadSize());
+        }
+
+        public void retain() {
+            referenceCount.incrementAndGet();
+        }
+
+        public void release() {
+            if (referenceCount.decrementAndGet() == 0 && pool != null) {
+                pool.release(payload);
+            }
+        }
+
+        public void run() {
+            release();
+        }
+    }
+
+
+    // result
+    // ---------------------------------------------------------------------------
+    public static class Result {
+        private int sentCount;
+        private Map<WebSocket, Exception> failures = new LinkedHashMap<WebSocket, Exception>();
+
+        /**
+         * Returns the number of targets that took the message.
+         */
+        public int getSentCount() {
+            return sentCount;
+        }
+
+        /**
+         * Returns each target that could not take the message and why.
+         */
+        public Map<WebSocket, Exception> getFailures() {
+            return Collections.unmodifiableMap(failures);
+        }
+
+        public boolean isComplete() {
+            return failures.isEmpty();
+        }
+    }
+}
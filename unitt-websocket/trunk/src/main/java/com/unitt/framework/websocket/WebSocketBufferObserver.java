@@ -0,0 +1,20 @@
+package com.unitt.framework.websocket;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Opt-in observer that receives messages as read-only views over the
+ * connection's receive buffer instead of freshly copied arrays and strings. A
+ * message that arrived in several fragments is delivered as one view per
+ * fragment. Text messages are delivered as their UTF-8 bytes.
+ * <p>
+ * The views are only valid until the supplied release callback is invoked. The
+ * callback may be invoked from any thread, but the receive buffer cannot be
+ * reused while a message is outstanding.
+ */
+public interface WebSocketBufferObserver extends WebSocketObserver
+{
+    public void onBinaryMessage(ByteBuffer[] aMessage, WebSocketBufferRelease aRelease);
+    public void onTextMessage(ByteBuffer[] aMessage, WebSocketBufferRelease aRelease);
+}
@@ -0,0 +1,329 @@
+package com.unitt.framework.websocket;
+
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Size-classed pool of receive and scratch buffers shared by every connection.
+ * Sizes are rounded up to the next power of two between {@link #MIN_SIZE} and
+ * {@link #MAX_SIZE}; larger requests are allocated and dropped as usual.
+ * <p>
+ * Each thread keeps a few buffers of every size class up to
+ * {@link #MAX_THREAD_CACHED_SIZE} to itself, so a lease/release pair on the
+ * same thread never touches shared state. Buffers released on another thread
+ * land in that thread's cache, or the shared queue once the cache is full.
+ * Larger buffers always go through the shared queues, which keeps what the
+ * caches hold outside of the pooled byte limit small. Virtual threads have no
+ * cache, since there may be any number of them.
+ */
+public class WebSocketBufferPool {
+    public static final int MIN_SIZE_SHIFT = 8;
+    public static final int MAX_SIZE_SHIFT = 20;
+    public static final int MIN_SIZE = 1 << MIN_SIZE_SHIFT;
+    public static final int MAX_SIZE = 1 << MAX_SIZE_SHIFT;
+    public static final int DEFAULT_MAX_POOLED_BYTES = 64 * 1024 * 1024;
+    public static final int DEFAULT_THREAD_CACHE_SIZE = 4;
+    public static final int MAX_THREAD_CACHED_SIZE = 64 * 1024;
+
+    protected static final int SIZE_CLASS_COUNT = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+    protected static final Object[][] NO_THREAD_CACHE = new Object[SIZE_CLASS_COUNT][0];
+    protected static final Method isVirtualThread = findIsVirtualThread();
+
+    private static volatile WebSocketBufferPool defaultPool = new WebSocketBufferPool();
+
+    private final boolean useDirectBuffers;
+    private final Arena<byte[]> heapArena;
+    private final Arena<ByteBuffer> directArena;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong outstandingBytes = new AtomicLong();
+    private final AtomicLong highWaterMark = new AtomicLong();
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    public WebSocketBufferPool() {
+        this(DEFAULT_MAX_POOLED_BYTES, DEFAULT_THREAD_CACHE_SIZE, false);
+    }
+
+    /**
+     * @param aMaxPooledBytes   upper bound on idle bytes kept in each size class's shared queue
+     * @param aThreadCacheSize  buffers of each size class up to {@link #MAX_THREAD_CACHED_SIZE} cached per thread, 0 to disable
+     * @param aUseDirectBuffers if true, {@link #leaseBuffer(int)} hands out direct buffers
+     */
+    public WebSocketBufferPool(int aMaxPooledBytes, int aThreadCacheSize, boolean aUseDirectBuffers) {
+        useDirectBuffers = aUseDirectBuffers;
+        heapArena = new Arena<byte[]>(aMaxPooledBytes, aThreadCacheSize);
+        directArena = new Arena<ByteBuffer>(aMaxPooledBytes, aThreadCacheSize);
+    }
+
+
+    // getters & setters
+    // ---------------------------------------------------------------------------
+    public static WebSocketBufferPool getDefault() {
+        return defaultPool;
+    }
+
+    public static void setDefault(WebSocketBufferPool aPool) {
+        defaultPool = aPool;
+    }
+
+    protected static Method findIsVirtualThread() {
+        // Thread.isVirtual() is only available on Java 21+
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the current thread is a virtual thread.
+     */
+    protected static boolean isVirtualThread() {
+        if (isVirtualThread == null) {
+            return false;
+        }
+
+        try {
+            return Boolean.TRUE.equals(isVirtualThread.invoke(Thread.currentThread()));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public boolean isUseDirectBuffers() {
+        return useDirectBuffers;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the share of leases served from the pool, from 0 to 1.
+     */
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total > 0 ? (double) hitCount / total : 0;
+    }
+
+    /**
+     * Returns the capacity of every buffer currently leased and not released.
+     */
+    public long getOutstandingBytes() {
+        return outstandingBytes.get();
+    }
+
+    /**
+     * Returns the largest value {@link #getOutstandingBytes()} has reached.
+     */
+    public long getHighWaterMark() {
+        return highWaterMark.get();
+    }
+
+    public String toString() {
+        return "WebSocketBufferPool[hits=" + getHits() + ", misses=" + getMisses() + ", hitRate=" + getHitRate() + ", outstandingBytes=" + getOutstandingBytes() + ", highWaterMark=" + getHighWaterMark() + "]";
+    }
+
+
+    // pool logic
+    // ---------------------------------------------------------------------------
+    /**
+     * Leases an array of at least aMinLength bytes. Its contents are undefined.
+     */
+    public byte[] leaseArray(int aMinLength) {
+        int sizeClass = getSizeClass(aMinLength);
+        if (sizeClass < 0) {
+            leased(aMinLength, false);
+            return new byte[aMinLength];
+        }
+
+        byte[] result = heapArena.lease(sizeClass);
+        leased(result != null ? result.length : getCapacity(sizeClass), result != null);
+        return result != null ? result : new byte[getCapacity(sizeClass)];
+    }
+
+    /**
+     * Returns an array leased from {@link #leaseArray(int)}. The caller must
+     * not touch it afterwards.
+     */
+    public void release(byte[] aArray) {
+        if (aArray == null) {
+            return;
+        }
+
+        outstandingBytes.addAndGet(-aArray.length);
+        int sizeClass = getSizeClass(aArray.length);
+        if (sizeClass >= 0 && getCapacity(sizeClass) == aArray.length) {
+            heapArena.release(sizeClass, aArray);
+        }
+    }
+
+    /**
+     * Leases a buffer with its position at 0 and its limit at aMinLength. The
+     * buffer is direct if this pool was created for direct buffers.
+     */
+    public ByteBuffer leaseBuffer(int aMinLength) {
+        if (!useDirectBuffers) {
+            return ByteBuffer.wrap(leaseArray(aMinLength), 0, aMinLength);
+        }
+
+        int sizeClass = getSizeClass(aMinLength);
+        if (sizeClass < 0) {
+            leased(aMinLength, false);
+            return ByteBuffer.allocateDirect(aMinLength);
+        }
+
+        ByteBuffer result = directArena.lease(sizeClass);
+        leased(getCapacity(sizeClass), result != null);
+        if (result == null) {
+            result = ByteBuffer.allocateDirect(getCapacity(sizeClass));
+        }
+        result.clear();
+        result.limit(aMinLength);
+        return result;
+    }
+
+    /**
+     * Returns a buffer leased from {@link #leaseBuffer(int)}.
+     */
+    public void release(ByteBuffer aBuffer) {
+        if (aBuffer == null) {
+            return;
+        }
+        if (!aBuffer.isDirect()) {
+            release(aBuffer.array());
+            return;
+        }
+
+        outstandingBytes.addAndGet(-aBuffer.capacity());
+        int sizeClass = getSizeClass(aBuffer.capacity());
+        if (sizeClass >= 0 && getCapacity(sizeClass) == aBuffer.capacity()) {
+            directArena.release(sizeClass, aBuffer);
+        }
+    }
+
+    protected void leased(int aCapacity, boolean aIsHit) {
+        if (aIsHit) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+
+        long outstanding = outstandingBytes.addAndGet(aCapacity);
+        long mark = highWaterMark.get();
+        while (outstanding > mark && !highWaterMark.compareAndSet(mark, outstanding)) {
+            mark = highWaterMark.get();
+        }
+    }
+
+    /**
+     * Returns the size class for the length, or -1 if it is too large to pool.
+     */
+    protected static int getSizeClass(int aLength) {
+        if (aLength > MAX_SIZE) {
+            return -1;
+        }
+        if (aLength <= MIN_SIZE) {
+            return 0;
+        }
+
+        return 32 - Integer.numberOfLeadingZeros(aLength - 1) - MIN_SIZE_SHIFT;
+    }
+
+    protected static int getCapacity(int aSizeClass) {
+        return 1 << (aSizeClass + MIN_SIZE_SHIFT);
+    }
+
+
+    // arena
+    // ---------------------------------------------------------------------------
+    protected static class Arena<T> {
+        private final Queue<T>[] queues;
+        private final AtomicInteger[] queueSizes;
+        private final int[] maxQueueSizes;
+        private final int threadCacheSize;
+        private final ThreadLocal<Object[][]> threadCaches;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public Arena(int aMaxPooledBytes, int aThreadCacheSize) {
+            queues = new Queue[SIZE_CLASS_COUNT];
+            queueSizes = new AtomicInteger[SIZE_CLASS_COUNT];
+            maxQueueSizes = new int[SIZE_CLASS_COUNT];
+            for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+                queues[i] = new ConcurrentLinkedQueue<T>();
+                queueSizes[i] = new AtomicInteger();
+                maxQueueSizes[i] = Math.max(1, aMaxPooledBytes / SIZE_CLASS_COUNT / getCapacity(i));
+            }
+
+            threadCacheSize = aThreadCacheSize;
+            threadCaches = new ThreadLocal<Object[][]>() {
+                protected Object[][] initialValue() {
+                    if (isVirtualThread()) {
+                        return NO_THREAD_CACHE;
+                    }
+
+                    // larger size classes get an empty cache and go straight to the queue
+                    Object[][] caches = new Object[SIZE_CLASS_COUNT][];
+                    for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+                        caches[i] = new Object[getCapacity(i) <= MAX_THREAD_CACHED_SIZE ? threadCacheSize : 0];
+                    }
+                    return caches;
+                }
+            };
+        }
+
+        /**
+         * Returns a pooled item, or null if the size class is empty.
+         */
+        @SuppressWarnings("unchecked")
+        public T lease(int aSizeClass) {
+            if (threadCacheSize > 0) {
+                Object[] cache = threadCaches.get()[aSizeClass];
+                for (int i = 0; i < cache.length; i++) {
+                    if (cache[i] != null) {
+                        T result = (T) cache[i];
+                        cache[i] = null;
+                        return result;
+                    }
+                }
+            }
+
+            T result = queues[aSizeClass].poll();
+            if (result != null) {
+                queueSizes[aSizeClass].decrementAndGet();
+            }
+            return result;
+        }
+
+        public void release(int aSizeClass, T aItem) {
+            if (threadCacheSize > 0) {
+                Object[] cache = threadCaches.get()[aSizeClass];
+                for (int i = 0; i < cache.length; i++) {
+                    if (cache[i] == null) {
+                        cache[i] = aItem;
+                        return;
+                    }
+                }
+            }
+
+            if (queueSizes[aSizeClass].incrementAndGet() <= maxQueueSizes[aSizeClass]) {
+                queues[aSizeClass].add(aItem);
+            } else {
+                queueSizes[aSizeClass].decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.unitt.framework.websocket;
+
+
+/**
+ * Handed to a {@link WebSocketBufferObserver} with every message. The views
+ * delivered with the message stay valid until release is called, which must
+ * happen exactly once.
+ */
+public interface WebSocketBufferRelease
+{
+    public void release();
+}
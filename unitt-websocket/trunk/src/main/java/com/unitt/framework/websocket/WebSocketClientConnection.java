@@ -3,7 +3,6 @@ package com.unitt.framework.websocket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 
@@ -12,7 +11,7 @@ import java.io.IOException;
  */
 public class WebSocketClientConnection extends WebSocketConnection {
     private static final Logger logger = LoggerFactory.getLogger(WebSocketClientConnection.class);
-    protected ByteArrayOutputStream handshakeBytes = new ByteArrayOutputStream();
+    protected WebSocketHandshakeParser handshakeParser = new WebSocketHandshakeParser();
 
     // constructors
     // ---------------------------------------------------------------------------
@@ -35,42 +34,33 @@ public class WebSocketClientConnection extends WebSocketConnection {
     }
 
     @Override
-    public void onReceivedData(byte[] aData) {
+    public void onReceivedData(byte[] aData, int aOffset, int aLength) {
         if (getState() == WebSocketState.NeedsHandshake) {
             //if handshake data is munged with actual data, split it
-            byte[] delimiter = "\r\n\r\n".getBytes();
-            int end = WebSocketUtil.getIndexOf(aData, delimiter);
-            if (end >= 0) {
-                byte[] bytes = WebSocketUtil.copySubArray(aData, 0, end);
-                if (handshakeBytes.size() > 0) {
-                    try {
-                        handshakeBytes.write(bytes);
-                        bytes = handshakeBytes.toByteArray();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-                handleHandshake(bytes);
-                int start = end + delimiter.length;
-                int length = aData.length - start;
+            int consumed;
+            try {
+                consumed = handshakeParser.parse(aData, aOffset, aLength);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Bad handshake: " + e.getMessage());
+                failHandshake();
+                return;
+            }
+            if (handshakeParser.isComplete()) {
+                handleHandshake(handshakeParser);
+                int length = aLength - consumed;
                 if (length > 0) {
-                    bytes = WebSocketUtil.copySubArray(aData, start, length);
-                    super.onReceivedData(bytes);
-                }
-            } else {
-                try {
-                    handshakeBytes.write(aData);
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    super.onReceivedData(aData, aOffset + consumed, length);
                 }
             }
         } else {
-            super.onReceivedData(aData);
+            super.onReceivedData(aData, aOffset, aLength);
         }
     }
 
     @Override
     public void onConnect() {
+        startHandshakeTimer();
+        handshakeParser = new WebSocketHandshakeParser(getConnectConfig().getMaxHandshakeSize());
         setState(WebSocketState.NeedsHandshake);
         try {
             getNetwork().write(getHandshake().getClientHandshakeBytes());
@@ -81,18 +71,31 @@ public class WebSocketClientConnection extends WebSocketConnection {
 
     protected boolean handleHandshake(byte[] aHandshakeBytes) {
         if (aHandshakeBytes != null && aHandshakeBytes.length > 0) {
-            if (getHandshake().verifyServerHandshake(aHandshakeBytes)) {
-                getNetwork().upgrade();
-                setState(WebSocketState.Connected);
-                sendOpenToObserver(getHandshake().getServerConfig().getSelectedProtocol(), getHandshake().getServerConfig().getSelectedExtensions());
-                return true;
-            } else {
-                logger.warn("Bad handshake: (" + aHandshakeBytes.length + ")" + new String(aHandshakeBytes));
-                setCloseMessage("Invalid Handshake");
-                setState(WebSocketState.Disconnected);
-                getNetwork().disconnect();
-            }
+            return handleHandshake(WebSocketHandshakeParser.parse(aHandshakeBytes));
         }
         return false;
     }
+
+    protected boolean handleHandshake(WebSocketHandshakeParser aHandshake) {
+        if (getHandshake().verifyServerHandshake(aHandshake)) {
+            getNetwork().upgrade();
+            setDeflate(getHandshake().getDeflate());
+            recordHandshake(true);
+            setState(WebSocketState.Connected);
+            startKeepAlive();
+            sendOpenToObserver(getHandshake().getServerConfig().getSelectedProtocol(), getHandshake().getServerConfig().getSelectedExtensions());
+            return true;
+        }
+
+        logger.warn("Bad handshake: " + aHandshake.getStartLine());
+        failHandshake();
+        return false;
+    }
+
+    protected void failHandshake() {
+        recordHandshake(false);
+        setCloseMessage("Invalid Handshake");
+        setState(WebSocketState.Disconnected);
+        getNetwork().disconnect();
+    }
 }
@@ -5,6 +5,7 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 
 /**
@@ -35,6 +36,12 @@ public class WebSocketConnectConfig {
         }
     };
 
+    public static final int DEFAULT_READ_BUFFER_SIZE = 16 * 1024;
+    public static final int DEFAULT_DEFLATE_THRESHOLD = 64;
+    public static final int DEFAULT_WRITE_LOW_WATERMARK = 32 * 1024;
+    public static final int DEFAULT_WRITE_HIGH_WATERMARK = 64 * 1024;
+    public static final int DEFAULT_MAX_DISPATCH_QUEUE_SIZE = 1024;
+
     private URI url;
     private String host;
     private String origin;
@@ -53,6 +60,25 @@ public class WebSocketConnectConfig {
     private String proxyHost;
     private int proxyPort = -1;
     private WebSocketVersion webSocketVersion = WebSocketVersion.VersionRfc6455;
+    private boolean useVirtualThreads;
+    private int readBufferSize = DEFAULT_READ_BUFFER_SIZE;
+    private WebSocketBufferPool bufferPool;
+    private boolean perMessageDeflate;
+    private boolean deflateNoContextTakeover;
+    private int deflateThreshold = DEFAULT_DEFLATE_THRESHOLD;
+    private long maxMessageSize;
+    private int writeLowWatermark = DEFAULT_WRITE_LOW_WATERMARK;
+    private int writeHighWatermark = DEFAULT_WRITE_HIGH_WATERMARK;
+    private Executor writeExecutor;
+    private WebSocketDispatcher dispatcher;
+    private int maxDispatchQueueSize = DEFAULT_MAX_DISPATCH_QUEUE_SIZE;
+    private WebSocketMetrics metrics;
+    private long pingIntervalInMillis;
+    private long pongTimeoutInMillis;
+    private long idleTimeoutInMillis;
+    private WebSocketTimerWheel timerWheel;
+    private int maxHandshakeSize = WebSocketHandshakeParser.DEFAULT_MAX_SIZE;
+    private volatile WebSocketHandshakeTemplate serverHandshakeTemplate;
 
 
     // constructors
@@ -128,6 +154,20 @@ public class WebSocketConnectConfig {
 
     public void setServerHeaders(List<HandshakeHeader> aServerHeaders) {
         serverHeaders = aServerHeaders;
+        serverHandshakeTemplate = null;
+    }
+
+    /**
+     * Returns the 101 response template for these server headers, building it
+     * on first use. Set the server headers again after changing them in place.
+     */
+    public WebSocketHandshakeTemplate getServerHandshakeTemplate() {
+        WebSocketHandshakeTemplate template = serverHandshakeTemplate;
+        if (template == null) {
+            template = new WebSocketHandshakeTemplate(serverHeaders);
+            serverHandshakeTemplate = template;
+        }
+        return template;
     }
 
     public boolean isVerifyTlsDomain() {
@@ -259,6 +299,236 @@ public class WebSocketConnectConfig {
         return getProxyHost() != null;
     }
 
+    /**
+     * If true, blocking transports run their read loop on a virtual thread
+     * when the JVM supports them (Java 21+), falling back to a platform thread.
+     */
+    public boolean isUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    public void setUseVirtualThreads(boolean aUseVirtualThreads) {
+        useVirtualThreads = aUseVirtualThreads;
+    }
+
+    /**
+     * If true, clients offer and servers accept the permessage-deflate
+     * extension (RFC 7692).
+     */
+    public boolean isPerMessageDeflate() {
+        return perMessageDeflate;
+    }
+
+    public void setPerMessageDeflate(boolean aPerMessageDeflate) {
+        perMessageDeflate = aPerMessageDeflate;
+    }
+
+    /**
+     * If true, we also ask the peer not to keep its compression context
+     * between messages, so neither side holds an inflater for the life of
+     * the connection.
+     */
+    public boolean isDeflateNoContextTakeover() {
+        return deflateNoContextTakeover;
+    }
+
+    public void setDeflateNoContextTakeover(boolean aDeflateNoContextTakeover) {
+        deflateNoContextTakeover = aDeflateNoContextTakeover;
+    }
+
+    /**
+     * Messages smaller than this are sent uncompressed.
+     */
+    public int getDeflateThreshold() {
+        return deflateThreshold;
+    }
+
+    public void setDeflateThreshold(int aDeflateThreshold) {
+        if (aDeflateThreshold >= 0) {
+            deflateThreshold = aDeflateThreshold;
+        }
+    }
+
+    /**
+     * Largest message, in payload bytes, that we accept before closing the
+     * connection with 1009 (message too big). Compressed messages are limited
+     * by their inflated size. 0 means no limit.
+     */
+    public long getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    public void setMaxMessageSize(long aMaxMessageSize) {
+        if (aMaxMessageSize >= 0) {
+            maxMessageSize = aMaxMessageSize;
+        }
+    }
+
+    /**
+     * Once this many bytes are waiting to be written, the connection reports
+     * itself unwritable and {@link WebSocket#trySend(byte[])} refuses messages.
+     */
+    public int getWriteHighWatermark() {
+        return writeHighWatermark;
+    }
+
+    public void setWriteHighWatermark(int aWriteHighWatermark) {
+        if (aWriteHighWatermark > 0) {
+            writeHighWatermark = aWriteHighWatermark;
+        }
+    }
+
+    /**
+     * An unwritable connection becomes writable again once no more than this
+     * many bytes are waiting to be written.
+     */
+    public int getWriteLowWatermark() {
+        return writeLowWatermark;
+    }
+
+    public void setWriteLowWatermark(int aWriteLowWatermark) {
+        if (aWriteLowWatermark >= 0) {
+            writeLowWatermark = aWriteLowWatermark;
+        }
+    }
+
+    /**
+     * If set, queued messages are written on this executor so that senders
+     * never block on a slow peer. Otherwise the sending thread writes.
+     * Keepalive checks run on it too, or on a shared pool if it is not set.
+     */
+    public Executor getWriteExecutor() {
+        return writeExecutor;
+    }
+
+    public void setWriteExecutor(Executor aWriteExecutor) {
+        writeExecutor = aWriteExecutor;
+    }
+
+    /**
+     * If set, observer callbacks run on this dispatcher, in order per
+     * connection, instead of on the thread that read the message. Otherwise,
+     * the default, the observer is called directly.
+     */
+    public WebSocketDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public void setDispatcher(WebSocketDispatcher aDispatcher) {
+        dispatcher = aDispatcher;
+    }
+
+    /**
+     * Once this many callbacks are waiting on the dispatcher, the connection
+     * stops reading until half of them have run. Only transports that can
+     * pause reads apply it. 0 means no limit.
+     */
+    public int getMaxDispatchQueueSize() {
+        return maxDispatchQueueSize;
+    }
+
+    public void setMaxDispatchQueueSize(int aMaxDispatchQueueSize) {
+        if (aMaxDispatchQueueSize >= 0) {
+            maxDispatchQueueSize = aMaxDispatchQueueSize;
+        }
+    }
+
+    /**
+     * Metrics that connections report to. Defaults to
+     * {@link WebSocketMetrics#NONE}, which records nothing.
+     */
+    public WebSocketMetrics getMetrics() {
+        return metrics != null ? metrics : WebSocketMetrics.NONE;
+    }
+
+    public void setMetrics(WebSocketMetrics aMetrics) {
+        metrics = aMetrics;
+    }
+
+    /**
+     * If set, a ping is sent whenever nothing has been received for this
+     * long. 0, the default, sends no pings.
+     */
+    public long getPingIntervalInMillis() {
+        return pingIntervalInMillis;
+    }
+
+    public void setPingIntervalInMillis(long aPingIntervalInMillis) {
+        pingIntervalInMillis = aPingIntervalInMillis;
+    }
+
+    /**
+     * How long to wait for the pong to a keepalive ping before dropping the
+     * connection. 0, the default, waits one ping interval.
+     */
+    public long getPongTimeoutInMillis() {
+        return pongTimeoutInMillis;
+    }
+
+    public void setPongTimeoutInMillis(long aPongTimeoutInMillis) {
+        pongTimeoutInMillis = aPongTimeoutInMillis;
+    }
+
+    /**
+     * If set, the connection is closed once no data message has gone either
+     * way for this long. Pings do not count. 0, the default, never closes.
+     */
+    public long getIdleTimeoutInMillis() {
+        return idleTimeoutInMillis;
+    }
+
+    public void setIdleTimeoutInMillis(long aIdleTimeoutInMillis) {
+        idleTimeoutInMillis = aIdleTimeoutInMillis;
+    }
+
+    /**
+     * Timer that keepalive and idle checks are scheduled on. Falls back to the
+     * shared {@link WebSocketTimerWheel#getDefault()} timer.
+     */
+    public WebSocketTimerWheel getTimerWheel() {
+        return timerWheel != null ? timerWheel : WebSocketTimerWheel.getDefault();
+    }
+
+    public void setTimerWheel(WebSocketTimerWheel aTimerWheel) {
+        timerWheel = aTimerWheel;
+    }
+
+    /**
+     * The most bytes the HTTP part of the opening handshake may take. Larger
+     * handshakes fail the connection.
+     */
+    public int getMaxHandshakeSize() {
+        return maxHandshakeSize;
+    }
+
+    public void setMaxHandshakeSize(int aMaxHandshakeSize) {
+        if (aMaxHandshakeSize > 0) {
+            maxHandshakeSize = aMaxHandshakeSize;
+        }
+    }
+
+    public int getReadBufferSize() {
+        return readBufferSize;
+    }
+
+    public void setReadBufferSize(int aReadBufferSize) {
+        if (aReadBufferSize > 0) {
+            readBufferSize = aReadBufferSize;
+        }
+    }
+
+    /**
+     * Pool that read, receive and compression buffers are leased from. Falls
+     * back to the shared {@link WebSocketBufferPool#getDefault()} pool.
+     */
+    public WebSocketBufferPool getBufferPool() {
+        return bufferPool != null ? bufferPool : WebSocketBufferPool.getDefault();
+    }
+
+    public void setBufferPool(WebSocketBufferPool aBufferPool) {
+        bufferPool = aBufferPool;
+    }
+
 
     // config logic
     // ---------------------------------------------------------------------------
@@ -6,17 +6,25 @@ import com.unitt.framework.websocket.WebSocketFragment.MessageOpCode;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
+import java.nio.charset.MalformedInputException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.zip.DataFormatException;
 
 //import java.util.ArrayDeque;
 
@@ -40,16 +48,29 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
     private WebSocketHandshake handshake;
     private String closeMessage;
     private int closeStatus;
-    private WebSocketState state = WebSocketState.Disconnected;
+    private volatile WebSocketState state = WebSocketState.Disconnected;
     private boolean isInContinuation;
     private LinkedList<WebSocketFragment> pendingFragments = new LinkedList<WebSocketFragment>();
-    private boolean isClosing = false;
+    private WebSocketFrameDecoder decoder;
+    private volatile boolean isClosing = false;
+    private PerMessageDeflate deflate;
+    private long messageLength;
+    private WebSocketUtf8Validator textValidator = new WebSocketUtf8Validator();
+    private boolean isValidatingText;
+    private volatile WebSocketOutboundQueue outboundQueue;
+    private WebSocketConnectionMetrics metrics = WebSocketConnectionMetrics.NONE;
+    private long handshakeStartTime;
+    private int messageFragmentCount;
+    private MessageOpCode messageOpCode;
+    private volatile WebSocketKeepAlive keepAlive;
+    private WebSocketDispatchQueue dispatchQueue;
+    private volatile WebSocketObserver callbackObserver;
 
 
     // constructors
     // ---------------------------------------------------------------------------
     public WebSocketConnection() {
-        // default
+        decoder = new WebSocketFrameDecoder();
     }
 
     public WebSocketConnection(WebSocketObserver aObserver, NetworkSocketFacade aServer, WebSocketConnectConfig aConnectConfig) {
@@ -58,6 +79,14 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
         network = aServer;
         connectConfig = aConnectConfig;
         network.setObserver(this);
+        decoder = new WebSocketFrameDecoder(WebSocketFrameDecoder.DEFAULT_BUFFER_SIZE, aConnectConfig != null ? aConnectConfig.getBufferPool() : null);
+        decoder.setCopyPayload(!usesPayloadViews(aObserver));
+        if (aConnectConfig != null) {
+            decoder.setMaxPayloadLength(aConnectConfig.getMaxMessageSize());
+            metrics = aConnectConfig.getMetrics().createConnectionMetrics(this);
+        }
+        updateCallbackObserver();
+        handshakeStartTime = System.nanoTime();
     }
 
 
@@ -73,6 +102,13 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
 
     public void setConnectConfig(WebSocketConnectConfig aConnectConfig) {
         connectConfig = aConnectConfig;
+        if (aConnectConfig != null) {
+            decoder.setMaxPayloadLength(aConnectConfig.getMaxMessageSize());
+            if (metrics == WebSocketConnectionMetrics.NONE) {
+                metrics = aConnectConfig.getMetrics().createConnectionMetrics(this);
+            }
+        }
+        updateCallbackObserver();
     }
 
     public WebSocketObserver getObserver() {
@@ -81,6 +117,35 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
 
     public void setObserver(WebSocketObserver aObserver) {
         observer = aObserver;
+        decoder.setCopyPayload(!usesPayloadViews(aObserver));
+        updateCallbackObserver();
+    }
+
+    /**
+     * Returns the observer that callbacks are made on: the observer itself, or
+     * one that queues them for the dispatcher.
+     */
+    protected WebSocketObserver getCallbackObserver() {
+        return callbackObserver;
+    }
+
+    /**
+     * Returns the queue that observer callbacks run through, or null if the
+     * observer is called directly.
+     */
+    protected WebSocketDispatchQueue getDispatchQueue() {
+        return dispatchQueue;
+    }
+
+    protected void updateCallbackObserver() {
+        if (dispatchQueue == null && connectConfig != null && connectConfig.getDispatcher() != null) {
+            dispatchQueue = connectConfig.getDispatcher().createQueue(connectConfig.getMaxDispatchQueueSize(), new WebSocketDispatchQueue.Listener() {
+                public void onReadableChanged(boolean aIsReadable) {
+                    setNetworkReadable(aIsReadable);
+                }
+            });
+        }
+        callbackObserver = dispatchQueue != null && observer != null ? new WebSocketDispatchObserver(observer, dispatchQueue) : observer;
     }
 
     public NetworkSocketFacade getNetwork() {
@@ -91,6 +156,62 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
         network = aServer;
     }
 
+    /**
+     * Returns the queue that outbound messages are written through, creating
+     * it on first use. Senders only lock while it is created.
+     */
+    protected WebSocketOutboundQueue getOutboundQueue() {
+        WebSocketOutboundQueue queue = outboundQueue;
+        return queue != null ? queue : createOutboundQueue();
+    }
+
+    protected synchronized WebSocketOutboundQueue createOutboundQueue() {
+        if (outboundQueue == null) {
+            outboundQueue = new WebSocketOutboundQueue(getNetwork(), getConnectConfig().getWriteLowWatermark(), getConnectConfig().getWriteHighWatermark(), getConnectConfig().getWriteExecutor(), new WebSocketOutboundQueue.Listener() {
+                public void onWritabilityChanged(boolean aIsWritable) {
+                    sendWritabilityToObserver(aIsWritable);
+                }
+
+                public void onWriteError(IOException aException) {
+                    sendErrorToObserver(aException);
+                }
+            });
+        }
+        return outboundQueue;
+    }
+
+    /**
+     * Returns the number of bytes queued but not yet written.
+     */
+    protected long getPendingOutboundBytes() {
+        WebSocketOutboundQueue queue = outboundQueue;
+        return queue != null ? queue.getPendingBytes() : 0;
+    }
+
+    protected WebSocketConnectionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Restarts the handshake clock. Clients start it once the socket has
+     * connected; servers are created with the request already read.
+     */
+    protected void startHandshakeTimer() {
+        handshakeStartTime = System.nanoTime();
+    }
+
+    protected void recordHandshake(boolean aAccepted) {
+        metrics.onHandshake(System.nanoTime() - handshakeStartTime, aAccepted);
+    }
+
+    protected PerMessageDeflate getDeflate() {
+        return deflate;
+    }
+
+    protected void setDeflate(PerMessageDeflate aDeflate) {
+        deflate = aDeflate;
+    }
+
     protected WebSocketHandshake getHandshake() {
         return handshake;
     }
@@ -99,8 +220,17 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
         handshake = aHandshake;
     }
 
+    /**
+     * Returns true if the observer takes payloads as views, so the decoder does
+     * not need to copy them out of the receive buffer.
+     */
+    protected static boolean usesPayloadViews(WebSocketObserver aObserver) {
+        return aObserver instanceof WebSocketBufferObserver || aObserver instanceof WebSocketStreamObserver;
+    }
+
     protected boolean throwsErrorOnInvalidUtf8() {
-        return WebSocketVersion.Version10.equals(getConnectConfig().getWebSocketVersion());
+        WebSocketVersion version = getConnectConfig().getWebSocketVersion();
+        return WebSocketVersion.Version10.equals(version) || WebSocketVersion.VersionRfc6455.equals(version);
     }
 
     protected int getDefaultStatusCode(Exception aException) {
@@ -151,12 +281,27 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
         return false;
     }
 
+    /**
+     * Pauses or resumes reading if the network supports it.
+     */
+    protected void setNetworkReadable(boolean aIsReadable) {
+        if (getNetwork() instanceof NetworkSocketReadFacade) {
+            ((NetworkSocketReadFacade) getNetwork()).setReadable(aIsReadable);
+        }
+    }
+
 
     // network socket observer interface
     // ---------------------------------------------------------------------------
     public abstract void onConnect();
 
     public void onDisconnect(Exception aException) {
+        stopKeepAlive();
+        releasePendingFragments();
+        decoder.release();
+        if (deflate != null) {
+            deflate.release();
+        }
         switch (getState()) {
             case NeedsHandshake:
             case Connected:
@@ -171,14 +316,14 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
     }
 
     public void onReceivedData(byte[] aData) {
-        int requestId = 0;
+        if (aData != null) {
+            onReceivedData(aData, 0, aData.length);
+        }
+    }
+
+    public void onReceivedData(byte[] aData, int aOffset, int aLength) {
         if (getState() != WebSocketState.Disconnected) {
-            //handle data
-            int offset = 0;
-            do {
-//                logger.info("handleMessageData: offset=" + offset + ", dataLength=" + aData.length + ", requestId=" + requestId++);
-                offset = handleMessageData(aData, offset);
-            } while (offset >= 0);
+            handleMessageData(aData, aOffset, aLength);
         }
     }
 
@@ -215,6 +360,48 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
         sendText(aMessage);
     }
 
+    public void sendFile(File aFile) throws IOException {
+        sendFile(new FileInputStream(aFile).getChannel());
+    }
+
+    public void sendFile(FileChannel aFile) throws IOException {
+        WebSocketMessageSource source;
+        try {
+            source = WebSocketMessageSource.forFile(aFile, sendWithMask(), getMaxPayloadSize());
+        } catch (IOException e) {
+            WebSocketMessageSource.closeQuietly(aFile);
+            throw e;
+        }
+        sendSource(source);
+    }
+
+    public void sendStream(InputStream aStream) {
+        sendSource(WebSocketMessageSource.forStream(aStream, sendWithMask(), getMaxPayloadSize()));
+    }
+
+    public boolean trySend(byte[] aMessage) {
+        return sendMessage(aMessage, MessageOpCode.BINARY, false);
+    }
+
+    public boolean trySend(String aMessage) {
+        if (isClosing() || getOutboundQueue().isFull()) {
+            return false;
+        }
+
+        try {
+            return sendMessage(convertFromStringToBytes(aMessage), MessageOpCode.TEXT, false);
+        } catch (CharacterCodingException e) {
+            logger.error("An error occurred while encoding UTF8 to send text message.", e);
+            sendErrorToObserver(e);
+            close(WebSocket.WebSocketCloseStatusInvalidData, null);
+            return false;
+        }
+    }
+
+    public boolean isWritable() {
+        return getOutboundQueue().isWritable();
+    }
+
     public WebSocketReadyState getReadyState() {
         switch (state) {
             case NeedsHandshake:
@@ -236,7 +423,7 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
     protected void sendOpenToObserver(String aProtocol, List<String> aExtensions) {
         if (getObserver() != null) {
             try {
-                getObserver().onOpen(aProtocol, aExtensions);
+                getCallbackObserver().onOpen(aProtocol, aExtensions);
             } catch (Exception e) {
                 logger.warn("Observer threw an exception while handling open: protocol=" + aProtocol + ", extensions=" + aExtensions, e);
             }
@@ -248,7 +435,7 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
     protected void sendErrorToObserver(Exception exception) {
         if (getObserver() != null) {
             try {
-                getObserver().onError(exception);
+                getCallbackObserver().onError(exception);
             } catch (Exception e) {
                 logger.warn("Observer threw an exception while handling error: exception=" + exception, e);
             }
@@ -258,13 +445,15 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
     }
 
     protected void sendCloseToObserver(int aStatusCode, String aCloseMessage, Exception aException) {
+        int statusCode = aStatusCode;
+        if (statusCode <= 0) {
+            statusCode = getDefaultStatusCode(aException);
+        }
+        metrics.onClose(statusCode);
+
         if (getObserver() != null) {
             try {
-                int statusCode = aStatusCode;
-                if (statusCode <= 0) {
-                    statusCode = getDefaultStatusCode(aException);
-                }
-                getObserver().onClose(statusCode, aCloseMessage, aException);
+                getCallbackObserver().onClose(statusCode, aCloseMessage, aException);
             } catch (Exception e) {
                 logger.warn("Observer threw an exception while handling close: status=" + aStatusCode + ", message=" + aCloseMessage + ", exception=" + aException, e);
             }
@@ -276,7 +465,7 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
     protected void sendPongToObserver(String aMessage) {
         if (getObserver() != null) {
             try {
-                getObserver().onPong(aMessage);
+                getCallbackObserver().onPong(aMessage);
             } catch (Exception e) {
                 logger.warn("Observer threw an exception while handling pong: message=" + aMessage, e);
             }
@@ -288,7 +477,7 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
     protected void sendBinaryMessageToObserver(byte[] aMessage) {
         if (getObserver() != null) {
             try {
-                getObserver().onBinaryMessage(aMessage);
+                getCallbackObserver().onBinaryMessage(aMessage);
             } catch (Exception e) {
                 logger.warn("Observer threw an exception while handling binary message: " + aMessage.length + " bytes.", e);
             }
@@ -297,10 +486,82 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
         }
     }
 
+    protected void sendBinaryBuffersToObserver(ByteBuffer[] aMessage, WebSocketBufferRelease aRelease) {
+        if (getObserver() instanceof WebSocketBufferObserver) {
+            try {
+                ((WebSocketBufferObserver) getCallbackObserver()).onBinaryMessage(aMessage, aRelease);
+            } catch (Exception e) {
+                logger.warn("Observer threw an exception while handling binary message: " + aMessage.length + " buffers.", e);
+            }
+        } else {
+            aRelease.release();
+            logger.warn("Missing buffer observer. Cannot send binary message.");
+        }
+    }
+
+    protected void sendTextBuffersToObserver(ByteBuffer[] aMessage, WebSocketBufferRelease aRelease) {
+        if (getObserver() instanceof WebSocketBufferObserver) {
+            try {
+                ((WebSocketBufferObserver) getCallbackObserver()).onTextMessage(aMessage, aRelease);
+            } catch (Exception e) {
+                logger.warn("Observer threw an exception while handling text message: " + aMessage.length + " buffers.", e);
+            }
+        } else {
+            aRelease.release();
+            logger.warn("Missing buffer observer. Cannot send text message.");
+        }
+    }
+
+    protected void sendMessageBeginToObserver(boolean aIsText) {
+        if (getObserver() instanceof WebSocketStreamObserver) {
+            try {
+                ((WebSocketStreamObserver) getCallbackObserver()).onMessageBegin(aIsText);
+            } catch (Exception e) {
+                logger.warn("Observer threw an exception while handling message begin: isText=" + aIsText, e);
+            }
+        } else {
+            logger.warn("Missing stream observer. Cannot send message begin.");
+        }
+    }
+
+    protected void sendMessageChunkToObserver(ByteBuffer aChunk) {
+        if (getObserver() instanceof WebSocketStreamObserver) {
+            try {
+                ((WebSocketStreamObserver) getCallbackObserver()).onMessageChunk(aChunk);
+            } catch (Exception e) {
+                logger.warn("Observer threw an exception while handling message chunk: " + aChunk.remaining() + " bytes.", e);
+            }
+        } else {
+            logger.warn("Missing stream observer. Cannot send message chunk.");
+        }
+    }
+
+    protected void sendMessageEndToObserver() {
+        if (getObserver() instanceof WebSocketStreamObserver) {
+            try {
+                ((WebSocketStreamObserver) getCallbackObserver()).onMessageEnd();
+            } catch (Exception e) {
+                logger.warn("Observer threw an exception while handling message end.", e);
+            }
+        } else {
+            logger.warn("Missing stream observer. Cannot send message end.");
+        }
+    }
+
+    protected void sendWritabilityToObserver(boolean aIsWritable) {
+        if (getObserver() instanceof WebSocketWritabilityObserver) {
+            try {
+                ((WebSocketWritabilityObserver) getCallbackObserver()).onWritabilityChanged(aIsWritable);
+            } catch (Exception e) {
+                logger.warn("Observer threw an exception while handling writability: isWritable=" + aIsWritable, e);
+            }
+        }
+    }
+
     protected void sendTextMessageToObserver(String aMessage) {
         if (getObserver() != null) {
             try {
-                getObserver().onTextMessage(aMessage);
+                getCallbackObserver().onTextMessage(aMessage);
             } catch (Exception e) {
                 logger.warn("Observer threw an exception while handling text message: " + aMessage.length() + " characters.", e);
             }
@@ -319,16 +580,17 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
     }
 
     protected void handleCompleteFragment(WebSocketFragment aFragment) {
-//        logger.info("Handle complete fragment (" + aFragment + "): isFinal=" + aFragment.isFinal() + ", opCode=" + aFragment.getOpCode() + ", length=" + aFragment.getMessageLength()); // + ": " + new String(aFragment.getPayloadData()));
-        // if we are not in continuation and its final, dequeue
-        if (aFragment.isFinal() && aFragment.getOpCode() != MessageOpCode.CONTINUATION) {
-            pendingFragments.removeLast();
+        // compressed messages are streamed once they have been joined and inflated
+        if (getObserver() instanceof WebSocketStreamObserver && aFragment.isDataFrame() && !isCompressedMessage(aFragment)) {
+            handleStreamFragment(aFragment);
+            return;
         }
 
-        // continue to process
         switch (aFragment.getOpCode()) {
             case CONTINUATION:
+                pendingFragments.add(aFragment);
                 if (aFragment.isFinal()) {
+                    isInContinuation = false;
                     try {
                         handleCompleteFragments();
                     } catch (IOException e) {
@@ -338,19 +600,27 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
                 }
                 break;
             case TEXT:
-                if (aFragment.isFinal()) {
-                    try {
-                        sendTextMessageToObserver(convertFromBytesToString(aFragment.getPayloadData()));
-                    } catch (CharacterCodingException e) {
-                        logger.error("An error occurred while decoding from UTF8 to receive a text message.", e);
-                        sendErrorToObserver(e);
-                        close(WebSocket.WebSocketCloseStatusInvalidData, null);
-                    }
+                if (aFragment.isFinal() && aFragment.isRSV1()) {
+                    handleCompressedMessage(MessageOpCode.TEXT, getPayloadBytes(aFragment));
+                } else if (aFragment.isFinal() && aFragment.getPayloadRelease() != null) {
+                    handleCompleteBuffers(MessageOpCode.TEXT, new ByteBuffer[]{aFragment.getPayloadBuffer()}, aFragment.getPayloadRelease());
+                } else if (aFragment.isFinal()) {
+                    sendTextMessageToObserver(convertFromValidatedBytesToString(aFragment.getPayloadData()));
+                } else {
+                    isInContinuation = true;
+                    pendingFragments.add(aFragment);
                 }
                 break;
             case BINARY:
-                if (aFragment.isFinal()) {
+                if (aFragment.isFinal() && aFragment.isRSV1()) {
+                    handleCompressedMessage(MessageOpCode.BINARY, getPayloadBytes(aFragment));
+                } else if (aFragment.isFinal() && aFragment.getPayloadRelease() != null) {
+                    handleCompleteBuffers(MessageOpCode.BINARY, new ByteBuffer[]{aFragment.getPayloadBuffer()}, aFragment.getPayloadRelease());
+                } else if (aFragment.isFinal()) {
                     sendBinaryMessageToObserver(aFragment.getPayloadData());
+                } else {
+                    isInContinuation = true;
+                    pendingFragments.add(aFragment);
                 }
                 break;
             case CLOSE:
@@ -359,34 +629,202 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
             case PING:
                 handlePing(aFragment.getPayloadData());
                 break;
+            case PONG:
+                handlePong();
+                break;
         }
     }
 
+    protected void handleStreamFragment(WebSocketFragment aFragment) {
+        if (aFragment.getOpCode() != MessageOpCode.CONTINUATION) {
+            sendMessageBeginToObserver(aFragment.getOpCode() == MessageOpCode.TEXT);
+        }
+        isInContinuation = !aFragment.isFinal();
+
+        try {
+            ByteBuffer chunk = aFragment.getPayloadBuffer();
+            if (chunk == null && aFragment.getPayloadData() != null) {
+                chunk = ByteBuffer.wrap(aFragment.getPayloadData()).asReadOnlyBuffer();
+            }
+            if (chunk != null && chunk.hasRemaining()) {
+                sendMessageChunkToObserver(chunk);
+            }
+        } finally {
+            aFragment.releasePayload();
+        }
+
+        if (aFragment.isFinal()) {
+            sendMessageEndToObserver();
+        }
+    }
+
+    protected boolean isCompressedMessage(WebSocketFragment aFragment) {
+        if (aFragment.getOpCode() == MessageOpCode.CONTINUATION) {
+            return !pendingFragments.isEmpty() && pendingFragments.getFirst().isRSV1();
+        }
+        return aFragment.isRSV1();
+    }
+
     protected void handleCompleteFragments() throws IOException {
-        WebSocketFragment fragment = pendingFragments.removeFirst();
-        if (fragment != null) {
-            // init
-            ByteArrayOutputStream messageData = new ByteArrayOutputStream();
-            MessageOpCode messageOpCode = fragment.getOpCode();
+        // compressed messages have to be joined before they can be inflated
+        if (!pendingFragments.isEmpty() && pendingFragments.getFirst().isRSV1()) {
+            MessageOpCode messageOpCode = pendingFragments.getFirst().getOpCode();
+            WebSocketBufferPool pool = decoder.getBufferPool();
+            int length = getPendingPayloadLength();
+            byte[] messageData = pool.leaseArray(length);
+            try {
+                joinPendingFragments(messageData);
+                handleCompressedMessage(messageOpCode, messageData, 0, length);
+            } finally {
+                pool.release(messageData);
+            }
+            return;
+        }
 
-            // loop through, constructing single message
-            while (fragment != null) {
-                messageData.write(fragment.getPayloadData());
-                fragment = pendingFragments.removeFirst();
+        // fragments that are views over the receive buffer are delivered without concatenating
+        if (!pendingFragments.isEmpty() && pendingFragments.getFirst().getPayloadRelease() != null) {
+            WebSocketFragment[] fragments = pendingFragments.toArray(new WebSocketFragment[pendingFragments.size()]);
+            ByteBuffer[] message = new ByteBuffer[fragments.length];
+            for (int i = 0; i < fragments.length; i++) {
+                message[i] = fragments[i].getPayloadBuffer();
             }
+            pendingFragments.clear();
+            handleCompleteBuffers(fragments[0].getOpCode(), message, new FragmentRelease(fragments));
+            return;
+        }
+
+        if (!pendingFragments.isEmpty()) {
+            // size the message up front so the fragments are copied exactly once
+            MessageOpCode messageOpCode = pendingFragments.getFirst().getOpCode();
+            byte[] messageData = new byte[getPendingPayloadLength()];
+            joinPendingFragments(messageData);
 
             // handle final message contents
             switch (messageOpCode) {
                 case TEXT:
-                    sendTextMessageToObserver(convertFromBytesToString(messageData.toByteArray()));
+                    sendTextMessageToObserver(convertFromValidatedBytesToString(messageData));
                     break;
                 case BINARY:
-                    sendBinaryMessageToObserver(messageData.toByteArray());
+                    sendBinaryMessageToObserver(messageData);
                     break;
             }
         }
     }
 
+    protected void handleCompleteBuffers(MessageOpCode aOpCode, ByteBuffer[] aMessage, WebSocketBufferRelease aRelease) {
+        switch (aOpCode) {
+            case TEXT:
+                sendTextBuffersToObserver(aMessage, aRelease);
+                break;
+            case BINARY:
+                sendBinaryBuffersToObserver(aMessage, aRelease);
+                break;
+            default:
+                aRelease.release();
+        }
+    }
+
+    protected void handleCompressedMessage(MessageOpCode aOpCode, byte[] aCompressed) {
+        handleCompressedMessage(aOpCode, aCompressed, 0, aCompressed.length);
+    }
+
+    protected void handleCompressedMessage(MessageOpCode aOpCode, byte[] aCompressed, int aOffset, int aLength) {
+        boolean isStreaming = getObserver() instanceof WebSocketStreamObserver;
+        boolean isText = aOpCode == MessageOpCode.TEXT && throwsErrorOnInvalidUtf8();
+        MessageOutputStream output = new MessageOutputStream(isStreaming ? null : new ByteArrayOutputStream(Math.max(64, aLength * 4)), isText);
+        try {
+            if (isStreaming) {
+                sendMessageBeginToObserver(aOpCode == MessageOpCode.TEXT);
+            }
+            deflate.decompress(aCompressed, aOffset, aLength, output);
+            if (isText && !textValidator.isComplete()) {
+                throw new MalformedInputException(0);
+            }
+        } catch (DataFormatException e) {
+            logger.error("An error occurred while inflating a compressed message.", e);
+            sendErrorToObserver(e);
+            close(WebSocket.WebSocketCloseStatusInvalidData, null);
+            return;
+        } catch (CharacterCodingException e) {
+            failInvalidText(e);
+            return;
+        } catch (IOException e) {
+            // the message inflated past the size limit
+            close(WebSocketCloseStatusMessageTooLarge, e.getMessage());
+            return;
+        }
+
+        if (isStreaming) {
+            sendMessageEndToObserver();
+            return;
+        }
+        byte[] message = output.toByteArray();
+        if (getObserver() instanceof WebSocketBufferObserver) {
+            handleCompleteBuffers(aOpCode, new ByteBuffer[]{ByteBuffer.wrap(message).asReadOnlyBuffer()}, NO_RELEASE);
+            return;
+        }
+        switch (aOpCode) {
+            case TEXT:
+                sendTextMessageToObserver(convertFromValidatedBytesToString(message));
+                break;
+            case BINARY:
+                sendBinaryMessageToObserver(message);
+                break;
+        }
+    }
+
+    /**
+     * Returns the payload as an array, copying and releasing it if the fragment
+     * only holds a view.
+     */
+    protected byte[] getPayloadBytes(WebSocketFragment aFragment) {
+        if (aFragment.getPayloadData() != null) {
+            return aFragment.getPayloadData();
+        }
+
+        ByteBuffer buffer = aFragment.getPayloadBuffer();
+        byte[] results = new byte[buffer != null ? buffer.remaining() : 0];
+        if (buffer != null) {
+            buffer.duplicate().get(results);
+        }
+        aFragment.releasePayload();
+        return results;
+    }
+
+    protected int getPendingPayloadLength() {
+        int length = 0;
+        for (WebSocketFragment fragment : pendingFragments) {
+            length += fragment.getPayloadLength();
+        }
+        return length;
+    }
+
+    /**
+     * Copies the payloads of all pending fragments into aDestination, releasing
+     * any views, and clears the pending fragments.
+     */
+    protected void joinPendingFragments(byte[] aDestination) {
+        int offset = 0;
+        WebSocketFragment fragment = pendingFragments.poll();
+        while (fragment != null) {
+            if (fragment.getPayloadData() != null) {
+                System.arraycopy(fragment.getPayloadData(), 0, aDestination, offset, fragment.getPayloadLength());
+            } else if (fragment.getPayloadBuffer() != null) {
+                fragment.getPayloadBuffer().duplicate().get(aDestination, offset, fragment.getPayloadLength());
+                fragment.releasePayload();
+            }
+            offset += fragment.getPayloadLength();
+            fragment = pendingFragments.poll();
+        }
+    }
+
+    protected void releasePendingFragments() {
+        for (WebSocketFragment fragment : pendingFragments) {
+            fragment.releasePayload();
+        }
+        pendingFragments.clear();
+    }
+
     protected void handleClose(WebSocketFragment aFragment) {
         // parse close message
         boolean hasInvalidUtf8 = false;
@@ -432,120 +870,173 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
         }
     }
 
-    protected int handleMessageData(byte[] aData, int aOffset) {
-        //init
-        int lengthOfRemainder = 0;
-        int existingLength = 0;
-        int offset = -1;
-
-        // grab last fragment, use if not complete
-        WebSocketFragment fragment = pendingFragments.peek();
-        if (fragment == null || fragment.isValid()) {
-            // assign web socket fragment since the last one was complete
-            fragment = new WebSocketFragment();
-            pendingFragments.add(fragment);
-        } else {
-            existingLength = fragment.getFragment().length;
+    protected void handlePong() {
+        WebSocketKeepAlive currentKeepAlive = keepAlive;
+        if (currentKeepAlive != null) {
+            currentKeepAlive.onPong();
         }
+    }
 
-        //if we dont know the length - try to figure it out
-        if (!fragment.isHeaderValid()) {
-            fragment.parseHeader();
+    protected void handleMessageData(byte[] aData, int aOffset, int aLength) {
+        decoder.append(aData, aOffset, aLength);
 
-            //if we still don't have a length, see if we have enough
-            if (!fragment.isHeaderValid()) {
-                if (!fragment.parseHeader(aData, aOffset)) {
-                    //if we still don't have a valid length, append all data and return
-                    if (fragment.getFragment() != null) {
-                        fragment.setFragment(WebSocketUtil.appendPartialArray(fragment.getFragment(), aData, aOffset, aData.length - aOffset));
-                    } else {
-                        fragment.setFragment(WebSocketUtil.copySubArray(aData, aOffset, aData.length - aOffset));
+        // handle every complete fragment we have buffered
+        while (getState() != WebSocketState.Disconnected) {
+            WebSocketFragment fragment;
+            try {
+                if (metrics == WebSocketConnectionMetrics.NONE) {
+                    fragment = decoder.nextFragment();
+                } else {
+                    long start = System.nanoTime();
+                    fragment = decoder.nextFragment();
+                    if (fragment != null) {
+                        metrics.onDecode(System.nanoTime() - start);
+                        metrics.onFrameReceived(fragment.getOpCode(), fragment.getPayloadStart() + fragment.getPayloadLength());
                     }
-                    return offset;
                 }
+            } catch (IllegalArgumentException e) {
+                decoder.clear();
+                close(WebSocketCloseStatusMessageTooLarge, e.getMessage());
+                return;
+            }
+
+            if (fragment == null || !handleFragment(fragment)) {
+                return;
             }
         }
+    }
 
+    protected boolean handleFragment(WebSocketFragment aFragment) {
         //validate reserved bits
         if (!getConnectConfig().getActiveExtensionModifiesReservedBits()) {
-            if (fragment.isRSV1() || fragment.isRSV2() || fragment.isRSV3()) {
-                close(WebSocket.WebSocketCloseStatusProtocolError, "No extension is defined that modifies reserved bits: RSV1=" + fragment.isRSV1() + ", RSV2=" + fragment.isRSV2() + ", RSV3=" + fragment.isRSV3());
+            // permessage-deflate marks the first frame of a compressed message with RSV1
+            boolean allowsRSV1 = deflate != null && (aFragment.getOpCode() == MessageOpCode.TEXT || aFragment.getOpCode() == MessageOpCode.BINARY);
+            if ((aFragment.isRSV1() && !allowsRSV1) || aFragment.isRSV2() || aFragment.isRSV3()) {
+                close(WebSocket.WebSocketCloseStatusProtocolError, "No extension is defined that modifies reserved bits: RSV1=" + aFragment.isRSV1() + ", RSV2=" + aFragment.isRSV2() + ", RSV3=" + aFragment.isRSV3());
+                return false;
             }
         }
 
         //make sure we have a valid op code
-        if (fragment.getOpCode() != MessageOpCode.CONTINUATION && fragment.getOpCode() != MessageOpCode.TEXT && fragment.getOpCode() != MessageOpCode.BINARY && fragment.getOpCode() != MessageOpCode.CLOSE && fragment.getOpCode() != MessageOpCode.PING && fragment.getOpCode() != MessageOpCode.PONG) {
+        if (aFragment.getOpCode() == MessageOpCode.ILLEGAL) {
             close(WebSocketCloseStatusProtocolError, "Illegal Opcode");
+            return false;
         }
 
-        //disallow fragmented control op codes
-        if (fragment.getOpCode() == MessageOpCode.PING || fragment.getOpCode() == MessageOpCode.PONG) {
-            if (!fragment.isFinal()) {
+        if (aFragment.isControlFrame()) {
+            //disallow fragmented or oversized control frames
+            if (!aFragment.isFinal()) {
                 close(WebSocketCloseStatusProtocolError, "Control frames cannot be fragmented");
+                return false;
+            }
+            if (aFragment.getPayloadLength() > 125) {
+                close(WebSocketCloseStatusProtocolError, "Control frames cannot have a payload larger than 125 bytes");
+                return false;
+            }
+        } else if (aFragment.getOpCode() == MessageOpCode.CONTINUATION) {
+            //validate continuation state
+            if (!isInContinuation) {
+                close(WebSocketCloseStatusProtocolError, "Cannot send a continuation fragment without a fragmented stream: isFinal=" + aFragment.isFinal() + ", opCode=" + aFragment.getOpCode());
+                return false;
             }
+        } else if (isInContinuation) {
+            close(WebSocketCloseStatusProtocolError, "Cannot embed non-control, non-continuation frames in a fragmented stream: isFinal=" + aFragment.isFinal() + ", opCode=" + aFragment.getOpCode());
+            return false;
         }
 
-        //validate continuation state
-        if (fragment.isFinal()) {
-            if (fragment.getOpCode() == MessageOpCode.CONTINUATION && !isInContinuation) {
-                close(WebSocketCloseStatusProtocolError, "Cannot send the final fragment without a fragmented stream: isFinal=" + fragment.isFinal() + ", opCode=" + fragment.getOpCode());
-            } else if (isInContinuation && !fragment.isControlFrame() && fragment.getOpCode() != MessageOpCode.CONTINUATION) {
-                close(WebSocketCloseStatusProtocolError, "Cannot embed complete messages in a fragmented stream: isFinal=" + fragment.isFinal() + ", opCode=" + fragment.getOpCode());
+        if (aFragment.hasMask() && isClient()) {
+            //client is not allowed to receive data that is masked and must fail the connection
+            close(WebSocket.WebSocketCloseStatusProtocolError, "Server cannot mask data.");
+            return false;
+        }
+
+        if (aFragment.isDataFrame()) {
+            if (!checkMessageLength(aFragment) || !validateText(aFragment)) {
+                return false;
             }
-        } else if (isInContinuation && fragment.getOpCode() != MessageOpCode.CONTINUATION) {
-            close(WebSocketCloseStatusProtocolError, "Cannot embed non-control, non-continuation frames in a fragmented stream: isFinal=" + fragment.isFinal() + ", opCode=" + fragment.getOpCode());
-        } else if (!isInContinuation && fragment.getOpCode() != MessageOpCode.TEXT && fragment.getOpCode() != MessageOpCode.BINARY) {
-            close(WebSocketCloseStatusProtocolError, "Illegal continuation start frame");
+            countFragment(aFragment);
         }
 
-        //determine data length
-        int possibleDataLength = aData.length - aOffset;
-        int actualDataLength = possibleDataLength;
-        if ((possibleDataLength + existingLength > fragment.getMessageLength())) {
-            lengthOfRemainder = possibleDataLength - (fragment.getMessageLength() - existingLength);
-            actualDataLength = possibleDataLength - lengthOfRemainder;
+        WebSocketKeepAlive currentKeepAlive = keepAlive;
+        if (currentKeepAlive != null) {
+            currentKeepAlive.onReceived(aFragment.isDataFrame());
         }
 
-        //append data to fragment
-        if (fragment.getFragment() != null) {
-            fragment.setFragment(WebSocketUtil.appendPartialArray(fragment.getFragment(), aData, aOffset, actualDataLength));
-        } else {
-            fragment.setFragment(WebSocketUtil.copySubArray(aData, aOffset, actualDataLength));
+        handleCompleteFragment(aFragment);
+        return true;
+    }
+
+    /**
+     * Adds the fragment to the length of the message in progress and closes the
+     * connection if the message has grown past the configured maximum.
+     */
+    protected boolean checkMessageLength(WebSocketFragment aFragment) {
+        long previousLength = aFragment.getOpCode() == MessageOpCode.CONTINUATION ? messageLength : 0;
+        messageLength = previousLength + aFragment.getPayloadLength();
+
+        long maxMessageSize = getConnectConfig().getMaxMessageSize();
+        if (maxMessageSize > 0 && messageLength > maxMessageSize) {
+            aFragment.releasePayload();
+            close(WebSocketCloseStatusMessageTooLarge, "Message exceeds the maximum size of " + maxMessageSize + " bytes.");
+            return false;
         }
 
-        //parse the data, if possible
-        if (fragment.canBeParsed()) {
-            if (fragment.hasMask() && isClient()) {
-                //client is not allowed to receive data that is masked and must fail the connection
-                close(WebSocket.WebSocketCloseStatusProtocolError, "Server cannot mask data.");
-                return offset;
-            }
-            fragment.parseContent();
+        return true;
+    }
 
-            //if we have a complete fragment, handle it
-            if (fragment.isValid() && fragment.isFinal()) {
-                handleCompleteFragment(fragment);
-            }
+    /**
+     * Reports the message to the metrics once its last fragment arrives.
+     */
+    protected void countFragment(WebSocketFragment aFragment) {
+        if (aFragment.getOpCode() != MessageOpCode.CONTINUATION) {
+            messageFragmentCount = 0;
+            messageOpCode = aFragment.getOpCode();
+        }
+        messageFragmentCount++;
+        if (aFragment.isFinal()) {
+            metrics.onMessageReceived(messageOpCode, messageFragmentCount, messageLength);
         }
+    }
 
-        //if we have extra data, handle it
-        if (fragment.getMessageLength() > 0) {
-            //if we have an offset, trim the data and call back into
-            if (lengthOfRemainder > 0) {
-                offset = actualDataLength + aOffset;
-            }
+    /**
+     * Validates the UTF-8 of an uncompressed text message one fragment at a
+     * time, so an invalid message is failed as soon as the bad bytes arrive and
+     * a complete message never has to be decoded twice. Compressed text is
+     * validated as it is inflated.
+     */
+    protected boolean validateText(WebSocketFragment aFragment) {
+        if (aFragment.getOpCode() != MessageOpCode.CONTINUATION) {
+            isValidatingText = aFragment.getOpCode() == MessageOpCode.TEXT && !aFragment.isRSV1() && throwsErrorOnInvalidUtf8();
+            textValidator.reset();
+        }
+        if (!isValidatingText) {
+            return true;
         }
 
-        //set continuation state, if we have a valid fragment
-        if (fragment.isValid()) {
-            if (fragment.isFinal() && MessageOpCode.CONTINUATION.equals(fragment.getOpCode()) && isInContinuation) {
-                isInContinuation = true;
-            } else if (!fragment.isFinal() && (MessageOpCode.TEXT.equals(fragment.getOpCode()) || MessageOpCode.BINARY.equals(fragment.getOpCode()))) {
-                isInContinuation = false;
-            }
+        boolean isValid;
+        if (aFragment.getPayloadBuffer() != null) {
+            isValid = textValidator.update(aFragment.getPayloadBuffer());
+        } else if (aFragment.getPayloadData() != null) {
+            isValid = textValidator.update(aFragment.getPayloadData(), 0, aFragment.getPayloadData().length);
+        } else {
+            isValid = textValidator.isValid();
+        }
+        if (isValid && aFragment.isFinal()) {
+            isValid = textValidator.isComplete();
         }
 
-        return offset;
+        if (!isValid) {
+            aFragment.releasePayload();
+            failInvalidText(new MalformedInputException(0));
+            return false;
+        }
+        return true;
+    }
+
+    protected void failInvalidText(CharacterCodingException aException) {
+        logger.error("An error occurred while decoding from UTF8 to receive a text message.", aException);
+        sendErrorToObserver(aException);
+        close(WebSocket.WebSocketCloseStatusInvalidData, null);
     }
 
     protected String getMessageFromBytes(byte[] aMessage) throws CharacterCodingException {
@@ -612,63 +1103,229 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
         sendMessage(aMessage, MessageOpCode.BINARY);
     }
 
+    /**
+     * Starts the keepalive pings and idle checks the config asks for. Called
+     * once the handshake has completed.
+     */
+    protected void startKeepAlive() {
+        WebSocketKeepAlive created = WebSocketKeepAlive.create(this, getConnectConfig());
+        if (created != null) {
+            stopKeepAlive();
+            keepAlive = created;
+            created.start();
+        }
+    }
+
+    protected void stopKeepAlive() {
+        WebSocketKeepAlive currentKeepAlive = keepAlive;
+        if (currentKeepAlive != null) {
+            currentKeepAlive.stop();
+            keepAlive = null;
+        }
+    }
+
+    protected void sendKeepAlivePing() {
+        if (getState() == WebSocketState.Connected && !isClosing()) {
+            sendPing(new byte[0]);
+        }
+    }
+
+    /**
+     * The peer did not answer a keepalive ping in time. A dead peer will not
+     * answer a close either, so the socket is dropped straight away.
+     */
+    protected void handlePongTimeout() {
+        logger.info("No pong received in time, dropping the connection.");
+        setCloseStatus(WebSocketCloseStatusAbnormalButMissingStatus);
+        setCloseMessage("Pong timeout");
+        closeSocket();
+    }
+
+    protected void handleIdleTimeout() {
+        close(WebSocketCloseStatusEndpointGone, "Idle timeout");
+    }
+
     protected void sendPing(byte[] aMessage) {
         sendMessage(aMessage, MessageOpCode.PING);
     }
 
     protected void sendMessage(byte[] aMessage, MessageOpCode aOpCode) {
-        if (!isClosing()) {
-            int messageLength = aMessage.length;
-            if (messageLength <= getMaxPayloadSize()) {
-                // create and send fragment
-                WebSocketFragment fragment = new WebSocketFragment(aOpCode, true, sendWithMask(), aMessage);
-                sendMessage(fragment);
-            } else {
-                List<WebSocketFragment> fragments = new ArrayList<WebSocketFragment>();
-                int fragmentCount = messageLength / getMaxPayloadSize();
-                if (messageLength % getMaxPayloadSize() > 0) {
-                    fragmentCount++;
-                }
+        sendMessage(aMessage, aOpCode, true);
+    }
 
-                // build fragments
-                for (int i = 0; i < fragmentCount; i++) {
-                    WebSocketFragment fragment = null;
-                    int fragmentLength = getMaxPayloadSize();
-                    if (i == 0) {
-                        fragment = new WebSocketFragment(aOpCode, false, sendWithMask(), WebSocketUtil.copySubArray(aMessage, i * getMaxPayloadSize(), fragmentLength));
-                    } else if (i == fragmentCount - 1) {
-                        fragmentLength = messageLength % getMaxPayloadSize();
-                        if (fragmentLength == 0) {
-                            fragmentLength = getMaxPayloadSize();
-                        }
-                        fragment = new WebSocketFragment(MessageOpCode.CONTINUATION, true, sendWithMask(), WebSocketUtil.copySubArray(aMessage, i * getMaxPayloadSize(), fragmentLength));
-                    } else {
-                        fragment = new WebSocketFragment(MessageOpCode.CONTINUATION, false, sendWithMask(), WebSocketUtil.copySubArray(aMessage, i * getMaxPayloadSize(), fragmentLength));
-                    }
-                    fragments.add(fragment);
-                }
-                // send fragments
-                for (WebSocketFragment fragment : fragments) {
-                    sendMessage(fragment);
-                }
+    /**
+     * Encodes the message and queues all of its fragments as one entry, so
+     * fragments of messages sent from different threads never interleave. A
+     * message that needs several fragments is framed as it is written, so
+     * control frames can go out between its fragments.
+     *
+     * @param aForce if false, the message is dropped when the outbound queue is full
+     * @return true if the message was queued
+     */
+    protected boolean sendMessage(byte[] aMessage, MessageOpCode aOpCode, boolean aForce) {
+        if (isClosing() || (!aForce && getOutboundQueue().isFull())) {
+            return false;
+        }
+
+        // compress data messages that are worth it
+        long start = metrics != WebSocketConnectionMetrics.NONE ? System.nanoTime() : 0;
+        int messageLength = aMessage != null ? aMessage.length : 0;
+        boolean isCompressed = shouldCompress(aOpCode, messageLength);
+        if (isCompressed) {
+            aMessage = deflate.compress(aMessage);
+            messageLength = aMessage.length;
+        }
+        int frameCount = getFrameCount(messageLength, getMaxPayloadSize());
+        ByteBuffer[] buffers = null;
+        if (frameCount == 1) {
+            buffers = buildMessageBuffers(aMessage, 0, messageLength, aOpCode, isCompressed, sendWithMask(), getMaxPayloadSize());
+        }
+        if (start != 0) {
+            metrics.onEncode(System.nanoTime() - start);
+        }
+
+        if (buffers == null) {
+            if (!queueSource(WebSocketMessageSource.forMessage(aOpCode, aMessage, isCompressed, sendWithMask(), getMaxPayloadSize()), aForce)) {
+                return false;
             }
+        } else if (!queueMessage(buffers, aOpCode, frameCount, null, aForce)) {
+            return false;
+        }
+
+        if (aOpCode == MessageOpCode.TEXT || aOpCode == MessageOpCode.BINARY) {
+            notifyKeepAliveSent();
         }
+        return true;
+    }
+
+    /**
+     * Queues a binary message that is framed as it is written. Nothing is
+     * compressed. The source is closed instead if the connection is closing.
+     */
+    protected void sendSource(WebSocketMessageSource aSource) {
+        if (isClosing()) {
+            aSource.close();
+            return;
+        }
+
+        queueSource(aSource, true);
+        notifyKeepAliveSent();
+    }
+
+    protected void notifyKeepAliveSent() {
+        WebSocketKeepAlive currentKeepAlive = keepAlive;
+        if (currentKeepAlive != null) {
+            currentKeepAlive.onSent();
+        }
+    }
+
+    /**
+     * Queues a message that was framed elsewhere, such as one frame shared by
+     * a broadcast. aAfterWrite runs once the message has been written, but
+     * not if the message is refused.
+     *
+     * @return true if the message was queued
+     */
+    protected boolean sendFrames(ByteBuffer[] aBuffers, MessageOpCode aOpCode, int aFrameCount, Runnable aAfterWrite, boolean aForce) {
+        if (isClosing() || getState() != WebSocketState.Connected) {
+            return false;
+        }
+        return queueMessage(aBuffers, aOpCode, aFrameCount, aAfterWrite, aForce);
+    }
+
+    protected boolean queueMessage(ByteBuffer[] aBuffers, MessageOpCode aOpCode, int aFrameCount, Runnable aAfterWrite, boolean aForce) {
+        if (aOpCode == MessageOpCode.PING || aOpCode == MessageOpCode.PONG) {
+            // pings and pongs skip ahead of waiting messages so keepalives stay on time
+            getOutboundQueue().addControl(aBuffers, aAfterWrite);
+        } else if (aForce) {
+            getOutboundQueue().add(aBuffers, aAfterWrite);
+        } else if (!getOutboundQueue().offer(aBuffers, aAfterWrite)) {
+            return false;
+        }
+
+        if (metrics != WebSocketConnectionMetrics.NONE) {
+            metrics.onMessageSent(aOpCode, aFrameCount, getRemaining(aBuffers));
+        }
+        return true;
+    }
+
+    /**
+     * Queues a message that is framed as it is written. Its size is counted
+     * once its last frame is out.
+     *
+     * @return true if the message was queued
+     */
+    protected boolean queueSource(final WebSocketMessageSource aSource, boolean aForce) {
+        Runnable afterWrite = null;
+        if (metrics != WebSocketConnectionMetrics.NONE) {
+            afterWrite = new Runnable() {
+                public void run() {
+                    metrics.onMessageSent(aSource.getOpCode(), aSource.getFrameCount(), aSource.getWrittenBytes());
+                }
+            };
+        }
+        if (aForce) {
+            getOutboundQueue().add(aSource, afterWrite);
+            return true;
+        }
+        return getOutboundQueue().offer(aSource, afterWrite);
+    }
+
+    protected static long getRemaining(ByteBuffer[] aBuffers) {
+        long remaining = 0;
+        for (ByteBuffer buffer : aBuffers) {
+            remaining += buffer.remaining();
+        }
+        return remaining;
+    }
+
+    /**
+     * Returns the number of frames {@link #buildMessageBuffers} splits a
+     * payload of aLength bytes into.
+     */
+    protected static int getFrameCount(int aLength, int aMaxPayloadSize) {
+        return aLength <= aMaxPayloadSize ? 1 : (aLength + aMaxPayloadSize - 1) / aMaxPayloadSize;
+    }
+
+    protected boolean shouldCompress(MessageOpCode aOpCode, int aLength) {
+        return deflate != null && (aOpCode == MessageOpCode.TEXT || aOpCode == MessageOpCode.BINARY) && aLength >= getConnectConfig().getDeflateThreshold();
+    }
+
+    /**
+     * Frames a message, splitting it into fragments of at most aMaxPayloadSize
+     * bytes, and returns the header and payload buffers of every fragment in
+     * order. Unmasked payloads are wrapped, not copied.
+     */
+    protected static ByteBuffer[] buildMessageBuffers(byte[] aMessage, int aOffset, int aLength, MessageOpCode aOpCode, boolean aIsCompressed, boolean aUseMask, int aMaxPayloadSize) {
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        int offset = 0;
+        do {
+            int fragmentLength = Math.min(aMaxPayloadSize, aLength - offset);
+            boolean isFirst = offset == 0;
+            WebSocketFragment fragment = new WebSocketFragment(isFirst ? aOpCode : MessageOpCode.CONTINUATION, offset + fragmentLength >= aLength, aUseMask, aMessage, aOffset + offset, fragmentLength);
+            fragment.setRSV1(isFirst && aIsCompressed);
+            Collections.addAll(buffers, fragment.getFragmentBuffers());
+            offset += fragmentLength;
+        } while (offset < aLength);
+
+        return buffers.toArray(new ByteBuffer[buffers.size()]);
     }
 
     protected void sendMessage(WebSocketFragment aFragment) {
         if (!isClosing()) {
-            try {
-                getNetwork().write(aFragment.getFragment());
-            } catch (IOException e) {
-                sendErrorToObserver(e);
-            }
+            queueMessage(aFragment.getFragmentBuffers(), aFragment.getOpCode(), 1, null, true);
         } else if (aFragment.getOpCode() == MessageOpCode.CLOSE) {
-            try {
-                getNetwork().write(aFragment.getFragment());
-            } catch (IOException e) {
-                sendErrorToObserver(e);
+            // only drop the socket once everything queued ahead of the close has gone out;
+            // messages that raced past the closing check are dropped after it
+            ByteBuffer[] buffers = aFragment.getFragmentBuffers();
+            getOutboundQueue().addLast(buffers, new Runnable() {
+                public void run() {
+                    closeSocket();
+                }
+            });
+            if (metrics != WebSocketConnectionMetrics.NONE) {
+                metrics.onMessageSent(MessageOpCode.CLOSE, 1, getRemaining(buffers));
             }
-            closeSocket();
         }
     }
 
@@ -697,13 +1354,24 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
         return null;
     }
 
+    /**
+     * Converts a received text message whose UTF-8 has already been checked by
+     * {@link #validateText(WebSocketFragment)}.
+     */
+    protected String convertFromValidatedBytesToString(byte[] aData) {
+        return aData != null ? new String(aData, utf8Charset) : null;
+    }
+
     protected byte[] convertFromStringToBytes(String aData) throws CharacterCodingException {
         if (aData != null) {
             if (aData.length() > 0) {
                 if (throwsErrorOnInvalidUtf8()) {
                     CharsetEncoder encoder = utf8Charset.newEncoder();
                     ByteBuffer buffer = encoder.encode(CharBuffer.wrap(aData));
-                    return buffer.array();
+                    // the encoder's array has room to spare past the limit
+                    byte[] results = new byte[buffer.remaining()];
+                    buffer.get(results);
+                    return results;
                 }
             } else {
                 return new byte[]{};
@@ -718,4 +1386,70 @@ public abstract class WebSocketConnection implements WebSocket, NetworkSocketObs
 
         return null;
     }
+
+
+    // buffer release
+    // ---------------------------------------------------------------------------
+    protected static final WebSocketBufferRelease NO_RELEASE = new WebSocketBufferRelease() {
+        public void release() {
+            // nothing to release
+        }
+    };
+
+    /**
+     * Collects an inflated message, or passes it straight on to a stream
+     * observer, and stops the message once it exceeds the size limit.
+     */
+    protected class MessageOutputStream extends OutputStream {
+        private ByteArrayOutputStream message;
+        private long length;
+        private boolean isText;
+
+        public MessageOutputStream(ByteArrayOutputStream aMessage, boolean aIsText) {
+            message = aMessage;
+            isText = aIsText;
+            if (isText) {
+                textValidator.reset();
+            }
+        }
+
+        public byte[] toByteArray() {
+            return message != null ? message.toByteArray() : null;
+        }
+
+        public void write(int aByte) throws IOException {
+            write(new byte[]{(byte) aByte}, 0, 1);
+        }
+
+        public void write(byte[] aData, int aOffset, int aLength) throws IOException {
+            length += aLength;
+            long maxMessageSize = getConnectConfig().getMaxMessageSize();
+            if (maxMessageSize > 0 && length > maxMessageSize) {
+                throw new IOException("Message exceeds the maximum size of " + maxMessageSize + " bytes.");
+            }
+            if (isText && !textValidator.update(aData, aOffset, aLength)) {
+                throw new MalformedInputException(aLength);
+            }
+
+            if (message != null) {
+                message.write(aData, aOffset, aLength);
+            } else {
+                sendMessageChunkToObserver(ByteBuffer.wrap(aData, aOffset, aLength).asReadOnlyBuffer());
+            }
+        }
+    }
+
+    protected static class FragmentRelease implements WebSocketBufferRelease {
+        private WebSocketFragment[] fragments;
+
+        public FragmentRelease(WebSocketFragment[] aFragments) {
+            fragments = aFragments;
+        }
+
+        public void release() {
+            for (WebSocketFragment fragment : fragments) {
+                fragment.releasePayload();
+            }
+        }
+    }
 }
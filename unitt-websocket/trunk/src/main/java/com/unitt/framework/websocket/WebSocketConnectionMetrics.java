@@ -0,0 +1,81 @@
+package com.unitt.framework.websocket;
+
+
+import com.unitt.framework.websocket.WebSocketFragment.MessageOpCode;
+
+
+/**
+ * Receives the events of one connection. Calls are made on the connection's
+ * hot paths, from its read thread and from any thread that sends, so
+ * implementations must be thread safe and cheap.
+ */
+public interface WebSocketConnectionMetrics
+{
+    public static final WebSocketConnectionMetrics NONE = new WebSocketConnectionMetrics()
+    {
+        public void onHandshake(long aNanos, boolean aAccepted)
+        {
+        }
+
+        public void onFrameReceived(MessageOpCode aOpCode, long aLength)
+        {
+        }
+
+        public void onMessageReceived(MessageOpCode aOpCode, int aFragmentCount, long aLength)
+        {
+        }
+
+        public void onMessageSent(MessageOpCode aOpCode, int aFrameCount, long aLength)
+        {
+        }
+
+        public void onDecode(long aNanos)
+        {
+        }
+
+        public void onEncode(long aNanos)
+        {
+        }
+
+        public void onClose(int aStatus)
+        {
+        }
+    };
+
+    /**
+     * The opening handshake finished, aNanos after it started.
+     */
+    public void onHandshake(long aNanos, boolean aAccepted);
+
+    /**
+     * A frame of aLength bytes, header included, was received.
+     */
+    public void onFrameReceived(MessageOpCode aOpCode, long aLength);
+
+    /**
+     * The last fragment of a data message was received. aLength is the
+     * payload length of the whole message as it was sent, before inflating.
+     */
+    public void onMessageReceived(MessageOpCode aOpCode, int aFragmentCount, long aLength);
+
+    /**
+     * A message was queued as aFrameCount frames totalling aLength bytes,
+     * headers included.
+     */
+    public void onMessageSent(MessageOpCode aOpCode, int aFrameCount, long aLength);
+
+    /**
+     * Time spent parsing one frame out of the received data.
+     */
+    public void onDecode(long aNanos);
+
+    /**
+     * Time spent compressing and framing one outbound message.
+     */
+    public void onEncode(long aNanos);
+
+    /**
+     * The connection closed with aStatus. No more events follow.
+     */
+    public void onClose(int aStatus);
+}
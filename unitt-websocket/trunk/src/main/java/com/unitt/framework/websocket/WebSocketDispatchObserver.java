@@ -0,0 +1,151 @@
+package com.unitt.framework.websocket;
+
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+
+/**
+ * Stands in for a connection's observer and queues every callback on the
+ * connection's {@link WebSocketDispatchQueue} instead of making it on the
+ * calling thread. The connection only makes the callbacks of the optional
+ * observer interfaces if its own observer implements them.
+ * <p>
+ * Stream chunks are copied before they are queued, since the connection only
+ * guarantees them for the duration of the call. Buffer views are passed as
+ * they are; they stay valid until the observer releases them.
+ */
+public class WebSocketDispatchObserver implements WebSocketBufferObserver, WebSocketStreamObserver, WebSocketWritabilityObserver {
+    private final WebSocketObserver observer;
+    private final WebSocketDispatchQueue queue;
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    public WebSocketDispatchObserver(WebSocketObserver aObserver, WebSocketDispatchQueue aQueue) {
+        observer = aObserver;
+        queue = aQueue;
+    }
+
+
+    // getters & setters
+    // ---------------------------------------------------------------------------
+    public WebSocketObserver getObserver() {
+        return observer;
+    }
+
+    public WebSocketDispatchQueue getQueue() {
+        return queue;
+    }
+
+
+    // observer interface
+    // ---------------------------------------------------------------------------
+    public void onOpen(final String aProtocol, final List<String> aExtensions) {
+        queue.execute(new Runnable() {
+            public void run() {
+                observer.onOpen(aProtocol, aExtensions);
+            }
+        });
+    }
+
+    public void onError(final Exception aException) {
+        queue.execute(new Runnable() {
+            public void run() {
+                observer.onError(aException);
+            }
+        });
+    }
+
+    public void onClose(final int aStatusCode, final String aMessage, final Exception aException) {
+        queue.execute(new Runnable() {
+            public void run() {
+                observer.onClose(aStatusCode, aMessage, aException);
+            }
+        });
+    }
+
+    public void onPong(final String aMessage) {
+        queue.execute(new Runnable() {
+            public void run() {
+                observer.onPong(aMessage);
+            }
+        });
+    }
+
+    public void onBinaryMessage(final byte[] aMessage) {
+        queue.execute(new Runnable() {
+            public void run() {
+                observer.onBinaryMessage(aMessage);
+            }
+        });
+    }
+
+    public void onTextMessage(final String aMessage) {
+        queue.execute(new Runnable() {
+            public void run() {
+                observer.onTextMessage(aMessage);
+            }
+        });
+    }
+
+
+    // buffer observer interface
+    // ---------------------------------------------------------------------------
+    public void onBinaryMessage(final ByteBuffer[] aMessage, final WebSocketBufferRelease aRelease) {
+        queue.execute(new Runnable() {
+            public void run() {
+                ((WebSocketBufferObserver) observer).onBinaryMessage(aMessage, aRelease);
+            }
+        });
+    }
+
+    public void onTextMessage(final ByteBuffer[] aMessage, final WebSocketBufferRelease aRelease) {
+        queue.execute(new Runnable() {
+            public void run() {
+                ((WebSocketBufferObserver) observer).onTextMessage(aMessage, aRelease);
+            }
+        });
+    }
+
+
+    // stream observer interface
+    // ---------------------------------------------------------------------------
+    public void onMessageBegin(final boolean aIsText) {
+        queue.execute(new Runnable() {
+            public void run() {
+                ((WebSocketStreamObserver) observer).onMessageBegin(aIsText);
+            }
+        });
+    }
+
+    public void onMessageChunk(ByteBuffer aChunk) {
+        byte[] copy = new byte[aChunk.remaining()];
+        aChunk.duplicate().get(copy);
+        final ByteBuffer chunk = ByteBuffer.wrap(copy).asReadOnlyBuffer();
+        queue.execute(new Runnable() {
+            public void run() {
+                ((WebSocketStreamObserver) observer).onMessageChunk(chunk);
+            }
+        });
+    }
+
+    public void onMessageEnd() {
+        queue.execute(new Runnable() {
+            public void run() {
+                ((WebSocketStreamObserver) observer).onMessageEnd();
+            }
+        });
+    }
+
+
+    // writability observer interface
+    // ---------------------------------------------------------------------------
+    public void onWritabilityChanged(final boolean aIsWritable) {
+        queue.execute(new Runnable() {
+            public void run() {
+                ((WebSocketWritabilityObserver) observer).onWritabilityChanged(aIsWritable);
+            }
+        });
+    }
+}
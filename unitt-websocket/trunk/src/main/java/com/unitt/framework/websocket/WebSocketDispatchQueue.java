@@ -0,0 +1,156 @@
+package com.unitt.framework.websocket;
+
+
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Per-connection queue of observer callbacks that runs them one at a time, in
+ * the order they were queued, on an executor. Connections that share a
+ * {@link WebSocketDispatcher} stripe share its thread, but each connection
+ * only ever has one callback running.
+ * <p>
+ * Callbacks are queued without locking and counted with a single atomic. The
+ * queue runs at most {@link #BATCH_SIZE} callbacks before handing its thread
+ * back to the executor, so one busy connection cannot starve the others on its
+ * stripe.
+ * <p>
+ * Once the queue holds its maximum number of callbacks, the listener is told
+ * to stop reading. Reading resumes once the queue has drained to half of that.
+ */
+public class WebSocketDispatchQueue implements Runnable {
+    private static org.slf4j.Logger logger = LoggerFactory.getLogger(WebSocketDispatchQueue.class);
+
+    public static final int BATCH_SIZE = 64;
+
+    private final Executor executor;
+    private final Listener listener;
+    private final int maxSize;
+    private final int resumeSize;
+    private final Queue<Runnable> callbacks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private volatile boolean isReadable = true;
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    /**
+     * @param aExecutor runs the queue; it is given the queue again after every batch
+     * @param aMaxSize  number of queued callbacks at which reading stops, 0 for no limit
+     * @param aListener told when reading should stop and resume, may be null
+     */
+    public WebSocketDispatchQueue(Executor aExecutor, int aMaxSize, Listener aListener) {
+        executor = aExecutor;
+        maxSize = aMaxSize > 0 ? aMaxSize : Integer.MAX_VALUE;
+        resumeSize = maxSize / 2;
+        listener = aListener;
+    }
+
+
+    // getters & setters
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the number of callbacks queued or running.
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns false while the queue is full and reading should be paused.
+     */
+    public boolean isReadable() {
+        return isReadable;
+    }
+
+
+    // queue logic
+    // ---------------------------------------------------------------------------
+    /**
+     * Queues a callback to run after every callback queued before it.
+     */
+    public void execute(Runnable aCallback) {
+        // counted after it is queued, so the runner never polls an empty queue
+        callbacks.add(aCallback);
+        int pending = pendingCount.incrementAndGet();
+        if (isReadable && pending >= maxSize) {
+            updateReadable();
+        }
+        if (pending == 1) {
+            schedule();
+        }
+    }
+
+    /**
+     * Runs up to a batch of callbacks. Only one thread runs the queue at a
+     * time.
+     */
+    public void run() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Runnable callback = callbacks.poll();
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                logger.warn("A dispatched callback threw an exception.", e);
+            }
+
+            int pending = pendingCount.decrementAndGet();
+            if (!isReadable && pending <= resumeSize) {
+                updateReadable();
+            }
+            if (pending == 0) {
+                return;
+            }
+        }
+
+        // give the thread to the next connection on this stripe
+        schedule();
+    }
+
+    protected void schedule() {
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            // dispatcher is shutting down, run on this thread instead
+            run();
+        }
+    }
+
+    /**
+     * Flips readability if the pending count has crossed a limit. The
+     * listener is told under the lock so it sees the changes in order, and the
+     * check repeats in case the runner moved the count back meanwhile.
+     */
+    protected synchronized void updateReadable() {
+        while (true) {
+            int pending = pendingCount.get();
+            if (isReadable && pending >= maxSize) {
+                isReadable = false;
+            } else if (!isReadable && pending <= resumeSize) {
+                isReadable = true;
+            } else {
+                return;
+            }
+            if (listener != null) {
+                listener.onReadableChanged(isReadable);
+            }
+        }
+    }
+
+
+    // listener
+    // ---------------------------------------------------------------------------
+    public interface Listener {
+        public void onReadableChanged(boolean aIsReadable);
+    }
+}
@@ -0,0 +1,160 @@
+package com.unitt.framework.websocket;
+
+
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Threads that observer callbacks run on when they are taken off the network
+ * read thread, so a slow observer cannot stall reads. Each connection gets its
+ * own {@link WebSocketDispatchQueue}, which keeps its callbacks in order.
+ * <p>
+ * By default the dispatcher is a bounded pool of single threaded stripes, one
+ * per core. Connections are numbered as they are created and assigned to a
+ * stripe by their number, so a connection's callbacks always run on the same
+ * thread. Alternatively, each run of a queue can be given a virtual thread
+ * (Java 21+), which suits observers that block.
+ * <p>
+ * Threads are named daemons, so an application that forgets to call
+ * {@link #shutdown()} can still exit.
+ */
+public class WebSocketDispatcher {
+    private static org.slf4j.Logger logger = LoggerFactory.getLogger(WebSocketDispatcher.class);
+
+    public static final String DEFAULT_THREAD_NAME = "websocket-dispatch";
+
+    protected static final Method startVirtualThread = findStartVirtualThread();
+
+    private final Executor[] stripes;
+    private final AtomicLong connectionIds = new AtomicLong();
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    /**
+     * Creates a dispatcher with one stripe per available core.
+     */
+    public WebSocketDispatcher() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_THREAD_NAME);
+    }
+
+    /**
+     * @param aThreadCount number of stripes, each with its own thread
+     * @param aThreadName  prefix of every thread's name
+     */
+    public WebSocketDispatcher(int aThreadCount, String aThreadName) {
+        stripes = new Executor[Math.max(1, aThreadCount)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = Executors.newSingleThreadExecutor(new NamedThreadFactory(aThreadName + "-" + (i + 1)));
+        }
+    }
+
+    protected WebSocketDispatcher(Executor aExecutor) {
+        stripes = new Executor[]{aExecutor};
+    }
+
+    /**
+     * Creates a dispatcher that runs each connection's callbacks on a virtual
+     * thread, falling back to one stripe per core when the JVM has no virtual
+     * threads.
+     */
+    public static WebSocketDispatcher forVirtualThreads() {
+        if (startVirtualThread == null) {
+            logger.warn("Virtual threads are not supported, using platform threads instead.");
+            return new WebSocketDispatcher();
+        }
+
+        return new WebSocketDispatcher(new VirtualThreadExecutor());
+    }
+
+
+    // getters & setters
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns true if this JVM can run callbacks on virtual threads.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return startVirtualThread != null;
+    }
+
+    protected static Method findStartVirtualThread() {
+        // Thread.startVirtualThread(Runnable) is only available on Java 21+
+        try {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public boolean isVirtual() {
+        return stripes[0] instanceof VirtualThreadExecutor;
+    }
+
+    /**
+     * Returns the number of stripes; a virtual thread dispatcher has one.
+     */
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+
+    // dispatch logic
+    // ---------------------------------------------------------------------------
+    /**
+     * Creates the callback queue for a new connection on the next stripe.
+     *
+     * @param aMaxSize  number of queued callbacks at which reading stops, 0 for no limit
+     * @param aListener told when reading should stop and resume, may be null
+     */
+    public WebSocketDispatchQueue createQueue(int aMaxSize, WebSocketDispatchQueue.Listener aListener) {
+        long id = connectionIds.getAndIncrement();
+        return new WebSocketDispatchQueue(stripes[(int) (id % stripes.length)], aMaxSize, aListener);
+    }
+
+    /**
+     * Stops the stripe threads once they finish what they are running.
+     * Callbacks queued after that run on the thread that queues them.
+     */
+    public void shutdown() {
+        for (Executor stripe : stripes) {
+            if (stripe instanceof ExecutorService) {
+                ((ExecutorService) stripe).shutdown();
+            }
+        }
+    }
+
+
+    // executors
+    // ---------------------------------------------------------------------------
+    protected static class VirtualThreadExecutor implements Executor {
+        public void execute(Runnable aRunnable) {
+            try {
+                startVirtualThread.invoke(null, aRunnable);
+            } catch (Exception e) {
+                logger.warn("Could not start a virtual thread, using a platform thread instead.", e);
+                new Thread(aRunnable).start();
+            }
+        }
+    }
+
+    protected static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+
+        public NamedThreadFactory(String aName) {
+            name = aName;
+        }
+
+        public Thread newThread(Runnable aRunnable) {
+            Thread thread = new Thread(aRunnable, name);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
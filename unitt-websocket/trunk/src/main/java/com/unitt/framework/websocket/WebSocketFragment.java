@@ -50,16 +50,29 @@ public class WebSocketFragment
     private boolean       isRSV3;
     private int           mask;
     private int           payloadStart;
+    private int           payloadOffset;
     private int           payloadLength;
     private PayloadType   payloadType;
     private byte[]        payloadData;
+    private ByteBuffer    payloadBuffer;
+    private WebSocketBufferRelease payloadRelease;
     private MessageOpCode opCode     = MessageOpCode.ILLEGAL;
     private byte[]        fragment;
+    private boolean       isOutbound;
 
 
     // constructors
     // ---------------------------------------------------------------------------
     public WebSocketFragment( MessageOpCode aOpCode, boolean aIsFinal, boolean aUseMask, byte[] aPayload )
+    {
+        this( aOpCode, aIsFinal, aUseMask, aPayload, 0, aPayload != null ? aPayload.length : 0 );
+    }
+
+    /**
+     * Creates an outbound fragment whose payload is aLength bytes of aPayload
+     * starting at aOffset. The payload is not copied.
+     */
+    public WebSocketFragment( MessageOpCode aOpCode, boolean aIsFinal, boolean aUseMask, byte[] aPayload, int aOffset, int aLength )
     {
         if ( aUseMask )
         {
@@ -68,7 +81,10 @@ public class WebSocketFragment
         setOpCode( aOpCode );
         setFinal( aIsFinal );
         setPayloadData( aPayload );
-        buildFragment();
+        payloadOffset = aOffset;
+        setPayloadLength( aPayload != null ? aLength : 0 );
+        isOutbound = true;
+        setPayloadStart( determineHeaderLength() );
     }
 
     public WebSocketFragment()
@@ -168,6 +184,36 @@ public class WebSocketFragment
         payloadData = aPayloadData;
     }
 
+    public ByteBuffer getPayloadBuffer()
+    {
+        if ( payloadBuffer == null && payloadData != null )
+        {
+            return ByteBuffer.wrap( payloadData ).asReadOnlyBuffer();
+        }
+
+        return payloadBuffer;
+    }
+
+    public WebSocketBufferRelease getPayloadRelease()
+    {
+        return payloadRelease;
+    }
+
+    public void setPayloadBuffer( ByteBuffer aPayloadBuffer, WebSocketBufferRelease aPayloadRelease )
+    {
+        payloadBuffer = aPayloadBuffer;
+        payloadRelease = aPayloadRelease;
+    }
+
+    public void releasePayload()
+    {
+        if ( payloadRelease != null )
+        {
+            payloadRelease.release();
+            payloadRelease = null;
+        }
+    }
+
     public MessageOpCode getOpCode()
     {
         return opCode;
@@ -196,12 +242,22 @@ public class WebSocketFragment
 
     public byte[] getFragment()
     {
+        // outbound frames are only copied into a single array when asked for
+        if ( fragment == null && isOutbound )
+        {
+            buildFragment();
+        }
+
         return fragment;
     }
 
     public void setFragment( byte[] aFragment )
     {
         fragment = aFragment;
+        if ( parseHeader() && canBeParsed() )
+        {
+            parseContent();
+        }
     }
 
 
@@ -268,118 +324,100 @@ public class WebSocketFragment
 
     // content logic
     // ---------------------------------------------------------------------------
-    public void parseHeader() {
-        parseHeader(null, 0);
+    public boolean parseHeader()
+    {
+        return parseHeader( getFragment(), 0 );
     }
 
     public boolean parseHeader(byte[] aData, int aOffset)
     {
-        // get header data bits
-        int bufferLength = 14;
-
-        byte[] data = aData;
-
-        //do we have an existing fragment to work with
-        if (getFragment() != null) {
-            if (getFragment().length >= bufferLength) {
-                data = getFragment();
-            } else {
-                byte[] both;
-                if ((aData != null ? aData.length : 0) - aOffset >= bufferLength - getFragment().length) {
-                    both = WebSocketUtil.appendPartialArray(getFragment(), aData, aOffset, bufferLength - getFragment().length);
-                } else {
-                    both = WebSocketUtil.appendArray(getFragment(), aData);
-                }
-                data = both;
-            }
+        if ( aData == null )
+        {
+            return false;
         }
 
-        if ( data != null && data.length - aOffset < bufferLength )
+        return parseHeader( aData, aOffset, aData.length - aOffset );
+    }
+
+    public boolean parseHeader( byte[] aData, int aOffset, int aLength )
+    {
+        // we need at least the first two bytes
+        if ( aData == null || aLength < 2 )
         {
-            bufferLength = data.length - aOffset;
-        }
-        if (bufferLength < 0 || data == null) {
             return false;
         }
-        byte[] buffer = WebSocketUtil.copySubArray( data, 0, bufferLength );
+        int index = aOffset;
+        int end = aOffset + aLength;
 
         // determine opcode
-        if ( bufferLength > 0 )
+        byte b = aData[index++];
+        setFinal( ( b & 0x80 ) != 0 );
+        setRSV1( ( b & 0x40 ) != 0 );
+        setRSV2( ( b & 0x20 ) != 0 );
+        setRSV3( ( b & 0x10 ) != 0 );
+        setOpCode( b & 0x0F );
+
+        // handle data depending on opcode
+        switch ( getOpCode() )
+        {
+            case TEXT:
+                setPayloadType( PayloadType.TEXT );
+                break;
+            case BINARY:
+                setPayloadType( PayloadType.BINARY );
+                break;
+        }
+
+        // do we have a mask
+        b = aData[index++];
+        boolean hasMask = ( b & 0x80 ) != 0;
+
+        // get payload length
+        long dataLength = b & 0x7F;
+        if ( dataLength == 126 )
         {
-            int index = 0;
-            setFinal((buffer[index] & 0x80) != 0);
-            setRSV1((buffer[index] & 0x40) != 0);
-            setRSV2((buffer[index] & 0x20) != 0);
-            setRSV3( ( buffer[index] & 0x20 ) != 0 );
-            setOpCode( buffer[index++] & 0x0F );
+            // exit if we are missing bytes
+            if ( end - index < 2 )
+            {
+                return false;
+            }
 
-            // handle data depending on opcode
-            switch ( getOpCode() )
+            dataLength = WebSocketUtil.convertBytesToShort( aData, index );
+            index += 2;
+        }
+        else if ( dataLength == 127 )
+        {
+            // exit if we are missing bytes
+            if ( end - index < 8 )
             {
-                case TEXT:
-                    setPayloadType( PayloadType.TEXT );
-                    break;
-                case BINARY:
-                    setPayloadType( PayloadType.BINARY );
-                    break;
+                return false;
             }
 
-            // handle content, if any
-            if ( bufferLength > 1 )
+            dataLength = WebSocketUtil.convertBytesToLong( aData, index );
+            index += 8;
+        }
+
+        // if applicable, set mask value
+        if ( hasMask )
+        {
+            // exit if we are missing bytes
+            if ( end - index < 4 )
             {
-                // do we have a mask
-                boolean hasMask = ( buffer[index] & 0x80 ) != 0;
-
-                // get payload length
-                Long dataLength = new Integer( buffer[index++] & 0x7F ).longValue();
-                if ( dataLength == 126 )
-                {
-                    // exit if we are missing bytes
-                    if ( bufferLength < 4 )
-                    {
-                        return false;
-                    }
-
-                    dataLength = new Integer( WebSocketUtil.convertBytesToShort( buffer, index ) ).longValue();
-                    index += 2;
-                }
-                else if ( dataLength == 127 )
-                {
-                    // exit if we are missing bytes
-                    if ( bufferLength < 10 )
-                    {
-                        return false;
-                    }
-
-                    dataLength = WebSocketUtil.convertBytesToLong( buffer, index );
-                    index += 8;
-                }
-
-                // if applicable, set mask value
-                if ( hasMask )
-                {
-                    // exit if we are missing bytes
-                    if ( bufferLength < index + 4 )
-                    {
-                        return false;
-                    }
-
-                    // grab mask
-                    setMask( WebSocketUtil.convertBytesToInt( buffer, index ) );
-                    index += 4;
-                }
-
-                payloadStart = index;
-                if ( dataLength > Integer.MAX_VALUE )
-                {
-                    throw new IllegalArgumentException( "Implementation does not support payload lengths in excess of " + Integer.MAX_VALUE + ": " + dataLength );
-                }
-                payloadLength = dataLength.intValue();
-                return true;
+                return false;
             }
+
+            // grab mask
+            setMask( WebSocketUtil.convertBytesToInt( aData, index ) );
+            index += 4;
         }
 
-        return false;
+        if ( dataLength < 0 || dataLength > Integer.MAX_VALUE )
+        {
+            throw new IllegalArgumentException( "Implementation does not support payload lengths in excess of " + Integer.MAX_VALUE + ": " + dataLength );
+        }
+        payloadStart = index - aOffset;
+        payloadLength = (int) dataLength;
+        return true;
     }
 
     public void parseContent()
@@ -403,12 +441,12 @@ public class WebSocketFragment
         int length = 1;
 
         // account for including payload length
-        int fullPayloadLength = (getPayloadData() != null) ? getPayloadData().length : 0;
+        int fullPayloadLength = isOutbound ? getPayloadLength() : ( getPayloadData() != null ? getPayloadData().length : 0 );
         if ( fullPayloadLength <= 125 )
         {
             length += 1;
         }
-        else if ( fullPayloadLength <= Short.MAX_VALUE )
+        else if ( fullPayloadLength <= 0xFFFF )
         {
             length += 3;
         }
@@ -426,12 +464,17 @@ public class WebSocketFragment
         return length;
     }
 
-    public void buildFragment()
+    /**
+     * Builds the 2-14 byte frame header for the current payload and sets the
+     * payload start and length to match. The returned buffer is ready to be read.
+     */
+    public ByteBuffer buildHeader()
     {
         // init
-        Integer fullPayloadLength =  (getPayloadData() != null) ? getPayloadData().length : 0;
+        // outbound fragments may only cover part of their payload array
+        int fullPayloadLength = isOutbound ? getPayloadLength() : ( getPayloadData() != null ? getPayloadData().length : 0 );
         int headerLength = determineHeaderLength();
-        ByteBuffer output = ByteBuffer.allocate( headerLength + fullPayloadLength );
+        ByteBuffer output = ByteBuffer.allocate( headerLength );
 
         // build fin & reserved
         Integer b = 0x0;
@@ -439,6 +482,18 @@ public class WebSocketFragment
         {
             b = 0x80;
         }
+        if ( isRSV1() )
+        {
+            b |= 0x40;
+        }
+        if ( isRSV2() )
+        {
+            b |= 0x20;
+        }
+        if ( isRSV3() )
+        {
+            b |= 0x10;
+        }
 
         // build opmask
         b |= new Integer( getOpCode().opCode & 0xF );
@@ -455,17 +510,17 @@ public class WebSocketFragment
             b |= (byte) ( fullPayloadLength & 0xFF );
             output.put( b.byteValue() );
         }
-        else if ( fullPayloadLength <= Short.MAX_VALUE )
+        else if ( fullPayloadLength <= 0xFFFF )
         {
             b |= 126;
             output.put( b.byteValue() );
-            output.putShort( fullPayloadLength.shortValue() );
+            output.putShort( (short) fullPayloadLength );
         }
         else
         {
             b |= 127;
             output.put( b.byteValue() );
-            output.putLong( fullPayloadLength.longValue() );
+            output.putLong( fullPayloadLength );
         }
 
         // mask
@@ -474,28 +529,79 @@ public class WebSocketFragment
             output.putInt( getMask() );
         }
 
-        // payload data
+        // payload position
         setPayloadStart( headerLength );
         setPayloadLength( fullPayloadLength );
-        if (fullPayloadLength > 0)
+
+        output.flip();
+        return output;
+    }
+
+    /**
+     * Builds the header of an unmasked outbound frame whose payload is
+     * written separately, such as straight from a file.
+     */
+    public static ByteBuffer buildHeader( MessageOpCode aOpCode, boolean aIsFinal, int aPayloadLength )
+    {
+        WebSocketFragment fragment = new WebSocketFragment( aOpCode, aIsFinal, false, null );
+        fragment.setPayloadLength( aPayloadLength );
+        return fragment.buildHeader();
+    }
+
+    public void buildFragment()
+    {
+        // init
+        ByteBuffer header = buildHeader();
+        ByteBuffer output = ByteBuffer.allocate( getPayloadStart() + getPayloadLength() );
+        output.put( header );
+
+        // payload data
+        if ( getPayloadLength() > 0 )
         {
+            output.put( getPayloadData(), payloadOffset, getPayloadLength() );
             if ( hasMask() )
             {
-                output.put( mask( getMask(), getPayloadData(), 0, payloadLength ) );
-            }
-            else
-            {
-                output.put( getPayloadData() );
+                WebSocketMasker.mask( getMask(), output.array(), getPayloadStart(), getPayloadLength() );
             }
         }
 
         // set fragment
-        setFragment( output.array() );
+        fragment = output.array();
 
         // cleanup
         output = null;
     }
 
+    /**
+     * Returns the frame as a header buffer followed by a payload buffer, ready
+     * for a gathering write. An unmasked payload is wrapped rather than copied;
+     * a masked payload is copied and masked once. The caller must not modify
+     * the payload data until the buffers have been written.
+     */
+    public ByteBuffer[] getFragmentBuffers()
+    {
+        // already built - just send it
+        if ( fragment != null )
+        {
+            return new ByteBuffer[] { ByteBuffer.wrap( fragment ) };
+        }
+
+        ByteBuffer header = buildHeader();
+        if ( getPayloadLength() == 0 )
+        {
+            return new ByteBuffer[] { header };
+        }
+
+        if ( hasMask() )
+        {
+            byte[] masked = new byte[getPayloadLength()];
+            WebSocketMasker.mask( getMask(), getPayloadData(), payloadOffset, masked, 0, getPayloadLength() );
+            return new ByteBuffer[] { header, ByteBuffer.wrap( masked ) };
+        }
+
+        return new ByteBuffer[] { header, ByteBuffer.wrap( getPayloadData(), payloadOffset, getPayloadLength() ).slice() };
+    }
+
 
     // utility methods
     // ---------------------------------------------------------------------------
@@ -521,30 +627,13 @@ public class WebSocketFragment
             // init
             byte[] results = new byte[aLength];
 
-            // get mask
-            byte[] maskBytes = WebSocketUtil.convertIntToBytes( aMask );
-
-            // loop through mask data, masking
-            int end = aStart + aLength;
-            byte current;
-            int index = aStart;
-            if ( end > aData.length )
-            {
-                end = aData.length;
-            }
-            int m = 0;
-            while ( index < end )
+            // mask into results
+            int length = aLength;
+            if ( aStart + length > aData.length )
             {
-                // set current byte
-                current = aData[index];
-
-                // mask
-                current ^= maskBytes[m++ % 4];
-
-                // append result & continue
-                results[index - aStart] = current;
-                index++;
+                length = aData.length - aStart;
             }
+            WebSocketMasker.mask( aMask, aData, aStart, results, 0, length );
 
             return results;
         }
@@ -552,6 +641,19 @@ public class WebSocketFragment
         return null;
     }
 
+    public static void maskInPlace( int aMask, byte[] aData, int aStart, int aLength )
+    {
+        if ( aData != null )
+        {
+            WebSocketMasker.mask( aMask, aData, aStart, Math.min( aLength, aData.length - aStart ) );
+        }
+    }
+
+    public static void unmaskInPlace( int aMask, byte[] aData, int aStart, int aLength )
+    {
+        maskInPlace( aMask, aData, aStart, aLength );
+    }
+
     public static byte[] unmask( int aMask, byte[] aData )
     {
         return mask( aMask, aData );
@@ -0,0 +1,258 @@
+package com.unitt.framework.websocket;
+
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Incremental frame decoder used by a single connection. Received bytes are
+ * appended to one growable buffer and frame headers are parsed in place, so a
+ * frame that arrives over many reads is only copied once into the buffer and
+ * once more when its payload is handed out.
+ * <p>
+ * When payload copying is turned off, data fragments are unmasked in place and
+ * handed out as read-only views over the buffer. Each view retains the buffer
+ * until it is released, and a retained buffer is never compacted or rewound;
+ * the decoder moves on to a fresh buffer instead.
+ * <p>
+ * Buffers are leased from a {@link WebSocketBufferPool} and go back to it
+ * once the decoder has moved on and the last view over them is released.
+ */
+public class WebSocketFrameDecoder {
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+    public static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    protected static final byte[] EMPTY_BUFFER = new byte[0];
+
+    private ReceiveBuffer receiveBuffer;
+    private byte[] buffer;
+    private int readIndex;
+    private int writeIndex;
+    private int initialCapacity;
+    private boolean copyPayload = true;
+    private WebSocketFragment fragment;
+    private WebSocketBufferPool bufferPool;
+    private long maxPayloadLength;
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    public WebSocketFrameDecoder() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    public WebSocketFrameDecoder(int aInitialCapacity) {
+        this(aInitialCapacity, WebSocketBufferPool.getDefault());
+    }
+
+    public WebSocketFrameDecoder(int aInitialCapacity, WebSocketBufferPool aBufferPool) {
+        initialCapacity = aInitialCapacity > 0 ? aInitialCapacity : DEFAULT_BUFFER_SIZE;
+        bufferPool = aBufferPool != null ? aBufferPool : WebSocketBufferPool.getDefault();
+        setReceiveBuffer(leaseReceiveBuffer(initialCapacity));
+    }
+
+
+    // getters & setters
+    // ---------------------------------------------------------------------------
+    public int getBufferedLength() {
+        return writeIndex - readIndex;
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    public boolean isCopyPayload() {
+        return copyPayload;
+    }
+
+    public void setCopyPayload(boolean aCopyPayload) {
+        copyPayload = aCopyPayload;
+    }
+
+    /**
+     * Data frames that declare a longer payload are rejected as soon as their
+     * header arrives. 0 means no limit.
+     */
+    public long getMaxPayloadLength() {
+        return maxPayloadLength;
+    }
+
+    public void setMaxPayloadLength(long aMaxPayloadLength) {
+        maxPayloadLength = aMaxPayloadLength;
+    }
+
+    public WebSocketBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    protected void setReceiveBuffer(ReceiveBuffer aReceiveBuffer) {
+        // drop our own reference - views may still hold the old buffer
+        if (receiveBuffer != null) {
+            receiveBuffer.release();
+        }
+        receiveBuffer = aReceiveBuffer;
+        buffer = aReceiveBuffer != null ? aReceiveBuffer.getData() : EMPTY_BUFFER;
+    }
+
+    protected ReceiveBuffer leaseReceiveBuffer(int aCapacity) {
+        return new ReceiveBuffer(bufferPool.leaseArray(aCapacity), bufferPool);
+    }
+
+
+    // decoder logic
+    // ---------------------------------------------------------------------------
+    public void append(byte[] aData, int aOffset, int aLength) {
+        if (aData != null && aLength > 0) {
+            ensureCapacity(getBufferedLength() + aLength);
+            System.arraycopy(aData, aOffset, buffer, writeIndex, aLength);
+            writeIndex += aLength;
+        }
+    }
+
+    /**
+     * Returns the next complete fragment in the buffer, or null if more data is
+     * required. The returned fragment carries its header values and either an
+     * unmasked copy of its payload or, for data fragments when payload copying
+     * is off, a retained read-only view of it. The raw frame bytes are not
+     * retained.
+     *
+     * @throws IllegalArgumentException if the frame declares a payload larger than we support or
+     *                                  larger than {@link #getMaxPayloadLength()}
+     */
+    public WebSocketFragment nextFragment() {
+        // parse header in place - we keep the fragment around until it is complete
+        if (fragment == null) {
+            fragment = new WebSocketFragment();
+        }
+        if (!fragment.parseHeader(buffer, readIndex, getBufferedLength())) {
+            return null;
+        }
+        if (maxPayloadLength > 0 && fragment.isDataFrame() && fragment.getPayloadLength() > maxPayloadLength) {
+            throw new IllegalArgumentException("Frame payload of " + fragment.getPayloadLength() + " bytes exceeds the maximum of " + maxPayloadLength + " bytes.");
+        }
+
+        // wait until the whole frame has arrived, making room for it up front
+        int frameLength = fragment.getPayloadStart() + fragment.getPayloadLength();
+        if (getBufferedLength() < frameLength) {
+            ensureCapacity(frameLength);
+            return null;
+        }
+
+        // hand out the payload
+        WebSocketFragment result = fragment;
+        int payloadStart = readIndex + result.getPayloadStart();
+        if (!copyPayload && result.isDataFrame()) {
+            if (result.hasMask()) {
+                WebSocketFragment.unmaskInPlace(result.getMask(), buffer, payloadStart, result.getPayloadLength());
+            }
+            receiveBuffer.retain();
+            result.setPayloadBuffer(ByteBuffer.wrap(buffer, payloadStart, result.getPayloadLength()).slice().asReadOnlyBuffer(), receiveBuffer);
+        } else if (result.hasMask()) {
+            result.setPayloadData(WebSocketFragment.unmask(result.getMask(), buffer, payloadStart, result.getPayloadLength()));
+        } else {
+            result.setPayloadData(WebSocketUtil.copySubArray(buffer, payloadStart, result.getPayloadLength()));
+        }
+
+        // consume frame
+        fragment = null;
+        readIndex += frameLength;
+        if (readIndex == writeIndex) {
+            reset();
+        }
+
+        return result;
+    }
+
+    public void clear() {
+        fragment = null;
+        readIndex = writeIndex;
+        reset();
+    }
+
+    /**
+     * Returns the receive buffer to the pool once no views point into it. The
+     * decoder leases a new buffer if more data is appended.
+     */
+    public void release() {
+        fragment = null;
+        readIndex = 0;
+        writeIndex = 0;
+        setReceiveBuffer(null);
+    }
+
+    protected void reset() {
+        // views may still point into the consumed bytes, so leave them alone
+        if (receiveBuffer == null || receiveBuffer.isRetained()) {
+            return;
+        }
+
+        readIndex = 0;
+        writeIndex = 0;
+
+        // don't let a single large message pin memory for the life of the connection
+        if (buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+            setReceiveBuffer(leaseReceiveBuffer(initialCapacity));
+        }
+    }
+
+    protected void ensureCapacity(int aRequiredLength) {
+        if (readIndex + aRequiredLength <= buffer.length) {
+            return;
+        }
+
+        int bufferedLength = getBufferedLength();
+        if (aRequiredLength <= buffer.length && receiveBuffer != null && !receiveBuffer.isRetained()) {
+            // compact the unconsumed bytes to the front
+            System.arraycopy(buffer, readIndex, buffer, 0, bufferedLength);
+        } else {
+            // grow, or move on to a new buffer if views still point into this one
+            int capacity = aRequiredLength <= buffer.length ? buffer.length : buffer.length * 2;
+            if (capacity < aRequiredLength) {
+                capacity = Math.max(aRequiredLength, initialCapacity);
+            }
+            ReceiveBuffer grown = leaseReceiveBuffer(capacity);
+            System.arraycopy(buffer, readIndex, grown.getData(), 0, bufferedLength);
+            setReceiveBuffer(grown);
+        }
+        readIndex = 0;
+        writeIndex = bufferedLength;
+    }
+
+
+    // receive buffer
+    // ---------------------------------------------------------------------------
+    /**
+     * Reference counted receive buffer. The decoder holds one reference while
+     * it writes into the buffer, and every view handed out holds another.
+     */
+    protected static class ReceiveBuffer implements WebSocketBufferRelease {
+        private final byte[] data;
+        private final WebSocketBufferPool pool;
+        private final AtomicInteger referenceCount = new AtomicInteger(1);
+
+        public ReceiveBuffer(byte[] aData, WebSocketBufferPool aPool) {
+            data = aData;
+            pool = aPool;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public boolean isRetained() {
+            return referenceCount.get() > 1;
+        }
+
+        public void retain() {
+            referenceCount.incrementAndGet();
+        }
+
+        public void release() {
+            if (referenceCount.decrementAndGet() == 0 && pool != null) {
+                pool.release(data);
+            }
+        }
+    }
+}
@@ -3,12 +3,13 @@ package com.unitt.framework.websocket;
 
 import com.unitt.framework.websocket.WebSocketConnectConfig.WebSocketVersion;
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.LoggerFactory;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 
@@ -24,8 +25,27 @@ public class WebSocketHandshake
     private String                 serverSecKey;
     private byte[]                 serverHandshakeBytes;
     private String                 expectedServerSecKey;
+    private byte[]                 expectedServerSecKeyBytes;
+    private PerMessageDeflate      deflate;
 
     private static org.slf4j.Logger  logger           = LoggerFactory.getLogger(WebSocketHandshake.class);
+    protected static final Charset   asciiCharset     = Charset.forName( "US-ASCII" );
+    protected static final byte[]    ACCEPT_GUID      = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11".getBytes( asciiCharset );
+    protected static final ThreadLocal<MessageDigest> sha1 = new ThreadLocal<MessageDigest>()
+    {
+        @Override
+        protected MessageDigest initialValue()
+        {
+            try
+            {
+                return MessageDigest.getInstance( "SHA-1" );
+            }
+            catch ( NoSuchAlgorithmException e )
+            {
+                throw new IllegalStateException( "SHA-1 is not available.", e );
+            }
+        }
+    };
 
 
     // constructors
@@ -37,9 +57,14 @@ public class WebSocketHandshake
     }
 
     public WebSocketHandshake( byte[] aClientHandshakeBytes, WebSocketConnectConfig aServerConfig )
+    {
+        this( WebSocketHandshakeParser.parse( aClientHandshakeBytes ), aServerConfig );
+    }
+
+    public WebSocketHandshake( WebSocketHandshakeParser aClientHandshake, WebSocketConnectConfig aServerConfig )
     {
         setServerConfig( aServerConfig );
-        setClientConfig( aClientHandshakeBytes );
+        parseClientHandshake( aClientHandshake );
         generateSecKeys();
     }
 
@@ -58,7 +83,7 @@ public class WebSocketHandshake
 
     protected void setClientConfig( byte[] aClientHandshakeBytes )
     {
-        parseClientHandshakeBytes( aClientHandshakeBytes );
+        parseClientHandshake( WebSocketHandshakeParser.parse( aClientHandshakeBytes ) );
     }
 
     protected String getClientSecKey()
@@ -83,7 +108,7 @@ public class WebSocketHandshake
 
     protected void setServerConfig( byte[] aServerHandshakeBytes )
     {
-        parseServerHandshakeBytes( aServerHandshakeBytes );
+        parseServerHandshake( WebSocketHandshakeParser.parse( aServerHandshakeBytes ) );
     }
 
     protected String getExpectedServerSecKey()
@@ -94,6 +119,7 @@ public class WebSocketHandshake
     protected void setExpectedServerSecKey( String aExpectedServerSecKey )
     {
         expectedServerSecKey = aExpectedServerSecKey;
+        expectedServerSecKeyBytes = null;
     }
 
     protected String getServerSecKey()
@@ -106,6 +132,15 @@ public class WebSocketHandshake
         serverSecKey = aServerSecKey;
     }
 
+    /**
+     * Returns the negotiated permessage-deflate extension, or null if it is
+     * not in use.
+     */
+    public PerMessageDeflate getDeflate()
+    {
+        return deflate;
+    }
+
     protected void setClientHandshakeBytes( byte[] aClientHandshakeBytes )
     {
         clientHandshakeBytes = aClientHandshakeBytes;
@@ -121,25 +156,7 @@ public class WebSocketHandshake
     // ---------------------------------------------------------------------------
     protected List<HandshakeHeader> parseHeaders( String aHandshake )
     {
-        List<HandshakeHeader> headers = new ArrayList<HandshakeHeader>();
-
-        String[] lines = aHandshake.split( "\r\n" );
-        for ( String line : lines )
-        {
-            String[] header = line.split( ":" );
-            if ( header != null && header.length == 2 )
-            {
-                // get header
-                String key = header[0] != null ? header[0].trim() : "";
-                String value = header[1] != null ? header[1].trim() : "";
-                if ( key.length() > 0 && value.length() > 0 )
-                {
-                    headers.add( new HandshakeHeader( key, value ) );
-                }
-            }
-        }
-
-        return headers;
+        return WebSocketHandshakeParser.parse( aHandshake.getBytes( Charset.forName( "US-ASCII" ) ) ).getHeaders();
     }
     
     protected String buildHandshake(List<HandshakeHeader> aHeaders, String aResource)
@@ -154,6 +171,18 @@ public class WebSocketHandshake
         return output.toString();
     }
 
+    protected String buildServerHandshake(List<HandshakeHeader> aHeaders)
+    {
+        StringBuilder output = new StringBuilder();
+        output.append( "HTTP/1.1 101 Switching Protocols\r\n" );
+        for (HandshakeHeader header : aHeaders)
+        {
+            output.append( header.getKey() + ": " + header.getValue() + "\r\n" );
+        }
+        output.append( "\r\n" );
+        return output.toString();
+    }
+
     protected HandshakeHeader findHeader(String aCaseInsensitiveKey, List<HandshakeHeader> aHeaders)
     {
         for (HandshakeHeader header : aHeaders)
@@ -167,6 +196,19 @@ public class WebSocketHandshake
         return null;
     }
 
+    protected List<String> findHeaderValues(String aCaseInsensitiveKey, List<HandshakeHeader> aHeaders)
+    {
+        List<String> results = new ArrayList<String>();
+        for (HandshakeHeader header : findHeaders(aCaseInsensitiveKey, aHeaders))
+        {
+            if (header.getValue() != null)
+            {
+                results.add(header.getValue());
+            }
+        }
+        return results;
+    }
+
     protected List<HandshakeHeader> findHeaders(String aCaseInsensitiveKey, List<HandshakeHeader> aHeaders)
     {
         List<HandshakeHeader> results = new ArrayList<HandshakeHeader>();
@@ -182,41 +224,37 @@ public class WebSocketHandshake
 
     //@todo: send 400 error with available versions on mismatch
     protected void parseClientHandshakeBytes( byte[] aBytes )
+    {
+        parseClientHandshake( WebSocketHandshakeParser.parse( aBytes ) );
+    }
+
+    protected void parseClientHandshake( WebSocketHandshakeParser aHandshake )
     {
         // init
-        Charset charset = Charset.forName( "US-ASCII" );
-        setClientHandshakeBytes(aBytes);
-        
-        String handshake = "";
-		try
-        {
-			handshake = new String( aBytes, charset.name() );
-		}
-        catch (UnsupportedEncodingException e)
-        {
-            logger.error("An error occurred during encoding", e);
-		}
+        setClientHandshakeBytes( aHandshake.getHandshakeBytes() );
+        String requestLine = aHandshake.getStartLine() != null ? aHandshake.getStartLine() : "";
+
         // make sure this is a http 1.1 GET request
-        if ( handshake.startsWith( "GET" ) && handshake.contains( "HTTP/1.1" ) )
+        if ( requestLine.startsWith( "GET" ) && requestLine.contains( "HTTP/1.1" ) )
         {
             //create headers & validate handshake
             boolean connect = false;
             boolean upgrade = false;
             String secKey = null;
             WebSocketConnectConfig config = new WebSocketConnectConfig();
-            List<HandshakeHeader> headers = parseHeaders( handshake );
+            List<HandshakeHeader> headers = aHandshake.getHeaders();
             config.setClientHeaders(headers);
-            HandshakeHeader header = findHeader("Upgrade", headers);
+            HandshakeHeader header = aHandshake.findHeader("upgrade");
             if (header != null && header.getValue() != null)
             {
                 upgrade = header.getValue().equalsIgnoreCase( "websocket" );
             }
-            header = findHeader("Connection", headers);
+            header = aHandshake.findHeader("connection");
             if (header != null && header.getValue() != null)
             {
                 connect = header.getValue().equalsIgnoreCase( "upgrade" );
             }
-            List<HandshakeHeader> matches = findHeaders("Sec-WebSocket-Protocol", headers);
+            List<HandshakeHeader> matches = aHandshake.findHeaders("sec-websocket-protocol");
             List<String> availableProtocols = new ArrayList<String>();
             for (HandshakeHeader match : matches)
             {
@@ -233,7 +271,7 @@ public class WebSocketHandshake
                             {
                                 // can we choose this protocol, if we are
                                 // missing one
-                                if ( config.getSelectedProtocol() == null && containsCaseInsensitiveValue(match.getValue(), getServerConfig().getAvailableProtocols()) )
+                                if ( config.getSelectedProtocol() == null && getServerConfig().getAvailableProtocols() != null && containsCaseInsensitiveValue(cleanProtocol, getServerConfig().getAvailableProtocols()) )
                                 {
                                     config.setSelectedProtocol( cleanProtocol );
                                 }
@@ -247,34 +285,34 @@ public class WebSocketHandshake
             {
                 config.setAvailableProtocols( availableProtocols );
             }
-            header = findHeader("Sec-WebSocket-Key", headers);
+            header = aHandshake.findHeader("sec-websocket-key");
             if (header != null && header.getValue() != null)
             {
                 secKey = header.getValue();
             }
-            header = findHeader("Sec-WebSocket-Version", headers);
+            header = aHandshake.findHeader("sec-websocket-version");
             if (header != null && header.getValue() != null)
             {
                 config.setWebSocketVersion( WebSocketVersion.fromSpecVersionValue( header.getValue() ) );
             }
-            header = findHeader("Sec-WebSocket-Origin", headers);
+            header = aHandshake.findHeader("sec-websocket-origin");
             if (header != null && header.getValue() != null)
             {
                 // @todo: perform browser resource validation
                 config.setOrigin(header.getValue());
             }
-            header = findHeader("Origin", headers);
+            header = aHandshake.findHeader("origin");
             if (header != null && header.getValue() != null)
             {
                 // @todo: perform browser resource validation
                 config.setOrigin(header.getValue());
             }
-            header = findHeader("Host", headers);
+            header = aHandshake.findHeader("host");
             if (header != null && header.getValue() != null)
             {
                 config.setHost( header.getValue() );
             }
-            matches = findHeaders("Sec-WebSocket-Extensions", headers);
+            matches = aHandshake.findHeaders("sec-websocket-extensions");
             List<List<String>> headerExtensions = new ArrayList<List<String>>();
             for (HandshakeHeader match : matches)
             {
@@ -283,7 +321,11 @@ public class WebSocketHandshake
                     headerExtensions.addAll(getNestedLists(match.getValue()));
                 }
             }
-            List<String> selectedExtensions = getFirstCaseInsensitiveMatch(getServerConfig().getAvailableExtensions(), headerExtensions);
+            List<String> selectedExtensions = null;
+            if ( getServerConfig().getAvailableExtensions() != null )
+            {
+                selectedExtensions = getFirstCaseInsensitiveMatch(getServerConfig().getAvailableExtensions(), headerExtensions);
+            }
             if ( !headerExtensions.isEmpty() )
             {
                 config.setAvailableExtensions( headerExtensions );
@@ -292,6 +334,15 @@ public class WebSocketHandshake
             {
                 config.setSelectedExtensions( selectedExtensions );
             }
+            PerMessageDeflate negotiatedDeflate = null;
+            if ( getServerConfig().isPerMessageDeflate() )
+            {
+                negotiatedDeflate = PerMessageDeflate.acceptOffer( aHandshake.findHeaderValues( "sec-websocket-extensions" ), getServerConfig() );
+                if ( negotiatedDeflate != null )
+                {
+                    addSelectedExtension( config, negotiatedDeflate.getResponse() );
+                }
+            }
 
             // verify connect/upgrade
             if ( connect && upgrade )
@@ -303,58 +354,55 @@ public class WebSocketHandshake
                     setClientConfig( config );
                     getServerConfig().setClientHeaders( Collections.unmodifiableList( config.getClientHeaders() ) );
                     setClientSecKey( secKey );
+                    deflate = negotiatedDeflate;
                 }
             }
         }
     }
 
     protected void parseServerHandshakeBytes( byte[] aBytes )
+    {
+        parseServerHandshake( WebSocketHandshakeParser.parse( aBytes ) );
+    }
+
+    protected void parseServerHandshake( WebSocketHandshakeParser aHandshake )
     {
         // init
-        Charset charset = Charset.forName( "US-ASCII" );
-        setServerHandshakeBytes( aBytes );
-        String handshake = "";
-		try
-        {
-			handshake = new String( aBytes, charset.name() );
-		}
-        catch (UnsupportedEncodingException e)
-        {
-            logger.error("An error occurred during encoding", e);
-		}
+        setServerHandshakeBytes( aHandshake.getHandshakeBytes() );
+        String statusLine = aHandshake.getStartLine() != null ? aHandshake.getStartLine() : "";
 
         //@todo: handle server 400 error and look for other versions
         // only allowed status is 101
-        if ( handshake.contains( "HTTP/1.1 101" ) )
+        if ( statusLine.startsWith( "HTTP/1.1 101" ) )
         {
             // build headers and validate
             boolean connect = false;
             boolean upgrade = false;
             String secKey = null;
             WebSocketConnectConfig config = new WebSocketConnectConfig();
-            List<HandshakeHeader> headers = parseHeaders( handshake );
+            List<HandshakeHeader> headers = aHandshake.getHeaders();
             config.setServerHeaders( headers );
-            HandshakeHeader header = findHeader("Upgrade", headers);
+            HandshakeHeader header = aHandshake.findHeader("upgrade");
             if (header != null && header.getValue() != null)
             {
                 upgrade = header.getValue().equalsIgnoreCase( "websocket" );
             }
-            header = findHeader("Connection", headers);
+            header = aHandshake.findHeader("connection");
             if (header != null && header.getValue() != null)
             {
                 connect = header.getValue().equalsIgnoreCase( "upgrade" );
             }
-            header = findHeader("Sec-WebSocket-Protocol", headers);
+            header = aHandshake.findHeader("sec-websocket-protocol");
             if (header != null && header.getValue() != null)
             {
                 config.setSelectedProtocol( header.getValue() );
             }
-            header = findHeader("Sec-WebSocket-Accept", headers);
+            header = aHandshake.findHeader("sec-websocket-accept");
             if (header != null && header.getValue() != null)
             {
                 secKey = header.getValue();
             }
-            header = findHeader("Sec-WebSocket-Extensions", headers);
+            header = aHandshake.findHeader("sec-websocket-extensions");
             if (header != null && header.getValue() != null)
             {
                 // set available & selected protocols
@@ -368,10 +416,27 @@ public class WebSocketHandshake
                 }
             }
 
+            PerMessageDeflate negotiatedDeflate = null;
+            boolean validExtensions = true;
+            try
+            {
+                negotiatedDeflate = PerMessageDeflate.acceptResponse( aHandshake.findHeaderValues( "sec-websocket-extensions" ), getClientConfig() );
+                if ( negotiatedDeflate != null )
+                {
+                    addSelectedExtension( config, negotiatedDeflate.getResponse() );
+                }
+            }
+            catch ( IllegalArgumentException e )
+            {
+                logger.warn( "Server sent an invalid extension response: " + e.getMessage() );
+                validExtensions = false;
+            }
+
             // verify connect/upgrade
-            if ( connect && upgrade )
+            if ( connect && upgrade && validExtensions )
             {
                 // apply parsed values
+                deflate = negotiatedDeflate;
                 setServerSecKey( secKey );
                 setServerConfig( config );
                 getClientConfig().setServerHeaders( Collections.unmodifiableList( config.getServerHeaders() ) );
@@ -383,7 +448,6 @@ public class WebSocketHandshake
     {
         // init
         Charset charset = Charset.forName( "US-ASCII" );
-        String temp = null;
 
         // determine client sec key, if it doesnt exist
         if ( getClientSecKey() == null )
@@ -402,21 +466,32 @@ public class WebSocketHandshake
         }
 
         // determine server sec key
-        temp = getClientSecKey() + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
-        byte[] bytes = DigestUtils.sha( temp );
-        try
-        {
-			setExpectedServerSecKey( new String( Base64.encodeBase64( bytes ), charset.name() ) );
-		}
-        catch (UnsupportedEncodingException e)
-        {
-            logger.error("An error occurred during encoding", e);
-		}
+        byte[] acceptKey = createAcceptKey( getClientSecKey() );
+        setExpectedServerSecKey( new String( acceptKey, asciiCharset ) );
+        expectedServerSecKeyBytes = acceptKey;
+    }
+
+    /**
+     * Returns the ASCII bytes of the Sec-WebSocket-Accept value for the key:
+     * the base64 of the SHA-1 of the key and the websocket GUID.
+     */
+    protected static byte[] createAcceptKey( String aClientSecKey )
+    {
+        MessageDigest digest = sha1.get();
+        digest.reset();
+        digest.update( String.valueOf( aClientSecKey ).getBytes( asciiCharset ) );
+        digest.update( ACCEPT_GUID );
+        return Base64.encodeBase64( digest.digest() );
     }
 
     public boolean verifyServerHandshake( byte[] aServerHandshakeBytes )
     {
-        setServerConfig( aServerHandshakeBytes );
+        return verifyServerHandshake( WebSocketHandshakeParser.parse( aServerHandshakeBytes ) );
+    }
+
+    public boolean verifyServerHandshake( WebSocketHandshakeParser aServerHandshake )
+    {
+        parseServerHandshake( aServerHandshake );
 
         if ( getServerConfig() != null )
         {
@@ -471,6 +546,10 @@ public class WebSocketHandshake
             {
                 headers.add(new HandshakeHeader( "Sec-WebSocket-Extensions", createNestedCommaDelimitedList(getClientConfig().getAvailableExtensions()) ));
             }
+            if ( getClientConfig().isPerMessageDeflate() )
+            {
+                headers.add(new HandshakeHeader( "Sec-WebSocket-Extensions", PerMessageDeflate.createOffer( getClientConfig() ) ));
+            }
             headers.add(new HandshakeHeader( "Sec-WebSocket-Key", getClientSecKey() ));
             headers.add(new HandshakeHeader( "Sec-WebSocket-Version", getClientConfig().getWebSocketVersion().getSpecVersionValue() ));
             String handshake = buildHandshake( headers, resourcePath );
@@ -491,33 +570,45 @@ public class WebSocketHandshake
     {
         if ( serverHandshakeBytes == null )
         {
-            //build handshake info
-            String resourcePath = getResourcePath( getClientConfig().getUrl() );
-            List<HandshakeHeader> headers = getServerConfig().getServerHeaders();
-            if (headers == null)
+            // the server config is shared by every connection, so its part of the response is prebuilt
+            String extensions = null;
+            if ( getClientConfig().getSelectedExtensions() != null && !getClientConfig().getSelectedExtensions().isEmpty() )
             {
-                headers = new ArrayList<HandshakeHeader>();
-                getServerConfig().setServerHeaders( headers );
+                extensions = createCommaDelimitedList( getClientConfig().getSelectedExtensions() );
             }
-            headers.add(new HandshakeHeader( "Upgrade", "WebSocket" ));
-            headers.add(new HandshakeHeader( "Connection", "Upgrade" ));
-            headers.add(new HandshakeHeader( "Sec-WebSocket-Protocol", getServerConfig().getSelectedProtocol() ));
-            headers.add(new HandshakeHeader( "Sec-WebSocket-Extensions", createCommaDelimitedList(getServerConfig().getSelectedExtensions()) ));
-            headers.add(new HandshakeHeader( "Sec-WebSocket-Accept", getExpectedServerSecKey() ));
-            String handshake = buildHandshake( headers, resourcePath );
-            try
-            {
-				serverHandshakeBytes = handshake.getBytes( "US-ASCII" );
-			}
-            catch (UnsupportedEncodingException e)
-            {
-                logger.error("An error occurred during decoding", e);
-			}
+            byte[] acceptKey = expectedServerSecKeyBytes != null ? expectedServerSecKeyBytes : getExpectedServerSecKey().getBytes( asciiCharset );
+            serverHandshakeBytes = getServerConfig().getServerHandshakeTemplate().build( getClientConfig().getSelectedProtocol(), extensions, acceptKey );
         }
 
         return serverHandshakeBytes;
     }
 
+    public byte[] getServerRejectionBytes()
+    {
+        String response = "HTTP/1.1 400 Bad Request\r\nSec-WebSocket-Version: " + WebSocketVersion.VersionRfc6455.getSpecVersionValue() + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+        try
+        {
+            return response.getBytes( "US-ASCII" );
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            logger.error("An error occurred during decoding", e);
+        }
+
+        return null;
+    }
+
+    protected void addSelectedExtension( WebSocketConnectConfig aConfig, String aExtension )
+    {
+        List<String> extensions = new ArrayList<String>();
+        if ( aConfig.getSelectedExtensions() != null )
+        {
+            extensions.addAll( aConfig.getSelectedExtensions() );
+        }
+        extensions.add( aExtension );
+        aConfig.setSelectedExtensions( extensions );
+    }
+
     protected String getResourcePath( URI aUrl )
     {
         if ( aUrl.getQuery() != null )
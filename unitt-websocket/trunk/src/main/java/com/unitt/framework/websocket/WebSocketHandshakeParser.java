@@ -0,0 +1,221 @@
+package com.unitt.framework.websocket;
+
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * Incremental parser for the HTTP part of the opening handshake. Bytes are
+ * fed in as they arrive and each header line is parsed as soon as its CRLF
+ * is seen, so a handshake split over many reads is never rescanned or
+ * decoded as a whole. Parsing stops at the blank line that ends the headers;
+ * anything after it belongs to the websocket and is left to the caller.
+ * <p>
+ * Headers are indexed by lower case name. Names only split on the first
+ * colon, so values such as Host may contain more.
+ */
+public class WebSocketHandshakeParser {
+    public static final int DEFAULT_MAX_SIZE = 8 * 1024;
+
+    protected static final Charset asciiCharset = Charset.forName("US-ASCII");
+    protected static final byte[] HANDSHAKE_END = new byte[]{'\r', '\n', '\r', '\n'};
+
+    private final int maxSize;
+    private byte[] buffer;
+    private int size;
+    private int lineStart;
+    private int handshakeLength = -1;
+    private String startLine;
+    private final List<HandshakeHeader> headers = new ArrayList<HandshakeHeader>();
+    private final Map<String, List<HandshakeHeader>> headersByName = new HashMap<String, List<HandshakeHeader>>();
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    public WebSocketHandshakeParser() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param aMaxSize the most bytes the handshake, headers included, may take
+     */
+    public WebSocketHandshakeParser(int aMaxSize) {
+        maxSize = aMaxSize;
+        buffer = new byte[Math.min(aMaxSize, 512)];
+    }
+
+    /**
+     * Parses a handshake that has already been read in full, with or without
+     * its closing blank line.
+     */
+    public static WebSocketHandshakeParser parse(byte[] aHandshake) {
+        WebSocketHandshakeParser parser = new WebSocketHandshakeParser(aHandshake.length + HANDSHAKE_END.length);
+        parser.parse(aHandshake, 0, aHandshake.length);
+        if (!parser.isComplete()) {
+            parser.parse(HANDSHAKE_END, 0, HANDSHAKE_END.length);
+        }
+        return parser;
+    }
+
+
+    // getters & setters
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns true once the blank line that ends the headers has been read.
+     */
+    public boolean isComplete() {
+        return handshakeLength >= 0;
+    }
+
+    /**
+     * Returns the request or status line, or null if it has not been read yet.
+     */
+    public String getStartLine() {
+        return startLine;
+    }
+
+    /**
+     * Returns every header in the order received.
+     */
+    public List<HandshakeHeader> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Returns the first header with the name, or null.
+     *
+     * @param aLowerCaseName the header name, in lower case
+     */
+    public HandshakeHeader findHeader(String aLowerCaseName) {
+        List<HandshakeHeader> matches = headersByName.get(aLowerCaseName);
+        return matches != null ? matches.get(0) : null;
+    }
+
+    /**
+     * Returns every header with the name, in the order received.
+     *
+     * @param aLowerCaseName the header name, in lower case
+     */
+    public List<HandshakeHeader> findHeaders(String aLowerCaseName) {
+        List<HandshakeHeader> matches = headersByName.get(aLowerCaseName);
+        return matches != null ? matches : Collections.<HandshakeHeader>emptyList();
+    }
+
+    /**
+     * Returns the value of every header with the name, in the order received.
+     *
+     * @param aLowerCaseName the header name, in lower case
+     */
+    public List<String> findHeaderValues(String aLowerCaseName) {
+        List<HandshakeHeader> matches = findHeaders(aLowerCaseName);
+        List<String> results = new ArrayList<String>(matches.size());
+        for (HandshakeHeader header : matches) {
+            results.add(header.getValue());
+        }
+        return results;
+    }
+
+    /**
+     * Returns the handshake without its closing blank line, once complete.
+     */
+    public byte[] getHandshakeBytes() {
+        return isComplete() ? WebSocketUtil.copySubArray(buffer, 0, handshakeLength) : null;
+    }
+
+
+    // parse logic
+    // ---------------------------------------------------------------------------
+    /**
+     * Consumes bytes up to and including the blank line that ends the headers.
+     *
+     * @return the number of bytes consumed; the rest, if any, follow the handshake
+     * @throws IllegalArgumentException if the handshake grows past the maximum size
+     */
+    public int parse(byte[] aData, int aOffset, int aLength) {
+        int consumed = 0;
+        while (consumed < aLength && !isComplete()) {
+            if (size >= maxSize) {
+                throw new IllegalArgumentException("Handshake exceeds the maximum size of " + maxSize + " bytes.");
+            }
+
+            // copy as much as fits, then look for line ends in the new bytes only
+            int count = Math.min(maxSize - size, aLength - consumed);
+            ensureCapacity(size + count);
+            System.arraycopy(aData, aOffset + consumed, buffer, size, count);
+            int end = size + count;
+            for (int i = Math.max(size, 1); i < end; i++) {
+                if (buffer[i] == '\n' && buffer[i - 1] == '\r') {
+                    handleLine(lineStart, i - 1);
+                    lineStart = i + 1;
+                    if (isComplete()) {
+                        end = i + 1;
+                        break;
+                    }
+                }
+            }
+            consumed += end - size;
+            size = end;
+        }
+
+        return consumed;
+    }
+
+    protected void handleLine(int aStart, int aEnd) {
+        if (aStart == aEnd) {
+            handshakeLength = Math.max(0, aStart - 2);
+        } else if (startLine == null) {
+            startLine = new String(buffer, aStart, aEnd - aStart, asciiCharset);
+        } else {
+            int colon = aStart;
+            while (colon < aEnd && buffer[colon] != ':') {
+                colon++;
+            }
+            if (colon < aEnd) {
+                String key = trim(aStart, colon);
+                String value = trim(colon + 1, aEnd);
+                if (key.length() > 0 && value.length() > 0) {
+                    addHeader(new HandshakeHeader(key, value));
+                }
+            }
+        }
+    }
+
+    protected void addHeader(HandshakeHeader aHeader) {
+        headers.add(aHeader);
+        String name = aHeader.getKey().toLowerCase(Locale.ENGLISH);
+        List<HandshakeHeader> matches = headersByName.get(name);
+        if (matches == null) {
+            matches = new ArrayList<HandshakeHeader>(1);
+            headersByName.put(name, matches);
+        }
+        matches.add(aHeader);
+    }
+
+    protected String trim(int aStart, int aEnd) {
+        while (aStart < aEnd && isWhitespace(buffer[aStart])) {
+            aStart++;
+        }
+        while (aEnd > aStart && isWhitespace(buffer[aEnd - 1])) {
+            aEnd--;
+        }
+        return new String(buffer, aStart, aEnd - aStart, asciiCharset);
+    }
+
+    protected static boolean isWhitespace(byte aByte) {
+        return aByte == ' ' || aByte == '\t';
+    }
+
+    protected void ensureCapacity(int aCapacity) {
+        if (aCapacity > buffer.length) {
+            byte[] grown = new byte[Math.min(maxSize, Math.max(aCapacity, buffer.length * 2))];
+            System.arraycopy(buffer, 0, grown, 0, size);
+            buffer = grown;
+        }
+    }
+}
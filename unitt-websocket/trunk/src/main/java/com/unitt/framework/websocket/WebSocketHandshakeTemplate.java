@@ -0,0 +1,91 @@
+package com.unitt.framework.websocket;
+
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+
+/**
+ * The 101 response a server sends, serialized once per server config. Every
+ * accept copies the fixed prefix and splices in only what differs per
+ * connection: the negotiated protocol and extensions and the accept key.
+ * The output is byte for byte what building the response header by header
+ * would give.
+ */
+public class WebSocketHandshakeTemplate {
+    protected static final Charset asciiCharset = Charset.forName("US-ASCII");
+    protected static final byte[] PROTOCOL_HEADER = "Sec-WebSocket-Protocol: ".getBytes(asciiCharset);
+    protected static final byte[] EXTENSIONS_HEADER = "Sec-WebSocket-Extensions: ".getBytes(asciiCharset);
+    protected static final byte[] ACCEPT_HEADER = "Sec-WebSocket-Accept: ".getBytes(asciiCharset);
+    protected static final byte[] LINE_END = "\r\n".getBytes(asciiCharset);
+
+    private final byte[] prefix;
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    /**
+     * @param aServerHeaders extra headers the server sends with every response, may be null
+     */
+    public WebSocketHandshakeTemplate(List<HandshakeHeader> aServerHeaders) {
+        StringBuilder output = new StringBuilder();
+        output.append("HTTP/1.1 101 Switching Protocols\r\n");
+        if (aServerHeaders != null) {
+            for (HandshakeHeader header : aServerHeaders) {
+                output.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        output.append("Upgrade: websocket\r\n");
+        output.append("Connection: Upgrade\r\n");
+        prefix = output.toString().getBytes(asciiCharset);
+    }
+
+
+    // template logic
+    // ---------------------------------------------------------------------------
+    /**
+     * Builds the response for one accepted connection.
+     *
+     * @param aProtocol   the selected protocol, or null
+     * @param aExtensions the selected extensions as a comma delimited list, or null
+     * @param aAcceptKey  the ASCII bytes of the Sec-WebSocket-Accept value
+     */
+    public byte[] build(String aProtocol, String aExtensions, byte[] aAcceptKey) {
+        int length = prefix.length + ACCEPT_HEADER.length + aAcceptKey.length + LINE_END.length * 2;
+        if (aProtocol != null) {
+            length += PROTOCOL_HEADER.length + aProtocol.length() + LINE_END.length;
+        }
+        if (aExtensions != null) {
+            length += EXTENSIONS_HEADER.length + aExtensions.length() + LINE_END.length;
+        }
+
+        byte[] results = new byte[length];
+        int position = append(prefix, results, 0);
+        if (aProtocol != null) {
+            position = appendHeader(PROTOCOL_HEADER, aProtocol, results, position);
+        }
+        if (aExtensions != null) {
+            position = appendHeader(EXTENSIONS_HEADER, aExtensions, results, position);
+        }
+        position = append(ACCEPT_HEADER, results, position);
+        position = append(aAcceptKey, results, position);
+        position = append(LINE_END, results, position);
+        append(LINE_END, results, position);
+
+        return results;
+    }
+
+    protected static int appendHeader(byte[] aName, String aValue, byte[] aDestination, int aPosition) {
+        aPosition = append(aName, aDestination, aPosition);
+        // header values are ASCII
+        for (int i = 0; i < aValue.length(); i++) {
+            aDestination[aPosition++] = (byte) aValue.charAt(i);
+        }
+        return append(LINE_END, aDestination, aPosition);
+    }
+
+    protected static int append(byte[] aSource, byte[] aDestination, int aPosition) {
+        System.arraycopy(aSource, 0, aDestination, aPosition, aSource.length);
+        return aPosition + aSource.length;
+    }
+}
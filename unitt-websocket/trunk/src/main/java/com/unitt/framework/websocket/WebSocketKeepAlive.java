@@ -0,0 +1,182 @@
+package com.unitt.framework.websocket;
+
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Keeps one connection honest. If nothing has been received for the ping
+ * interval, a ping is sent; if nothing comes back within the pong timeout,
+ * the peer is taken for dead and the socket is dropped. Separately, if no
+ * data message has gone either way for the idle timeout, the connection is
+ * closed. Each check is off when its setting is 0.
+ * <p>
+ * Traffic only updates a timestamp. The single timeout is rearmed when it
+ * fires, for whichever deadline comes next, so a busy connection costs the
+ * wheel one reschedule per interval rather than one per frame.
+ * <p>
+ * The wheel's thread serves every connection, so it only hands the check to
+ * an executor: the connection's write executor, or a shared pool of daemon
+ * threads. Pings and closes may block on the network there without holding
+ * up anyone else's timeouts.
+ */
+public class WebSocketKeepAlive implements Runnable {
+    protected static final Executor defaultExecutor = Executors.newCachedThreadPool(new WebSocketDispatcher.NamedThreadFactory("websocket-keepalive"));
+
+    private final WebSocketConnection connection;
+    private final WebSocketTimerWheel timer;
+    private final Executor executor;
+    private final long pingIntervalNanos;
+    private final long pongTimeoutNanos;
+    private final long idleTimeoutNanos;
+    private volatile long lastReceivedTime;
+    private volatile long lastDataTime;
+    private volatile long pingSentTime;
+    private WebSocketTimerWheel.Timeout timeout;
+    private boolean isStopped;
+    private final Runnable checkTask = new Runnable() {
+        public void run() {
+            check();
+        }
+    };
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    public WebSocketKeepAlive(WebSocketConnection aConnection, WebSocketTimerWheel aTimer, long aPingIntervalInMillis, long aPongTimeoutInMillis, long aIdleTimeoutInMillis) {
+        this(aConnection, aTimer, null, aPingIntervalInMillis, aPongTimeoutInMillis, aIdleTimeoutInMillis);
+    }
+
+    /**
+     * @param aExecutor runs the checks off the timer thread, null for the shared pool
+     */
+    public WebSocketKeepAlive(WebSocketConnection aConnection, WebSocketTimerWheel aTimer, Executor aExecutor, long aPingIntervalInMillis, long aPongTimeoutInMillis, long aIdleTimeoutInMillis) {
+        connection = aConnection;
+        timer = aTimer;
+        executor = aExecutor != null ? aExecutor : defaultExecutor;
+        pingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(aPingIntervalInMillis);
+        pongTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(aPongTimeoutInMillis);
+        idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(aIdleTimeoutInMillis);
+    }
+
+    /**
+     * Returns the keepalive the config asks for, or null if it asks for none.
+     */
+    public static WebSocketKeepAlive create(WebSocketConnection aConnection, WebSocketConnectConfig aConfig) {
+        if (aConfig == null || (aConfig.getPingIntervalInMillis() <= 0 && aConfig.getIdleTimeoutInMillis() <= 0)) {
+            return null;
+        }
+        long pongTimeout = aConfig.getPongTimeoutInMillis() > 0 ? aConfig.getPongTimeoutInMillis() : aConfig.getPingIntervalInMillis();
+        return new WebSocketKeepAlive(aConnection, aConfig.getTimerWheel(), aConfig.getWriteExecutor(), aConfig.getPingIntervalInMillis(), pongTimeout, aConfig.getIdleTimeoutInMillis());
+    }
+
+
+    // keepalive logic
+    // ---------------------------------------------------------------------------
+    public synchronized void start() {
+        long now = System.nanoTime();
+        lastReceivedTime = now;
+        lastDataTime = now;
+        pingSentTime = 0;
+        isStopped = false;
+        schedule(now);
+    }
+
+    public synchronized void stop() {
+        isStopped = true;
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+    }
+
+    /**
+     * Any frame from the peer shows it is alive.
+     */
+    public void onReceived(boolean aIsData) {
+        long now = System.nanoTime();
+        lastReceivedTime = now;
+        if (aIsData) {
+            lastDataTime = now;
+        }
+    }
+
+    public void onPong() {
+        pingSentTime = 0;
+    }
+
+    public void onSent() {
+        lastDataTime = System.nanoTime();
+    }
+
+    /**
+     * Called by the timer; the check itself runs on the executor.
+     */
+    public void run() {
+        try {
+            executor.execute(checkTask);
+        } catch (RejectedExecutionException e) {
+            // executor is shutting down, check on this thread instead
+            check();
+        }
+    }
+
+    /**
+     * Decides what is due under the lock and acts on it after releasing it,
+     * since pings and closes may block on the network and {@link #stop()}
+     * must not wait for them.
+     */
+    protected void check() {
+        boolean isIdle = false;
+        boolean isPongLate = false;
+        boolean isPingDue = false;
+        synchronized (this) {
+            if (isStopped) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            if (idleTimeoutNanos > 0 && now - lastDataTime >= idleTimeoutNanos) {
+                isStopped = true;
+                isIdle = true;
+            } else if (pingSentTime != 0 && pongTimeoutNanos > 0 && now - pingSentTime >= pongTimeoutNanos) {
+                isStopped = true;
+                isPongLate = true;
+            } else {
+                if (pingIntervalNanos > 0 && pingSentTime == 0 && now - lastReceivedTime >= pingIntervalNanos) {
+                    pingSentTime = now;
+                    isPingDue = true;
+                }
+
+                // armed before the ping goes out, so a ping stuck on the network still times out
+                schedule(now);
+            }
+        }
+
+        if (isIdle) {
+            connection.handleIdleTimeout();
+        } else if (isPongLate) {
+            connection.handlePongTimeout();
+        } else if (isPingDue) {
+            connection.sendKeepAlivePing();
+        }
+    }
+
+    /**
+     * Arms the timeout for the nearest deadline.
+     */
+    protected void schedule(long aNow) {
+        long next = Long.MAX_VALUE;
+        if (idleTimeoutNanos > 0) {
+            next = Math.min(next, lastDataTime + idleTimeoutNanos);
+        }
+        if (pingIntervalNanos > 0) {
+            long pingSent = pingSentTime;
+            next = Math.min(next, pingSent == 0 ? lastReceivedTime + pingIntervalNanos : pingSent + pongTimeoutNanos);
+        }
+        timeout = timer.schedule(this, TimeUnit.NANOSECONDS.toMillis(Math.max(0, next - aNow)));
+    }
+}
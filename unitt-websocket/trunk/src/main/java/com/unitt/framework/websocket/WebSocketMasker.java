@@ -0,0 +1,112 @@
+package com.unitt.framework.websocket;
+
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * Applies (or removes) a frame mask eight bytes at a time. Bytes before the
+ * first 8-byte boundary and after the last one are masked individually, with
+ * the mask rotated so that every byte still lines up with its position in the
+ * payload.
+ */
+public class WebSocketMasker {
+
+    // masking logic
+    // ---------------------------------------------------------------------------
+    /**
+     * Masks aLength bytes of aData in place, starting at aOffset.
+     */
+    public static void mask(int aMask, byte[] aData, int aOffset, int aLength) {
+        mask(aMask, aData, aOffset, aData, aOffset, aLength);
+    }
+
+    /**
+     * Masks aLength bytes of aSource into aDestination. The arrays may be the same.
+     */
+    public static void mask(int aMask, byte[] aSource, int aSourceOffset, byte[] aDestination, int aDestinationOffset, int aLength) {
+        if (aLength <= 0) {
+            return;
+        }
+
+        // mask leading bytes until the destination is word aligned
+        int head = Math.min((8 - (aDestinationOffset & 7)) & 7, aLength);
+        for (int i = 0; i < head; i++) {
+            aDestination[aDestinationOffset + i] = (byte) (aSource[aSourceOffset + i] ^ maskByte(aMask, i));
+        }
+
+        // mask whole words
+        int words = (aLength - head) >>> 3;
+        if (words > 0) {
+            long wordMask = wordMask(aMask, head);
+            ByteBuffer source = ByteBuffer.wrap(aSource);
+            ByteBuffer destination = aSource == aDestination ? source : ByteBuffer.wrap(aDestination);
+            int sourceIndex = aSourceOffset + head;
+            int destinationIndex = aDestinationOffset + head;
+            for (int i = 0; i < words; i++) {
+                destination.putLong(destinationIndex, source.getLong(sourceIndex) ^ wordMask);
+                sourceIndex += 8;
+                destinationIndex += 8;
+            }
+        }
+
+        // mask trailing bytes
+        for (int i = head + (words << 3); i < aLength; i++) {
+            aDestination[aDestinationOffset + i] = (byte) (aSource[aSourceOffset + i] ^ maskByte(aMask, i));
+        }
+    }
+
+    /**
+     * Masks the remaining bytes of aBuffer in place without moving its position.
+     * Works for heap and direct buffers, but not read-only ones such as the
+     * payload views handed to a {@link WebSocketBufferObserver}.
+     *
+     * @throws IllegalArgumentException if aBuffer is read-only
+     */
+    public static void mask(int aMask, ByteBuffer aBuffer) {
+        if (aBuffer.isReadOnly()) {
+            throw new IllegalArgumentException("Cannot mask a read-only buffer in place.");
+        }
+        if (aBuffer.hasArray()) {
+            mask(aMask, aBuffer.array(), aBuffer.arrayOffset() + aBuffer.position(), aBuffer.remaining());
+            return;
+        }
+
+        ByteBuffer buffer = aBuffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int start = buffer.position();
+        int length = buffer.remaining();
+
+        // mask leading bytes until we are word aligned
+        int head = Math.min((8 - (start & 7)) & 7, length);
+        for (int i = 0; i < head; i++) {
+            buffer.put(start + i, (byte) (buffer.get(start + i) ^ maskByte(aMask, i)));
+        }
+
+        // mask whole words
+        int words = (length - head) >>> 3;
+        long wordMask = wordMask(aMask, head);
+        int index = start + head;
+        for (int i = 0; i < words; i++) {
+            buffer.putLong(index, buffer.getLong(index) ^ wordMask);
+            index += 8;
+        }
+
+        // mask trailing bytes
+        for (int i = head + (words << 3); i < length; i++) {
+            buffer.put(start + i, (byte) (buffer.get(start + i) ^ maskByte(aMask, i)));
+        }
+    }
+
+
+    // utility methods
+    // ---------------------------------------------------------------------------
+    protected static byte maskByte(int aMask, int aPosition) {
+        return (byte) (aMask >>> (24 - ((aPosition & 3) << 3)));
+    }
+
+    protected static long wordMask(int aMask, int aPosition) {
+        int rotated = Integer.rotateLeft(aMask, (aPosition & 3) << 3);
+        return ((long) rotated << 32) | (rotated & 0xFFFFFFFFL);
+    }
+}
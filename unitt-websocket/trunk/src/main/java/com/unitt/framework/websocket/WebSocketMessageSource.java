@@ -0,0 +1,261 @@
+package com.unitt.framework.websocket;
+
+
+import com.unitt.framework.websocket.WebSocketFragment.MessageOpCode;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * A message framed one fragment at a time as the outbound queue reaches it,
+ * so a large file or stream is never held in memory as a whole. Fragments are
+ * at most the max payload size. Files and streams are sent as binary and are
+ * not compressed.
+ * <p>
+ * A message already in memory that needs more than one fragment is framed the
+ * same way, so the queue can slip control frames in between its fragments.
+ * <p>
+ * Unmasked file fragments over a {@link NetworkSocketFileFacade} are written
+ * straight from the file; everything else is read into a fresh array per
+ * fragment. The file or stream is closed once the message is done.
+ */
+public abstract class WebSocketMessageSource implements WebSocketOutboundQueue.Source {
+    private static org.slf4j.Logger logger = LoggerFactory.getLogger(WebSocketMessageSource.class);
+
+    private final MessageOpCode opCode;
+    private final boolean isCompressed;
+    private final boolean useMask;
+    private final int maxPayloadSize;
+    private int frameCount;
+    private long writtenBytes;
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    protected WebSocketMessageSource(boolean aUseMask, int aMaxPayloadSize) {
+        this(MessageOpCode.BINARY, false, aUseMask, aMaxPayloadSize);
+    }
+
+    /**
+     * @param aOpCode       op code of the first fragment
+     * @param aIsCompressed if true, the first fragment is marked with RSV1
+     */
+    protected WebSocketMessageSource(MessageOpCode aOpCode, boolean aIsCompressed, boolean aUseMask, int aMaxPayloadSize) {
+        opCode = aOpCode;
+        isCompressed = aIsCompressed;
+        useMask = aUseMask;
+        maxPayloadSize = aMaxPayloadSize;
+    }
+
+    /**
+     * Frames aMessage, which has already been compressed if aIsCompressed.
+     * The array is not copied, so it must not change until the message is
+     * written.
+     */
+    public static WebSocketMessageSource forMessage(MessageOpCode aOpCode, byte[] aMessage, boolean aIsCompressed, boolean aUseMask, int aMaxPayloadSize) {
+        return new MessageSource(aOpCode, aMessage, aIsCompressed, aUseMask, aMaxPayloadSize);
+    }
+
+    /**
+     * Frames the bytes of aFile from its current position to its end.
+     */
+    public static WebSocketMessageSource forFile(FileChannel aFile, boolean aUseMask, int aMaxPayloadSize) throws IOException {
+        return new FileSource(aFile, aFile.position(), aFile.size(), aUseMask, aMaxPayloadSize);
+    }
+
+    /**
+     * Frames aStream until it ends. Reads block the writing thread, so slow
+     * streams are best sent with a write executor.
+     */
+    public static WebSocketMessageSource forStream(InputStream aStream, boolean aUseMask, int aMaxPayloadSize) {
+        return new StreamSource(aStream, aUseMask, aMaxPayloadSize);
+    }
+
+
+    // getters & setters
+    // ---------------------------------------------------------------------------
+    public MessageOpCode getOpCode() {
+        return opCode;
+    }
+
+    public boolean isCompressed() {
+        return isCompressed;
+    }
+
+    public boolean isUseMask() {
+        return useMask;
+    }
+
+    public int getMaxPayloadSize() {
+        return maxPayloadSize;
+    }
+
+    /**
+     * Returns the number of frames written so far.
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Returns the number of bytes, headers included, written so far.
+     */
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+
+    // source logic
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the message's op code for the first frame and CONTINUATION
+     * after that, and counts the frame.
+     */
+    protected MessageOpCode nextOpCode() {
+        return frameCount++ == 0 ? opCode : MessageOpCode.CONTINUATION;
+    }
+
+    protected void writeFragment(NetworkSocketFacade aNetwork, byte[] aPayload, int aOffset, int aLength, boolean aIsFinal, Runnable aAfterWrite) throws IOException {
+        boolean isFirst = frameCount == 0;
+        WebSocketFragment fragment = new WebSocketFragment(nextOpCode(), aIsFinal, useMask, aPayload, aOffset, aLength);
+        fragment.setRSV1(isFirst && isCompressed);
+        ByteBuffer[] buffers = fragment.getFragmentBuffers();
+        addWrittenBytes(WebSocketConnection.getRemaining(buffers));
+        if (aNetwork instanceof NetworkSocketFileFacade) {
+            ((NetworkSocketFileFacade) aNetwork).write(buffers, aAfterWrite);
+        } else {
+            aNetwork.write(buffers);
+            aAfterWrite.run();
+        }
+    }
+
+    protected void addWrittenBytes(long aBytes) {
+        writtenBytes += aBytes;
+    }
+
+    protected static void closeQuietly(Closeable aCloseable) {
+        try {
+            aCloseable.close();
+        } catch (IOException e) {
+            logger.warn("Could not close message source.", e);
+        }
+    }
+
+
+    // message source
+    // ---------------------------------------------------------------------------
+    protected static class MessageSource extends WebSocketMessageSource {
+        private final byte[] message;
+        private int position;
+
+        public MessageSource(MessageOpCode aOpCode, byte[] aMessage, boolean aIsCompressed, boolean aUseMask, int aMaxPayloadSize) {
+            super(aOpCode, aIsCompressed, aUseMask, aMaxPayloadSize);
+            message = aMessage != null ? aMessage : new byte[0];
+        }
+
+        public long getLength() {
+            return message.length - position;
+        }
+
+        public boolean writeFrame(NetworkSocketFacade aNetwork, Runnable aAfterWrite) throws IOException {
+            int length = Math.min(message.length - position, getMaxPayloadSize());
+            boolean isFinal = position + length >= message.length;
+            writeFragment(aNetwork, message, position, length, isFinal, aAfterWrite);
+            position += length;
+            return isFinal;
+        }
+
+        public void close() {
+            // nothing to release
+        }
+    }
+
+
+    // file source
+    // ---------------------------------------------------------------------------
+    protected static class FileSource extends WebSocketMessageSource {
+        private final FileChannel file;
+        private final long end;
+        private long position;
+
+        public FileSource(FileChannel aFile, long aPosition, long aEnd, boolean aUseMask, int aMaxPayloadSize) {
+            super(aUseMask, aMaxPayloadSize);
+            file = aFile;
+            position = aPosition;
+            end = aEnd;
+        }
+
+        public long getLength() {
+            return end - position;
+        }
+
+        public boolean writeFrame(NetworkSocketFacade aNetwork, Runnable aAfterWrite) throws IOException {
+            int length = (int) Math.min(end - position, getMaxPayloadSize());
+            boolean isFinal = position + length >= end;
+            if (length > 0 && !isUseMask() && aNetwork instanceof NetworkSocketFileFacade) {
+                // payload goes from the file to the socket without entering the heap
+                ByteBuffer header = WebSocketFragment.buildHeader(nextOpCode(), isFinal, length);
+                addWrittenBytes(header.remaining() + length);
+                ((NetworkSocketFileFacade) aNetwork).writeFile(header, file, position, length, aAfterWrite);
+            } else {
+                byte[] payload = new byte[length];
+                ByteBuffer target = ByteBuffer.wrap(payload);
+                while (target.hasRemaining()) {
+                    if (file.read(target, position + target.position()) < 0) {
+                        throw new EOFException("File ended " + (end - position - target.position()) + " bytes early.");
+                    }
+                }
+                writeFragment(aNetwork, payload, 0, length, isFinal, aAfterWrite);
+            }
+            position += length;
+            return isFinal;
+        }
+
+        public void close() {
+            closeQuietly(file);
+        }
+    }
+
+
+    // stream source
+    // ---------------------------------------------------------------------------
+    protected static class StreamSource extends WebSocketMessageSource {
+        private final InputStream stream;
+
+        public StreamSource(InputStream aStream, boolean aUseMask, int aMaxPayloadSize) {
+            super(aUseMask, aMaxPayloadSize);
+            stream = aStream;
+        }
+
+        public long getLength() {
+            return 0;
+        }
+
+        public boolean writeFrame(NetworkSocketFacade aNetwork, Runnable aAfterWrite) throws IOException {
+            // fill a whole fragment; a stream that ends on a fragment boundary gets an empty final frame
+            byte[] payload = new byte[getMaxPayloadSize()];
+            int length = 0;
+            boolean isFinal = false;
+            while (length < payload.length) {
+                int count = stream.read(payload, length, payload.length - length);
+                if (count < 0) {
+                    isFinal = true;
+                    break;
+                }
+                length += count;
+            }
+            writeFragment(aNetwork, payload, 0, length, isFinal, aAfterWrite);
+            return isFinal;
+        }
+
+        public void close() {
+            closeQuietly(stream);
+        }
+    }
+}
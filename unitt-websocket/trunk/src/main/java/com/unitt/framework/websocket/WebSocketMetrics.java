@@ -0,0 +1,24 @@
+package com.unitt.framework.websocket;
+
+
+/**
+ * Metrics SPI. Every connection asks the configured metrics for its own
+ * {@link WebSocketConnectionMetrics} when it is created and reports to it from
+ * then on, so an implementation can keep per-connection numbers as well as
+ * totals. The default, {@link #NONE}, records nothing and lets connections
+ * skip their timing calls.
+ *
+ * @see WebSocketMetricsRegistry
+ */
+public interface WebSocketMetrics
+{
+    public static final WebSocketMetrics NONE = new WebSocketMetrics()
+    {
+        public WebSocketConnectionMetrics createConnectionMetrics(WebSocketConnection aConnection)
+        {
+            return WebSocketConnectionMetrics.NONE;
+        }
+    };
+
+    public WebSocketConnectionMetrics createConnectionMetrics(WebSocketConnection aConnection);
+}
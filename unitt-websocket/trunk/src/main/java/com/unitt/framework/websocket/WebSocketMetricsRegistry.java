@@ -0,0 +1,412 @@
+package com.unitt.framework.websocket;
+
+
+import com.unitt.framework.websocket.WebSocketFragment.MessageOpCode;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * Metrics that keep a running total for every connection that uses them, plus
+ * one set of JVM-wide totals. Totals are kept in striped counters so that
+ * connections on different threads do not contend; per-connection numbers
+ * are plain atomics since a connection is mostly used from one thread at a
+ * time. Connections are forgotten once they close.
+ * <p>
+ * {@link #getDefault()} is registered with the platform MBean server as
+ * {@value #OBJECT_NAME}. To use it, set it on the config:
+ * <pre>
+ * config.setMetrics(WebSocketMetricsRegistry.getDefault());
+ * </pre>
+ */
+public class WebSocketMetricsRegistry implements WebSocketMetrics, WebSocketMetricsRegistryMXBean {
+    public static final String OBJECT_NAME = "com.unitt.framework.websocket:type=WebSocketMetrics";
+
+    private static org.slf4j.Logger logger = LoggerFactory.getLogger(WebSocketMetricsRegistry.class);
+    private static WebSocketMetricsRegistry defaultRegistry;
+
+    private final AtomicLong connectionIds = new AtomicLong();
+    private final Set<ConnectionMetrics> connections = Collections.newSetFromMap(new ConcurrentHashMap<ConnectionMetrics, Boolean>());
+    private final WebSocketStripedCounter[] framesReceived = createCounters();
+    private final WebSocketStripedCounter[] bytesReceived = createCounters();
+    private final WebSocketStripedCounter[] framesSent = createCounters();
+    private final WebSocketStripedCounter[] bytesSent = createCounters();
+    private final WebSocketStripedCounter messagesReceived = new WebSocketStripedCounter();
+    private final WebSocketStripedCounter fragmentsReceived = new WebSocketStripedCounter();
+    private final WebSocketStripedCounter messagesSent = new WebSocketStripedCounter();
+    private final WebSocketStripedCounter decodeCount = new WebSocketStripedCounter();
+    private final WebSocketStripedCounter decodeNanos = new WebSocketStripedCounter();
+    private final WebSocketStripedCounter encodeCount = new WebSocketStripedCounter();
+    private final WebSocketStripedCounter encodeNanos = new WebSocketStripedCounter();
+    private final WebSocketStripedCounter handshakes = new WebSocketStripedCounter();
+    private final WebSocketStripedCounter handshakeFailures = new WebSocketStripedCounter();
+    private final WebSocketStripedCounter handshakeNanos = new WebSocketStripedCounter();
+    private final ConcurrentMap<Integer, WebSocketStripedCounter> closeCodes = new ConcurrentHashMap<Integer, WebSocketStripedCounter>();
+
+
+    // getters & setters
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the JVM-wide registry, registering it with the platform MBean
+     * server the first time it is asked for.
+     */
+    public static synchronized WebSocketMetricsRegistry getDefault() {
+        if (defaultRegistry == null) {
+            defaultRegistry = new WebSocketMetricsRegistry();
+            defaultRegistry.registerMBean(OBJECT_NAME);
+        }
+        return defaultRegistry;
+    }
+
+    /**
+     * Returns the metrics of every open connection.
+     */
+    public Collection<ConnectionMetrics> getConnections() {
+        return Collections.unmodifiableSet(connections);
+    }
+
+    public int getOpenConnections() {
+        return connections.size();
+    }
+
+    public long getFramesReceived() {
+        return sum(framesReceived);
+    }
+
+    public long getBytesReceived() {
+        return sum(bytesReceived);
+    }
+
+    public long getFramesSent() {
+        return sum(framesSent);
+    }
+
+    public long getBytesSent() {
+        return sum(bytesSent);
+    }
+
+    public Map<String, Long> getFramesReceivedByOpCode() {
+        return toMap(framesReceived);
+    }
+
+    public Map<String, Long> getBytesReceivedByOpCode() {
+        return toMap(bytesReceived);
+    }
+
+    public Map<String, Long> getFramesSentByOpCode() {
+        return toMap(framesSent);
+    }
+
+    public Map<String, Long> getBytesSentByOpCode() {
+        return toMap(bytesSent);
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    public double getAverageFragmentsPerMessage() {
+        return average(fragmentsReceived.sum(), messagesReceived.sum());
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    public long getDecodeNanos() {
+        return decodeNanos.sum();
+    }
+
+    public double getAverageDecodeNanos() {
+        return average(decodeNanos.sum(), decodeCount.sum());
+    }
+
+    public long getEncodeNanos() {
+        return encodeNanos.sum();
+    }
+
+    public double getAverageEncodeNanos() {
+        return average(encodeNanos.sum(), encodeCount.sum());
+    }
+
+    public long getPendingOutboundBytes() {
+        long pending = 0;
+        for (ConnectionMetrics connection : connections) {
+            pending += connection.getPendingOutboundBytes();
+        }
+        return pending;
+    }
+
+    public long getHandshakes() {
+        return handshakes.sum();
+    }
+
+    public long getHandshakeFailures() {
+        return handshakeFailures.sum();
+    }
+
+    public double getAverageHandshakeMillis() {
+        return average(handshakeNanos.sum(), handshakes.sum()) / 1000000.0;
+    }
+
+    public Map<Integer, Long> getCloseCodes() {
+        Map<Integer, Long> results = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, WebSocketStripedCounter> entry : closeCodes.entrySet()) {
+            results.put(entry.getKey(), entry.getValue().sum());
+        }
+        return results;
+    }
+
+    public String[] getTopConnectionsByBytes(int aCount) {
+        return getTopConnections(aCount, new Comparator<ConnectionMetrics>() {
+            public int compare(ConnectionMetrics aFirst, ConnectionMetrics aSecond) {
+                return compareDescending(aFirst.getBytesReceived() + aFirst.getBytesSent(), aSecond.getBytesReceived() + aSecond.getBytesSent());
+            }
+        });
+    }
+
+    public String[] getTopConnectionsByTime(int aCount) {
+        return getTopConnections(aCount, new Comparator<ConnectionMetrics>() {
+            public int compare(ConnectionMetrics aFirst, ConnectionMetrics aSecond) {
+                return compareDescending(aFirst.getDecodeNanos() + aFirst.getEncodeNanos(), aSecond.getDecodeNanos() + aSecond.getEncodeNanos());
+            }
+        });
+    }
+
+
+    // metrics logic
+    // ---------------------------------------------------------------------------
+    public WebSocketConnectionMetrics createConnectionMetrics(WebSocketConnection aConnection) {
+        ConnectionMetrics results = new ConnectionMetrics(connectionIds.incrementAndGet(), aConnection);
+        connections.add(results);
+        return results;
+    }
+
+    public void reset() {
+        for (int i = 0; i < framesReceived.length; i++) {
+            framesReceived[i].reset();
+            bytesReceived[i].reset();
+            framesSent[i].reset();
+            bytesSent[i].reset();
+        }
+        messagesReceived.reset();
+        fragmentsReceived.reset();
+        messagesSent.reset();
+        decodeCount.reset();
+        decodeNanos.reset();
+        encodeCount.reset();
+        encodeNanos.reset();
+        handshakes.reset();
+        handshakeFailures.reset();
+        handshakeNanos.reset();
+        closeCodes.clear();
+    }
+
+    /**
+     * Registers this registry with the platform MBean server. Failures are
+     * logged, not thrown, since metrics should never stop a connection.
+     */
+    public void registerMBean(String aObjectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(aObjectName);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (Exception e) {
+            logger.warn("Could not register websocket metrics as " + aObjectName, e);
+        }
+    }
+
+    protected String[] getTopConnections(int aCount, Comparator<ConnectionMetrics> aComparator) {
+        List<ConnectionMetrics> sorted = new ArrayList<ConnectionMetrics>(connections);
+        Collections.sort(sorted, aComparator);
+        String[] results = new String[Math.max(0, Math.min(aCount, sorted.size()))];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = sorted.get(i).toString();
+        }
+        return results;
+    }
+
+    protected static int compareDescending(long aFirst, long aSecond) {
+        return aFirst > aSecond ? -1 : (aFirst == aSecond ? 0 : 1);
+    }
+
+    protected static WebSocketStripedCounter[] createCounters() {
+        WebSocketStripedCounter[] results = new WebSocketStripedCounter[MessageOpCode.values().length];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = new WebSocketStripedCounter();
+        }
+        return results;
+    }
+
+    protected static long sum(WebSocketStripedCounter[] aCounters) {
+        long sum = 0;
+        for (WebSocketStripedCounter counter : aCounters) {
+            sum += counter.sum();
+        }
+        return sum;
+    }
+
+    protected static Map<String, Long> toMap(WebSocketStripedCounter[] aCounters) {
+        Map<String, Long> results = new LinkedHashMap<String, Long>();
+        for (MessageOpCode opCode : MessageOpCode.values()) {
+            long value = aCounters[opCode.ordinal()].sum();
+            if (value > 0) {
+                results.put(opCode.name(), value);
+            }
+        }
+        return results;
+    }
+
+    protected static double average(long aTotal, long aCount) {
+        return aCount > 0 ? aTotal / (double) aCount : 0;
+    }
+
+
+    // connection metrics
+    // ---------------------------------------------------------------------------
+    /**
+     * The numbers of one open connection. Every event is added to the
+     * registry's totals as well.
+     */
+    public class ConnectionMetrics implements WebSocketConnectionMetrics {
+        private final long id;
+        private final WebSocketConnection connection;
+        private final AtomicLong framesIn = new AtomicLong();
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong messagesIn = new AtomicLong();
+        private final AtomicLong framesOut = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private final AtomicLong messagesOut = new AtomicLong();
+        private final AtomicLong decodeTime = new AtomicLong();
+        private final AtomicLong encodeTime = new AtomicLong();
+
+        public ConnectionMetrics(long aId, WebSocketConnection aConnection) {
+            id = aId;
+            connection = aConnection;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public WebSocketConnection getConnection() {
+            return connection;
+        }
+
+        public long getFramesReceived() {
+            return framesIn.get();
+        }
+
+        public long getBytesReceived() {
+            return bytesIn.get();
+        }
+
+        public long getMessagesReceived() {
+            return messagesIn.get();
+        }
+
+        public long getFramesSent() {
+            return framesOut.get();
+        }
+
+        public long getBytesSent() {
+            return bytesOut.get();
+        }
+
+        public long getMessagesSent() {
+            return messagesOut.get();
+        }
+
+        public long getDecodeNanos() {
+            return decodeTime.get();
+        }
+
+        public long getEncodeNanos() {
+            return encodeTime.get();
+        }
+
+        public long getPendingOutboundBytes() {
+            return connection.getPendingOutboundBytes();
+        }
+
+        public void onHandshake(long aNanos, boolean aAccepted) {
+            handshakes.increment();
+            handshakeNanos.add(aNanos);
+            if (!aAccepted) {
+                handshakeFailures.increment();
+            }
+        }
+
+        public void onFrameReceived(MessageOpCode aOpCode, long aLength) {
+            framesIn.incrementAndGet();
+            bytesIn.addAndGet(aLength);
+            framesReceived[aOpCode.ordinal()].increment();
+            bytesReceived[aOpCode.ordinal()].add(aLength);
+        }
+
+        public void onMessageReceived(MessageOpCode aOpCode, int aFragmentCount, long aLength) {
+            messagesIn.incrementAndGet();
+            messagesReceived.increment();
+            fragmentsReceived.add(aFragmentCount);
+        }
+
+        public void onMessageSent(MessageOpCode aOpCode, int aFrameCount, long aLength) {
+            messagesOut.incrementAndGet();
+            framesOut.addAndGet(aFrameCount);
+            bytesOut.addAndGet(aLength);
+            messagesSent.increment();
+            // every frame after the first is a continuation; bytes stay with the message
+            framesSent[aOpCode.ordinal()].increment();
+            if (aFrameCount > 1) {
+                framesSent[MessageOpCode.CONTINUATION.ordinal()].add(aFrameCount - 1);
+            }
+            bytesSent[aOpCode.ordinal()].add(aLength);
+        }
+
+        public void onDecode(long aNanos) {
+            decodeTime.addAndGet(aNanos);
+            decodeCount.increment();
+            decodeNanos.add(aNanos);
+        }
+
+        public void onEncode(long aNanos) {
+            encodeTime.addAndGet(aNanos);
+            encodeCount.increment();
+            encodeNanos.add(aNanos);
+        }
+
+        public void onClose(int aStatus) {
+            connections.remove(this);
+            WebSocketStripedCounter counter = closeCodes.get(aStatus);
+            if (counter == null) {
+                WebSocketStripedCounter created = new WebSocketStripedCounter(1);
+                counter = closeCodes.putIfAbsent(aStatus, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            counter.increment();
+        }
+
+        public String toString() {
+            return "connection #" + id + " (" + connection.getClass().getSimpleName() + "): received " + getBytesReceived() + " bytes in " + getFramesReceived() + " frames, sent " + getBytesSent() + " bytes in " + getFramesSent() + " frames, decode " + getDecodeNanos() / 1000 + "us, encode " + getEncodeNanos() / 1000 + "us, pending " + getPendingOutboundBytes() + " bytes";
+        }
+    }
+}
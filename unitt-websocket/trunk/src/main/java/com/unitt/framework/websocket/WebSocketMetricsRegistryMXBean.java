@@ -0,0 +1,55 @@
+package com.unitt.framework.websocket;
+
+
+import java.util.Map;
+
+
+/**
+ * JMX view of a {@link WebSocketMetricsRegistry}. Totals cover every
+ * connection since the last reset; the connection count and pending bytes
+ * cover the connections open right now.
+ */
+public interface WebSocketMetricsRegistryMXBean
+{
+    public int getOpenConnections();
+
+    public long getFramesReceived();
+    public long getBytesReceived();
+    public long getFramesSent();
+    public long getBytesSent();
+    public Map<String, Long> getFramesReceivedByOpCode();
+    public Map<String, Long> getBytesReceivedByOpCode();
+    public Map<String, Long> getFramesSentByOpCode();
+    public Map<String, Long> getBytesSentByOpCode();
+
+    public long getMessagesReceived();
+    public double getAverageFragmentsPerMessage();
+    public long getMessagesSent();
+
+    public long getDecodeNanos();
+    public double getAverageDecodeNanos();
+    public long getEncodeNanos();
+    public double getAverageEncodeNanos();
+
+    public long getPendingOutboundBytes();
+
+    public long getHandshakes();
+    public long getHandshakeFailures();
+    public double getAverageHandshakeMillis();
+
+    public Map<Integer, Long> getCloseCodes();
+
+    /**
+     * Describes the open connections that have moved the most bytes, in and
+     * out together, most first.
+     */
+    public String[] getTopConnectionsByBytes(int aCount);
+
+    /**
+     * Describes the open connections that have spent the most time decoding
+     * and encoding, most first.
+     */
+    public String[] getTopConnectionsByTime(int aCount);
+
+    public void reset();
+}
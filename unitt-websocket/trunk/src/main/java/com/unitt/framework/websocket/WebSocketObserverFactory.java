@@ -0,0 +1,10 @@
+package com.unitt.framework.websocket;
+
+
+/**
+ * Supplies the observer for each web socket accepted by a server transport.
+ */
+public interface WebSocketObserverFactory
+{
+    public WebSocketObserver createObserver( WebSocket aWebSocket );
+}
@@ -0,0 +1,548 @@
+package com.unitt.framework.websocket;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+
+/**
+ * Per-connection queue of encoded messages waiting to be written. Only one
+ * thread writes at a time. It takes everything queued so far, up to
+ * {@link #MAX_BATCH_BYTES}, and hands it to the network in a single write, so
+ * messages sent while a write is in progress share the next write and flush.
+ * <p>
+ * Any number of threads may queue messages without locking. Each message is
+ * one entry holding all of its frames, so fragments of different messages
+ * never interleave. Producers link entries onto the tail with a single swap
+ * and count a signal; whichever producer finds no signals pending becomes the
+ * writer and drains until every signal is accounted for.
+ * <p>
+ * The queue tracks its pending bytes against a high and a low watermark. It
+ * becomes unwritable once the pending bytes reach the high watermark and
+ * writable again once they drop to the low watermark. Over a
+ * {@link NetworkSocketFileFacade} bytes stay pending until the network says
+ * they are written, so a slow peer holds the queue unwritable even though the
+ * network's own writes return at once. Writes run on the thread that queued
+ * the first message, unless an executor is supplied, in which case senders
+ * never block on the network.
+ * <p>
+ * A {@link Source} is framed lazily: the queue writes it one frame at a time
+ * once it reaches the head, and everything queued behind it waits until its
+ * last frame is out, so data frames of different messages never interleave.
+ * Over a {@link NetworkSocketFileFacade} the next frame is only produced once
+ * the network has written the previous one, keeping one frame in memory.
+ * <p>
+ * Control frames such as pings and pongs have a lane of their own. The writer
+ * takes them ahead of any waiting message and between the frames of a lazily
+ * framed one, so a pong is never stuck behind a large send. RFC 6455 only
+ * lets control frames into the middle of a fragmented message, so data
+ * messages still go out whole and in order. With an executor, a lazily framed
+ * message gives up the executor's thread every {@link #MAX_FRAMES_PER_PASS}
+ * frames so other connections sharing it get their turn.
+ */
+public class WebSocketOutboundQueue {
+    public static final int MAX_BATCH_BYTES = 256 * 1024;
+    public static final int MAX_FRAMES_PER_PASS = 16;
+
+    protected static final int FRAME_IDLE = 0;
+    protected static final int FRAME_WRITING = 1;
+    protected static final int FRAME_WRITTEN = 2;
+    protected static final int FRAME_WAITING = 3;
+
+    private static final AtomicReferenceFieldUpdater<Entry, Entry> nextUpdater = AtomicReferenceFieldUpdater.newUpdater(Entry.class, Entry.class, "next");
+
+    private final NetworkSocketFacade network;
+    private final Listener listener;
+    private final Executor executor;
+    private final int lowWatermark;
+    private final int highWatermark;
+
+    // producers swap in the tail, only the writer moves the head
+    private final AtomicReference<Entry> tail;
+    private Entry head;
+    private final Queue<Entry> controls = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger signals = new AtomicInteger();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private volatile boolean isWritable = true;
+    private boolean isClosed;
+    private final AtomicInteger frameState = new AtomicInteger(FRAME_IDLE);
+    private final Runnable drainTask = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+    private final Runnable frameWritten = new Runnable() {
+        public void run() {
+            // written during writeFrame, or later by the network
+            if (!frameState.compareAndSet(FRAME_WRITING, FRAME_WRITTEN) && frameState.compareAndSet(FRAME_WAITING, FRAME_IDLE)) {
+                startDrain();
+            }
+        }
+    };
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    public WebSocketOutboundQueue(NetworkSocketFacade aNetwork, int aLowWatermark, int aHighWatermark, Executor aExecutor, Listener aListener) {
+        network = aNetwork;
+        lowWatermark = Math.min(aLowWatermark, aHighWatermark);
+        highWatermark = aHighWatermark;
+        executor = aExecutor;
+        listener = aListener;
+        head = new Entry(new ByteBuffer[0], null);
+        tail = new AtomicReference<Entry>(head);
+    }
+
+
+    // getters & setters
+    // ---------------------------------------------------------------------------
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    public boolean isWritable() {
+        return isWritable;
+    }
+
+    /**
+     * Returns true if {@link #offer(ByteBuffer[])} would refuse a message.
+     */
+    public boolean isFull() {
+        return pendingBytes.get() >= highWatermark;
+    }
+
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+
+    // queue logic
+    // ---------------------------------------------------------------------------
+    /**
+     * Queues a message regardless of the watermarks.
+     *
+     * @param aBuffers    the encoded frames of one message, written back to back
+     * @param aAfterWrite run once the message has been written (or failed), may be null
+     */
+    public void add(ByteBuffer[] aBuffers, Runnable aAfterWrite) {
+        offer(aBuffers, aAfterWrite, true);
+    }
+
+    /**
+     * Queues the last message of the connection, such as a close frame,
+     * regardless of the watermarks. Anything queued after it is dropped
+     * instead of written.
+     */
+    public void addLast(ByteBuffer[] aBuffers, Runnable aAfterWrite) {
+        Entry entry = new Entry(aBuffers, aAfterWrite);
+        entry.isLast = true;
+        offer(entry, true);
+    }
+
+    /**
+     * Queues a message unless the pending bytes have reached the high
+     * watermark.
+     *
+     * @return false if the queue is full and the message was not queued
+     */
+    public boolean offer(ByteBuffer[] aBuffers) {
+        return offer(aBuffers, null, false);
+    }
+
+    /**
+     * Queues a message unless the pending bytes have reached the high
+     * watermark. aAfterWrite is not run for a refused message.
+     *
+     * @return false if the queue is full and the message was not queued
+     */
+    public boolean offer(ByteBuffer[] aBuffers, Runnable aAfterWrite) {
+        return offer(aBuffers, aAfterWrite, false);
+    }
+
+    /**
+     * Queues a lazily framed message regardless of the watermarks. The source
+     * is closed once its last frame is written, or when a write fails.
+     *
+     * @param aAfterWrite run once the message has been written (or failed), may be null
+     */
+    public void add(Source aSource, Runnable aAfterWrite) {
+        offer(new Entry(aSource, aAfterWrite), true);
+    }
+
+    /**
+     * Queues a lazily framed message unless the pending bytes have reached
+     * the high watermark. A refused source is not closed.
+     *
+     * @return false if the queue is full and the message was not queued
+     */
+    public boolean offer(Source aSource, Runnable aAfterWrite) {
+        return offer(new Entry(aSource, aAfterWrite), false);
+    }
+
+    /**
+     * Queues a control frame regardless of the watermarks. It is written
+     * ahead of messages that are still waiting, but never after the last
+     * message.
+     */
+    public void addControl(ByteBuffer[] aBuffers, Runnable aAfterWrite) {
+        Entry entry = new Entry(aBuffers, aAfterWrite);
+        long pending = pendingBytes.addAndGet(entry.length);
+        controls.add(entry);
+        if (isWritable && pending >= highWatermark) {
+            updateWritability();
+        }
+        if (signals.getAndIncrement() == 0) {
+            startDrain();
+        }
+    }
+
+    protected boolean offer(ByteBuffer[] aBuffers, Runnable aAfterWrite, boolean aForce) {
+        return offer(new Entry(aBuffers, aAfterWrite), aForce);
+    }
+
+    protected boolean offer(Entry aEntry, boolean aForce) {
+        // the watermark is soft: racing producers may each add one message past it
+        if (!aForce && pendingBytes.get() >= highWatermark) {
+            return false;
+        }
+
+        // counted before it is linked, so the writer never takes the bytes below zero
+        long pending = pendingBytes.addAndGet(aEntry.length);
+        Entry previous = tail.getAndSet(aEntry);
+        nextUpdater.lazySet(previous, aEntry);
+        if (isWritable && pending >= highWatermark) {
+            updateWritability();
+        }
+
+        // signal after linking - the writer only stops once every signal is accounted for
+        if (signals.getAndIncrement() == 0) {
+            startDrain();
+        }
+        return true;
+    }
+
+    protected Entry peek() {
+        return head.next;
+    }
+
+    /**
+     * Unlinks the first entry. It stays behind as the new head until the
+     * next one is taken; {@link Entry#finish()} lets go of its payload.
+     */
+    protected Entry poll() {
+        Entry next = head.next;
+        if (next != null) {
+            head = next;
+        }
+        return next;
+    }
+
+    /**
+     * Flips writability if the pending bytes have crossed a watermark. The
+     * listener is told under the lock so it sees the changes in order, and
+     * the check repeats in case the writer moved the bytes back meanwhile.
+     */
+    protected synchronized void updateWritability() {
+        while (true) {
+            long pending = pendingBytes.get();
+            if (isWritable && pending >= highWatermark) {
+                isWritable = false;
+            } else if (!isWritable && pending <= lowWatermark) {
+                isWritable = true;
+            } else {
+                return;
+            }
+            listener.onWritabilityChanged(isWritable);
+        }
+    }
+
+    protected void startDrain() {
+        if (executor != null) {
+            try {
+                executor.execute(drainTask);
+                return;
+            } catch (RejectedExecutionException e) {
+                // executor is shutting down, write on this thread instead
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Writes until every signal is accounted for and nothing is left, or
+     * until the network has yet to finish writing a frame of a lazily framed
+     * message. Only called by the writer, or by the network once that frame
+     * is out.
+     */
+    protected void drain() {
+        while (true) {
+            int count = signals.get();
+            if (!writeEntries()) {
+                // the network resumes draining once the frame is out
+                return;
+            }
+            if (signals.addAndGet(-count) == 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes batches until no entry is reachable from the head.
+     *
+     * @return false if the network has not finished writing a frame yet
+     */
+    protected boolean writeEntries() {
+        int frameCount = 0;
+        while (true) {
+            List<Entry> batch = new ArrayList<Entry>();
+            Entry streaming = null;
+            int bufferCount = 0;
+            long batchBytes = 0;
+            boolean isLast = false;
+            Entry entry;
+            while ((entry = controls.poll()) != null) {
+                // control frames lead the batch
+                batch.add(entry);
+                batchBytes += entry.length;
+                bufferCount += entry.buffers.length;
+            }
+            while ((entry = peek()) != null && (batch.isEmpty() || batchBytes + entry.length <= MAX_BATCH_BYTES)) {
+                if (entry.source != null && !isClosed) {
+                    // lazily framed messages go out alone, once what is ahead of them has
+                    if (batch.isEmpty()) {
+                        streaming = entry;
+                    }
+                    break;
+                }
+                poll();
+                batch.add(entry);
+                batchBytes += entry.length;
+                if (entry.buffers != null) {
+                    bufferCount += entry.buffers.length;
+                }
+                if (entry.isLast) {
+                    isLast = true;
+                    break;
+                }
+            }
+            if (batch.isEmpty() && streaming == null) {
+                return true;
+            }
+
+            IOException error = null;
+            if (isClosed) {
+                // nothing goes out after the last message
+            } else if (streaming != null) {
+                try {
+                    if (!streaming.isComplete && !writeFrame(streaming)) {
+                        return false;
+                    }
+                    if (!streaming.isComplete) {
+                        if (++frameCount >= MAX_FRAMES_PER_PASS && yieldDrain()) {
+                            return false;
+                        }
+                        continue;
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+                poll();
+                batch.add(streaming);
+                batchBytes = streaming.length;
+            } else {
+                // coalesce the batch into one write
+                ByteBuffer[] buffers = new ByteBuffer[bufferCount];
+                int index = 0;
+                for (Entry written : batch) {
+                    System.arraycopy(written.buffers, 0, buffers, index, written.buffers.length);
+                    index += written.buffers.length;
+                }
+                // the entries stay pending until the network has written them
+                Runnable written = new BatchWritten(batch, batchBytes);
+                batch = new ArrayList<Entry>();
+                batchBytes = 0;
+                try {
+                    write(buffers, written);
+                } catch (IOException e) {
+                    error = e;
+                    written.run();
+                }
+                isClosed = isLast;
+            }
+
+            // anything still reachable behind a failed write is dropped
+            if (error != null) {
+                while ((entry = poll()) != null || (entry = controls.poll()) != null) {
+                    batch.add(entry);
+                    batchBytes += entry.length;
+                }
+                listener.onWriteError(error);
+            }
+            written(batchBytes);
+            for (Entry written : batch) {
+                written.finish();
+            }
+        }
+    }
+
+    /**
+     * Writes a batch, running aAfterWrite once the network has written it.
+     * Networks that cannot say when are done once their write returns.
+     */
+    protected void write(ByteBuffer[] aBuffers, Runnable aAfterWrite) throws IOException {
+        if (network instanceof NetworkSocketFileFacade) {
+            ((NetworkSocketFileFacade) network).write(aBuffers, aAfterWrite);
+        } else {
+            network.write(aBuffers);
+            aAfterWrite.run();
+        }
+    }
+
+    /**
+     * Stops counting bytes that have been written or dropped.
+     */
+    protected void written(long aBytes) {
+        long pending = pendingBytes.addAndGet(-aBytes);
+        if (!isWritable && pending <= lowWatermark) {
+            updateWritability();
+        }
+    }
+
+    /**
+     * Hands the rest of the drain to the executor so other connections
+     * sharing it can write.
+     *
+     * @return false if there is no executor to yield to
+     */
+    protected boolean yieldDrain() {
+        if (executor == null) {
+            return false;
+        }
+        try {
+            executor.execute(drainTask);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the next frame of a lazily framed message.
+     *
+     * @return false if the network has not finished writing the frame yet
+     */
+    protected boolean writeFrame(Entry aEntry) throws IOException {
+        frameState.set(FRAME_WRITING);
+        aEntry.isComplete = aEntry.source.writeFrame(network, frameWritten);
+        return !frameState.compareAndSet(FRAME_WRITING, FRAME_WAITING);
+    }
+
+
+    // queue entry
+    // ---------------------------------------------------------------------------
+    /**
+     * Completes a coalesced batch once. Its entries are only finished here,
+     * since the network may still be reading their buffers until then, and
+     * finishing hands pooled arrays back for reuse. A failed write may also
+     * be reported by the network when it closes, after the writer has given
+     * up on it.
+     */
+    protected class BatchWritten implements Runnable {
+        private final List<Entry> entries;
+        private final long length;
+        private final AtomicBoolean isDone = new AtomicBoolean();
+
+        public BatchWritten(List<Entry> aEntries, long aLength) {
+            entries = aEntries;
+            length = aLength;
+        }
+
+        public void run() {
+            if (isDone.compareAndSet(false, true)) {
+                written(length);
+                for (Entry entry : entries) {
+                    entry.finish();
+                }
+            }
+        }
+    }
+
+    protected static class Entry {
+        private ByteBuffer[] buffers;
+        private final Source source;
+        private final Runnable afterWrite;
+        private final long length;
+        volatile Entry next;
+        private boolean isComplete;
+        private boolean isLast;
+
+        public Entry(ByteBuffer[] aBuffers, Runnable aAfterWrite) {
+            buffers = aBuffers;
+            afterWrite = aAfterWrite;
+            long total = 0;
+            for (ByteBuffer buffer : aBuffers) {
+                total += buffer.remaining();
+            }
+            length = total;
+            source = null;
+        }
+
+        public Entry(Source aSource, Runnable aAfterWrite) {
+            buffers = null;
+            source = aSource;
+            afterWrite = aAfterWrite;
+            length = aSource.getLength();
+        }
+
+        /**
+         * Releases the entry once written, failed or dropped.
+         */
+        protected void finish() {
+            buffers = null;
+            if (source != null) {
+                source.close();
+            }
+            if (afterWrite != null) {
+                afterWrite.run();
+            }
+        }
+    }
+
+
+    // listener & source
+    // ---------------------------------------------------------------------------
+    public interface Listener {
+        public void onWritabilityChanged(boolean aIsWritable);
+        public void onWriteError(IOException aException);
+    }
+
+    /**
+     * A message that is framed as it is written, such as one read from a
+     * file. Only the draining thread calls it.
+     */
+    public interface Source {
+        //the bytes counted against the watermarks until the message is written, 0 if unknown
+        public long getLength();
+
+        //writes the next frame, running aAfterWrite once it is out; returns true if it was the last
+        public boolean writeFrame(NetworkSocketFacade aNetwork, Runnable aAfterWrite) throws IOException;
+
+        public void close();
+    }
+}
@@ -22,20 +22,24 @@ public class WebSocketServerConnection extends WebSocketConnection
         setHandshake( new WebSocketHandshake( aClientHandshake, aConnectConfig ) );
     }
 
+    public WebSocketServerConnection( WebSocketObserver aObserver, NetworkSocketFacade aNetwork, WebSocketConnectConfig aConnectConfig, WebSocketHandshakeParser aClientHandshake )
+    {
+        super( aObserver, aNetwork, aConnectConfig );
+        setHandshake( new WebSocketHandshake( aClientHandshake, aConnectConfig ) );
+    }
+
         
     // server logic
     // ---------------------------------------------------------------------------
     @Override
-    public void onReceivedData( byte[] aData )
+    public void onReceivedData( byte[] aData, int aOffset, int aLength )
     {
         if ( getState() == WebSocketState.NeedsHandshake )
         {
-            getNetwork().upgrade();
-            setState( WebSocketState.Connected );
-            sendOpenToObserver( getHandshake().getClientConfig().getSelectedProtocol(), getHandshake().getClientConfig().getSelectedExtensions() );
+            openConnection();
         }
         
-        super.onReceivedData( aData );
+        super.onReceivedData( aData, aOffset, aLength );
     }
     
     @Override
@@ -53,17 +57,39 @@ public class WebSocketServerConnection extends WebSocketConnection
             catch ( IOException e )
             {
                 sendErrorToObserver( e );
+                return;
             }
+            recordHandshake( true );
+
+            // the client may send frames as soon as it reads our handshake
+            openConnection();
         }
         else
         {
-            //@todo: send correct failure status
+            recordHandshake( false );
             setCloseMessage( "Invalid Handshake" );
             setState( WebSocketState.Disconnected );
+            try
+            {
+                getNetwork().write(getHandshake().getServerRejectionBytes());
+            }
+            catch ( IOException e )
+            {
+                sendErrorToObserver( e );
+            }
             getNetwork().disconnect();
         }
     }
 
+    protected void openConnection()
+    {
+        getNetwork().upgrade();
+        setDeflate( getHandshake().getDeflate() );
+        setState( WebSocketState.Connected );
+        startKeepAlive();
+        sendOpenToObserver( getHandshake().getClientConfig().getSelectedProtocol(), getHandshake().getClientConfig().getSelectedExtensions() );
+    }
+
     public boolean isClient()
     {
         return false;
@@ -0,0 +1,22 @@
+package com.unitt.framework.websocket;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Opt-in observer that receives messages as they arrive instead of once they
+ * are complete, so a large message never has to be held in memory as a whole.
+ * Every message is delivered as one begin event, zero or more chunks, and one
+ * end event. Text messages are delivered as their UTF-8 bytes, and a chunk may
+ * end in the middle of a character.
+ * <p>
+ * A chunk is a read-only view that is only valid for the duration of the call;
+ * copy whatever needs to be kept. If the connection fails part way through a
+ * message, onClose is called without a matching end event.
+ */
+public interface WebSocketStreamObserver extends WebSocketObserver
+{
+    public void onMessageBegin(boolean aIsText);
+    public void onMessageChunk(ByteBuffer aChunk);
+    public void onMessageEnd();
+}
@@ -0,0 +1,74 @@
+package com.unitt.framework.websocket;
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A counter that many threads can add to without contending on one value,
+ * along the lines of Java 8's LongAdder. Each thread adds to one of several
+ * cells, chosen by its id, and reading the counter sums the cells. The cells
+ * are spaced a cache line apart so threads on different cores do not share a
+ * line.
+ * <p>
+ * The sum is not an atomic snapshot while updates are in progress, which is
+ * fine for statistics.
+ */
+public class WebSocketStripedCounter {
+    protected static final int CELL_SPACING = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    /**
+     * Creates a counter with one cell per available core.
+     */
+    public WebSocketStripedCounter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a counter with aStripeCount cells, rounded up to a power of two.
+     * A single cell is just an atomic long.
+     */
+    public WebSocketStripedCounter(int aStripeCount) {
+        int stripes = 1;
+        while (stripes < aStripeCount) {
+            stripes <<= 1;
+        }
+        mask = stripes - 1;
+        cells = new AtomicLongArray(stripes == 1 ? 1 : stripes * CELL_SPACING);
+    }
+
+
+    // counter logic
+    // ---------------------------------------------------------------------------
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long aValue) {
+        if (mask == 0) {
+            cells.addAndGet(0, aValue);
+        } else {
+            cells.addAndGet(((int) Thread.currentThread().getId() & mask) * CELL_SPACING, aValue);
+        }
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += mask == 0 ? 1 : CELL_SPACING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < cells.length(); i++) {
+            cells.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.unitt.framework.websocket;
+
+
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Hashed-wheel timer shared by every connection for keepalive pings, pong
+ * deadlines and idle timeouts. Timeouts hash into one of a fixed number of
+ * buckets by deadline, so scheduling and cancelling are O(1) however many
+ * connections there are, and one thread serves them all. The price is
+ * precision: a timeout fires up to one tick late.
+ * <p>
+ * Tasks run on the timer thread and must be short. The thread is a daemon and
+ * starts with the first scheduled timeout.
+ */
+public class WebSocketTimerWheel {
+    public static final long DEFAULT_TICK_MILLIS = 100;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static org.slf4j.Logger logger = LoggerFactory.getLogger(WebSocketTimerWheel.class);
+    private static volatile WebSocketTimerWheel defaultWheel = new WebSocketTimerWheel();
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final String threadName;
+    private Thread worker;
+    private volatile boolean isStopped;
+    private long startTime;
+    private long tick;
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    public WebSocketTimerWheel() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE, "websocket-timer");
+    }
+
+    /**
+     * @param aTickMillis  how often the wheel advances, and so how late a timeout may fire
+     * @param aWheelSize   number of buckets, rounded up to a power of two
+     * @param aThreadName  name of the timer thread
+     */
+    public WebSocketTimerWheel(long aTickMillis, int aWheelSize, String aThreadName) {
+        int size = 1;
+        while (size < aWheelSize) {
+            size <<= 1;
+        }
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, aTickMillis));
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        threadName = aThreadName;
+    }
+
+
+    // getters & setters
+    // ---------------------------------------------------------------------------
+    public static WebSocketTimerWheel getDefault() {
+        return defaultWheel;
+    }
+
+    public static void setDefault(WebSocketTimerWheel aWheel) {
+        defaultWheel = aWheel;
+    }
+
+    public long getTickMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+
+    // timer logic
+    // ---------------------------------------------------------------------------
+    /**
+     * Runs the task on the timer thread once aDelayMillis have passed.
+     */
+    public Timeout schedule(Runnable aTask, long aDelayMillis) {
+        if (isStopped) {
+            throw new IllegalStateException("Timer has been stopped.");
+        }
+        start();
+
+        Timeout timeout = new Timeout(aTask, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, aDelayMillis)));
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the timer thread. Timeouts that have not fired never will.
+     */
+    public synchronized void stop() {
+        isStopped = true;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    protected synchronized void start() {
+        if (worker == null && !isStopped) {
+            startTime = System.nanoTime();
+            worker = new Thread(new Runnable() {
+                public void run() {
+                    runWheel();
+                }
+            }, threadName);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    protected void runWheel() {
+        while (!isStopped) {
+            // sleep until the end of the current tick
+            long deadline = startTime + (tick + 1) * tickNanos;
+            long sleepNanos = deadline - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (isStopped) {
+                        return;
+                    }
+                }
+                continue;
+            }
+
+            transferPendingTimeouts();
+            expireTimeouts(wheel[(int) (tick & mask)], deadline);
+            tick++;
+        }
+    }
+
+    /**
+     * Moves newly scheduled timeouts into their buckets. Only the timer thread
+     * touches the buckets, so they need no locking.
+     */
+    protected void transferPendingTimeouts() {
+        Timeout timeout;
+        while ((timeout = pendingTimeouts.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long ticks = Math.max(tick, (timeout.deadline - startTime) / tickNanos);
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    protected void expireTimeouts(Bucket aBucket, long aDeadline) {
+        Timeout timeout = aBucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.isCancelled()) {
+                aBucket.remove(timeout);
+            } else if (timeout.remainingRounds <= 0 && timeout.deadline <= aDeadline) {
+                aBucket.remove(timeout);
+                timeout.expire();
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+
+    // timeout
+    // ---------------------------------------------------------------------------
+    public static class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private volatile boolean isCancelled;
+        private long remainingRounds;
+        private Timeout next;
+        private Timeout previous;
+
+        protected Timeout(Runnable aTask, long aDeadline) {
+            task = aTask;
+            deadline = aDeadline;
+        }
+
+        public boolean isCancelled() {
+            return isCancelled;
+        }
+
+        /**
+         * Keeps the task from running. The timeout is dropped from its bucket
+         * the next time the wheel passes it.
+         */
+        public void cancel() {
+            isCancelled = true;
+        }
+
+        protected void expire() {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.warn("Timer task threw an exception.", t);
+            }
+        }
+    }
+
+    protected static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        public void add(Timeout aTimeout) {
+            aTimeout.previous = tail;
+            aTimeout.next = null;
+            if (tail == null) {
+                head = aTimeout;
+            } else {
+                tail.next = aTimeout;
+            }
+            tail = aTimeout;
+        }
+
+        public void remove(Timeout aTimeout) {
+            if (aTimeout.previous == null) {
+                head = aTimeout.next;
+            } else {
+                aTimeout.previous.next = aTimeout.next;
+            }
+            if (aTimeout.next == null) {
+                tail = aTimeout.previous;
+            } else {
+                aTimeout.next.previous = aTimeout.previous;
+            }
+            aTimeout.next = null;
+            aTimeout.previous = null;
+        }
+    }
+}
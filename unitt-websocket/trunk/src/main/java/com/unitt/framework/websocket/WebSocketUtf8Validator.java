@@ -0,0 +1,155 @@
+package com.unitt.framework.websocket;
+
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Incremental UTF-8 validator. A text message can be fed to it one fragment
+ * at a time; a code point split across fragments is carried over to the next
+ * update, and the first invalid byte is reported as soon as it arrives. Runs
+ * of ASCII are checked eight bytes at a time.
+ * <p>
+ * Follows the well-formed byte sequences of RFC 3629, so overlong encodings,
+ * surrogates and code points above U+10FFFF are rejected.
+ */
+public class WebSocketUtf8Validator {
+    protected static final long ASCII_MASK = 0x8080808080808080L;
+
+    private int needed;
+    private int lowerBound = 0x80;
+    private int upperBound = 0xBF;
+    private boolean isValid = true;
+
+
+    // getters & setters
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns true if no invalid byte has been seen since the last reset.
+     */
+    public boolean isValid() {
+        return isValid;
+    }
+
+    /**
+     * Returns true if everything seen so far is valid and does not end in the
+     * middle of a code point.
+     */
+    public boolean isComplete() {
+        return isValid && needed == 0;
+    }
+
+
+    // validation logic
+    // ---------------------------------------------------------------------------
+    public void reset() {
+        needed = 0;
+        lowerBound = 0x80;
+        upperBound = 0xBF;
+        isValid = true;
+    }
+
+    /**
+     * Validates aLength more bytes of the message.
+     *
+     * @return false if the message is not valid UTF-8
+     */
+    public boolean update(byte[] aData, int aOffset, int aLength) {
+        if (!isValid) {
+            return false;
+        }
+
+        ByteBuffer words = null;
+        int index = aOffset;
+        int end = aOffset + aLength;
+        while (index < end) {
+            // skip whole words of ASCII
+            if (needed == 0 && end - index >= 8) {
+                if (words == null) {
+                    words = ByteBuffer.wrap(aData);
+                }
+                if ((words.getLong(index) & ASCII_MASK) == 0) {
+                    index += 8;
+                    continue;
+                }
+            }
+
+            if (!step(aData[index])) {
+                return false;
+            }
+            index++;
+        }
+
+        return true;
+    }
+
+    /**
+     * Validates the remaining bytes of aData without moving its position.
+     *
+     * @return false if the message is not valid UTF-8
+     */
+    public boolean update(ByteBuffer aData) {
+        if (aData.hasArray()) {
+            return update(aData.array(), aData.arrayOffset() + aData.position(), aData.remaining());
+        }
+        if (!isValid) {
+            return false;
+        }
+
+        // read-only and direct buffers, read with absolute gets
+        int index = aData.position();
+        int end = aData.limit();
+        while (index < end) {
+            if (needed == 0 && end - index >= 8 && (aData.getLong(index) & ASCII_MASK) == 0) {
+                index += 8;
+                continue;
+            }
+
+            if (!step(aData.get(index))) {
+                return false;
+            }
+            index++;
+        }
+
+        return true;
+    }
+
+    protected boolean step(byte aByte) {
+        int b = aByte & 0xFF;
+        if (needed == 0) {
+            if (b <= 0x7F) {
+                return true;
+            } else if (b >= 0xC2 && b <= 0xDF) {
+                needed = 1;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                // no overlong forms or surrogates
+                if (b == 0xE0) {
+                    lowerBound = 0xA0;
+                } else if (b == 0xED) {
+                    upperBound = 0x9F;
+                }
+                needed = 2;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                // no overlong forms or code points past U+10FFFF
+                if (b == 0xF0) {
+                    lowerBound = 0x90;
+                } else if (b == 0xF4) {
+                    upperBound = 0x8F;
+                }
+                needed = 3;
+            } else {
+                isValid = false;
+            }
+            return isValid;
+        }
+
+        if (b < lowerBound || b > upperBound) {
+            isValid = false;
+            return false;
+        }
+        lowerBound = 0x80;
+        upperBound = 0xBF;
+        needed--;
+        return true;
+    }
+}
@@ -102,32 +102,21 @@ public class WebSocketUtil
 
     public static int convertBytesToInt( byte[] aBytes, int aStart )
     {
-        return convertBytes( aBytes, aStart, 4 ).intValue();
+        return (int) convertBytes( aBytes, aStart, 4 );
     }
 
     public static int convertBytesToShort( byte[] aBytes, int aStart )
     {
-        return convertBytes( aBytes, aStart, 2 ).intValue();
+        return (int) convertBytes( aBytes, aStart, 2 );
     }
 
-    protected static Long convertBytes( byte[] aBytes, int aStart, int aLength )
+    protected static long convertBytes( byte[] aBytes, int aStart, int aLength )
     {
         long result = 0;
-        int count = 1;
         for ( int i = aStart; i < aStart + aLength; i++ )
         {
-            // shift byte to correct location
-            int bitsToShift = ( aLength - count++ ) * 8;
-            long mask = 0xFF;
-            long byteValue = aBytes[i];  //aBytes.length > i ? aBytes[i] : 0;
-            if ( bitsToShift > 0 )
-            {
-                byteValue = byteValue << bitsToShift;
-                mask = 0xFF << bitsToShift;
-            }
-
-            // push byte into result
-            result |= (byteValue & mask);
+            // push byte into result, most significant first
+            result = ( result << 8 ) | ( aBytes[i] & 0xFF );
         }
 
         return result;
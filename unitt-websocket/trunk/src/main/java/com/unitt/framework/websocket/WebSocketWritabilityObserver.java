@@ -0,0 +1,13 @@
+package com.unitt.framework.websocket;
+
+
+/**
+ * Opt-in observer that is told when the connection's outbound queue crosses
+ * its watermarks. Senders that fan out to many connections can stop sending
+ * to a connection when it becomes unwritable and resume once it is writable
+ * again, instead of queueing without bound for a slow peer.
+ */
+public interface WebSocketWritabilityObserver extends WebSocketObserver
+{
+    public void onWritabilityChanged(boolean aIsWritable);
+}
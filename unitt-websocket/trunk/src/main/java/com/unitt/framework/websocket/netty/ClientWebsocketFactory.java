@@ -2,29 +2,18 @@ package com.unitt.framework.websocket.netty;
 
 
 import java.net.URI;
-import java.util.concurrent.Executors;
-
-import org.jboss.netty.bootstrap.ClientBootstrap;
-import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 
 import com.unitt.framework.websocket.WebSocket;
 import com.unitt.framework.websocket.WebSocketConnectConfig;
-import com.unitt.framework.websocket.WebSocketFactory;
 import com.unitt.framework.websocket.WebSocketObserver;
 
 
+/**
+ * Creates client websockets on the default {@link NettyClientRuntime}. Use a
+ * runtime directly to control its threads or to shut it down.
+ */
 public class ClientWebsocketFactory
 {
-
-    private static NioClientSocketChannelFactory socketChannelFactory;
-    private static WebSocketFactory wsFactory;
-
-    static
-    {
-        socketChannelFactory = new NioClientSocketChannelFactory( Executors.newCachedThreadPool(), Executors.newCachedThreadPool() );
-        wsFactory = new WebSocketFactory();
-    }
-    
     protected static WebSocketConnectConfig getConfig(String aUrlString)
     {
         //use websocket protocol, if missing
@@ -71,10 +60,7 @@ public class ClientWebsocketFactory
      */
     public static WebSocket create( String aUrl, WebSocketObserver aObserver )
     {
-        ClientBootstrap bootstrap = new ClientBootstrap( socketChannelFactory );
-        WebSocketConnectConfig config = getConfig( aUrl );
-        NettyClientNetworkSocket networkSocket = new NettyClientNetworkSocket(bootstrap, aObserver);
-        return wsFactory.createClient( networkSocket, config, networkSocket );
+        return NettyClientRuntime.getDefault().create( aUrl, aObserver );
     }
 
     /**
@@ -85,9 +71,7 @@ public class ClientWebsocketFactory
      */
     public static WebSocket create( WebSocketConnectConfig aConfig, WebSocketObserver aObserver )
     {
-        ClientBootstrap bootstrap = new ClientBootstrap( socketChannelFactory );
-        NettyClientNetworkSocket networkSocket = new NettyClientNetworkSocket(bootstrap, aObserver);
-        return wsFactory.createClient( networkSocket, aConfig, networkSocket );
+        return NettyClientRuntime.getDefault().create( aConfig, aObserver );
     }
 
     /**
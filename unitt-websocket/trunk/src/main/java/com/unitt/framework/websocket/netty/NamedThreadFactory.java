@@ -0,0 +1,58 @@
+package com.unitt.framework.websocket.netty;
+
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.util.ThreadNameDeterminer;
+import org.jboss.netty.util.ThreadRenamingRunnable;
+
+
+/**
+ * Creates daemon threads named after the runtime or server they belong to.
+ * Netty renames its boss and worker threads when they start; threads from
+ * this factory keep their names, while every other Netty thread is named as
+ * it was before.
+ */
+public class NamedThreadFactory implements ThreadFactory
+{
+    static
+    {
+        final ThreadNameDeterminer previous = ThreadRenamingRunnable.getThreadNameDeterminer();
+        ThreadRenamingRunnable.setThreadNameDeterminer( new ThreadNameDeterminer()
+        {
+            public String determineThreadName( String aCurrentName, String aProposedName ) throws Exception
+            {
+                if ( Thread.currentThread() instanceof NamedThread )
+                {
+                    return aCurrentName;
+                }
+
+                return previous.determineThreadName( aCurrentName, aProposedName );
+            }
+        } );
+    }
+
+    private String        name;
+    private AtomicInteger count = new AtomicInteger();
+
+    public NamedThreadFactory( String aName )
+    {
+        name = aName;
+    }
+
+    public Thread newThread( Runnable aRunnable )
+    {
+        Thread thread = new NamedThread( aRunnable, name + "-" + count.incrementAndGet() );
+        thread.setDaemon( true );
+        return thread;
+    }
+
+    protected static class NamedThread extends Thread
+    {
+        public NamedThread( Runnable aRunnable, String aName )
+        {
+            super( aRunnable, aName );
+        }
+    }
+}
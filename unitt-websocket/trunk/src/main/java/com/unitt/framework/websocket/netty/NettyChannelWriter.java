@@ -0,0 +1,61 @@
+package com.unitt.framework.websocket.netty;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.DefaultFileRegion;
+
+
+/**
+ * Writes for the Netty network sockets that report back once the channel has
+ * written them. File regions go out through the channel's FileRegion support,
+ * which transfers them from the file system to the socket without copying
+ * them into the heap.
+ */
+public class NettyChannelWriter
+{
+    // write logic
+    // ---------------------------------------------------------------------------
+    public static void write( Channel aChannel, ByteBuffer[] aBuffers, Runnable aAfterWrite ) throws IOException
+    {
+        checkConnected( aChannel );
+        notifyAfterWrite( aChannel.write( ChannelBuffers.wrappedBuffer( aBuffers ) ), aAfterWrite );
+    }
+
+    /**
+     * Writes the header and then the file region. The file is left open for
+     * the caller to close once aAfterWrite has run.
+     */
+    public static void writeFile( Channel aChannel, ByteBuffer aHeader, FileChannel aFile, long aPosition, long aCount, Runnable aAfterWrite ) throws IOException
+    {
+        checkConnected( aChannel );
+        aChannel.write( ChannelBuffers.wrappedBuffer( aHeader ) );
+        notifyAfterWrite( aChannel.write( new DefaultFileRegion( aFile, aPosition, aCount ) ), aAfterWrite );
+    }
+
+    protected static void checkConnected( Channel aChannel ) throws IOException
+    {
+        // stop lazily framed messages from reading the rest of their source into a dead channel
+        if ( aChannel == null || !aChannel.isConnected() )
+        {
+            throw new IOException( "Socket is closed." );
+        }
+    }
+
+    protected static void notifyAfterWrite( ChannelFuture aFuture, final Runnable aAfterWrite )
+    {
+        aFuture.addListener( new ChannelFutureListener()
+        {
+            public void operationComplete( ChannelFuture aFuture ) throws Exception
+            {
+                aAfterWrite.run();
+            }
+        } );
+    }
+}
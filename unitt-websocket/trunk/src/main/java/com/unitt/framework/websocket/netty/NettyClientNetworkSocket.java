@@ -1,15 +1,16 @@
 package com.unitt.framework.websocket.netty;
 
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferFactory;
-import org.jboss.netty.buffer.HeapChannelBufferFactory;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
@@ -18,26 +19,24 @@ import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
-import org.jboss.netty.handler.codec.http.HttpRequestEncoder;
-import org.jboss.netty.handler.codec.http.HttpResponse;
-import org.jboss.netty.handler.codec.http.HttpResponseDecoder;
+import org.jboss.netty.channel.group.ChannelGroup;
 
-import com.unitt.framework.websocket.NetworkSocketFacade;
+import com.unitt.framework.websocket.NetworkSocketFileFacade;
 import com.unitt.framework.websocket.NetworkSocketObserver;
+import com.unitt.framework.websocket.NetworkSocketReadFacade;
 import com.unitt.framework.websocket.WebSocketConnectConfig;
 import com.unitt.framework.websocket.WebSocketObserver;
 
 
-public class NettyClientNetworkSocket extends SimpleChannelUpstreamHandler implements NetworkSocketFacade, ChannelPipelineFactory, WebSocketObserver
+public class NettyClientNetworkSocket extends SimpleChannelUpstreamHandler implements NetworkSocketFileFacade, NetworkSocketReadFacade, ChannelPipelineFactory, WebSocketObserver
 {
-    protected static final Charset utf8Charset = Charset.forName( "UTF-8" );
-    
     private NetworkSocketObserver socketObserver;
     private ClientBootstrap       bootstrap;
+    private ChannelGroup          channels;
     private Channel               channel;
     private WebSocketObserver     observer;
     private long                  timeOfLastActivity;
-    private ChannelBufferFactory  buffers;
+    private AtomicBoolean         isDisconnected = new AtomicBoolean();
 
 
     // constructors
@@ -49,7 +48,20 @@ public class NettyClientNetworkSocket extends SimpleChannelUpstreamHandler imple
 
         // set pipeline factory on bootstrap
         bootstrap.setPipelineFactory( this );
-        buffers = HeapChannelBufferFactory.getInstance();
+    }
+
+    /**
+     * Connects through a bootstrap shared with other sockets. The bootstrap's
+     * pipeline factory is left alone; this socket builds its own pipeline
+     * when it connects.
+     *
+     * @param aChannels group the connected channel is added to, may be null
+     */
+    public NettyClientNetworkSocket( ClientBootstrap aBootstrap, ChannelGroup aChannels, WebSocketObserver aObserver )
+    {
+        bootstrap = aBootstrap;
+        channels = aChannels;
+        observer = aObserver;
     }
 
 
@@ -76,32 +88,33 @@ public class NettyClientNetworkSocket extends SimpleChannelUpstreamHandler imple
         }
     }
 
+    @Override
+    public void channelClosed( ChannelHandlerContext aContext, ChannelStateEvent aEvent ) throws Exception
+    {
+        // closed by us, the server or the runtime shutting down
+        notifyDisconnect( null );
+    }
+
     @Override
     public void messageReceived( ChannelHandlerContext aContext, MessageEvent aEvent ) throws Exception
     {
-        Object msg = aEvent.getMessage();
-        if ( msg instanceof HttpResponse )
+        if ( socketObserver == null || !( aEvent.getMessage() instanceof ChannelBuffer ) )
         {
-            HttpResponse message = (HttpResponse) msg ;
-            StringBuffer headers = new StringBuffer();
-            headers.append( "HTTP/1.1 " );
-            headers.append( message.getStatus().getCode() );
-            headers.append("\r\n");
-            for (Entry<String, String> header : message.getHeaders())
-            {
-                headers.append(header.getKey());
-                headers.append(":");
-                headers.append(header.getValue());
-                headers.append("\r\n");
-            }
-            socketObserver.onReceivedData( headers.toString().getBytes( utf8Charset ) );
+            return;
+        }
+
+        // handshake response and frames alike go to the connection as raw bytes
+        ChannelBuffer buffer = (ChannelBuffer) aEvent.getMessage();
+        if ( buffer.hasArray() )
+        {
+            // only the readable bytes, the backing array may be larger
+            socketObserver.onReceivedData( buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), buffer.readableBytes() );
         }
         else
         {
-            if (msg instanceof ChannelBuffer)
-            {
-                socketObserver.onReceivedData( ((ChannelBuffer) msg).array() );
-            }
+            byte[] data = new byte[buffer.readableBytes()];
+            buffer.readBytes( data );
+            socketObserver.onReceivedData( data );
         }
     }
 
@@ -109,9 +122,8 @@ public class NettyClientNetworkSocket extends SimpleChannelUpstreamHandler imple
     // ---------------------------------------------------------------------------
     public ChannelPipeline getPipeline() throws Exception
     {
+        // no http codecs - the connection parses the handshake response itself
         ChannelPipeline pipeline = Channels.pipeline();
-        pipeline.addLast( "decoder", new HttpResponseDecoder() );
-        pipeline.addLast( "encoder", new HttpRequestEncoder() );
         pipeline.addLast( "wshandler", this );
         return pipeline;
     }
@@ -120,41 +132,92 @@ public class NettyClientNetworkSocket extends SimpleChannelUpstreamHandler imple
     // ---------------------------------------------------------------------------
     public void connect( WebSocketConnectConfig aConfig )
     {
-        bootstrap.connect( new InetSocketAddress( aConfig.getUrl().getHost(), aConfig.getUrl().getPort() ) );
+        InetSocketAddress address = new InetSocketAddress( aConfig.getUrl().getHost(), aConfig.getUrl().getPort() );
+        if ( channels == null )
+        {
+            bootstrap.connect( address );
+            return;
+        }
+
+        // shared bootstrap - open the channel with our own pipeline
+        ChannelPipeline pipeline;
+        try
+        {
+            pipeline = getPipeline();
+        }
+        catch ( Exception e )
+        {
+            throw new IllegalStateException( "Could not create the pipeline.", e );
+        }
+        Channel newChannel = bootstrap.getFactory().newChannel( pipeline );
+        newChannel.getConfig().setOptions( bootstrap.getOptions() );
+        channels.add( newChannel );
+        newChannel.connect( address );
     }
 
     public void disconnect()
     {
-        Exception exception = null;
+        // never connected - nothing will report the close
+        if ( channel == null )
+        {
+            notifyDisconnect( null );
+            return;
+        }
 
-        // disconnect from channel
+        // disconnect from channel - channelClosed notifies the socketObserver
         try
         {
             channel.disconnect();
         }
         catch ( Exception e )
         {
-            exception = e;
+            notifyDisconnect( e );
         }
+    }
 
-        // notify socketObserver
-        if ( socketObserver != null )
+    protected void notifyDisconnect( Exception aException )
+    {
+        // the channel closing and disconnect() may both report
+        if ( socketObserver != null && !isDisconnected.getAndSet( true ) )
         {
-            socketObserver.onDisconnect( exception );
+            socketObserver.onDisconnect( aException );
         }
     }
 
     public void write( byte[] aBytes )
     {
-        // write bytes to channel
-        // channel.write( aBytes );
-        channel.write( buffers.getBuffer( aBytes, 0, aBytes.length ) );
+        // wrapped, not copied
+        channel.write( ChannelBuffers.wrappedBuffer( aBytes ) );
+    }
+
+    public void write( ByteBuffer... aBuffers )
+    {
+        // composite buffer - header & payload are sent without being copied together
+        channel.write( ChannelBuffers.wrappedBuffer( aBuffers ) );
+    }
+
+    public void write( ByteBuffer[] aBuffers, Runnable aAfterWrite ) throws IOException
+    {
+        NettyChannelWriter.write( channel, aBuffers, aAfterWrite );
+    }
+
+    public void writeFile( ByteBuffer aHeader, FileChannel aFile, long aPosition, long aCount, Runnable aAfterWrite ) throws IOException
+    {
+        NettyChannelWriter.writeFile( channel, aHeader, aFile, aPosition, aCount, aAfterWrite );
+    }
+
+    public void setReadable( boolean aIsReadable )
+    {
+        // the worker stops selecting the channel for reads until it is readable again
+        if ( channel != null )
+        {
+            channel.setReadable( aIsReadable );
+        }
     }
 
     public void upgrade()
     {
-        channel.getPipeline().remove( "encoder" );
-        channel.getPipeline().remove( "decoder" );
+        // no http codecs to remove - the handshake is parsed from raw bytes
     }
 
     public void setObserver( NetworkSocketObserver aSocketObserver )
@@ -0,0 +1,152 @@
+package com.unitt.framework.websocket.netty;
+
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+
+import com.unitt.framework.websocket.WebSocket;
+import com.unitt.framework.websocket.WebSocketConnectConfig;
+import com.unitt.framework.websocket.WebSocketFactory;
+import com.unitt.framework.websocket.WebSocketObserver;
+
+
+/**
+ * The threads and bootstrap that client web sockets run on. One boss thread
+ * connects sockets and a fixed number of worker threads, one per core by
+ * default, service every connected socket, however many sockets come and go.
+ * Threads are named daemons, so an application that forgets to call
+ * {@link #shutdown()} can still exit.
+ * <p>
+ * Every socket shares the one bootstrap; each builds its own pipeline when it
+ * connects instead of resetting the bootstrap's pipeline factory.
+ */
+public class NettyClientRuntime
+{
+    public static final String        DEFAULT_THREAD_NAME = "websocket-client";
+
+    private static NettyClientRuntime defaultRuntime;
+
+    private ClientBootstrap           bootstrap;
+    private ChannelGroup              channels;
+    private WebSocketFactory          wsFactory           = new WebSocketFactory();
+    private volatile boolean          isShutdown;
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    public NettyClientRuntime()
+    {
+        this( Runtime.getRuntime().availableProcessors(), DEFAULT_THREAD_NAME );
+    }
+
+    /**
+     * @param aWorkerCount number of worker threads servicing connected sockets
+     * @param aThreadName  prefix of every thread's name
+     */
+    public NettyClientRuntime( int aWorkerCount, String aThreadName )
+    {
+        ExecutorService boss = Executors.newCachedThreadPool( new NamedThreadFactory( aThreadName + "-boss" ) );
+        ExecutorService workers = Executors.newCachedThreadPool( new NamedThreadFactory( aThreadName + "-worker" ) );
+        bootstrap = new ClientBootstrap( new NioClientSocketChannelFactory( boss, workers, aWorkerCount ) );
+        bootstrap.setOption( "tcpNoDelay", true );
+        bootstrap.setOption( "keepAlive", true );
+        channels = new DefaultChannelGroup( aThreadName );
+    }
+
+
+    // getters & setters
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the runtime that {@link ClientWebsocketFactory} creates sockets
+     * on, creating it on first use.
+     */
+    public static synchronized NettyClientRuntime getDefault()
+    {
+        if ( defaultRuntime == null || defaultRuntime.isShutdown() )
+        {
+            defaultRuntime = new NettyClientRuntime();
+        }
+
+        return defaultRuntime;
+    }
+
+    public ClientBootstrap getBootstrap()
+    {
+        return bootstrap;
+    }
+
+    /**
+     * Returns the number of open channels.
+     */
+    public int getChannelCount()
+    {
+        return channels.size();
+    }
+
+    public boolean isShutdown()
+    {
+        return isShutdown;
+    }
+
+
+    // factory logic
+    // ---------------------------------------------------------------------------
+    /**
+     * Creates a client websocket that will attach to the specified url.
+     *
+     * @param aUrl url to server websocket
+     * @param aObserver observer that will respond to lifecycle events and messages
+     */
+    public WebSocket create( String aUrl, WebSocketObserver aObserver )
+    {
+        return create( ClientWebsocketFactory.getConfig( aUrl ), aObserver );
+    }
+
+    /**
+     * Creates a client websocket that will attach to the specified url.
+     *
+     * @param aConfig config used to setup websocket
+     * @param aObserver observer that will respond to lifecycle events and messages
+     */
+    public WebSocket create( WebSocketConnectConfig aConfig, WebSocketObserver aObserver )
+    {
+        if ( isShutdown )
+        {
+            throw new IllegalStateException( "Runtime has been shut down." );
+        }
+
+        NettyClientNetworkSocket networkSocket = new NettyClientNetworkSocket( bootstrap, channels, aObserver );
+        return wsFactory.createClient( networkSocket, aConfig, networkSocket );
+    }
+
+    /**
+     * Creates a client websocket and opens it. The observer will have to
+     * respond as opening is not a synchronous operation.
+     *
+     * @param aConfig config used to setup websocket
+     * @param aObserver observer that will respond to lifecycle events and messages
+     */
+    public WebSocket open( WebSocketConnectConfig aConfig, WebSocketObserver aObserver )
+    {
+        WebSocket socket = create( aConfig, aObserver );
+        socket.open();
+        return socket;
+    }
+
+    /**
+     * Closes every open channel, then releases the boss and worker threads.
+     * Sockets see the close as the endpoint going away. Must not be called
+     * from one of this runtime's own threads.
+     */
+    public void shutdown()
+    {
+        isShutdown = true;
+        channels.close().awaitUninterruptibly();
+        bootstrap.releaseExternalResources();
+    }
+}
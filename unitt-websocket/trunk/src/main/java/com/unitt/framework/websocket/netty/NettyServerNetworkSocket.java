@@ -0,0 +1,204 @@
+package com.unitt.framework.websocket.netty;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.unitt.framework.websocket.NetworkSocketFileFacade;
+import com.unitt.framework.websocket.NetworkSocketObserver;
+import com.unitt.framework.websocket.NetworkSocketReadFacade;
+import com.unitt.framework.websocket.WebSocketConnectConfig;
+import com.unitt.framework.websocket.WebSocketHandshakeParser;
+import com.unitt.framework.websocket.WebSocketObserverFactory;
+import com.unitt.framework.websocket.WebSocketServerConnection;
+
+
+/**
+ * Server side network socket for a single accepted channel. Buffers the
+ * client's HTTP upgrade request, then hands it to a new
+ * {@link WebSocketServerConnection} and feeds it everything that follows.
+ */
+public class NettyServerNetworkSocket extends SimpleChannelUpstreamHandler implements NetworkSocketFileFacade, NetworkSocketReadFacade
+{
+    private static Logger                  logger            = LoggerFactory.getLogger( NettyServerNetworkSocket.class );
+    public static final int                MAX_HANDSHAKE_SIZE = WebSocketHandshakeParser.DEFAULT_MAX_SIZE;
+
+    private WebSocketConnectConfig         config;
+    private WebSocketObserverFactory       observerFactory;
+    private ChannelGroup                   channels;
+    private NetworkSocketObserver          socketObserver;
+    private Channel                        channel;
+    private WebSocketHandshakeParser       handshakeParser;
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    public NettyServerNetworkSocket( WebSocketConnectConfig aConfig, WebSocketObserverFactory aObserverFactory, ChannelGroup aChannels )
+    {
+        config = aConfig;
+        observerFactory = aObserverFactory;
+        channels = aChannels;
+        handshakeParser = new WebSocketHandshakeParser( aConfig.getMaxHandshakeSize() );
+    }
+
+
+    // channel logic
+    // ---------------------------------------------------------------------------
+    @Override
+    public void channelOpen( ChannelHandlerContext aContext, ChannelStateEvent aEvent ) throws Exception
+    {
+        channel = aContext.getChannel();
+        channels.add( channel );
+    }
+
+    @Override
+    public void messageReceived( ChannelHandlerContext aContext, MessageEvent aEvent ) throws Exception
+    {
+        ChannelBuffer buffer = (ChannelBuffer) aEvent.getMessage();
+        if ( socketObserver == null )
+        {
+            handleHandshakeData( buffer );
+        }
+        else if ( buffer.hasArray() )
+        {
+            socketObserver.onReceivedData( buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), buffer.readableBytes() );
+        }
+        else
+        {
+            byte[] bytes = new byte[buffer.readableBytes()];
+            buffer.readBytes( bytes );
+            socketObserver.onReceivedData( bytes );
+        }
+    }
+
+    @Override
+    public void channelClosed( ChannelHandlerContext aContext, ChannelStateEvent aEvent ) throws Exception
+    {
+        if ( socketObserver != null )
+        {
+            socketObserver.onDisconnect( null );
+        }
+    }
+
+    @Override
+    public void exceptionCaught( ChannelHandlerContext aContext, ExceptionEvent aEvent ) throws Exception
+    {
+        logger.error( "An error occurred on the channel.", aEvent.getCause() );
+        aEvent.getChannel().close();
+    }
+
+    protected void handleHandshakeData( ChannelBuffer aBuffer )
+    {
+        // parse the upgrade request as it arrives
+        byte[] data;
+        int offset;
+        int length = aBuffer.readableBytes();
+        if ( aBuffer.hasArray() )
+        {
+            data = aBuffer.array();
+            offset = aBuffer.arrayOffset() + aBuffer.readerIndex();
+        }
+        else
+        {
+            data = new byte[length];
+            offset = 0;
+            aBuffer.readBytes( data );
+        }
+        int consumed;
+        try
+        {
+            consumed = handshakeParser.parse( data, offset, length );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            logger.warn( e.getMessage() + " Closing connection." );
+            channel.close();
+            return;
+        }
+        if ( !handshakeParser.isComplete() )
+        {
+            return;
+        }
+        WebSocketHandshakeParser handshake = handshakeParser;
+        handshakeParser = null;
+
+        // hand off to the web socket
+        WebSocketServerConnection connection = new WebSocketServerConnection( null, this, config, handshake );
+        connection.setObserver( observerFactory.createObserver( connection ) );
+        connection.onConnect();
+
+        // pass along any frames that arrived with the handshake
+        if ( consumed < length && channel.isConnected() )
+        {
+            socketObserver.onReceivedData( data, offset + consumed, length - consumed );
+        }
+    }
+
+
+    // facade logic
+    // ---------------------------------------------------------------------------
+    public void connect( WebSocketConnectConfig aConfig )
+    {
+        // server sockets are already connected
+    }
+
+    public void disconnect()
+    {
+        if ( channel != null )
+        {
+            channel.close();
+        }
+    }
+
+    public void write( byte[] aBytes )
+    {
+        channel.write( ChannelBuffers.wrappedBuffer( aBytes ) );
+    }
+
+    public void write( ByteBuffer... aBuffers )
+    {
+        channel.write( ChannelBuffers.wrappedBuffer( aBuffers ) );
+    }
+
+    public void write( ByteBuffer[] aBuffers, Runnable aAfterWrite ) throws IOException
+    {
+        NettyChannelWriter.write( channel, aBuffers, aAfterWrite );
+    }
+
+    public void writeFile( ByteBuffer aHeader, FileChannel aFile, long aPosition, long aCount, Runnable aAfterWrite ) throws IOException
+    {
+        NettyChannelWriter.writeFile( channel, aHeader, aFile, aPosition, aCount, aAfterWrite );
+    }
+
+    public void setReadable( boolean aIsReadable )
+    {
+        // the worker stops selecting the channel for reads until it is readable again
+        if ( channel != null )
+        {
+            channel.setReadable( aIsReadable );
+        }
+    }
+
+    public void upgrade()
+    {
+        // no http codecs to remove - the handshake is parsed from raw bytes
+    }
+
+    public void setObserver( NetworkSocketObserver aSocketObserver )
+    {
+        socketObserver = aSocketObserver;
+    }
+}
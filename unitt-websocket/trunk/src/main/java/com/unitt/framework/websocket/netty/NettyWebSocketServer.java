@@ -0,0 +1,136 @@
+package com.unitt.framework.websocket.netty;
+
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+
+import com.unitt.framework.websocket.WebSocketConnectConfig;
+import com.unitt.framework.websocket.WebSocketObserverFactory;
+
+
+/**
+ * Accepts web socket connections without a servlet container. A boss thread
+ * accepts connections and a fixed number of worker threads, one per core by
+ * default, service every accepted socket. Threads are named daemons, so an
+ * embedding application that forgets to call {@link #shutdown()} can still
+ * exit; it must keep a thread of its own alive while it serves.
+ */
+public class NettyWebSocketServer implements ChannelPipelineFactory
+{
+    public static final String       DEFAULT_THREAD_NAME = "websocket-server";
+
+    private ServerBootstrap          bootstrap;
+    private ChannelGroup             channels;
+    private WebSocketConnectConfig   config;
+    private WebSocketObserverFactory observerFactory;
+    private Channel                  serverChannel;
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    public NettyWebSocketServer( WebSocketConnectConfig aConfig, WebSocketObserverFactory aObserverFactory )
+    {
+        this( aConfig, aObserverFactory, Runtime.getRuntime().availableProcessors() );
+    }
+
+    public NettyWebSocketServer( WebSocketConnectConfig aConfig, WebSocketObserverFactory aObserverFactory, int aWorkerCount )
+    {
+        this( aConfig, aObserverFactory, aWorkerCount, DEFAULT_THREAD_NAME );
+    }
+
+    /**
+     * @param aWorkerCount number of worker threads servicing accepted sockets
+     * @param aThreadName  prefix of every thread's name
+     */
+    public NettyWebSocketServer( WebSocketConnectConfig aConfig, WebSocketObserverFactory aObserverFactory, int aWorkerCount, String aThreadName )
+    {
+        config = aConfig;
+        observerFactory = aObserverFactory;
+        channels = new DefaultChannelGroup( aThreadName );
+        ExecutorService boss = Executors.newCachedThreadPool( new NamedThreadFactory( aThreadName + "-boss" ) );
+        ExecutorService workers = Executors.newCachedThreadPool( new NamedThreadFactory( aThreadName + "-worker" ) );
+        bootstrap = new ServerBootstrap( new NioServerSocketChannelFactory( boss, workers, aWorkerCount ) );
+        bootstrap.setPipelineFactory( this );
+        bootstrap.setOption( "backlog", 1024 );
+        bootstrap.setOption( "reuseAddress", true );
+        bootstrap.setOption( "child.tcpNoDelay", true );
+        bootstrap.setOption( "child.keepAlive", true );
+    }
+
+
+    // getters & setters
+    // ---------------------------------------------------------------------------
+    public WebSocketConnectConfig getConfig()
+    {
+        return config;
+    }
+
+    public ServerBootstrap getBootstrap()
+    {
+        return bootstrap;
+    }
+
+    /**
+     * Returns the port we are bound to, or -1 if we are not bound.
+     */
+    public int getPort()
+    {
+        if ( serverChannel != null )
+        {
+            return ( (InetSocketAddress) serverChannel.getLocalAddress() ).getPort();
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the number of open channels, including the server channel.
+     */
+    public int getChannelCount()
+    {
+        return channels.size();
+    }
+
+
+    // server logic
+    // ---------------------------------------------------------------------------
+    public void bind( int aPort )
+    {
+        bind( new InetSocketAddress( aPort ) );
+    }
+
+    public void bind( SocketAddress aAddress )
+    {
+        serverChannel = bootstrap.bind( aAddress );
+        channels.add( serverChannel );
+    }
+
+    /**
+     * Closes the server channel and every accepted channel, then releases the
+     * boss and worker threads.
+     */
+    public void shutdown()
+    {
+        channels.close().awaitUninterruptibly();
+        bootstrap.releaseExternalResources();
+        serverChannel = null;
+    }
+
+    public ChannelPipeline getPipeline() throws Exception
+    {
+        ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast( "wshandler", new NettyServerNetworkSocket( getConfig(), observerFactory, channels ) );
+        return pipeline;
+    }
+}
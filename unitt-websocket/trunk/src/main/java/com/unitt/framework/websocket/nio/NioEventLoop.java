@@ -0,0 +1,192 @@
+package com.unitt.framework.websocket.nio;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * A single selector thread that services any number of {@link NioNetworkSocket}s.
+ * Every socket registered with the loop shares its read buffer, so data handed
+ * to an observer is only valid for the duration of the callback.
+ */
+public class NioEventLoop implements Runnable
+{
+    private static Logger         logger = LoggerFactory.getLogger( NioEventLoop.class );
+
+    private final Selector        selector;
+    private final ByteBuffer      readBuffer;
+    private final Queue<Runnable> tasks  = new ConcurrentLinkedQueue<Runnable>();
+    private final Thread          thread;
+    private volatile boolean      isRunning;
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    public NioEventLoop( String aName, int aReadBufferSize ) throws IOException
+    {
+        selector = Selector.open();
+        readBuffer = ByteBuffer.allocate( aReadBufferSize );
+        thread = new Thread( this, aName );
+        thread.setDaemon( true );
+    }
+
+
+    // getters & setters
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the read buffer shared by every socket on this loop. Only use it
+     * from the loop thread.
+     */
+    protected ByteBuffer getReadBuffer()
+    {
+        return readBuffer;
+    }
+
+    public boolean inEventLoop()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    public boolean isRunning()
+    {
+        return isRunning;
+    }
+
+
+    // loop logic
+    // ---------------------------------------------------------------------------
+    public void start()
+    {
+        isRunning = true;
+        thread.start();
+    }
+
+    public void shutdown()
+    {
+        isRunning = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the loop thread. Tasks run in the order they were
+     * submitted.
+     */
+    public void execute( Runnable aTask )
+    {
+        tasks.add( aTask );
+        if ( !inEventLoop() )
+        {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers the channel with this loop's selector. Must be called from the
+     * loop thread.
+     */
+    protected SelectionKey register( SelectableChannel aChannel, int aInterestOps, NioNetworkSocket aSocket ) throws IOException
+    {
+        return aChannel.register( selector, aInterestOps, aSocket );
+    }
+
+    public void run()
+    {
+        while ( isRunning )
+        {
+            try
+            {
+                // don't block if a task is already waiting
+                if ( tasks.isEmpty() )
+                {
+                    selector.select();
+                }
+                else
+                {
+                    selector.selectNow();
+                }
+
+                runTasks();
+                handleSelectedKeys();
+            }
+            catch ( IOException e )
+            {
+                logger.error( "An error occurred while selecting.", e );
+            }
+            catch ( RuntimeException e )
+            {
+                logger.error( "An error occurred in the event loop.", e );
+            }
+        }
+
+        closeAll();
+    }
+
+    protected void runTasks()
+    {
+        Runnable task = tasks.poll();
+        while ( task != null )
+        {
+            try
+            {
+                task.run();
+            }
+            catch ( RuntimeException e )
+            {
+                logger.error( "An error occurred while running an event loop task.", e );
+            }
+            task = tasks.poll();
+        }
+    }
+
+    protected void handleSelectedKeys()
+    {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while ( keys.hasNext() )
+        {
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            NioNetworkSocket socket = (NioNetworkSocket) key.attachment();
+            try
+            {
+                socket.handleKey( key );
+            }
+            catch ( CancelledKeyException e )
+            {
+                socket.close( null );
+            }
+        }
+    }
+
+    protected void closeAll()
+    {
+        // snapshot - closing sockets cancels their keys
+        List<SelectionKey> keys = new ArrayList<SelectionKey>( selector.keys() );
+        for ( SelectionKey key : keys )
+        {
+            ( (NioNetworkSocket) key.attachment() ).close( null );
+        }
+
+        try
+        {
+            selector.close();
+        }
+        catch ( IOException e )
+        {
+            logger.error( "Error occurred while closing the selector.", e );
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.unitt.framework.websocket.nio;
+
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A fixed set of {@link NioEventLoop}s. Sockets are assigned to loops round
+ * robin and stay on their loop for life.
+ */
+public class NioEventLoopGroup
+{
+    public static final int     DEFAULT_READ_BUFFER_SIZE = 64 * 1024;
+
+    private final NioEventLoop[] loops;
+    private final AtomicInteger  nextLoop = new AtomicInteger();
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    public NioEventLoopGroup()
+    {
+        this( Runtime.getRuntime().availableProcessors() );
+    }
+
+    public NioEventLoopGroup( int aThreadCount )
+    {
+        this( aThreadCount, DEFAULT_READ_BUFFER_SIZE );
+    }
+
+    public NioEventLoopGroup( int aThreadCount, int aReadBufferSize )
+    {
+        if ( aThreadCount < 1 )
+        {
+            throw new IllegalArgumentException( "Thread count must be at least 1: " + aThreadCount );
+        }
+
+        loops = new NioEventLoop[aThreadCount];
+        try
+        {
+            for ( int i = 0; i < loops.length; i++ )
+            {
+                loops[i] = new NioEventLoop( "websocket-nio-" + i, aReadBufferSize );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( "Could not open selector.", e );
+        }
+
+        for ( NioEventLoop loop : loops )
+        {
+            loop.start();
+        }
+    }
+
+
+    // group logic
+    // ---------------------------------------------------------------------------
+    public int getThreadCount()
+    {
+        return loops.length;
+    }
+
+    public NioEventLoop next()
+    {
+        return loops[( nextLoop.getAndIncrement() & Integer.MAX_VALUE ) % loops.length];
+    }
+
+    public void shutdown()
+    {
+        for ( NioEventLoop loop : loops )
+        {
+            loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,480 @@
+package com.unitt.framework.websocket.nio;
+
+
+import com.unitt.framework.websocket.NetworkSocketFileFacade;
+import com.unitt.framework.websocket.NetworkSocketObserver;
+import com.unitt.framework.websocket.NetworkSocketReadFacade;
+import com.unitt.framework.websocket.WebSocketConnectConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Non-blocking client socket serviced by a {@link NioEventLoop}. Reads happen
+ * on the loop thread using the loop's shared buffer. Writes are attempted
+ * immediately on the calling thread; whatever the socket cannot take is
+ * queued and the loop is asked for write readiness until the queue drains.
+ * Writes given a completion have it run once the socket has taken all of
+ * their buffers, so callers can hold off while the queue is backed up.
+ * <p>
+ * Only plain (ws) connections without a proxy are supported.
+ */
+public class NioNetworkSocket implements NetworkSocketFileFacade, NetworkSocketReadFacade
+{
+    private static Logger                logger           = LoggerFactory.getLogger( NioNetworkSocket.class );
+
+    protected static final int           MAX_WRITE_BUFFERS = 64;
+
+    protected final NioEventLoopGroup    group;
+    protected final ArrayDeque<PendingWrite> writeQueue   = new ArrayDeque<PendingWrite>();
+    protected final AtomicBoolean        isClosed         = new AtomicBoolean();
+    protected WebSocketConnectConfig     config;
+    protected NetworkSocketObserver      observer;
+    protected NioEventLoop               loop;
+    protected SocketChannel              channel;
+    protected SelectionKey               key;
+    protected volatile boolean           isConnected;
+    protected volatile boolean           isWriteInterested;
+    protected volatile boolean           isReadable       = true;
+    protected long                       pendingWriteBytes;
+
+
+    // constructors
+    // ---------------------------------------------------------------------------
+    public NioNetworkSocket( NioEventLoopGroup aGroup )
+    {
+        group = aGroup;
+    }
+
+
+    // getters & setters
+    // ---------------------------------------------------------------------------
+    public WebSocketConnectConfig getConfig()
+    {
+        return config;
+    }
+
+    public void setConfig( WebSocketConnectConfig aConfig )
+    {
+        config = aConfig;
+    }
+
+    public boolean isConnected()
+    {
+        return isConnected;
+    }
+
+    /**
+     * Returns the number of bytes written but not yet accepted by the socket.
+     */
+    public long getPendingWriteBytes()
+    {
+        synchronized ( writeQueue )
+        {
+            return pendingWriteBytes;
+        }
+    }
+
+
+    // network facade logic
+    // ---------------------------------------------------------------------------
+    public void connect( WebSocketConnectConfig aConfig )
+    {
+        if ( aConfig.isSecure() )
+        {
+            throw new IllegalArgumentException( "Secure web sockets are not supported by the NIO transport." );
+        }
+        if ( aConfig.hasProxy() )
+        {
+            throw new IllegalArgumentException( "Using a proxy is not supported by the NIO transport." );
+        }
+
+        setConfig( aConfig );
+        loop = group.next();
+        try
+        {
+            int port = getConfig().getUrl().getPort() > 0 ? getConfig().getUrl().getPort() : 80;
+            channel = SocketChannel.open();
+            channel.configureBlocking( false );
+            channel.socket().setTcpNoDelay( true );
+            final boolean isImmediate = channel.connect( new InetSocketAddress( getConfig().getUrl().getHost(), port ) );
+            loop.execute( new Runnable()
+            {
+                public void run()
+                {
+                    register( isImmediate );
+                }
+            } );
+        }
+        catch ( IOException e )
+        {
+            logger.error( "Could not connect.", e );
+            close( e );
+        }
+    }
+
+    public void disconnect()
+    {
+        close( null );
+    }
+
+    public void setObserver( NetworkSocketObserver aObserver )
+    {
+        observer = aObserver;
+    }
+
+    public void setReadable( boolean aIsReadable )
+    {
+        isReadable = aIsReadable;
+        if ( loop != null )
+        {
+            updateInterestOps();
+        }
+    }
+
+    public void upgrade()
+    {
+        // nothing is required for this implementation
+    }
+
+    public void write( byte[] aBytes ) throws IOException
+    {
+        write( ByteBuffer.wrap( aBytes ) );
+    }
+
+    /**
+     * Queues the buffers and writes as much as the socket will take. The
+     * buffers are not copied, so they must not be modified until written.
+     */
+    public void write( ByteBuffer... aBuffers ) throws IOException
+    {
+        write( aBuffers, null );
+    }
+
+    /**
+     * Queues the buffers like {@link #write(ByteBuffer...)} and runs
+     * aAfterWrite once the socket has taken all of them, or the socket closed
+     * first. It runs on whichever thread finished the write, outside of the
+     * write queue lock.
+     */
+    public void write( ByteBuffer[] aBuffers, Runnable aAfterWrite ) throws IOException
+    {
+        if ( isClosed.get() )
+        {
+            throw new IOException( "Socket is closed." );
+        }
+
+        List<Runnable> afterWrites;
+        boolean isQueued;
+        synchronized ( writeQueue )
+        {
+            PendingWrite last = null;
+            for ( ByteBuffer buffer : aBuffers )
+            {
+                if ( buffer.hasRemaining() )
+                {
+                    last = new PendingWrite( buffer );
+                    writeQueue.add( last );
+                    pendingWriteBytes += buffer.remaining();
+                }
+            }
+            isQueued = last != null;
+            if ( isQueued )
+            {
+                last.afterWrite = aAfterWrite;
+            }
+
+            // if we are already waiting on the socket, the loop will flush for us
+            afterWrites = isConnected && !isWriteInterested ? flushQueue() : null;
+        }
+        runAfterWrites( afterWrites );
+
+        // nothing needed writing, so nothing else will run the completion
+        if ( aAfterWrite != null && !isQueued )
+        {
+            aAfterWrite.run();
+        }
+    }
+
+    /**
+     * Reads the file region into the heap and writes it after the header. The
+     * file is left open for the caller to close once aAfterWrite has run.
+     */
+    public void writeFile( ByteBuffer aHeader, FileChannel aFile, long aPosition, long aCount, Runnable aAfterWrite ) throws IOException
+    {
+        if ( aCount > Integer.MAX_VALUE )
+        {
+            throw new IOException( "File region is too large: " + aCount );
+        }
+
+        ByteBuffer region = ByteBuffer.allocate( (int) aCount );
+        while ( region.hasRemaining() )
+        {
+            if ( aFile.read( region, aPosition + region.position() ) < 0 )
+            {
+                throw new IOException( "File ended before the end of the region." );
+            }
+        }
+        region.flip();
+        write( new ByteBuffer[] { aHeader, region }, aAfterWrite );
+    }
+
+
+    // event loop logic
+    // ---------------------------------------------------------------------------
+    protected void register( boolean aIsConnected )
+    {
+        try
+        {
+            key = loop.register( channel, aIsConnected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this );
+            if ( aIsConnected )
+            {
+                handleConnected();
+            }
+        }
+        catch ( IOException e )
+        {
+            logger.error( "Could not register socket.", e );
+            close( e );
+        }
+    }
+
+    protected void handleKey( SelectionKey aKey )
+    {
+        try
+        {
+            if ( aKey.isValid() && aKey.isConnectable() && channel.finishConnect() )
+            {
+                applyInterestOps();
+                handleConnected();
+            }
+            if ( aKey.isValid() && aKey.isReadable() )
+            {
+                read();
+            }
+            if ( aKey.isValid() && aKey.isWritable() )
+            {
+                List<Runnable> afterWrites;
+                synchronized ( writeQueue )
+                {
+                    afterWrites = flushQueue();
+                }
+                runAfterWrites( afterWrites );
+            }
+        }
+        catch ( IOException e )
+        {
+            close( e );
+        }
+    }
+
+    protected void handleConnected() throws IOException
+    {
+        isConnected = true;
+
+        // send anything written while we were connecting
+        List<Runnable> afterWrites;
+        synchronized ( writeQueue )
+        {
+            afterWrites = flushQueue();
+        }
+        runAfterWrites( afterWrites );
+
+        // notify observer
+        if ( observer != null )
+        {
+            observer.onConnect();
+        }
+    }
+
+    protected void read() throws IOException
+    {
+        ByteBuffer buffer = loop.getReadBuffer();
+        buffer.clear();
+        int length = channel.read( buffer );
+        if ( length < 0 )
+        {
+            // reached EOF
+            close( null );
+        }
+        else if ( length > 0 && observer != null )
+        {
+            observer.onReceivedData( buffer.array(), buffer.arrayOffset(), length );
+        }
+    }
+
+    /**
+     * Writes queued buffers until the queue is empty or the socket is full.
+     * Callers must hold the write queue lock, and run the returned completions
+     * once they have released it, since a completion may write again.
+     *
+     * @return completions of the writes that went out, or null if there are none
+     */
+    protected List<Runnable> flushQueue() throws IOException
+    {
+        List<Runnable> afterWrites = null;
+        while ( !writeQueue.isEmpty() )
+        {
+            // gathering write of the head of the queue
+            int count = Math.min( writeQueue.size(), MAX_WRITE_BUFFERS );
+            ByteBuffer[] buffers = new ByteBuffer[count];
+            Iterator<PendingWrite> pending = writeQueue.iterator();
+            for ( int i = 0; i < count; i++ )
+            {
+                buffers[i] = pending.next().buffer;
+            }
+            long written = channel.write( buffers );
+            pendingWriteBytes -= written;
+
+            // drop what was fully written
+            while ( !writeQueue.isEmpty() && !writeQueue.peekFirst().buffer.hasRemaining() )
+            {
+                Runnable afterWrite = writeQueue.removeFirst().afterWrite;
+                if ( afterWrite != null )
+                {
+                    if ( afterWrites == null )
+                    {
+                        afterWrites = new ArrayList<Runnable>();
+                    }
+                    afterWrites.add( afterWrite );
+                }
+            }
+
+            // socket is full - wait until it is writable again
+            if ( written == 0 )
+            {
+                break;
+            }
+        }
+
+        setWriteInterested( !writeQueue.isEmpty() );
+        return afterWrites;
+    }
+
+    protected void runAfterWrites( List<Runnable> aAfterWrites )
+    {
+        if ( aAfterWrites != null )
+        {
+            for ( Runnable afterWrite : aAfterWrites )
+            {
+                afterWrite.run();
+            }
+        }
+    }
+
+    protected void setWriteInterested( boolean aIsWriteInterested )
+    {
+        if ( isWriteInterested == aIsWriteInterested )
+        {
+            return;
+        }
+
+        isWriteInterested = aIsWriteInterested;
+        updateInterestOps();
+    }
+
+    /**
+     * Sets the interest ops from the current read and write interest on the
+     * loop thread. A change made from another thread is applied by a task,
+     * which reads the interest when it runs, so changes never apply out of
+     * order.
+     */
+    protected void updateInterestOps()
+    {
+        if ( loop.inEventLoop() )
+        {
+            applyInterestOps();
+        }
+        else
+        {
+            loop.execute( new Runnable()
+            {
+                public void run()
+                {
+                    applyInterestOps();
+                }
+            } );
+        }
+    }
+
+    protected void applyInterestOps()
+    {
+        if ( key != null && key.isValid() )
+        {
+            key.interestOps( ( isReadable ? SelectionKey.OP_READ : 0 ) | ( isWriteInterested ? SelectionKey.OP_WRITE : 0 ) );
+        }
+    }
+
+    protected void close( Exception aException )
+    {
+        if ( !isClosed.compareAndSet( false, true ) )
+        {
+            return;
+        }
+
+        // disconnect
+        isConnected = false;
+        if ( channel != null )
+        {
+            try
+            {
+                channel.close();
+            }
+            catch ( IOException e )
+            {
+                logger.error( "Error occurred while closing the socket.", e );
+                if ( aException == null )
+                {
+                    aException = e;
+                }
+            }
+        }
+        // the writes still queued have failed
+        List<Runnable> afterWrites = new ArrayList<Runnable>();
+        synchronized ( writeQueue )
+        {
+            for ( PendingWrite write : writeQueue )
+            {
+                if ( write.afterWrite != null )
+                {
+                    afterWrites.add( write.afterWrite );
+                }
+            }
+            writeQueue.clear();
+            pendingWriteBytes = 0;
+        }
+        runAfterWrites( afterWrites );
+
+        // notify observer
+        if ( observer != null )
+        {
+            observer.onDisconnect( aException );
+        }
+    }
+
+
+    // queue entries
+    // ---------------------------------------------------------------------------
+    protected static class PendingWrite
+    {
+        protected final ByteBuffer buffer;
+        protected Runnable         afterWrite;
+
+        public PendingWrite( ByteBuffer aBuffer )
+        {
+            buffer = aBuffer;
+        }
+    }
+}
@@ -1,8 +1,9 @@
 package com.unitt.framework.websocket.simple;
 
 
-import com.unitt.framework.websocket.NetworkSocketFacade;
 import com.unitt.framework.websocket.NetworkSocketObserver;
+import com.unitt.framework.websocket.NetworkSocketReadFacade;
+import com.unitt.framework.websocket.WebSocketBufferPool;
 import com.unitt.framework.websocket.WebSocketConnectConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,15 +11,19 @@ import org.slf4j.LoggerFactory;
 import javax.net.SocketFactory;
 import javax.net.ssl.*;
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.cert.CertificateException;
 
 
-public class NetworkSocket implements NetworkSocketFacade, Runnable
+public class NetworkSocket implements NetworkSocketReadFacade, Runnable
 {
     private static Logger            logger = LoggerFactory.getLogger( NetworkSocket.class );
+    protected static final int       WRITE_BUFFER_SIZE = 8 * 1024;
+    protected static final Method    startVirtualThread = findStartVirtualThread();
 
     protected OutputStream           output;
     protected InputStream            input;
@@ -26,10 +31,33 @@ public class NetworkSocket implements NetworkSocketFacade, Runnable
     protected WebSocketConnectConfig config;
     protected NetworkSocketObserver  observer;
     protected boolean isRunning = false;
+    protected boolean                isReadable = true;
+    protected byte[]                 readBuffer;
 
 
     // getters & setters
     // ---------------------------------------------------------------------------
+    /**
+     * Returns true if this JVM can run the read loop on a virtual thread.
+     */
+    public static boolean isVirtualThreadSupported()
+    {
+        return startVirtualThread != null;
+    }
+
+    protected static Method findStartVirtualThread()
+    {
+        // Thread.startVirtualThread(Runnable) is only available on Java 21+
+        try
+        {
+            return Thread.class.getMethod( "startVirtualThread", Runnable.class );
+        }
+        catch ( NoSuchMethodException e )
+        {
+            return null;
+        }
+    }
+
     public WebSocketConnectConfig getConfig()
     {
         return config;
@@ -182,9 +210,9 @@ public class NetworkSocket implements NetworkSocketFacade, Runnable
         {
             setConfig( aConfig );
             createSocket();
+            output = new BufferedOutputStream( output, WRITE_BUFFER_SIZE );
             isRunning = true;
-            Thread bgThread = new Thread(this);
-            bgThread.start();
+            startReader();
         }
         catch ( NoSuchAlgorithmException e )
         {
@@ -202,6 +230,25 @@ public class NetworkSocket implements NetworkSocketFacade, Runnable
         }
     }
 
+    protected void startReader()
+    {
+        if ( getConfig().isUseVirtualThreads() && startVirtualThread != null )
+        {
+            try
+            {
+                startVirtualThread.invoke( null, this );
+                return;
+            }
+            catch ( Exception e )
+            {
+                logger.warn( "Could not start a virtual thread, using a platform thread instead.", e );
+            }
+        }
+
+        Thread bgThread = new Thread( this );
+        bgThread.start();
+    }
+
     public void disconnect()
     {
         Exception exception = null;
@@ -210,6 +257,7 @@ public class NetworkSocket implements NetworkSocketFacade, Runnable
         try
         {
             isRunning = false;
+            setReadable( true );
             socket.close();
         }
         catch ( IOException e )
@@ -230,6 +278,12 @@ public class NetworkSocket implements NetworkSocketFacade, Runnable
         observer = aObserver;
     }
 
+    public synchronized void setReadable( boolean aIsReadable )
+    {
+        isReadable = aIsReadable;
+        notifyAll();
+    }
+
     public void upgrade()
     {
         // nothing is required for this implementation
@@ -240,38 +294,81 @@ public class NetworkSocket implements NetworkSocketFacade, Runnable
         output.write( aBytes );
         output.flush();
     }
+
+    public void write( ByteBuffer... aBuffers ) throws IOException
+    {
+        // write each buffer, then flush once so a frame goes out together
+        for ( ByteBuffer buffer : aBuffers )
+        {
+            if ( buffer.hasArray() )
+            {
+                output.write( buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining() );
+            }
+            else
+            {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.duplicate().get( bytes );
+                output.write( bytes );
+            }
+        }
+        output.flush();
+    }
     
         
     // runnable logic
     // ---------------------------------------------------------------------------
     public void run()
     {
-        while (isRunning)
+        // one buffer for the life of the connection - observers copy what they keep
+        WebSocketBufferPool pool = getConfig().getBufferPool();
+        readBuffer = pool.leaseArray( getConfig().getReadBufferSize() );
+        try
         {
-            try
+            while (isRunning)
             {
-                byte[] readBuffer = new byte[512 * 1024];
-                int length = input.read(readBuffer);
-                if (length > 0)
+                try
                 {
-                    //copy bytes from buffer
-                    byte[] actualBytesIn = new byte[length];
-                    System.arraycopy(readBuffer, 0, actualBytesIn, 0, length);
-
-                    //notify observer
-                    observer.onReceivedData( actualBytesIn );
+                    waitUntilReadable();
+                    int length = input.read(readBuffer);
+                    if (length > 0)
+                    {
+                        //notify observer
+                        observer.onReceivedData( readBuffer, 0, length );
+                    }
+                    else
+                    {
+                        //reached EOF
+                        isRunning = false;
+                    }
                 }
-                else
+                catch ( IOException e )
                 {
-                    //reached EOF
                     isRunning = false;
+                    observer.onDisconnect(e);
+                }
+                catch ( InterruptedException e )
+                {
+                    isRunning = false;
+                    observer.onDisconnect(e);
                 }
             }
-            catch ( IOException e )
-            {
-                isRunning = false;
-                observer.onDisconnect(e);
-            }
+        }
+        finally
+        {
+            pool.release( readBuffer );
+            readBuffer = null;
+        }
+    }
+
+    /**
+     * Blocks the read loop while reading is paused. The peer is held back by
+     * TCP flow control meanwhile.
+     */
+    protected synchronized void waitUntilReadable() throws InterruptedException
+    {
+        while ( !isReadable && isRunning )
+        {
+            wait();
         }
     }
 }
@@ -0,0 +1,69 @@
+package com.unitt.framework.websocket;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+public class MockNetworkSocket implements NetworkSocketFacade
+{
+    protected NetworkSocketObserver observer;
+    protected ByteArrayOutputStream written = new ByteArrayOutputStream();
+    protected int writeCount;
+    protected boolean connected;
+
+    public void connect( WebSocketConnectConfig aConfig )
+    {
+        connected = true;
+        observer.onConnect();
+    }
+
+    public void disconnect()
+    {
+        connected = false;
+        observer.onDisconnect( null );
+    }
+
+    public void write( byte[] aBytes ) throws IOException
+    {
+        writeCount++;
+        written.write( aBytes );
+    }
+
+    public void write( ByteBuffer... aBuffers ) throws IOException
+    {
+        writeCount++;
+        for ( ByteBuffer buffer : aBuffers )
+        {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get( bytes );
+            written.write( bytes );
+        }
+    }
+
+    public void upgrade()
+    {
+        // nothing to do
+    }
+
+    public void setObserver( NetworkSocketObserver aObserver )
+    {
+        observer = aObserver;
+    }
+
+    public byte[] getWritten()
+    {
+        return written.toByteArray();
+    }
+
+    public int getWriteCount()
+    {
+        return writeCount;
+    }
+
+    public boolean isConnected()
+    {
+        return connected;
+    }
+}
@@ -0,0 +1,127 @@
+package com.unitt.framework.websocket;
+
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+
+public class PerMessageDeflateTest
+{
+    protected static final Charset utf8Charset = Charset.forName( "UTF-8" );
+
+    @Test
+    public void testRfcExamples() throws Exception
+    {
+        // RFC 7692 7.2.3.1 & 7.2.3.2 - "Hello" twice, the second using the shared context
+        byte[] first = new byte[] { (byte) 0xf2, 0x48, (byte) 0xcd, (byte) 0xc9, (byte) 0xc9, 0x07, 0x00 };
+        byte[] second = new byte[] { (byte) 0xf2, 0x00, 0x11, 0x00, 0x00 };
+
+        PerMessageDeflate deflate = PerMessageDeflate.acceptOffer( Arrays.asList( "permessage-deflate" ), new WebSocketConnectConfig() );
+        Assert.assertNotNull( "Did not accept a plain offer.", deflate );
+        Assert.assertFalse( "Expected context takeover.", deflate.isPeerNoContextTakeover() );
+        Assert.assertEquals( "Did not inflate first message.", "Hello", new String( deflate.decompress( first ), utf8Charset ) );
+        Assert.assertEquals( "Did not inflate second message.", "Hello", new String( deflate.decompress( second ), utf8Charset ) );
+        deflate.release();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        StringBuilder json = new StringBuilder( "[" );
+        for ( int i = 0; i < 200; i++ )
+        {
+            json.append( "{\"id\":" ).append( i ).append( ",\"name\":\"item\",\"active\":true}," );
+        }
+        json.append( "{}]" );
+        byte[] message = json.toString().getBytes( utf8Charset );
+
+        PerMessageDeflate deflate = PerMessageDeflate.acceptOffer( Arrays.asList( "permessage-deflate; client_no_context_takeover" ), new WebSocketConnectConfig() );
+        Assert.assertTrue( "Did not honor client_no_context_takeover.", deflate.isPeerNoContextTakeover() );
+        for ( int i = 0; i < 3; i++ )
+        {
+            byte[] compressed = deflate.compress( message );
+            Assert.assertTrue( "Did not compress: " + compressed.length, compressed.length * 5 < message.length );
+            Assert.assertTrue( "Message changed.", Arrays.equals( message, deflate.decompress( compressed ) ) );
+        }
+    }
+
+    @Test
+    public void testStreamingDecompress() throws Exception
+    {
+        byte[] message = new byte[100000];
+        for ( int i = 0; i < message.length; i++ )
+        {
+            message[i] = (byte) ( i % 7 );
+        }
+
+        PerMessageDeflate deflate = PerMessageDeflate.acceptOffer( Arrays.asList( "permessage-deflate" ), new WebSocketConnectConfig() );
+        byte[] compressed = deflate.compress( message );
+        final int[] writes = new int[1];
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+        {
+            public synchronized void write( byte[] aData, int aOffset, int aLength )
+            {
+                writes[0]++;
+                super.write( aData, aOffset, aLength );
+            }
+        };
+        deflate.decompress( compressed, 0, compressed.length, output );
+        Assert.assertTrue( "Message changed.", Arrays.equals( message, output.toByteArray() ) );
+        Assert.assertTrue( "Did not inflate in chunks: " + writes[0], writes[0] > 1 );
+        deflate.release();
+    }
+
+    @Test
+    public void testOfferNegotiation()
+    {
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setPerMessageDeflate( true );
+
+        // we cannot shrink our compression window, so skip to the next offer
+        PerMessageDeflate deflate = PerMessageDeflate.acceptOffer( Arrays.asList( "permessage-deflate; server_max_window_bits=10, permessage-deflate; client_max_window_bits" ), config );
+        Assert.assertNotNull( "Did not accept second offer.", deflate );
+        Assert.assertEquals( "Did not build the correct response.", "permessage-deflate; server_no_context_takeover", deflate.getResponse() );
+
+        deflate = PerMessageDeflate.acceptOffer( Arrays.asList( "x-webkit-deflate-frame", "permessage-deflate; server_max_window_bits=15" ), config );
+        Assert.assertEquals( "Did not build the correct response.", "permessage-deflate; server_no_context_takeover; server_max_window_bits=15", deflate.getResponse() );
+
+        Assert.assertNull( "Accepted an unknown parameter.", PerMessageDeflate.acceptOffer( Arrays.asList( "permessage-deflate; foo" ), config ) );
+        Assert.assertNull( "Accepted a duplicate parameter.", PerMessageDeflate.acceptOffer( Arrays.asList( "permessage-deflate; server_no_context_takeover; server_no_context_takeover" ), config ) );
+        Assert.assertNull( "Accepted no offer.", PerMessageDeflate.acceptOffer( Collections.<String> emptyList(), config ) );
+    }
+
+    @Test
+    public void testResponseNegotiation()
+    {
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setPerMessageDeflate( true );
+        Assert.assertEquals( "Did not build the correct offer.", "permessage-deflate; client_no_context_takeover", PerMessageDeflate.createOffer( config ) );
+
+        PerMessageDeflate deflate = PerMessageDeflate.acceptResponse( Arrays.asList( "permessage-deflate; server_no_context_takeover; server_max_window_bits=12" ), config );
+        Assert.assertTrue( "Did not honor server_no_context_takeover.", deflate.isPeerNoContextTakeover() );
+        Assert.assertNull( "Server declined.", PerMessageDeflate.acceptResponse( Collections.<String> emptyList(), config ) );
+
+        assertInvalidResponse( config, "permessage-deflate; client_max_window_bits=10" );
+        assertInvalidResponse( config, "permessage-deflate, permessage-deflate" );
+        assertInvalidResponse( new WebSocketConnectConfig(), "permessage-deflate" );
+    }
+
+    protected void assertInvalidResponse( WebSocketConnectConfig aConfig, String aResponse )
+    {
+        try
+        {
+            PerMessageDeflate.acceptResponse( Arrays.asList( aResponse ), aConfig );
+            Assert.fail( "Accepted an invalid response: " + aResponse );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            // expected
+        }
+    }
+}
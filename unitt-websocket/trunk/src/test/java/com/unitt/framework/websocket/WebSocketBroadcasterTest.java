@@ -0,0 +1,118 @@
+package com.unitt.framework.websocket;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+
+public class WebSocketBroadcasterTest
+{
+    @Test
+    public void testBroadcastSharesFrames()
+    {
+        WebSocketBufferPool pool = new WebSocketBufferPool();
+        List<MockNetworkSocket> networks = new ArrayList<MockNetworkSocket>();
+        List<WebSocketConnection> targets = new ArrayList<WebSocketConnection>();
+        for ( int i = 0; i < 3; i++ )
+        {
+            MockNetworkSocket network = new MockNetworkSocket();
+            WebSocketServerConnection connection = new WebSocketServerConnection( null, network, new WebSocketConnectConfig(), new byte[0] );
+            connection.setState( WebSocketConnection.WebSocketState.Connected );
+            networks.add( network );
+            targets.add( connection );
+        }
+
+        // the closed target is reported without stopping the others
+        targets.get( 1 ).setState( WebSocketConnection.WebSocketState.Disconnected );
+        WebSocketBroadcaster.Result result = new WebSocketBroadcaster( pool ).broadcast( "Hello \u00e9v\u00e9nement", targets );
+        Assert.assertEquals( "Wrong sent count", 2, result.getSentCount() );
+        Assert.assertEquals( "Did not report closed target", 1, result.getFailures().size() );
+        Assert.assertTrue( "Reported the wrong target", result.getFailures().containsKey( targets.get( 1 ) ) );
+        Assert.assertEquals( "Did not return the encoded message to the pool", 0, pool.getOutstandingBytes() );
+
+        // frames match what each connection would have built itself
+        MockNetworkSocket expected = new MockNetworkSocket();
+        WebSocketServerConnection single = new WebSocketServerConnection( null, expected, new WebSocketConnectConfig(), new byte[0] );
+        single.setState( WebSocketConnection.WebSocketState.Connected );
+        single.sendMessage( "Hello \u00e9v\u00e9nement" );
+        Assert.assertTrue( "Wrong frame", Arrays.equals( expected.getWritten(), networks.get( 0 ).getWritten() ) );
+        Assert.assertTrue( "Wrong frame", Arrays.equals( expected.getWritten(), networks.get( 2 ).getWritten() ) );
+        Assert.assertEquals( "Wrote to closed target", 0, networks.get( 1 ).getWriteCount() );
+    }
+
+    @Test
+    public void testBroadcastFragmentedBinary()
+    {
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setMaxPayloadSize( 1000 );
+        MockNetworkSocket network = new MockNetworkSocket();
+        WebSocketServerConnection connection = new WebSocketServerConnection( null, network, config, new byte[0] );
+        connection.setState( WebSocketConnection.WebSocketState.Connected );
+        byte[] message = new byte[2500];
+        for ( int i = 0; i < message.length; i++ )
+        {
+            message[i] = (byte) i;
+        }
+
+        WebSocketBroadcaster.Result result = new WebSocketBroadcaster().broadcast( message, Arrays.asList( connection ) );
+        Assert.assertTrue( "Broadcast failed", result.isComplete() );
+
+        MockNetworkSocket expected = new MockNetworkSocket();
+        WebSocketServerConnection single = new WebSocketServerConnection( null, expected, config, new byte[0] );
+        single.setState( WebSocketConnection.WebSocketState.Connected );
+        single.sendMessage( message );
+        Assert.assertTrue( "Wrong frames", Arrays.equals( expected.getWritten(), network.getWritten() ) );
+    }
+
+    @Test
+    public void testPooledTextHeldUntilWritten() throws Exception
+    {
+        WebSocketBufferPool pool = new WebSocketBufferPool();
+        HeldNetworkSocket network = new HeldNetworkSocket();
+        WebSocketServerConnection connection = new WebSocketServerConnection( null, network, new WebSocketConnectConfig(), new byte[0] );
+        connection.setState( WebSocketConnection.WebSocketState.Connected );
+        WebSocketBroadcaster.Result result = new WebSocketBroadcaster( pool ).broadcast( "Hello", Arrays.asList( connection ) );
+        Assert.assertTrue( "Broadcast failed", result.isComplete() );
+        Assert.assertTrue( "Returned the encoded message before it was written", pool.getOutstandingBytes() > 0 );
+
+        // whatever leases from the pool meanwhile must not get the array the network is still reading
+        byte[] leased = pool.leaseArray( 1 );
+        Arrays.fill( leased, (byte) 'X' );
+        network.complete();
+        Assert.assertEquals( "Wrong frame", "Hello", new String( network.getWritten(), 2, 5, "UTF-8" ) );
+        pool.release( leased );
+        Assert.assertEquals( "Did not return the encoded message to the pool", 0, pool.getOutstandingBytes() );
+    }
+
+    protected static class HeldNetworkSocket extends MockNetworkSocket implements NetworkSocketFileFacade
+    {
+        protected List<ByteBuffer[]> held = new ArrayList<ByteBuffer[]>();
+        protected List<Runnable> afterWrites = new ArrayList<Runnable>();
+
+        public void write( ByteBuffer[] aBuffers, Runnable aAfterWrite ) throws IOException
+        {
+            // keep the buffers themselves, the way an asynchronous transport does
+            held.add( aBuffers );
+            afterWrites.add( aAfterWrite );
+        }
+
+        public void writeFile( ByteBuffer aHeader, FileChannel aFile, long aPosition, long aCount, Runnable aAfterWrite ) throws IOException
+        {
+            throw new IOException( "Not supported" );
+        }
+
+        public void complete() throws IOException
+        {
+            write( held.remove( 0 ) );
+            afterWrites.remove( 0 ).run();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.unitt.framework.websocket;
+
+
+import java.nio.ByteBuffer;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.unitt.framework.websocket.WebSocketFragment.MessageOpCode;
+
+
+public class WebSocketBufferPoolTest
+{
+    @Test
+    public void testSizeClasses()
+    {
+        WebSocketBufferPool pool = new WebSocketBufferPool();
+        Assert.assertEquals( "Did not round up to the smallest class", WebSocketBufferPool.MIN_SIZE, pool.leaseArray( 1 ).length );
+        Assert.assertEquals( "Did not keep an exact size", 4096, pool.leaseArray( 4096 ).length );
+        Assert.assertEquals( "Did not round up to the next power of two", 8192, pool.leaseArray( 4097 ).length );
+        Assert.assertEquals( "Did not allocate an oversized array exactly", WebSocketBufferPool.MAX_SIZE + 1, pool.leaseArray( WebSocketBufferPool.MAX_SIZE + 1 ).length );
+        Assert.assertEquals( "Counted pooled leases as hits", 0, pool.getHits() );
+        Assert.assertEquals( "Did not count misses", 4, pool.getMisses() );
+    }
+
+    @Test
+    public void testReuse()
+    {
+        WebSocketBufferPool pool = new WebSocketBufferPool();
+        byte[] first = pool.leaseArray( 1000 );
+        byte[] second = pool.leaseArray( 1000 );
+        Assert.assertEquals( "Did not track outstanding bytes", 2048, pool.getOutstandingBytes() );
+        pool.release( first );
+        pool.release( second );
+        Assert.assertEquals( "Did not return outstanding bytes", 0, pool.getOutstandingBytes() );
+        Assert.assertEquals( "Did not keep the high water mark", 2048, pool.getHighWaterMark() );
+
+        for ( int i = 0; i < 8; i++ )
+        {
+            byte[] array = pool.leaseArray( 700 );
+            Assert.assertTrue( "Did not reuse a pooled array", array == first || array == second );
+            pool.release( array );
+        }
+        Assert.assertEquals( "Did not count hits", 8, pool.getHits() );
+        Assert.assertEquals( "Wrong hit rate", 0.8, pool.getHitRate(), 0.001 );
+
+        // oversized arrays are never pooled
+        byte[] large = pool.leaseArray( WebSocketBufferPool.MAX_SIZE * 2 );
+        pool.release( large );
+        Assert.assertNotSame( "Pooled an oversized array", large, pool.leaseArray( WebSocketBufferPool.MAX_SIZE * 2 ) );
+    }
+
+    @Test
+    public void testLargeBuffersSkipThreadCache()
+    {
+        // room for one idle buffer per size class
+        WebSocketBufferPool pool = new WebSocketBufferPool( 0, 4, false );
+        byte[] first = pool.leaseArray( WebSocketBufferPool.MAX_SIZE );
+        byte[] second = pool.leaseArray( WebSocketBufferPool.MAX_SIZE );
+        pool.release( first );
+        pool.release( second );
+
+        // the thread cache would have kept both
+        Assert.assertSame( "Did not pool the first array", first, pool.leaseArray( WebSocketBufferPool.MAX_SIZE ) );
+        Assert.assertNotSame( "Pooled past the limit", second, pool.leaseArray( WebSocketBufferPool.MAX_SIZE ) );
+
+        // small buffers are still cached per thread
+        byte[] small = pool.leaseArray( WebSocketBufferPool.MAX_THREAD_CACHED_SIZE );
+        byte[] other = pool.leaseArray( WebSocketBufferPool.MAX_THREAD_CACHED_SIZE );
+        pool.release( small );
+        pool.release( other );
+        Assert.assertSame( "Did not cache a small array", small, pool.leaseArray( WebSocketBufferPool.MAX_THREAD_CACHED_SIZE ) );
+        Assert.assertSame( "Did not cache a second small array", other, pool.leaseArray( WebSocketBufferPool.MAX_THREAD_CACHED_SIZE ) );
+    }
+
+    @Test
+    public void testSharedAcrossThreads() throws Exception
+    {
+        final WebSocketBufferPool pool = new WebSocketBufferPool( WebSocketBufferPool.DEFAULT_MAX_POOLED_BYTES, 0, false );
+        final byte[][] leased = new byte[1][];
+        Thread thread = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                leased[0] = pool.leaseArray( 2048 );
+                pool.release( leased[0] );
+            }
+        } );
+        thread.start();
+        thread.join();
+        Assert.assertSame( "Did not share the array between threads", leased[0], pool.leaseArray( 2048 ) );
+    }
+
+    @Test
+    public void testDirectBuffers()
+    {
+        WebSocketBufferPool pool = new WebSocketBufferPool( WebSocketBufferPool.DEFAULT_MAX_POOLED_BYTES, 2, true );
+        ByteBuffer buffer = pool.leaseBuffer( 300 );
+        Assert.assertTrue( "Did not lease a direct buffer", buffer.isDirect() );
+        Assert.assertEquals( "Wrong limit", 300, buffer.limit() );
+        Assert.assertEquals( "Wrong capacity", 512, buffer.capacity() );
+        buffer.put( (byte) 1 );
+        pool.release( buffer );
+
+        ByteBuffer reused = pool.leaseBuffer( 500 );
+        Assert.assertSame( "Did not reuse the direct buffer", buffer, reused );
+        Assert.assertEquals( "Did not rewind the buffer", 0, reused.position() );
+        Assert.assertEquals( "Wrong limit", 500, reused.limit() );
+    }
+
+    @Test
+    public void testDecoderReturnsBuffers()
+    {
+        WebSocketBufferPool pool = new WebSocketBufferPool();
+        WebSocketFrameDecoder decoder = new WebSocketFrameDecoder( 1024, pool );
+        decoder.setCopyPayload( false );
+        byte[] frame = new WebSocketFragment( MessageOpCode.BINARY, true, true, new byte[100] ).getFragment();
+        decoder.append( frame, 0, frame.length );
+        WebSocketFragment fragment = decoder.nextFragment();
+        Assert.assertNotNull( "Did not decode the fragment", fragment );
+
+        // the view still holds the receive buffer after the decoder lets go of it
+        decoder.release();
+        Assert.assertEquals( "Returned a buffer that a view still points into", 1024, pool.getOutstandingBytes() );
+        fragment.releasePayload();
+        Assert.assertEquals( "Did not return the receive buffer", 0, pool.getOutstandingBytes() );
+    }
+}
@@ -0,0 +1,150 @@
+package com.unitt.framework.websocket;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+
+public class WebSocketDispatchQueueTest
+{
+    @Test
+    public void testOrderPerConnection() throws Exception
+    {
+        WebSocketDispatcher dispatcher = new WebSocketDispatcher( 3, "test-dispatch" );
+        try
+        {
+            int connections = 10;
+            int count = 2000;
+            final CountDownLatch done = new CountDownLatch( connections * count );
+            List<List<Integer>> results = new ArrayList<List<Integer>>();
+            List<List<String>> threads = new ArrayList<List<String>>();
+            WebSocketDispatchQueue[] queues = new WebSocketDispatchQueue[connections];
+            for ( int i = 0; i < connections; i++ )
+            {
+                results.add( Collections.synchronizedList( new ArrayList<Integer>() ) );
+                threads.add( Collections.synchronizedList( new ArrayList<String>() ) );
+                queues[i] = dispatcher.createQueue( 0, null );
+            }
+
+            // interleave the connections the way a worker thread reads them
+            for ( int n = 0; n < count; n++ )
+            {
+                for ( int i = 0; i < connections; i++ )
+                {
+                    final int value = n;
+                    final List<Integer> result = results.get( i );
+                    final List<String> thread = threads.get( i );
+                    queues[i].execute( new Runnable()
+                    {
+                        public void run()
+                        {
+                            result.add( value );
+                            thread.add( Thread.currentThread().getName() );
+                            done.countDown();
+                        }
+                    } );
+                }
+            }
+            Assert.assertTrue( "Did not run every callback", done.await( 10, TimeUnit.SECONDS ) );
+
+            for ( int i = 0; i < connections; i++ )
+            {
+                List<Integer> result = results.get( i );
+                for ( int n = 0; n < count; n++ )
+                {
+                    Assert.assertEquals( "Connection #" + i + " ran out of order", n, result.get( n ).intValue() );
+                }
+                Assert.assertEquals( "Connection #" + i + " left its stripe", 1, new HashSet<String>( threads.get( i ) ).size() );
+                Assert.assertTrue( "Connection #" + i + " ran on the wrong thread", threads.get( i ).get( 0 ).startsWith( "test-dispatch-" ) );
+                Assert.assertEquals( "Connection #" + i + " still has callbacks", 0, queues[i].getPendingCount() );
+            }
+        }
+        finally
+        {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testPausesReading() throws Exception
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            final List<Boolean> changes = Collections.synchronizedList( new ArrayList<Boolean>() );
+            WebSocketDispatchQueue queue = new WebSocketDispatchQueue( executor, 4, new WebSocketDispatchQueue.Listener()
+            {
+                public void onReadableChanged( boolean aIsReadable )
+                {
+                    changes.add( aIsReadable );
+                }
+            } );
+
+            // a slow observer holds up everything behind it
+            final CountDownLatch started = new CountDownLatch( 1 );
+            final CountDownLatch release = new CountDownLatch( 1 );
+            queue.execute( new Runnable()
+            {
+                public void run()
+                {
+                    started.countDown();
+                    try
+                    {
+                        release.await( 5, TimeUnit.SECONDS );
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            } );
+            Assert.assertTrue( "Did not start", started.await( 5, TimeUnit.SECONDS ) );
+            queue.execute( new Runnable()
+            {
+                public void run()
+                {
+                    // nothing to do
+                }
+            } );
+            queue.execute( new Runnable()
+            {
+                public void run()
+                {
+                    throw new IllegalStateException( "Observer failed" );
+                }
+            } );
+            Assert.assertTrue( "Paused early", queue.isReadable() );
+
+            final CountDownLatch last = new CountDownLatch( 1 );
+            queue.execute( new Runnable()
+            {
+                public void run()
+                {
+                    last.countDown();
+                }
+            } );
+            Assert.assertFalse( "Did not pause", queue.isReadable() );
+            Assert.assertEquals( "Did not tell the listener to pause", "[false]", changes.toString() );
+
+            // draining to half resumes reading, and a failing callback does not stop the queue
+            release.countDown();
+            Assert.assertTrue( "Did not run the last callback", last.await( 5, TimeUnit.SECONDS ) );
+            Assert.assertTrue( "Did not resume", queue.isReadable() );
+            Assert.assertEquals( "Did not tell the listener to resume", "[false, true]", changes.toString() );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
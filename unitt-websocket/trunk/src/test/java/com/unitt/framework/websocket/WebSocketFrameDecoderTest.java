@@ -0,0 +1,359 @@
+package com.unitt.framework.websocket;
+
+
+import com.unitt.framework.websocket.WebSocketFragment.MessageOpCode;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class WebSocketFrameDecoderTest
+{
+    protected static final Charset utf8Charset = Charset.forName( "UTF-8" );
+
+    @Test
+    public void testSingleFrame()
+    {
+        byte[] bytes = new byte[] { new Integer( 0x81 ).byteValue(), 0x05, 0x48, 0x65, 0x6c, 0x6c, 0x6f };
+        WebSocketFrameDecoder decoder = new WebSocketFrameDecoder();
+        decoder.append( bytes, 0, bytes.length );
+        WebSocketFragment fragment = decoder.nextFragment();
+        Assert.assertNotNull( "Did not decode fragment", fragment );
+        Assert.assertTrue( "Did not set final bit.", fragment.isFinal() );
+        Assert.assertEquals( "Did not find the correct opcode.", MessageOpCode.TEXT, fragment.getOpCode() );
+        Assert.assertEquals( "Did not find the correct message.", "Hello", new String( fragment.getPayloadData(), utf8Charset ) );
+        Assert.assertNull( "Decoded a fragment from nothing", decoder.nextFragment() );
+        Assert.assertEquals( "Did not consume all data", 0, decoder.getBufferedLength() );
+    }
+
+    @Test
+    public void testMaskedFrameAcrossReads()
+    {
+        byte[] sample = { new Integer( 0x81 ).byteValue(), new Integer( 0x85 ).byteValue(), 0x37, new Integer( 0xfa ).byteValue(), 0x21, 0x3d, 0x7f, new Integer( 0x9f ).byteValue(), 0x4d, 0x51, 0x58 };
+        WebSocketFrameDecoder decoder = new WebSocketFrameDecoder();
+        for ( int i = 0; i < sample.length - 1; i++ )
+        {
+            decoder.append( sample, i, 1 );
+            Assert.assertNull( "Decoded an incomplete fragment at byte " + i, decoder.nextFragment() );
+        }
+        decoder.append( sample, sample.length - 1, 1 );
+        WebSocketFragment fragment = decoder.nextFragment();
+        Assert.assertNotNull( "Did not decode fragment", fragment );
+        Assert.assertTrue( "Did not find mask", fragment.hasMask() );
+        Assert.assertEquals( "Did not find the correct message.", "Hello", new String( fragment.getPayloadData(), utf8Charset ) );
+    }
+
+    @Test
+    public void testExtendedLengths()
+    {
+        byte[] shortPayload = createPayload( 300 );
+        byte[] longPayload = createPayload( 70000 );
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[] first = new WebSocketFragment( MessageOpCode.BINARY, true, false, shortPayload ).getFragment();
+        byte[] second = new WebSocketFragment( MessageOpCode.BINARY, true, true, longPayload ).getFragment();
+        stream.write( first, 0, first.length );
+        stream.write( second, 0, second.length );
+        byte[] data = stream.toByteArray();
+
+        // feed in uneven chunks so that headers and payloads straddle reads
+        WebSocketFrameDecoder decoder = new WebSocketFrameDecoder( 16 );
+        List<WebSocketFragment> fragments = new ArrayList<WebSocketFragment>();
+        int offset = 0;
+        int chunk = 1;
+        while ( offset < data.length )
+        {
+            int length = Math.min( chunk, data.length - offset );
+            decoder.append( data, offset, length );
+            offset += length;
+            chunk = chunk * 3 + 1;
+            WebSocketFragment fragment = decoder.nextFragment();
+            while ( fragment != null )
+            {
+                fragments.add( fragment );
+                fragment = decoder.nextFragment();
+            }
+        }
+
+        Assert.assertEquals( "Did not decode both fragments", 2, fragments.size() );
+        assertSameBytes( shortPayload, fragments.get( 0 ).getPayloadData() );
+        assertSameBytes( longPayload, fragments.get( 1 ).getPayloadData() );
+        Assert.assertTrue( "Did not release large buffer", decoder.getCapacity() <= WebSocketFrameDecoder.MAX_RETAINED_BUFFER_SIZE );
+    }
+
+    @Test
+    public void testFragmentedMessageOnConnection()
+    {
+        RecordingObserver observer = new RecordingObserver();
+        MockNetworkSocket network = new MockNetworkSocket();
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        WebSocketServerConnection connection = new WebSocketServerConnection( observer, network, config, new byte[0] );
+        connection.setState( WebSocketConnection.WebSocketState.Connected );
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[][] frames = new byte[][] {
+            new WebSocketFragment( MessageOpCode.TEXT, false, true, "Hel".getBytes( utf8Charset ) ).getFragment(),
+            new WebSocketFragment( MessageOpCode.PING, true, true, "ping".getBytes( utf8Charset ) ).getFragment(),
+            new WebSocketFragment( MessageOpCode.CONTINUATION, false, true, "l".getBytes( utf8Charset ) ).getFragment(),
+            new WebSocketFragment( MessageOpCode.CONTINUATION, true, true, "o".getBytes( utf8Charset ) ).getFragment(),
+            new WebSocketFragment( MessageOpCode.TEXT, true, true, "World".getBytes( utf8Charset ) ).getFragment() };
+        for ( byte[] frame : frames )
+        {
+            stream.write( frame, 0, frame.length );
+        }
+        byte[] data = stream.toByteArray();
+        connection.onReceivedData( data, 0, 7 );
+        connection.onReceivedData( data, 7, data.length - 7 );
+
+        Assert.assertEquals( "Did not receive both messages", 2, observer.messages.size() );
+        Assert.assertEquals( "Did not reassemble fragmented message", "Hello", observer.messages.get( 0 ) );
+        Assert.assertEquals( "Did not receive trailing message", "World", observer.messages.get( 1 ) );
+        Assert.assertTrue( "Did not answer ping", network.getWriteCount() > 0 );
+    }
+
+    @Test
+    public void testBufferObserverViews()
+    {
+        BufferRecordingObserver observer = new BufferRecordingObserver();
+        MockNetworkSocket network = new MockNetworkSocket();
+        WebSocketServerConnection connection = new WebSocketServerConnection( observer, network, new WebSocketConnectConfig(), new byte[0] );
+        connection.setState( WebSocketConnection.WebSocketState.Connected );
+
+        byte[] firstPayload = createPayload( 6000 );
+        byte[] secondPayload = createPayload( 9000 );
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[][] frames = new byte[][] {
+            new WebSocketFragment( MessageOpCode.BINARY, false, true, WebSocketUtil.copySubArray( firstPayload, 0, 4000 ) ).getFragment(),
+            new WebSocketFragment( MessageOpCode.CONTINUATION, true, true, WebSocketUtil.copySubArray( firstPayload, 4000, 2000 ) ).getFragment() };
+        for ( byte[] frame : frames )
+        {
+            stream.write( frame, 0, frame.length );
+        }
+        byte[] data = stream.toByteArray();
+        connection.onReceivedData( data, 0, data.length );
+        Assert.assertEquals( "Did not receive message", 1, observer.bufferMessages.size() );
+        ByteBuffer[] first = observer.bufferMessages.get( 0 );
+        Assert.assertEquals( "Did not receive one view per fragment", 2, first.length );
+        Assert.assertTrue( "View is not read-only", first[0].isReadOnly() );
+
+        // more data arrives while the first message is still held
+        byte[] frame = new WebSocketFragment( MessageOpCode.BINARY, true, true, secondPayload ).getFragment();
+        connection.onReceivedData( frame, 0, frame.length );
+        Assert.assertEquals( "Did not receive second message", 2, observer.bufferMessages.size() );
+        assertSameBytes( firstPayload, concat( first ) );
+        assertSameBytes( secondPayload, concat( observer.bufferMessages.get( 1 ) ) );
+        observer.releases.get( 0 ).release();
+        observer.releases.get( 1 ).release();
+    }
+
+    @Test
+    public void testStreamObserver()
+    {
+        StreamRecordingObserver observer = new StreamRecordingObserver();
+        MockNetworkSocket network = new MockNetworkSocket();
+        WebSocketServerConnection connection = new WebSocketServerConnection( observer, network, new WebSocketConnectConfig(), new byte[0] );
+        connection.setState( WebSocketConnection.WebSocketState.Connected );
+
+        byte[] payload = createPayload( 9000 );
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[][] frames = new byte[][] {
+            new WebSocketFragment( MessageOpCode.BINARY, false, true, WebSocketUtil.copySubArray( payload, 0, 4000 ) ).getFragment(),
+            new WebSocketFragment( MessageOpCode.PING, true, true, "ping".getBytes( utf8Charset ) ).getFragment(),
+            new WebSocketFragment( MessageOpCode.CONTINUATION, false, true, WebSocketUtil.copySubArray( payload, 4000, 3000 ) ).getFragment(),
+            new WebSocketFragment( MessageOpCode.CONTINUATION, true, true, WebSocketUtil.copySubArray( payload, 7000, 2000 ) ).getFragment(),
+            new WebSocketFragment( MessageOpCode.TEXT, true, true, "Hello".getBytes( utf8Charset ) ).getFragment() };
+        for ( byte[] frame : frames )
+        {
+            stream.write( frame, 0, frame.length );
+        }
+        byte[] data = stream.toByteArray();
+
+        // each chunk is delivered as soon as its fragment arrives
+        connection.onReceivedData( data, 0, frames[0].length + frames[1].length );
+        Assert.assertEquals( "Did not stream first fragment", "[begin binary, chunk 4000]", observer.events.toString() );
+        connection.onReceivedData( data, frames[0].length + frames[1].length, data.length - frames[0].length - frames[1].length );
+        Assert.assertEquals( "Did not stream message", "[begin binary, chunk 4000, chunk 3000, chunk 2000, end, begin text, chunk 5, end]", observer.events.toString() );
+        assertSameBytes( payload, WebSocketUtil.copySubArray( observer.data.toByteArray(), 0, payload.length ) );
+        Assert.assertTrue( "Did not answer ping", network.getWriteCount() > 0 );
+        Assert.assertTrue( "Delivered a whole message", observer.binaryMessages.isEmpty() && observer.messages.isEmpty() );
+    }
+
+    @Test
+    public void testMaxMessageSize()
+    {
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setMaxMessageSize( 5000 );
+
+        // a single oversized frame is refused as soon as its header arrives
+        MockNetworkSocket network = new MockNetworkSocket();
+        RecordingObserver observer = new RecordingObserver();
+        WebSocketServerConnection connection = new WebSocketServerConnection( observer, network, config, new byte[0] );
+        connection.setState( WebSocketConnection.WebSocketState.Connected );
+        byte[] frame = new WebSocketFragment( MessageOpCode.BINARY, true, true, createPayload( 8000 ) ).getFragment();
+        connection.onReceivedData( frame, 0, 100 );
+        Assert.assertTrue( "Did not close on oversized frame", network.getWriteCount() > 0 );
+        Assert.assertEquals( "Did not send close", (byte) 0x88, network.getWritten()[0] );
+
+        // fragments are limited by the total size of the message
+        network = new MockNetworkSocket();
+        connection = new WebSocketServerConnection( observer, network, config, new byte[0] );
+        connection.setState( WebSocketConnection.WebSocketState.Connected );
+        frame = new WebSocketFragment( MessageOpCode.BINARY, false, true, createPayload( 3000 ) ).getFragment();
+        connection.onReceivedData( frame, 0, frame.length );
+        Assert.assertEquals( "Closed too early", 0, network.getWriteCount() );
+        frame = new WebSocketFragment( MessageOpCode.CONTINUATION, true, true, createPayload( 3000 ) ).getFragment();
+        connection.onReceivedData( frame, 0, frame.length );
+        Assert.assertEquals( "Did not send close", (byte) 0x88, network.getWritten()[0] );
+        Assert.assertTrue( "Delivered an oversized message", observer.binaryMessages.isEmpty() );
+    }
+
+    @Test
+    public void testInvalidUtf8AcrossFragments()
+    {
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setWebSocketVersion( WebSocketConnectConfig.WebSocketVersion.VersionRfc6455 );
+
+        // a character split between fragments is carried over to the next one
+        MockNetworkSocket network = new MockNetworkSocket();
+        RecordingObserver observer = new RecordingObserver();
+        WebSocketServerConnection connection = new WebSocketServerConnection( observer, network, config, new byte[0] );
+        connection.setState( WebSocketConnection.WebSocketState.Connected );
+        byte[] frame = new WebSocketFragment( MessageOpCode.TEXT, false, true, new byte[] { 'c', 'a', 'f', (byte) 0xC3 } ).getFragment();
+        connection.onReceivedData( frame, 0, frame.length );
+        frame = new WebSocketFragment( MessageOpCode.CONTINUATION, true, true, new byte[] { (byte) 0xA9 } ).getFragment();
+        connection.onReceivedData( frame, 0, frame.length );
+        Assert.assertEquals( "Did not join split character", "[caf\u00e9]", observer.messages.toString() );
+        Assert.assertEquals( "Closed on valid text", 0, network.getWriteCount() );
+
+        // an invalid first fragment closes the connection before the message is complete
+        network = new MockNetworkSocket();
+        observer = new RecordingObserver();
+        connection = new WebSocketServerConnection( observer, network, config, new byte[0] );
+        connection.setState( WebSocketConnection.WebSocketState.Connected );
+        frame = new WebSocketFragment( MessageOpCode.TEXT, false, true, new byte[] { 'a', (byte) 0xC0, (byte) 0xAF } ).getFragment();
+        connection.onReceivedData( frame, 0, frame.length );
+        Assert.assertTrue( "Did not close on invalid text", network.getWriteCount() > 0 );
+        Assert.assertEquals( "Did not send close", (byte) 0x88, network.getWritten()[0] );
+
+        // a message that ends part way through a character is invalid too
+        network = new MockNetworkSocket();
+        connection = new WebSocketServerConnection( observer, network, config, new byte[0] );
+        connection.setState( WebSocketConnection.WebSocketState.Connected );
+        frame = new WebSocketFragment( MessageOpCode.TEXT, true, true, new byte[] { 'a', (byte) 0xE2, (byte) 0x82 } ).getFragment();
+        connection.onReceivedData( frame, 0, frame.length );
+        Assert.assertEquals( "Did not send close", (byte) 0x88, network.getWritten()[0] );
+        Assert.assertTrue( "Delivered invalid text", observer.messages.isEmpty() );
+    }
+
+    protected byte[] concat( ByteBuffer[] aBuffers )
+    {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for ( ByteBuffer buffer : aBuffers )
+        {
+            ByteBuffer view = buffer.duplicate();
+            while ( view.hasRemaining() )
+            {
+                stream.write( view.get() );
+            }
+        }
+        return stream.toByteArray();
+    }
+
+    protected byte[] createPayload( int aLength )
+    {
+        byte[] payload = new byte[aLength];
+        for ( int i = 0; i < aLength; i++ )
+        {
+            payload[i] = (byte) ( i % 251 );
+        }
+        return payload;
+    }
+
+    protected void assertSameBytes( byte[] aExpected, byte[] aActual )
+    {
+        Assert.assertEquals( "Payload arrays are not the same length.", aExpected.length, aActual.length );
+        for ( int i = 0; i < aExpected.length; i++ )
+        {
+            Assert.assertEquals( "Payload Byte #" + i + " is different.", aExpected[i], aActual[i] );
+        }
+    }
+
+    protected static class BufferRecordingObserver extends RecordingObserver implements WebSocketBufferObserver
+    {
+        protected List<ByteBuffer[]> bufferMessages = new ArrayList<ByteBuffer[]>();
+        protected List<WebSocketBufferRelease> releases = new ArrayList<WebSocketBufferRelease>();
+
+        public void onBinaryMessage( ByteBuffer[] aMessage, WebSocketBufferRelease aRelease )
+        {
+            bufferMessages.add( aMessage );
+            releases.add( aRelease );
+        }
+
+        public void onTextMessage( ByteBuffer[] aMessage, WebSocketBufferRelease aRelease )
+        {
+            bufferMessages.add( aMessage );
+            releases.add( aRelease );
+        }
+    }
+
+    protected static class StreamRecordingObserver extends RecordingObserver implements WebSocketStreamObserver
+    {
+        protected List<String> events = new ArrayList<String>();
+        protected ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        public void onMessageBegin( boolean aIsText )
+        {
+            events.add( aIsText ? "begin text" : "begin binary" );
+        }
+
+        public void onMessageChunk( ByteBuffer aChunk )
+        {
+            events.add( "chunk " + aChunk.remaining() );
+            while ( aChunk.hasRemaining() )
+            {
+                data.write( aChunk.get() );
+            }
+        }
+
+        public void onMessageEnd()
+        {
+            events.add( "end" );
+        }
+    }
+
+    protected static class RecordingObserver implements WebSocketObserver
+    {
+        protected List<String> messages = new ArrayList<String>();
+        protected List<byte[]> binaryMessages = new ArrayList<byte[]>();
+
+        public void onOpen( String aProtocol, List<String> aExtensions )
+        {
+        }
+
+        public void onError( Exception aException )
+        {
+        }
+
+        public void onClose( int aStatusCode, String aMessage, Exception aException )
+        {
+        }
+
+        public void onPong( String aMessage )
+        {
+        }
+
+        public void onBinaryMessage( byte[] aMessage )
+        {
+            binaryMessages.add( aMessage );
+        }
+
+        public void onTextMessage( String aMessage )
+        {
+            messages.add( aMessage );
+        }
+    }
+}
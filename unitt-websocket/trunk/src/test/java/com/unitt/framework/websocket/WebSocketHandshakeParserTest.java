@@ -0,0 +1,83 @@
+package com.unitt.framework.websocket;
+
+
+import java.net.URI;
+import java.nio.charset.Charset;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+
+public class WebSocketHandshakeParserTest
+{
+    protected static final Charset asciiCharset = Charset.forName( "US-ASCII" );
+    protected static final String REQUEST = "GET /chat HTTP/1.1\r\nHost: example.com:8080\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Protocol: chat\r\nsec-websocket-protocol:  superchat \r\nSec-WebSocket-Version: 13\r\n\r\n";
+
+    @Test
+    public void testParseOneByteAtATime()
+    {
+        byte[] data = ( REQUEST + "frame" ).getBytes( asciiCharset );
+        WebSocketHandshakeParser parser = new WebSocketHandshakeParser();
+        int consumed = 0;
+        for ( int i = 0; i < data.length && !parser.isComplete(); i++ )
+        {
+            consumed += parser.parse( data, i, 1 );
+        }
+
+        Assert.assertTrue( "Did not complete", parser.isComplete() );
+        Assert.assertEquals( "Consumed the frame", REQUEST.length(), consumed );
+        Assert.assertEquals( "Wrong request line", "GET /chat HTTP/1.1", parser.getStartLine() );
+        Assert.assertEquals( "Wrong header count", 7, parser.getHeaders().size() );
+        Assert.assertEquals( "Split the value on its colon", "example.com:8080", parser.findHeader( "host" ).getValue() );
+        Assert.assertEquals( "Did not keep the header name", "Host", parser.findHeader( "host" ).getKey() );
+        Assert.assertEquals( "Did not trim or combine repeated headers", "[chat, superchat]", parser.findHeaderValues( "sec-websocket-protocol" ).toString() );
+        Assert.assertNull( "Found a missing header", parser.findHeader( "origin" ) );
+        Assert.assertEquals( "Wrong handshake bytes", REQUEST.substring( 0, REQUEST.length() - 4 ), new String( parser.getHandshakeBytes(), asciiCharset ) );
+    }
+
+    @Test
+    public void testTrailingFrameInSameRead()
+    {
+        byte[] data = ( "xx" + REQUEST + "frame" ).getBytes( asciiCharset );
+        WebSocketHandshakeParser parser = new WebSocketHandshakeParser();
+        int consumed = parser.parse( data, 2, data.length - 2 );
+        Assert.assertTrue( "Did not complete", parser.isComplete() );
+        Assert.assertEquals( "Consumed the frame", REQUEST.length(), consumed );
+        Assert.assertEquals( "Parsed past the end", 0, parser.parse( data, 2 + consumed, 5 ) );
+    }
+
+    @Test
+    public void testMaxSize()
+    {
+        byte[] data = REQUEST.getBytes( asciiCharset );
+        WebSocketHandshakeParser parser = new WebSocketHandshakeParser( 64 );
+        try
+        {
+            parser.parse( data, 0, data.length );
+            Assert.fail( "Accepted an oversized handshake" );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            Assert.assertFalse( "Completed", parser.isComplete() );
+        }
+    }
+
+    @Test
+    public void testHandshakeRoundTrip() throws Exception
+    {
+        WebSocketConnectConfig clientConfig = new WebSocketConnectConfig();
+        clientConfig.setUrl( new URI( "ws://localhost:8080/chat" ) );
+        clientConfig.setAvailableProtocol( "chat" );
+        WebSocketHandshake client = new WebSocketHandshake( clientConfig );
+
+        WebSocketConnectConfig serverConfig = new WebSocketConnectConfig();
+        serverConfig.setAvailableProtocol( "chat" );
+        WebSocketHandshake server = new WebSocketHandshake( client.getClientHandshakeBytes(), serverConfig );
+        Assert.assertTrue( "Server rejected the handshake", server.verifyClientHandshake() );
+        Assert.assertEquals( "Wrong protocol", "chat", server.getClientConfig().getSelectedProtocol() );
+
+        Assert.assertTrue( "Client rejected the response", client.verifyServerHandshake( server.getServerHandshakeBytes() ) );
+        Assert.assertEquals( "Wrong protocol", "chat", client.getServerConfig().getSelectedProtocol() );
+    }
+}
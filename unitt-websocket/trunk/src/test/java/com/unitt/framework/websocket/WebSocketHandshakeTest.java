@@ -0,0 +1,52 @@
+package com.unitt.framework.websocket;
+
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+
+public class WebSocketHandshakeTest
+{
+    protected static final Charset asciiCharset = Charset.forName( "US-ASCII" );
+
+    @Test
+    public void testAcceptKey()
+    {
+        // the example from RFC 6455 section 1.3
+        Assert.assertEquals( "Wrong accept key", "s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", new String( WebSocketHandshake.createAcceptKey( "dGhlIHNhbXBsZSBub25jZQ==" ), asciiCharset ) );
+    }
+
+    @Test
+    public void testTemplateMatchesBuiltResponse()
+    {
+        List<HandshakeHeader> serverHeaders = new ArrayList<HandshakeHeader>();
+        serverHeaders.add( new HandshakeHeader( "Server", "unitt" ) );
+        WebSocketConnectConfig serverConfig = new WebSocketConnectConfig();
+        serverConfig.setServerHeaders( serverHeaders );
+        serverConfig.setAvailableProtocol( "chat" );
+        serverConfig.setPerMessageDeflate( true );
+        String request = "GET /chat HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Protocol: chat\r\nSec-WebSocket-Extensions: permessage-deflate\r\nSec-WebSocket-Version: 13\r\n\r\n";
+
+        WebSocketHandshake handshake = new WebSocketHandshake( request.getBytes( asciiCharset ), serverConfig );
+        List<HandshakeHeader> headers = new ArrayList<HandshakeHeader>( serverHeaders );
+        headers.add( new HandshakeHeader( "Upgrade", "websocket" ) );
+        headers.add( new HandshakeHeader( "Connection", "Upgrade" ) );
+        headers.add( new HandshakeHeader( "Sec-WebSocket-Protocol", "chat" ) );
+        headers.add( new HandshakeHeader( "Sec-WebSocket-Extensions", handshake.createCommaDelimitedList( handshake.getClientConfig().getSelectedExtensions() ) ) );
+        headers.add( new HandshakeHeader( "Sec-WebSocket-Accept", "s3pPLMBiTxaQ9kYGzzhZRbK+xOo=" ) );
+        String expected = handshake.buildServerHandshake( headers );
+
+        Assert.assertEquals( "Wrong response", expected, new String( handshake.getServerHandshakeBytes(), asciiCharset ) );
+        Assert.assertSame( "Did not reuse the template", serverConfig.getServerHandshakeTemplate(), serverConfig.getServerHandshakeTemplate() );
+
+        // a response without protocol or extensions
+        byte[] bare = new WebSocketHandshakeTemplate( null ).build( null, null, "abc=".getBytes( asciiCharset ) );
+        Assert.assertTrue( "Wrong bare response", Arrays.equals( "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Accept: abc=\r\n\r\n".getBytes( asciiCharset ), bare ) );
+    }
+}
@@ -0,0 +1,118 @@
+package com.unitt.framework.websocket;
+
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+
+public class WebSocketMaskerTest
+{
+    protected Random random = new Random( 42 );
+
+    @Test
+    public void testMaskInPlaceMatchesByteAtATime()
+    {
+        int mask = 0x37fa213d;
+        for ( int offset = 0; offset < 9; offset++ )
+        {
+            for ( int length = 0; length < 70; length++ )
+            {
+                byte[] data = createData( offset + length + 3 );
+                byte[] expected = referenceMask( mask, data, offset, length );
+                WebSocketMasker.mask( mask, data, offset, length );
+                assertSameBytes( "offset=" + offset + ", length=" + length, expected, data );
+            }
+        }
+    }
+
+    @Test
+    public void testMaskIntoDestination()
+    {
+        int mask = random.nextInt();
+        byte[] source = createData( 1000 );
+        for ( int offset = 0; offset < 9; offset++ )
+        {
+            byte[] destination = new byte[source.length + offset];
+            WebSocketMasker.mask( mask, source, 5, destination, offset, 900 );
+            byte[] expected = referenceMask( mask, source, 5, 900 );
+            for ( int i = 0; i < 900; i++ )
+            {
+                Assert.assertEquals( "Byte #" + i + " is different at offset " + offset, expected[i + 5], destination[i + offset] );
+            }
+        }
+    }
+
+    @Test
+    public void testMaskDirectBuffer()
+    {
+        int mask = random.nextInt();
+        byte[] data = createData( 517 );
+        ByteBuffer buffer = ByteBuffer.allocateDirect( data.length );
+        buffer.put( data );
+        buffer.position( 3 );
+        WebSocketMasker.mask( mask, buffer );
+        Assert.assertEquals( "Moved the buffer position", 3, buffer.position() );
+
+        byte[] expected = referenceMask( mask, data, 3, data.length - 3 );
+        for ( int i = 0; i < data.length; i++ )
+        {
+            Assert.assertEquals( "Byte #" + i + " is different.", expected[i], buffer.get( i ) );
+        }
+    }
+
+    @Test
+    public void testTwoWay()
+    {
+        int mask = random.nextInt();
+        byte[] data = createData( 4099 );
+        byte[] original = data.clone();
+        WebSocketMasker.mask( mask, data, 1, data.length - 1 );
+        WebSocketMasker.mask( mask, data, 1, data.length - 1 );
+        assertSameBytes( "Masking is not two-way", original, data );
+    }
+
+    @Test
+    public void testRejectsReadOnlyBuffer()
+    {
+        ByteBuffer buffer = ByteBuffer.wrap( createData( 16 ) ).asReadOnlyBuffer();
+        try
+        {
+            WebSocketMasker.mask( random.nextInt(), buffer );
+            Assert.fail( "Masked a read-only buffer" );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            // expected
+        }
+    }
+
+    protected byte[] createData( int aLength )
+    {
+        byte[] data = new byte[aLength];
+        random.nextBytes( data );
+        return data;
+    }
+
+    protected byte[] referenceMask( int aMask, byte[] aData, int aOffset, int aLength )
+    {
+        byte[] results = aData.clone();
+        byte[] maskBytes = WebSocketUtil.convertIntToBytes( aMask );
+        for ( int i = 0; i < aLength; i++ )
+        {
+            results[aOffset + i] ^= maskBytes[i % 4];
+        }
+        return results;
+    }
+
+    protected void assertSameBytes( String aMessage, byte[] aExpected, byte[] aActual )
+    {
+        Assert.assertEquals( aMessage + ": arrays are not the same length.", aExpected.length, aActual.length );
+        for ( int i = 0; i < aExpected.length; i++ )
+        {
+            Assert.assertEquals( aMessage + ": byte #" + i + " is different.", aExpected[i], aActual[i] );
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.unitt.framework.websocket;
+
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.unitt.framework.websocket.WebSocketFragment.MessageOpCode;
+
+
+public class WebSocketMetricsRegistryTest
+{
+    protected static final Charset utf8Charset = Charset.forName( "UTF-8" );
+
+    @Test
+    public void testStripedCounter()
+    {
+        final WebSocketStripedCounter counter = new WebSocketStripedCounter( 3 );
+        List<Thread> threads = new ArrayList<Thread>();
+        for ( int i = 0; i < 4; i++ )
+        {
+            threads.add( new Thread()
+            {
+                public void run()
+                {
+                    for ( int j = 0; j < 10000; j++ )
+                    {
+                        counter.increment();
+                    }
+                }
+            } );
+        }
+        for ( Thread thread : threads )
+        {
+            thread.start();
+        }
+        for ( Thread thread : threads )
+        {
+            try
+            {
+                thread.join();
+            }
+            catch ( InterruptedException e )
+            {
+                Assert.fail( "Interrupted" );
+            }
+        }
+        counter.add( 5 );
+        Assert.assertEquals( "Wrong sum", 40005, counter.sum() );
+
+        counter.reset();
+        Assert.assertEquals( "Did not reset", 0, counter.sum() );
+    }
+
+    @Test
+    public void testConnectionEvents()
+    {
+        WebSocketMetricsRegistry registry = new WebSocketMetricsRegistry();
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setMetrics( registry );
+        MockNetworkSocket network = new MockNetworkSocket();
+        WebSocketServerConnection connection = new WebSocketServerConnection( null, network, config, new byte[0] );
+        connection.setState( WebSocketConnection.WebSocketState.Connected );
+        Assert.assertEquals( "Did not track connection", 1, registry.getOpenConnections() );
+
+        // a fragmented text message around a ping, then a binary message
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[][] frames = new byte[][] {
+            new WebSocketFragment( MessageOpCode.TEXT, false, true, "Hel".getBytes( utf8Charset ) ).getFragment(),
+            new WebSocketFragment( MessageOpCode.PING, true, true, "ping".getBytes( utf8Charset ) ).getFragment(),
+            new WebSocketFragment( MessageOpCode.CONTINUATION, true, true, "lo".getBytes( utf8Charset ) ).getFragment(),
+            new WebSocketFragment( MessageOpCode.BINARY, true, true, new byte[200] ).getFragment() };
+        for ( byte[] frame : frames )
+        {
+            stream.write( frame, 0, frame.length );
+        }
+        byte[] data = stream.toByteArray();
+        connection.onReceivedData( data, 0, data.length );
+
+        Assert.assertEquals( "Wrong frames received", 4, registry.getFramesReceived() );
+        Assert.assertEquals( "Wrong bytes received", data.length, registry.getBytesReceived() );
+        Map<String, Long> framesByOpCode = registry.getFramesReceivedByOpCode();
+        Assert.assertEquals( "Wrong text frames", Long.valueOf( 1 ), framesByOpCode.get( "TEXT" ) );
+        Assert.assertEquals( "Wrong continuation frames", Long.valueOf( 1 ), framesByOpCode.get( "CONTINUATION" ) );
+        Assert.assertEquals( "Wrong ping frames", Long.valueOf( 1 ), framesByOpCode.get( "PING" ) );
+        Assert.assertEquals( "Wrong messages received", 2, registry.getMessagesReceived() );
+        Assert.assertEquals( "Wrong fragments per message", 1.5, registry.getAverageFragmentsPerMessage(), 0.001 );
+        Assert.assertTrue( "Did not time decoding", registry.getDecodeNanos() > 0 );
+
+        // the pong answer and a fragmented reply
+        config.setMaxPayloadSize( 100 );
+        connection.sendMessage( new byte[250] );
+        Assert.assertEquals( "Wrong messages sent", 2, registry.getMessagesSent() );
+        Assert.assertEquals( "Wrong frames sent", 4, registry.getFramesSent() );
+        Assert.assertEquals( "Wrong bytes sent", network.getWritten().length, registry.getBytesSent() );
+        Assert.assertEquals( "Wrong binary frames sent", Long.valueOf( 1 ), registry.getFramesSentByOpCode().get( "BINARY" ) );
+        Assert.assertEquals( "Wrong continuation frames sent", Long.valueOf( 2 ), registry.getFramesSentByOpCode().get( "CONTINUATION" ) );
+
+        WebSocketMetricsRegistry.ConnectionMetrics metrics = registry.getConnections().iterator().next();
+        Assert.assertEquals( "Wrong connection bytes received", data.length, metrics.getBytesReceived() );
+        Assert.assertEquals( "Wrong top connection count", 1, registry.getTopConnectionsByBytes( 5 ).length );
+
+        connection.onDisconnect( null );
+        Assert.assertEquals( "Did not forget connection", 0, registry.getOpenConnections() );
+        Assert.assertEquals( "Wrong close codes", Long.valueOf( 1 ), registry.getCloseCodes().get( WebSocket.WebSocketCloseStatusEndpointGone ) );
+
+        registry.reset();
+        Assert.assertEquals( "Did not reset", 0, registry.getFramesReceived() );
+        Assert.assertTrue( "Did not reset", registry.getCloseCodes().isEmpty() );
+    }
+
+    @Test
+    public void testHandshakeAndJmx() throws Exception
+    {
+        WebSocketMetricsRegistry registry = new WebSocketMetricsRegistry();
+        String name = WebSocketMetricsRegistry.OBJECT_NAME + ",name=test";
+        registry.registerMBean( name );
+
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setMetrics( registry );
+        WebSocketConnection connection = new WebSocketServerConnection( null, new MockNetworkSocket(), config, new byte[0] );
+        connection.recordHandshake( true );
+        connection.recordHandshake( false );
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName( name );
+        try
+        {
+            Assert.assertEquals( "Wrong handshakes", 2L, server.getAttribute( objectName, "Handshakes" ) );
+            Assert.assertEquals( "Wrong handshake failures", 1L, server.getAttribute( objectName, "HandshakeFailures" ) );
+            Assert.assertEquals( "Wrong open connections", 1, server.getAttribute( objectName, "OpenConnections" ) );
+        }
+        finally
+        {
+            server.unregisterMBean( objectName );
+        }
+    }
+
+    @Test
+    public void testNoMetricsByDefault()
+    {
+        WebSocketConnection connection = new WebSocketServerConnection( null, new MockNetworkSocket(), new WebSocketConnectConfig(), new byte[0] );
+        Assert.assertSame( "Did not default to no metrics", WebSocketConnectionMetrics.NONE, connection.getMetrics() );
+    }
+}
@@ -0,0 +1,521 @@
+package com.unitt.framework.websocket;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.unitt.framework.websocket.WebSocketFragment.MessageOpCode;
+
+
+public class WebSocketOutboundQueueTest
+{
+    @Test
+    public void testCoalescesWhileWriting() throws Exception
+    {
+        BlockingNetworkSocket network = new BlockingNetworkSocket();
+        RecordingListener listener = new RecordingListener();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            WebSocketOutboundQueue queue = new WebSocketOutboundQueue( network, 100, 200, executor, listener );
+
+            // the first message starts a write that blocks, the rest queue up behind it
+            queue.add( message( 10 ), null );
+            Assert.assertTrue( "Write did not start", network.started.await( 5, TimeUnit.SECONDS ) );
+            for ( int i = 0; i < 5; i++ )
+            {
+                queue.add( message( 10 ), null );
+            }
+            Assert.assertEquals( "Wrong pending bytes", 60, queue.getPendingBytes() );
+
+            final CountDownLatch written = new CountDownLatch( 1 );
+            queue.add( message( 10 ), new Runnable()
+            {
+                public void run()
+                {
+                    written.countDown();
+                }
+            } );
+            network.release.countDown();
+            Assert.assertTrue( "Did not run after write callback", written.await( 5, TimeUnit.SECONDS ) );
+            Assert.assertEquals( "Did not coalesce queued messages", "[2, 12]", network.writes.toString() );
+            Assert.assertEquals( "Did not drain", 0, queue.getPendingBytes() );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWatermarks() throws Exception
+    {
+        BlockingNetworkSocket network = new BlockingNetworkSocket();
+        RecordingListener listener = new RecordingListener();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            WebSocketOutboundQueue queue = new WebSocketOutboundQueue( network, 100, 200, executor, listener );
+            Assert.assertTrue( "Refused message", queue.offer( message( 150 ) ) );
+            Assert.assertTrue( "Write did not start", network.started.await( 5, TimeUnit.SECONDS ) );
+            Assert.assertTrue( "Queue became unwritable early", queue.isWritable() );
+
+            Assert.assertTrue( "Refused message", queue.offer( message( 60 ) ) );
+            Assert.assertFalse( "Queue did not become unwritable", queue.isWritable() );
+            Assert.assertFalse( "Accepted message past high watermark", queue.offer( message( 2 ) ) );
+            queue.add( message( 2 ), null );
+            Assert.assertEquals( "Did not force message", 212, queue.getPendingBytes() );
+            Assert.assertEquals( "Did not notify unwritable", "[false]", listener.events.toString() );
+
+            network.release.countDown();
+            for ( int i = 0; i < 50 && listener.events.size() < 2; i++ )
+            {
+                Thread.sleep( 100 );
+            }
+            Assert.assertTrue( "Queue did not become writable", queue.isWritable() );
+            Assert.assertEquals( "Did not notify writable", "[false, true]", listener.events.toString() );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWriteError()
+    {
+        MockNetworkSocket network = new MockNetworkSocket()
+        {
+            public void write( ByteBuffer... aBuffers ) throws IOException
+            {
+                throw new IOException( "Broken pipe" );
+            }
+        };
+        RecordingListener listener = new RecordingListener();
+        WebSocketOutboundQueue queue = new WebSocketOutboundQueue( network, 100, 200, null, listener );
+        final boolean[] ran = new boolean[1];
+        queue.add( message( 10 ), new Runnable()
+        {
+            public void run()
+            {
+                ran[0] = true;
+            }
+        } );
+        Assert.assertEquals( "Did not report error", 1, listener.errors.size() );
+        Assert.assertTrue( "Did not run callback after failed write", ran[0] );
+        Assert.assertEquals( "Did not drop failed message", 0, queue.getPendingBytes() );
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception
+    {
+        final int producerCount = 8;
+        final int messageCount = 2000;
+        final MockNetworkSocket network = new MockNetworkSocket()
+        {
+            public synchronized void write( ByteBuffer... aBuffers ) throws IOException
+            {
+                super.write( aBuffers );
+            }
+        };
+        final WebSocketOutboundQueue queue = new WebSocketOutboundQueue( network, 100, 200, null, new RecordingListener() );
+        final CountDownLatch start = new CountDownLatch( 1 );
+        Thread[] producers = new Thread[producerCount];
+        for ( int i = 0; i < producerCount; i++ )
+        {
+            final byte id = (byte) i;
+            producers[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        return;
+                    }
+                    for ( int sequence = 0; sequence < messageCount; sequence++ )
+                    {
+                        // four buffers per message, marked with the producer and sequence
+                        byte high = (byte) ( sequence >> 8 );
+                        byte low = (byte) sequence;
+                        queue.add( new ByteBuffer[] { ByteBuffer.wrap( new byte[] { id, id } ), ByteBuffer.wrap( new byte[] { high, low } ), ByteBuffer.wrap( new byte[] { high, low } ), ByteBuffer.wrap( new byte[] { id, id } ) }, null );
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        start.countDown();
+        for ( Thread producer : producers )
+        {
+            producer.join( 10000 );
+        }
+        for ( int i = 0; i < 50 && queue.getPendingBytes() > 0; i++ )
+        {
+            Thread.sleep( 100 );
+        }
+
+        // every message in one piece, each producer's in order
+        byte[] written = network.getWritten();
+        Assert.assertEquals( "Lost messages", producerCount * messageCount * 8, written.length );
+        int[] nextSequence = new int[producerCount];
+        for ( int offset = 0; offset < written.length; offset += 8 )
+        {
+            int id = written[offset];
+            int sequence = ( ( written[offset + 2] & 0xFF ) << 8 ) | ( written[offset + 3] & 0xFF );
+            Assert.assertTrue( "Interleaved message at " + offset, id == written[offset + 1] && id == written[offset + 6] && id == written[offset + 7] && written[offset + 2] == written[offset + 4] && written[offset + 3] == written[offset + 5] );
+            Assert.assertEquals( "Out of order for producer " + id, nextSequence[id]++, sequence );
+        }
+        Assert.assertEquals( "Did not drain", 0, queue.getPendingBytes() );
+    }
+
+    @Test
+    public void testNothingAfterLast()
+    {
+        MockNetworkSocket network = new MockNetworkSocket();
+        WebSocketOutboundQueue queue = new WebSocketOutboundQueue( network, 100, 200, null, new RecordingListener() );
+        final int[] afterWrites = new int[1];
+        Runnable counter = new Runnable()
+        {
+            public void run()
+            {
+                afterWrites[0]++;
+            }
+        };
+        queue.add( message( 10 ), counter );
+        queue.addLast( message( 4 ), counter );
+        queue.add( message( 10 ), counter );
+        Assert.assertEquals( "Wrote past the last message", 14, network.getWritten().length );
+        Assert.assertEquals( "Did not run every callback", 3, afterWrites[0] );
+        Assert.assertEquals( "Did not drop the late message", 0, queue.getPendingBytes() );
+    }
+
+    @Test
+    public void testWatermarksWaitForNetwork()
+    {
+        // the network takes every write at once but finishes them later
+        DeferredNetworkSocket network = new DeferredNetworkSocket();
+        RecordingListener listener = new RecordingListener();
+        WebSocketOutboundQueue queue = new WebSocketOutboundQueue( network, 100, 200, null, listener );
+        Assert.assertTrue( "Refused message", queue.offer( message( 150 ) ) );
+        Assert.assertTrue( "Refused message", queue.offer( message( 60 ) ) );
+        Assert.assertEquals( "Did not hand both to the network", 2, network.getWriteCount() );
+        Assert.assertEquals( "Counted bytes as written early", 210, queue.getPendingBytes() );
+        Assert.assertFalse( "Queue did not become unwritable", queue.isWritable() );
+        Assert.assertFalse( "Accepted message past high watermark", queue.offer( message( 10 ) ) );
+
+        network.complete();
+        Assert.assertTrue( "Queue did not become writable", queue.isWritable() );
+        Assert.assertEquals( "Wrong pending bytes", 60, queue.getPendingBytes() );
+        network.complete();
+        Assert.assertEquals( "Did not drain", 0, queue.getPendingBytes() );
+        Assert.assertEquals( "Wrong writability changes", "[false, true]", listener.events.toString() );
+    }
+
+    @Test
+    public void testTrySendOnConnection()
+    {
+        MockNetworkSocket network = new MockNetworkSocket();
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        WebSocketServerConnection connection = new WebSocketServerConnection( null, network, config, new byte[0] );
+        connection.setState( WebSocketConnection.WebSocketState.Connected );
+        Assert.assertTrue( "Refused message", connection.trySend( "Hello" ) );
+        Assert.assertTrue( "Refused message", connection.trySend( new byte[100000] ) );
+
+        // the fragmented message goes out one frame per write
+        Assert.assertEquals( "Did not write messages", 1 + 4, network.getWriteCount() );
+        Assert.assertTrue( "Connection is not writable", connection.isWritable() );
+    }
+
+    @Test
+    public void testLazySourceHoldsLaterMessages() throws Exception
+    {
+        DeferredNetworkSocket network = new DeferredNetworkSocket();
+        RecordingListener listener = new RecordingListener();
+        WebSocketOutboundQueue queue = new WebSocketOutboundQueue( network, 100, 200, null, listener );
+        TrackingInputStream stream = new TrackingInputStream( new byte[25] );
+        queue.add( WebSocketMessageSource.forStream( stream, false, 10 ), null );
+        queue.add( message( 10 ), null );
+
+        // one frame at a time, each only once the network has written the last
+        Assert.assertEquals( "Did not wait for the first frame", 1, network.getWriteCount() );
+        network.complete();
+        Assert.assertEquals( "Did not wait for the second frame", 2, network.getWriteCount() );
+        network.complete();
+        Assert.assertEquals( "Wrote the next message inside the stream", 3, network.getWriteCount() );
+        Assert.assertFalse( "Closed the stream early", stream.isClosed );
+        network.complete();
+        Assert.assertTrue( "Did not close the stream", stream.isClosed );
+        Assert.assertEquals( "Did not write the next message", 4, network.getWriteCount() );
+        Assert.assertEquals( "Counted the next message as written early", 10, queue.getPendingBytes() );
+        network.complete();
+
+        byte[] written = network.getWritten();
+        Assert.assertEquals( "Wrong length", 12 + 12 + 7 + 10, written.length );
+        Assert.assertEquals( "Wrong first frame", 0x02, written[0] );
+        Assert.assertEquals( "Wrong second frame", 0x00, written[12] );
+        Assert.assertEquals( "Wrong last frame", (byte) 0x80, written[24] );
+        Assert.assertEquals( "Wrong last length", 5, written[25] );
+        Assert.assertEquals( "Wrong next message", (byte) 0x82, written[31] );
+        Assert.assertEquals( "Did not drain", 0, queue.getPendingBytes() );
+    }
+
+    @Test
+    public void testSendFileOnConnection() throws Exception
+    {
+        byte[] data = new byte[25];
+        for ( int i = 0; i < data.length; i++ )
+        {
+            data[i] = (byte) i;
+        }
+        File file = File.createTempFile( "websocket", ".bin" );
+        file.deleteOnExit();
+        FileOutputStream output = new FileOutputStream( file );
+        output.write( data );
+        output.close();
+
+        // servers send the file regions as they are, clients read and mask them
+        for ( boolean isServer : new boolean[] { true, false } )
+        {
+            DeferredNetworkSocket network = new DeferredNetworkSocket();
+            network.isCompletingInline = true;
+            WebSocketConnectConfig config = new WebSocketConnectConfig();
+            config.setMaxPayloadSize( 10 );
+            WebSocketConnection connection = isServer ? new WebSocketServerConnection( null, network, config, new byte[0] ) : new WebSocketClientConnection( null, network, config );
+            connection.setState( WebSocketConnection.WebSocketState.Connected );
+            FileChannel channel = new FileInputStream( file ).getChannel();
+            connection.sendFile( channel );
+            Assert.assertFalse( "Did not close the file", channel.isOpen() );
+            Assert.assertEquals( "Wrong file region count", isServer ? 3 : 0, network.fileWrites );
+
+            WebSocketFrameDecoder decoder = new WebSocketFrameDecoder();
+            byte[] written = network.getWritten();
+            decoder.append( written, 0, written.length );
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            WebSocketFragment fragment;
+            int count = 0;
+            while ( ( fragment = decoder.nextFragment() ) != null )
+            {
+                Assert.assertEquals( "Wrong opcode", count == 0 ? MessageOpCode.BINARY : MessageOpCode.CONTINUATION, fragment.getOpCode() );
+                Assert.assertEquals( "Wrong mask", !isServer, fragment.hasMask() );
+                Assert.assertEquals( "Wrong final bit", count == 2, fragment.isFinal() );
+                payload.write( fragment.getPayloadData() );
+                count++;
+            }
+            Assert.assertEquals( "Wrong frame count", 3, count );
+            Assert.assertTrue( "Wrong payload", Arrays.equals( data, payload.toByteArray() ) );
+        }
+    }
+
+    @Test
+    public void testControlFramesJumpAhead() throws Exception
+    {
+        DeferredNetworkSocket network = new DeferredNetworkSocket();
+        WebSocketOutboundQueue queue = new WebSocketOutboundQueue( network, 100, 200, null, new RecordingListener() );
+        queue.add( WebSocketMessageSource.forMessage( MessageOpCode.TEXT, new byte[25], false, false, 10 ), null );
+        queue.add( message( 10 ), null );
+        Assert.assertEquals( "Did not write the first fragment", 1, network.getWriteCount() );
+
+        // a pong queued behind a fragmented message goes out after the fragment in flight
+        queue.addControl( new ByteBuffer[] { ByteBuffer.wrap( new byte[] { (byte) 0x8A, 0 } ) }, null );
+        Assert.assertEquals( "Interrupted the fragment in flight", 1, network.getWriteCount() );
+        network.complete();
+        Assert.assertEquals( "Did not write the pong and the next fragment", 3, network.getWriteCount() );
+        network.complete();
+        network.complete();
+        network.complete();
+        Assert.assertEquals( "Did not write the rest", 5, network.getWriteCount() );
+        network.complete();
+
+        byte[] written = network.getWritten();
+        Assert.assertEquals( "Wrong length", 12 + 2 + 12 + 7 + 10, written.length );
+        Assert.assertEquals( "Wrong first fragment", 0x01, written[0] );
+        Assert.assertEquals( "Pong did not jump ahead", (byte) 0x8A, written[12] );
+        Assert.assertEquals( "Wrong second fragment", 0x00, written[14] );
+        Assert.assertEquals( "Wrong last fragment", (byte) 0x80, written[26] );
+        Assert.assertEquals( "Message interleaved with the fragments", (byte) 0x82, written[33] );
+        Assert.assertEquals( "Did not drain", 0, queue.getPendingBytes() );
+    }
+
+    @Test
+    public void testLargeMessageYields() throws Exception
+    {
+        // an executor that only runs what it is given when asked
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Executor executor = new Executor()
+        {
+            public void execute( Runnable aTask )
+            {
+                tasks.add( aTask );
+            }
+        };
+        MockNetworkSocket network = new MockNetworkSocket();
+        WebSocketOutboundQueue queue = new WebSocketOutboundQueue( network, 100, 200, executor, new RecordingListener() );
+        queue.add( WebSocketMessageSource.forMessage( MessageOpCode.BINARY, new byte[40], false, false, 1 ), null );
+
+        int frames = WebSocketOutboundQueue.MAX_FRAMES_PER_PASS;
+        tasks.remove( 0 ).run();
+        Assert.assertEquals( "Did not yield", frames, network.getWriteCount() );
+        tasks.remove( 0 ).run();
+        Assert.assertEquals( "Did not yield again", frames * 2, network.getWriteCount() );
+        tasks.remove( 0 ).run();
+        Assert.assertEquals( "Did not finish", 40, network.getWriteCount() );
+        Assert.assertTrue( "Kept yielding", tasks.isEmpty() );
+        Assert.assertEquals( "Did not drain", 0, queue.getPendingBytes() );
+    }
+
+    @Test
+    public void testFragmentedMessageOnConnection() throws Exception
+    {
+        // the client masks every fragment and only the first carries the op code
+        MockNetworkSocket network = new MockNetworkSocket();
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setMaxPayloadSize( 10 );
+        WebSocketConnection connection = new WebSocketClientConnection( null, network, config );
+        connection.setState( WebSocketConnection.WebSocketState.Connected );
+        byte[] message = new byte[25];
+        for ( int i = 0; i < message.length; i++ )
+        {
+            message[i] = (byte) i;
+        }
+        connection.sendMessage( message );
+        connection.ping( "ping" );
+
+        WebSocketFrameDecoder decoder = new WebSocketFrameDecoder();
+        decoder.append( network.getWritten(), 0, network.getWritten().length );
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        WebSocketFragment fragment;
+        int count = 0;
+        while ( ( fragment = decoder.nextFragment() ) != null && fragment.isDataFrame() )
+        {
+            Assert.assertEquals( "Wrong opcode", count == 0 ? MessageOpCode.BINARY : MessageOpCode.CONTINUATION, fragment.getOpCode() );
+            Assert.assertTrue( "Not masked", fragment.hasMask() );
+            Assert.assertEquals( "Wrong final bit", count == 2, fragment.isFinal() );
+            payload.write( fragment.getPayloadData() );
+            count++;
+        }
+        Assert.assertEquals( "Wrong frame count", 3, count );
+        Assert.assertTrue( "Wrong payload", Arrays.equals( message, payload.toByteArray() ) );
+        Assert.assertNotNull( "Did not write the ping", fragment );
+        Assert.assertEquals( "Wrong control frame", MessageOpCode.PING, fragment.getOpCode() );
+    }
+
+    protected ByteBuffer[] message( int aLength )
+    {
+        // a two byte header followed by the rest of the length as payload
+        return new ByteBuffer[] { ByteBuffer.wrap( new byte[] { (byte) 0x82, (byte) ( aLength - 2 ) } ), ByteBuffer.wrap( new byte[aLength - 2] ) };
+    }
+
+    protected static class BlockingNetworkSocket extends MockNetworkSocket
+    {
+        protected CountDownLatch started = new CountDownLatch( 1 );
+        protected CountDownLatch release = new CountDownLatch( 1 );
+        protected List<Integer> writes = Collections.synchronizedList( new ArrayList<Integer>() );
+
+        public void write( ByteBuffer... aBuffers ) throws IOException
+        {
+            writes.add( aBuffers.length );
+            started.countDown();
+            try
+            {
+                release.await( 5, TimeUnit.SECONDS );
+            }
+            catch ( InterruptedException e )
+            {
+                throw new IOException( "Interrupted" );
+            }
+        }
+    }
+
+    protected static class DeferredNetworkSocket extends MockNetworkSocket implements NetworkSocketFileFacade
+    {
+        protected List<Runnable> pending = new ArrayList<Runnable>();
+        protected boolean isCompletingInline;
+        protected int fileWrites;
+
+        public void write( ByteBuffer[] aBuffers, Runnable aAfterWrite ) throws IOException
+        {
+            write( aBuffers );
+            afterWrite( aAfterWrite );
+        }
+
+        public void writeFile( ByteBuffer aHeader, FileChannel aFile, long aPosition, long aCount, Runnable aAfterWrite ) throws IOException
+        {
+            fileWrites++;
+            ByteBuffer payload = ByteBuffer.allocate( (int) aCount );
+            aFile.read( payload, aPosition );
+            payload.flip();
+            write( aHeader, payload );
+            afterWrite( aAfterWrite );
+        }
+
+        protected void afterWrite( Runnable aAfterWrite )
+        {
+            if ( isCompletingInline )
+            {
+                aAfterWrite.run();
+            }
+            else
+            {
+                pending.add( aAfterWrite );
+            }
+        }
+
+        public void complete()
+        {
+            pending.remove( 0 ).run();
+        }
+    }
+
+    protected static class TrackingInputStream extends ByteArrayInputStream
+    {
+        protected boolean isClosed;
+
+        public TrackingInputStream( byte[] aData )
+        {
+            super( aData );
+        }
+
+        public void close() throws IOException
+        {
+            isClosed = true;
+        }
+    }
+
+    protected static class RecordingListener implements WebSocketOutboundQueue.Listener
+    {
+        protected List<Boolean> events = Collections.synchronizedList( new ArrayList<Boolean>() );
+        protected List<IOException> errors = new ArrayList<IOException>();
+
+        public void onWritabilityChanged( boolean aIsWritable )
+        {
+            events.add( aIsWritable );
+        }
+
+        public void onWriteError( IOException aException )
+        {
+            errors.add( aException );
+        }
+    }
+}
@@ -6,6 +6,7 @@ import com.unitt.framework.websocket.WebSocketFragment.PayloadType;
 import junit.framework.Assert;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 
@@ -114,4 +115,55 @@ public class WebSocketTest
         Assert.assertEquals("Did not find the correct payloadtype.", PayloadType.BINARY, fragment.getPayloadType());
         Assert.assertTrue("Did not find the correct has mask value.", !fragment.hasMask());
     }
+
+    @Test
+    public void testFragmentBuffers()
+    {
+        byte[] payload = new byte[300];
+        for ( int i = 0; i < payload.length; i++ )
+        {
+            payload[i] = (byte) i;
+        }
+
+        // unmasked frames send the payload without copying it
+        WebSocketFragment unmasked = new WebSocketFragment( MessageOpCode.BINARY, true, false, payload );
+        ByteBuffer[] buffers = unmasked.getFragmentBuffers();
+        Assert.assertEquals( "Did not split header & payload.", 2, buffers.length );
+        Assert.assertEquals( "Did not build the correct header length.", 4, buffers[0].remaining() );
+        Assert.assertSame( "Copied the unmasked payload.", payload, buffers[1].array() );
+        assertSameFrame( new WebSocketFragment( MessageOpCode.BINARY, true, false, payload ).getFragment(), buffers );
+
+        // masked frames must match the single array version
+        WebSocketFragment masked = new WebSocketFragment( MessageOpCode.TEXT, true, true, payload );
+        buffers = masked.getFragmentBuffers();
+        Assert.assertEquals( "Did not build the correct header length.", 8, buffers[0].remaining() );
+        assertSameFrame( masked.getFragment(), buffers );
+        Assert.assertEquals( "Modified the caller's payload.", (byte) 5, payload[5] );
+
+        // lengths up to 65535 use the two byte form
+        byte[] large = new byte[40000];
+        buffers = new WebSocketFragment( MessageOpCode.BINARY, true, false, large ).getFragmentBuffers();
+        Assert.assertEquals( "Did not use the minimal header length.", 4, buffers[0].remaining() );
+        Assert.assertEquals( "Wrong length marker.", 126, buffers[0].get( 1 ) );
+        Assert.assertEquals( "Wrong length.", 40000, buffers[0].getShort( 2 ) & 0xFFFF );
+        Assert.assertEquals( "Wrong static header.", 4, WebSocketFragment.buildHeader( MessageOpCode.BINARY, true, large.length ).remaining() );
+        byte[] frame = new WebSocketFragment( MessageOpCode.BINARY, true, true, large ).getFragment();
+        WebSocketFrameDecoder decoder = new WebSocketFrameDecoder();
+        decoder.append( frame, 0, frame.length );
+        Assert.assertEquals( "Did not parse the length back.", 40000, decoder.nextFragment().getPayloadLength() );
+    }
+
+    protected void assertSameFrame( byte[] aExpected, ByteBuffer[] aActual )
+    {
+        ByteBuffer actual = ByteBuffer.allocate( aExpected.length );
+        for ( ByteBuffer buffer : aActual )
+        {
+            actual.put( buffer.duplicate() );
+        }
+        Assert.assertFalse( "Frame is shorter than expected.", actual.hasRemaining() );
+        for ( int i = 0; i < aExpected.length; i++ )
+        {
+            Assert.assertEquals( "Frame byte #" + i + " is different.", aExpected[i], actual.get( i ) );
+        }
+    }
 }
@@ -0,0 +1,200 @@
+package com.unitt.framework.websocket;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unitt.framework.websocket.WebSocketFragment.MessageOpCode;
+
+
+public class WebSocketTimerWheelTest
+{
+    protected WebSocketTimerWheel timer;
+
+    @Before
+    public void setUp()
+    {
+        // a small wheel so that the longer delays take several rounds
+        timer = new WebSocketTimerWheel( 10, 4, "test-timer" );
+    }
+
+    @After
+    public void tearDown()
+    {
+        timer.stop();
+    }
+
+    @Test
+    public void testTimeoutsFireInOrder() throws Exception
+    {
+        final List<Integer> fired = new CopyOnWriteArrayList<Integer>();
+        final CountDownLatch latch = new CountDownLatch( 3 );
+        long start = System.nanoTime();
+        for ( final int delay : new int[] { 150, 20, 80 } )
+        {
+            timer.schedule( new Runnable()
+            {
+                public void run()
+                {
+                    fired.add( delay );
+                    latch.countDown();
+                }
+            }, delay );
+        }
+
+        Assert.assertTrue( "Timeouts did not fire", latch.await( 2, TimeUnit.SECONDS ) );
+        Assert.assertEquals( "Fired out of order", Integer.valueOf( 20 ), fired.get( 0 ) );
+        Assert.assertEquals( "Fired out of order", Integer.valueOf( 80 ), fired.get( 1 ) );
+        Assert.assertEquals( "Fired out of order", Integer.valueOf( 150 ), fired.get( 2 ) );
+        Assert.assertTrue( "Fired early", TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) >= 150 );
+    }
+
+    @Test
+    public void testCancel() throws Exception
+    {
+        final List<String> fired = new CopyOnWriteArrayList<String>();
+        final CountDownLatch latch = new CountDownLatch( 1 );
+        WebSocketTimerWheel.Timeout cancelled = timer.schedule( new Runnable()
+        {
+            public void run()
+            {
+                fired.add( "cancelled" );
+            }
+        }, 20 );
+        timer.schedule( new Runnable()
+        {
+            public void run()
+            {
+                latch.countDown();
+            }
+        }, 60 );
+        cancelled.cancel();
+
+        Assert.assertTrue( "Timeout did not fire", latch.await( 2, TimeUnit.SECONDS ) );
+        Assert.assertTrue( "Cancelled timeout fired", fired.isEmpty() );
+    }
+
+    @Test
+    public void testPingsAndPongTimeout() throws Exception
+    {
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setTimerWheel( timer );
+        config.setPingIntervalInMillis( 50 );
+        config.setPongTimeoutInMillis( 200 );
+        MockNetworkSocket network = new MockNetworkSocket();
+        WebSocketServerConnection connection = new WebSocketServerConnection( null, network, config, new byte[0] );
+        network.connected = true;
+        connection.setState( WebSocketConnection.WebSocketState.Connected );
+        connection.startKeepAlive();
+
+        // answering the ping keeps the connection open
+        waitForWrites( network, 1 );
+        Assert.assertEquals( "Did not send a ping", (byte) ( 0x80 | MessageOpCode.PING.getOpCode() ), network.getWritten()[0] );
+        byte[] pong = new WebSocketFragment( MessageOpCode.PONG, true, true, new byte[0] ).getFragment();
+        connection.onReceivedData( pong, 0, pong.length );
+        waitForWrites( network, 2 );
+        Assert.assertTrue( "Dropped a live connection", network.isConnected() );
+
+        // an unanswered ping drops it, on the keepalive's own thread
+        long start = System.currentTimeMillis();
+        while ( connection.getState() != WebSocketConnection.WebSocketState.Disconnected && System.currentTimeMillis() - start < 2000 )
+        {
+            Thread.sleep( 10 );
+        }
+        Assert.assertFalse( "Did not drop a dead connection", network.isConnected() );
+        Assert.assertEquals( "Wrong state", WebSocketConnection.WebSocketState.Disconnected, connection.getState() );
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception
+    {
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setTimerWheel( timer );
+        config.setIdleTimeoutInMillis( 50 );
+        MockNetworkSocket network = new MockNetworkSocket();
+        WebSocketServerConnection connection = new WebSocketServerConnection( null, network, config, new byte[0] );
+        network.connected = true;
+        connection.setState( WebSocketConnection.WebSocketState.Connected );
+        connection.startKeepAlive();
+
+        waitForWrites( network, 1 );
+        Assert.assertEquals( "Did not send a close", (byte) ( 0x80 | MessageOpCode.CLOSE.getOpCode() ), network.getWritten()[0] );
+        Assert.assertTrue( "Did not close", connection.isClosing() );
+    }
+
+    @Test
+    public void testBlockedPingDoesNotStallTimer() throws Exception
+    {
+        // a blocking transport that cannot write
+        final CountDownLatch writing = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        MockNetworkSocket network = new MockNetworkSocket()
+        {
+            public void write( ByteBuffer... aBuffers ) throws IOException
+            {
+                writing.countDown();
+                try
+                {
+                    release.await( 5, TimeUnit.SECONDS );
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new IOException( "Interrupted" );
+                }
+                super.write( aBuffers );
+            }
+        };
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setTimerWheel( timer );
+        config.setPingIntervalInMillis( 20 );
+        WebSocketServerConnection connection = new WebSocketServerConnection( null, network, config, new byte[0] );
+        network.connected = true;
+        connection.setState( WebSocketConnection.WebSocketState.Connected );
+        connection.startKeepAlive();
+        try
+        {
+            Assert.assertTrue( "Did not send a ping", writing.await( 2, TimeUnit.SECONDS ) );
+
+            // other timeouts still fire while the ping is stuck
+            final CountDownLatch fired = new CountDownLatch( 1 );
+            timer.schedule( new Runnable()
+            {
+                public void run()
+                {
+                    fired.countDown();
+                }
+            }, 20 );
+            Assert.assertTrue( "Timer thread is stuck in the ping", fired.await( 2, TimeUnit.SECONDS ) );
+
+            // a disconnect stops the keepalive without waiting for the ping
+            long start = System.currentTimeMillis();
+            connection.stopKeepAlive();
+            Assert.assertTrue( "Stopping waited for the ping", System.currentTimeMillis() - start < 1000 );
+        }
+        finally
+        {
+            release.countDown();
+            connection.stopKeepAlive();
+        }
+    }
+
+    protected void waitForWrites( MockNetworkSocket aNetwork, int aCount ) throws InterruptedException
+    {
+        long start = System.currentTimeMillis();
+        while ( aNetwork.getWriteCount() < aCount && System.currentTimeMillis() - start < 2000 )
+        {
+            Thread.sleep( 5 );
+        }
+        Assert.assertTrue( "Nothing was written", aNetwork.getWriteCount() >= aCount );
+    }
+}
@@ -0,0 +1,95 @@
+package com.unitt.framework.websocket;
+
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+
+public class WebSocketUtf8ValidatorTest
+{
+    protected static final Charset utf8Charset = Charset.forName( "UTF-8" );
+
+    @Test
+    public void testValidText()
+    {
+        assertValid( "Hello, world. This is long enough to take the ASCII fast path." );
+        assertValid( "caf\u00e9 \u20ac \ud83d\ude00 and some ASCII after the multibyte characters" );
+        assertValid( "" );
+    }
+
+    @Test
+    public void testSplitCodePoints()
+    {
+        byte[] data = "\u20ac\ud83d\ude00".getBytes( utf8Charset );
+        for ( int split = 0; split <= data.length; split++ )
+        {
+            WebSocketUtf8Validator validator = new WebSocketUtf8Validator();
+            Assert.assertTrue( "Rejected first part at " + split, validator.update( data, 0, split ) );
+            Assert.assertEquals( "Wrong completeness at " + split, split == 0 || split == 3 || split == data.length, validator.isComplete() );
+            Assert.assertTrue( "Rejected second part at " + split, validator.update( data, split, data.length - split ) );
+            Assert.assertTrue( "Not complete at " + split, validator.isComplete() );
+        }
+    }
+
+    @Test
+    public void testInvalidSequences()
+    {
+        // overlong forms
+        assertInvalid( new byte[] { (byte) 0xC0, (byte) 0xAF } );
+        assertInvalid( new byte[] { (byte) 0xE0, (byte) 0x80, (byte) 0xAF } );
+        assertInvalid( new byte[] { (byte) 0xF0, (byte) 0x80, (byte) 0x80, (byte) 0xAF } );
+
+        // surrogates, past U+10FFFF, stray continuation and bytes that never appear
+        assertInvalid( new byte[] { (byte) 0xED, (byte) 0xA0, (byte) 0x80 } );
+        assertInvalid( new byte[] { (byte) 0xF4, (byte) 0x90, (byte) 0x80, (byte) 0x80 } );
+        assertInvalid( new byte[] { 'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', (byte) 0x80 } );
+        assertInvalid( new byte[] { (byte) 0xFE } );
+
+        // a lead byte followed by ASCII
+        assertInvalid( new byte[] { (byte) 0xC3, 'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h' } );
+
+        // once invalid, stays invalid
+        WebSocketUtf8Validator validator = new WebSocketUtf8Validator();
+        Assert.assertFalse( "Accepted invalid byte", validator.update( new byte[] { (byte) 0xFF }, 0, 1 ) );
+        Assert.assertFalse( "Accepted text after invalid byte", validator.update( new byte[] { 'a' }, 0, 1 ) );
+        validator.reset();
+        Assert.assertTrue( "Did not reset", validator.update( new byte[] { 'a' }, 0, 1 ) );
+    }
+
+    @Test
+    public void testBuffers()
+    {
+        byte[] data = "0123456789 caf\u00e9 0123456789".getBytes( utf8Charset );
+        WebSocketUtf8Validator validator = new WebSocketUtf8Validator();
+        ByteBuffer buffer = ByteBuffer.wrap( data ).asReadOnlyBuffer();
+        Assert.assertTrue( "Rejected read-only buffer", validator.update( buffer ) );
+        Assert.assertTrue( "Not complete", validator.isComplete() );
+        Assert.assertEquals( "Moved position", 0, buffer.position() );
+
+        validator.reset();
+        ByteBuffer direct = ByteBuffer.allocateDirect( data.length );
+        direct.put( data ).flip();
+        direct.limit( 15 );
+        Assert.assertTrue( "Rejected direct buffer", validator.update( direct ) );
+        Assert.assertFalse( "Complete part way through a character", validator.isComplete() );
+    }
+
+    protected void assertValid( String aText )
+    {
+        byte[] data = aText.getBytes( utf8Charset );
+        WebSocketUtf8Validator validator = new WebSocketUtf8Validator();
+        Assert.assertTrue( "Rejected valid text: " + aText, validator.update( data, 0, data.length ) );
+        Assert.assertTrue( "Valid text is not complete: " + aText, validator.isComplete() );
+    }
+
+    protected void assertInvalid( byte[] aData )
+    {
+        WebSocketUtf8Validator validator = new WebSocketUtf8Validator();
+        Assert.assertFalse( "Accepted invalid sequence", validator.update( aData, 0, aData.length ) && validator.isComplete() );
+        Assert.assertFalse( "Invalid sequence is valid", validator.isValid() && validator.isComplete() );
+    }
+}
@@ -0,0 +1,145 @@
+package com.unitt.framework.websocket.load;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Log-linear histogram of latencies in nanoseconds, in the style of
+ * HdrHistogram. Every power of two is split into 64 linear buckets, so a
+ * recorded value is reported to within 1/64 (about 1.6%) of its real value
+ * from 1ns up to hundreds of years, in a fixed 30KB of counters. Recording is
+ * lock free and can be done from any number of threads.
+ */
+public class LatencyHistogram
+{
+    protected static final int SUB_BUCKET_BITS  = 6;
+    protected static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    protected static final int LINEAR_COUNT     = SUB_BUCKET_COUNT * 2;
+    protected static final int BUCKET_COUNT     = LINEAR_COUNT + ( 62 - SUB_BUCKET_BITS ) * SUB_BUCKET_COUNT;
+
+    private AtomicLongArray counts = new AtomicLongArray( BUCKET_COUNT );
+    private AtomicLong      totalCount = new AtomicLong();
+    private AtomicLong      totalValue = new AtomicLong();
+    private AtomicLong      maxValue = new AtomicLong();
+
+
+    // getters & setters
+    // ---------------------------------------------------------------------------
+    public long getCount()
+    {
+        return totalCount.get();
+    }
+
+    public long getMax()
+    {
+        return maxValue.get();
+    }
+
+    public double getMean()
+    {
+        long count = getCount();
+        return count > 0 ? totalValue.get() / (double) count : 0;
+    }
+
+
+    // histogram logic
+    // ---------------------------------------------------------------------------
+    public void record( long aValue )
+    {
+        long value = Math.max( 0, aValue );
+        counts.incrementAndGet( getBucketIndex( value ) );
+        totalCount.incrementAndGet();
+        totalValue.addAndGet( value );
+        long max = maxValue.get();
+        while ( value > max && !maxValue.compareAndSet( max, value ) )
+        {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * Returns the value that aPercentile percent of the recorded values are at
+     * or below, rounded up to the top of its bucket.
+     */
+    public long getValueAtPercentile( double aPercentile )
+    {
+        long count = getCount();
+        if ( count == 0 )
+        {
+            return 0;
+        }
+
+        long target = Math.max( 1, (long) Math.ceil( Math.min( 100, aPercentile ) / 100 * count ) );
+        long seen = 0;
+        for ( int i = 0; i < BUCKET_COUNT; i++ )
+        {
+            seen += counts.get( i );
+            if ( seen >= target )
+            {
+                return Math.min( getHighestValue( i ), getMax() );
+            }
+        }
+
+        return getMax();
+    }
+
+    /**
+     * Adds the values recorded by aOther to this histogram.
+     */
+    public void add( LatencyHistogram aOther )
+    {
+        for ( int i = 0; i < BUCKET_COUNT; i++ )
+        {
+            long count = aOther.counts.get( i );
+            if ( count > 0 )
+            {
+                counts.addAndGet( i, count );
+            }
+        }
+        totalCount.addAndGet( aOther.totalCount.get() );
+        totalValue.addAndGet( aOther.totalValue.get() );
+        long max = maxValue.get();
+        while ( aOther.getMax() > max && !maxValue.compareAndSet( max, aOther.getMax() ) )
+        {
+            max = maxValue.get();
+        }
+    }
+
+    public void reset()
+    {
+        for ( int i = 0; i < BUCKET_COUNT; i++ )
+        {
+            counts.set( i, 0 );
+        }
+        totalCount.set( 0 );
+        totalValue.set( 0 );
+        maxValue.set( 0 );
+    }
+
+    protected static int getBucketIndex( long aValue )
+    {
+        if ( aValue < LINEAR_COUNT )
+        {
+            return (int) aValue;
+        }
+
+        // the top SUB_BUCKET_BITS + 1 bits pick the bucket
+        int shift = 63 - Long.numberOfLeadingZeros( aValue ) - SUB_BUCKET_BITS;
+        int subBucket = (int) ( aValue >>> shift ) - SUB_BUCKET_COUNT;
+        return LINEAR_COUNT + ( shift - 1 ) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    protected static long getHighestValue( int aIndex )
+    {
+        if ( aIndex < LINEAR_COUNT )
+        {
+            return aIndex;
+        }
+
+        int shift = ( aIndex - LINEAR_COUNT ) / SUB_BUCKET_COUNT + 1;
+        long subBucket = ( aIndex - LINEAR_COUNT ) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ( ( subBucket + 1 ) << shift ) - 1;
+    }
+}
@@ -0,0 +1,69 @@
+package com.unitt.framework.websocket.load;
+
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+
+public class LatencyHistogramTest
+{
+    @Test
+    public void testPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for ( int i = 1; i <= 10000; i++ )
+        {
+            histogram.record( i * 1000L );
+        }
+        Assert.assertEquals( "Wrong count", 10000, histogram.getCount() );
+        Assert.assertEquals( "Wrong max", 10000000, histogram.getMax() );
+        assertWithin( "p50", 5000000, histogram.getValueAtPercentile( 50 ) );
+        assertWithin( "p99", 9900000, histogram.getValueAtPercentile( 99 ) );
+        assertWithin( "p99.9", 9990000, histogram.getValueAtPercentile( 99.9 ) );
+        Assert.assertEquals( "Wrong p100", 10000000, histogram.getValueAtPercentile( 100 ) );
+        Assert.assertEquals( "Wrong mean", 5000500.0, histogram.getMean(), 0.1 );
+    }
+
+    @Test
+    public void testBuckets()
+    {
+        // small values are exact, every bucket covers the values between its neighbours
+        for ( long value = 0; value < 128; value++ )
+        {
+            Assert.assertEquals( "Small value is not exact", value, LatencyHistogram.getHighestValue( LatencyHistogram.getBucketIndex( value ) ) );
+        }
+        long[] values = { 128, 129, 1000, 123456789L, Long.MAX_VALUE / 3, Long.MAX_VALUE };
+        for ( long value : values )
+        {
+            int index = LatencyHistogram.getBucketIndex( value );
+            Assert.assertTrue( "Bucket is below value " + value, LatencyHistogram.getHighestValue( index ) >= value );
+            Assert.assertTrue( "Previous bucket is not below value " + value, LatencyHistogram.getHighestValue( index - 1 ) < value );
+        }
+        Assert.assertEquals( "Wrong last bucket", LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.getBucketIndex( Long.MAX_VALUE ) );
+    }
+
+    @Test
+    public void testAddAndReset()
+    {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        first.record( 100 );
+        second.record( 300 );
+        second.record( -5 );
+        first.add( second );
+        Assert.assertEquals( "Did not add counts", 3, first.getCount() );
+        Assert.assertEquals( "Did not add max", 300, first.getMax() );
+        Assert.assertEquals( "Did not clamp negative value", 0, first.getValueAtPercentile( 0 ) );
+
+        first.reset();
+        Assert.assertEquals( "Did not reset", 0, first.getCount() );
+        Assert.assertEquals( "Did not reset", 0, first.getValueAtPercentile( 99 ) );
+    }
+
+    protected void assertWithin( String aName, long aExpected, long aActual )
+    {
+        // values are reported to within 1/64 of their bucket
+        Assert.assertTrue( "Wrong " + aName + ": " + aActual, aActual >= aExpected && aActual <= aExpected + aExpected / 64 );
+    }
+}
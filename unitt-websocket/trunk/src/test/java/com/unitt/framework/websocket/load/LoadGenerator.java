@@ -0,0 +1,637 @@
+package com.unitt.framework.websocket.load;
+
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.unitt.framework.websocket.WebSocket;
+import com.unitt.framework.websocket.WebSocketConnectConfig;
+import com.unitt.framework.websocket.WebSocketObserver;
+import com.unitt.framework.websocket.WebSocketObserverFactory;
+import com.unitt.framework.websocket.netty.ClientWebsocketFactory;
+import com.unitt.framework.websocket.netty.NettyWebSocketServer;
+import com.unitt.framework.websocket.nio.NioSocketFactory;
+import com.unitt.framework.websocket.simple.SimpleSocketFactory;
+
+
+/**
+ * Drives binary messages through a number of client connections and records
+ * the round trip latency of every echo. Unless a url is given, an echo server
+ * is started in process on the loopback interface, so runs need no network
+ * and transports or settings can be compared on one machine.
+ * <p>
+ * With a message rate of 0 every connection keeps one message in flight and
+ * sends the next as soon as the echo arrives. With a fixed rate the messages
+ * are spread across the connections on a schedule, and latency is measured
+ * from when each message was due rather than when it was actually sent, so a
+ * stall is not hidden by the sends it delayed.
+ * <p>
+ * Run standalone with, for example:
+ * <pre>
+ * java -cp ... com.unitt.framework.websocket.load.LoadGenerator --transport netty --connections 100 --rate 20000 --sizes 64,1024,16384 --duration 30
+ * </pre>
+ */
+public class LoadGenerator
+{
+    public enum Transport
+    {
+        SIMPLE
+        {
+            public WebSocket create( WebSocketConnectConfig aConfig, WebSocketObserver aObserver )
+            {
+                return SimpleSocketFactory.create( aConfig, aObserver );
+            }
+        },
+        NIO
+        {
+            public WebSocket create( WebSocketConnectConfig aConfig, WebSocketObserver aObserver )
+            {
+                return NioSocketFactory.create( aConfig, aObserver );
+            }
+        },
+        NETTY
+        {
+            public WebSocket create( WebSocketConnectConfig aConfig, WebSocketObserver aObserver )
+            {
+                return ClientWebsocketFactory.create( aConfig, aObserver );
+            }
+        };
+
+        public abstract WebSocket create( WebSocketConnectConfig aConfig, WebSocketObserver aObserver );
+    }
+
+    private Transport        transport = Transport.SIMPLE;
+    private int              connectionCount = 10;
+    private int              messageRate;
+    private int[]            messageSizes = { 64 };
+    private long             durationInMillis = 10000;
+    private long             warmupInMillis = 2000;
+    private boolean          perMessageDeflate;
+    private URI              url;
+
+    private LatencyHistogram histogram = new LatencyHistogram();
+    private AtomicLong       messageCount = new AtomicLong();
+    private AtomicLong       byteCount = new AtomicLong();
+    private AtomicLong       errorCount = new AtomicLong();
+    private volatile boolean isRunning;
+
+
+    // getters & setters
+    // ---------------------------------------------------------------------------
+    public Transport getTransport()
+    {
+        return transport;
+    }
+
+    public void setTransport( Transport aTransport )
+    {
+        transport = aTransport;
+    }
+
+    public int getConnectionCount()
+    {
+        return connectionCount;
+    }
+
+    public void setConnectionCount( int aConnectionCount )
+    {
+        connectionCount = aConnectionCount;
+    }
+
+    /**
+     * Returns the total messages per second across all connections, or 0 to
+     * send each message as soon as the previous one on its connection returns.
+     */
+    public int getMessageRate()
+    {
+        return messageRate;
+    }
+
+    public void setMessageRate( int aMessageRate )
+    {
+        messageRate = aMessageRate;
+    }
+
+    public int[] getMessageSizes()
+    {
+        return messageSizes;
+    }
+
+    /**
+     * Sets the payload sizes to pick from at random for each message. Sizes
+     * below 8 bytes are raised to 8 to make room for the timestamp.
+     */
+    public void setMessageSizes( int... aMessageSizes )
+    {
+        messageSizes = aMessageSizes;
+    }
+
+    public long getDurationInMillis()
+    {
+        return durationInMillis;
+    }
+
+    public void setDurationInMillis( long aDurationInMillis )
+    {
+        durationInMillis = aDurationInMillis;
+    }
+
+    public long getWarmupInMillis()
+    {
+        return warmupInMillis;
+    }
+
+    public void setWarmupInMillis( long aWarmupInMillis )
+    {
+        warmupInMillis = aWarmupInMillis;
+    }
+
+    public boolean isPerMessageDeflate()
+    {
+        return perMessageDeflate;
+    }
+
+    public void setPerMessageDeflate( boolean aPerMessageDeflate )
+    {
+        perMessageDeflate = aPerMessageDeflate;
+    }
+
+    public URI getUrl()
+    {
+        return url;
+    }
+
+    /**
+     * Sets an echo server to run against instead of the in process one.
+     */
+    public void setUrl( URI aUrl )
+    {
+        url = aUrl;
+    }
+
+
+    // load logic
+    // ---------------------------------------------------------------------------
+    public Report run() throws Exception
+    {
+        NettyWebSocketServer server = null;
+        URI target = getUrl();
+        if ( target == null )
+        {
+            server = startEchoServer();
+            target = new URI( "ws://127.0.0.1:" + server.getPort() + "/echo" );
+        }
+
+        List<Client> clients = new ArrayList<Client>();
+        Thread pacer = null;
+        try
+        {
+            // connect
+            CountDownLatch opened = new CountDownLatch( getConnectionCount() );
+            for ( int i = 0; i < getConnectionCount(); i++ )
+            {
+                Client client = new Client( opened, new Random( i ) );
+                client.ws = getTransport().create( createConfig( target ), client );
+                clients.add( client );
+                client.ws.open();
+            }
+            if ( !opened.await( 30, TimeUnit.SECONDS ) )
+            {
+                throw new IOException( "Only " + ( getConnectionCount() - opened.getCount() ) + " of " + getConnectionCount() + " connections opened." );
+            }
+
+            // start sending
+            isRunning = true;
+            if ( getMessageRate() > 0 )
+            {
+                pacer = startPacer( clients );
+            }
+            else
+            {
+                for ( Client client : clients )
+                {
+                    client.send( System.nanoTime() );
+                }
+            }
+
+            // measure after the warmup
+            Thread.sleep( getWarmupInMillis() );
+            histogram.reset();
+            messageCount.set( 0 );
+            byteCount.set( 0 );
+            Report report = new Report();
+            report.start();
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( getDurationInMillis() );
+            while ( System.nanoTime() < end )
+            {
+                report.sampleHeap();
+                Thread.sleep( Math.max( 1, Math.min( 100, TimeUnit.NANOSECONDS.toMillis( end - System.nanoTime() ) ) ) );
+            }
+            isRunning = false;
+            report.stop();
+
+            return report;
+        }
+        finally
+        {
+            isRunning = false;
+            if ( pacer != null )
+            {
+                pacer.join( 5000 );
+            }
+            for ( Client client : clients )
+            {
+                client.ws.close();
+            }
+            if ( server != null )
+            {
+                server.shutdown();
+            }
+        }
+    }
+
+    protected NettyWebSocketServer startEchoServer()
+    {
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setPerMessageDeflate( isPerMessageDeflate() );
+        NettyWebSocketServer server = new NettyWebSocketServer( config, new WebSocketObserverFactory()
+        {
+            public WebSocketObserver createObserver( WebSocket aWebSocket )
+            {
+                return new EchoObserver( aWebSocket );
+            }
+        } );
+        server.bind( new InetSocketAddress( "127.0.0.1", 0 ) );
+
+        return server;
+    }
+
+    protected WebSocketConnectConfig createConfig( URI aUrl )
+    {
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setUrl( aUrl );
+        config.setPerMessageDeflate( isPerMessageDeflate() );
+
+        return config;
+    }
+
+    protected Thread startPacer( final List<Client> aClients )
+    {
+        Thread pacer = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                long interval = TimeUnit.SECONDS.toNanos( 1 ) / getMessageRate();
+                long next = System.nanoTime();
+                int index = 0;
+                while ( isRunning )
+                {
+                    long now = System.nanoTime();
+                    if ( now < next )
+                    {
+                        LockSupport.parkNanos( next - now );
+                        continue;
+                    }
+
+                    // when behind, catch up without moving the schedule
+                    aClients.get( index++ % aClients.size() ).send( next );
+                    next += interval;
+                }
+            }
+        }, "websocket-load-pacer" );
+        pacer.setDaemon( true );
+        pacer.start();
+
+        return pacer;
+    }
+
+
+    // client
+    // ---------------------------------------------------------------------------
+    protected class Client implements WebSocketObserver
+    {
+        protected WebSocket      ws;
+        protected CountDownLatch opened;
+        protected Random         random;
+
+        public Client( CountDownLatch aOpened, Random aRandom )
+        {
+            opened = aOpened;
+            random = aRandom;
+        }
+
+        public void send( long aScheduledTime )
+        {
+            int size = Math.max( 8, messageSizes[random.nextInt( messageSizes.length )] );
+            byte[] message = new byte[size];
+            ByteBuffer.wrap( message ).putLong( 0, aScheduledTime );
+            try
+            {
+                ws.sendMessage( message );
+            }
+            catch ( RuntimeException e )
+            {
+                errorCount.incrementAndGet();
+            }
+        }
+
+        public void onOpen( String aProtocol, List<String> aExtensions )
+        {
+            opened.countDown();
+        }
+
+        public void onError( Exception aException )
+        {
+            errorCount.incrementAndGet();
+        }
+
+        public void onClose( int aStatusCode, String aMessage, Exception aException )
+        {
+            if ( isRunning )
+            {
+                errorCount.incrementAndGet();
+            }
+        }
+
+        public void onPong( String aMessage )
+        {
+            // not used
+        }
+
+        public void onBinaryMessage( byte[] aMessage )
+        {
+            long now = System.nanoTime();
+            if ( isRunning && aMessage.length >= 8 )
+            {
+                histogram.record( now - ByteBuffer.wrap( aMessage ).getLong( 0 ) );
+                messageCount.incrementAndGet();
+                byteCount.addAndGet( aMessage.length );
+                if ( getMessageRate() == 0 )
+                {
+                    send( System.nanoTime() );
+                }
+            }
+        }
+
+        public void onTextMessage( String aMessage )
+        {
+            // not used
+        }
+    }
+
+    protected static class EchoObserver implements WebSocketObserver
+    {
+        protected WebSocket ws;
+
+        public EchoObserver( WebSocket aWebSocket )
+        {
+            ws = aWebSocket;
+        }
+
+        public void onOpen( String aProtocol, List<String> aExtensions )
+        {
+            // nothing to do
+        }
+
+        public void onError( Exception aException )
+        {
+            // nothing to do
+        }
+
+        public void onClose( int aStatusCode, String aMessage, Exception aException )
+        {
+            // nothing to do
+        }
+
+        public void onPong( String aMessage )
+        {
+            // nothing to do
+        }
+
+        public void onBinaryMessage( byte[] aMessage )
+        {
+            ws.sendMessage( aMessage );
+        }
+
+        public void onTextMessage( String aMessage )
+        {
+            ws.sendMessage( aMessage );
+        }
+    }
+
+
+    // report
+    // ---------------------------------------------------------------------------
+    public class Report
+    {
+        private long startTime;
+        private long elapsedNanos;
+        private long startCpuTime;
+        private long cpuNanos = -1;
+        private long startGcCount;
+        private long startGcTime;
+        private long gcCount;
+        private long gcMillis;
+        private long maxHeapUsed;
+        private long messages;
+        private long bytes;
+
+        public long getMessageCount()
+        {
+            return messages;
+        }
+
+        public long getErrorCount()
+        {
+            return errorCount.get();
+        }
+
+        public double getMessagesPerSecond()
+        {
+            return elapsedNanos > 0 ? messages * 1e9 / elapsedNanos : 0;
+        }
+
+        public double getBytesPerSecond()
+        {
+            return elapsedNanos > 0 ? bytes * 1e9 / elapsedNanos : 0;
+        }
+
+        /**
+         * Returns the round trip latencies in nanoseconds.
+         */
+        public LatencyHistogram getHistogram()
+        {
+            return histogram;
+        }
+
+        /**
+         * Returns the process CPU use as a percentage of all cores, or -1 if
+         * the JVM does not report it.
+         */
+        public double getCpuPercent()
+        {
+            if ( cpuNanos < 0 || elapsedNanos == 0 )
+            {
+                return -1;
+            }
+            return cpuNanos * 100.0 / elapsedNanos / Runtime.getRuntime().availableProcessors();
+        }
+
+        public long getMaxHeapUsed()
+        {
+            return maxHeapUsed;
+        }
+
+        public long getGcCount()
+        {
+            return gcCount;
+        }
+
+        public long getGcMillis()
+        {
+            return gcMillis;
+        }
+
+        protected void start()
+        {
+            startTime = System.nanoTime();
+            startCpuTime = getProcessCpuTime();
+            startGcCount = getTotalGcCount();
+            startGcTime = getTotalGcMillis();
+        }
+
+        protected void stop()
+        {
+            // snapshot before the histogram can move again
+            messages = messageCount.get();
+            bytes = byteCount.get();
+            elapsedNanos = System.nanoTime() - startTime;
+            long cpuTime = getProcessCpuTime();
+            if ( startCpuTime >= 0 && cpuTime >= 0 )
+            {
+                cpuNanos = cpuTime - startCpuTime;
+            }
+            gcCount = getTotalGcCount() - startGcCount;
+            gcMillis = getTotalGcMillis() - startGcTime;
+            sampleHeap();
+        }
+
+        protected void sampleHeap()
+        {
+            maxHeapUsed = Math.max( maxHeapUsed, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() );
+        }
+
+        protected long getProcessCpuTime()
+        {
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            if ( os instanceof com.sun.management.OperatingSystemMXBean )
+            {
+                return ( (com.sun.management.OperatingSystemMXBean) os ).getProcessCpuTime();
+            }
+            return -1;
+        }
+
+        protected long getTotalGcCount()
+        {
+            long total = 0;
+            for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() )
+            {
+                total += Math.max( 0, gc.getCollectionCount() );
+            }
+            return total;
+        }
+
+        protected long getTotalGcMillis()
+        {
+            long total = 0;
+            for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() )
+            {
+                total += Math.max( 0, gc.getCollectionTime() );
+            }
+            return total;
+        }
+
+        public String toString()
+        {
+            StringBuilder results = new StringBuilder();
+            results.append( String.format( "transport=%s connections=%d rate=%s sizes=%s deflate=%s%n", getTransport(), getConnectionCount(), getMessageRate() > 0 ? getMessageRate() + "/s" : "closed-loop", Arrays.toString( getMessageSizes() ), isPerMessageDeflate() ) );
+            results.append( String.format( "messages=%d errors=%d throughput=%.1f msg/s %.2f MB/s%n", getMessageCount(), getErrorCount(), getMessagesPerSecond(), getBytesPerSecond() / ( 1024 * 1024 ) ) );
+            results.append( String.format( "latency(us) p50=%.1f p99=%.1f p99.9=%.1f max=%.1f mean=%.1f%n", histogram.getValueAtPercentile( 50 ) / 1e3, histogram.getValueAtPercentile( 99 ) / 1e3, histogram.getValueAtPercentile( 99.9 ) / 1e3, histogram.getMax() / 1e3, histogram.getMean() / 1e3 ) );
+            results.append( String.format( "cpu=%.1f%% heap=%dMB gc=%d (%dms)", getCpuPercent(), getMaxHeapUsed() / ( 1024 * 1024 ), getGcCount(), getGcMillis() ) );
+            return results.toString();
+        }
+    }
+
+
+    // standalone
+    // ---------------------------------------------------------------------------
+    public static void main( String[] aArgs ) throws Exception
+    {
+        LoadGenerator generator = new LoadGenerator();
+        for ( int i = 0; i + 1 < aArgs.length; i += 2 )
+        {
+            String name = aArgs[i];
+            String value = aArgs[i + 1];
+            if ( "--transport".equals( name ) )
+            {
+                generator.setTransport( Transport.valueOf( value.toUpperCase() ) );
+            }
+            else if ( "--connections".equals( name ) )
+            {
+                generator.setConnectionCount( Integer.parseInt( value ) );
+            }
+            else if ( "--rate".equals( name ) )
+            {
+                generator.setMessageRate( Integer.parseInt( value ) );
+            }
+            else if ( "--sizes".equals( name ) )
+            {
+                String[] sizes = value.split( "," );
+                int[] messageSizes = new int[sizes.length];
+                for ( int j = 0; j < sizes.length; j++ )
+                {
+                    messageSizes[j] = Integer.parseInt( sizes[j].trim() );
+                }
+                generator.setMessageSizes( messageSizes );
+            }
+            else if ( "--duration".equals( name ) )
+            {
+                generator.setDurationInMillis( Long.parseLong( value ) * 1000 );
+            }
+            else if ( "--warmup".equals( name ) )
+            {
+                generator.setWarmupInMillis( Long.parseLong( value ) * 1000 );
+            }
+            else if ( "--deflate".equals( name ) )
+            {
+                generator.setPerMessageDeflate( Boolean.parseBoolean( value ) );
+            }
+            else if ( "--url".equals( name ) )
+            {
+                generator.setUrl( new URI( value ) );
+            }
+            else
+            {
+                throw new IllegalArgumentException( "Unknown option: " + name );
+            }
+        }
+
+        System.out.println( generator.run() );
+
+        // the client transports keep non-daemon threads around
+        System.exit( 0 );
+    }
+}
@@ -0,0 +1,41 @@
+package com.unitt.framework.websocket.load;
+
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+
+public class LoadGeneratorTest
+{
+    @Test
+    public void testClosedLoop() throws Exception
+    {
+        LoadGenerator generator = new LoadGenerator();
+        generator.setTransport( LoadGenerator.Transport.SIMPLE );
+        generator.setConnectionCount( 4 );
+        generator.setMessageSizes( 16, 1024 );
+        generator.setWarmupInMillis( 200 );
+        generator.setDurationInMillis( 500 );
+        LoadGenerator.Report report = generator.run();
+        Assert.assertTrue( "No messages were echoed: " + report, report.getMessageCount() > 0 );
+        Assert.assertEquals( "Messages failed: " + report, 0, report.getErrorCount() );
+        Assert.assertEquals( "Histogram does not match count", report.getMessageCount(), report.getHistogram().getCount(), 4 );
+        Assert.assertTrue( "No latency was recorded", report.getHistogram().getValueAtPercentile( 99 ) > 0 );
+    }
+
+    @Test
+    public void testFixedRate() throws Exception
+    {
+        LoadGenerator generator = new LoadGenerator();
+        generator.setTransport( LoadGenerator.Transport.NETTY );
+        generator.setConnectionCount( 4 );
+        generator.setMessageRate( 2000 );
+        generator.setPerMessageDeflate( true );
+        generator.setWarmupInMillis( 200 );
+        generator.setDurationInMillis( 500 );
+        LoadGenerator.Report report = generator.run();
+        Assert.assertTrue( "Did not keep close to the rate: " + report, report.getMessageCount() > 500 && report.getMessageCount() < 1500 );
+        Assert.assertEquals( "Messages failed: " + report, 0, report.getErrorCount() );
+    }
+}
@@ -0,0 +1,148 @@
+package com.unitt.framework.websocket.netty;
+
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unitt.framework.websocket.WebSocket;
+import com.unitt.framework.websocket.WebSocketConnectConfig;
+import com.unitt.framework.websocket.WebSocketObserver;
+import com.unitt.framework.websocket.WebSocketObserverFactory;
+import com.unitt.framework.websocket.netty.NettyWebSocketServerTest.EchoObserver;
+import com.unitt.framework.websocket.netty.NettyWebSocketServerTest.RecordingObserver;
+
+
+public class NettyClientRuntimeTest
+{
+    protected NettyWebSocketServer server;
+    protected NettyClientRuntime   runtime;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new NettyWebSocketServer( new WebSocketConnectConfig(), new WebSocketObserverFactory()
+        {
+            public WebSocketObserver createObserver( WebSocket aWebSocket )
+            {
+                return new EchoObserver( aWebSocket );
+            }
+        }, 2 );
+        server.bind( new InetSocketAddress( "127.0.0.1", 0 ) );
+        runtime = new NettyClientRuntime( 2, "test-client" );
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        runtime.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void testSharedThreads() throws Exception
+    {
+        int count = 20;
+        RecordingObserver[] observers = new RecordingObserver[count];
+        WebSocket[] sockets = new WebSocket[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            observers[i] = new RecordingObserver();
+            sockets[i] = runtime.open( createConfig(), observers[i] );
+        }
+        for ( int i = 0; i < count; i++ )
+        {
+            Assert.assertTrue( "Socket #" + i + " did not open.", observers[i].opened.await( 5, TimeUnit.SECONDS ) );
+            sockets[i].sendMessage( "Message " + i );
+        }
+        for ( int i = 0; i < count; i++ )
+        {
+            Assert.assertEquals( "Socket #" + i + " did not get its echo.", "Message " + i, observers[i].messages.poll( 5, TimeUnit.SECONDS ) );
+        }
+
+        // one boss and two workers, however many sockets
+        int threadCount = 0;
+        for ( Thread thread : Thread.getAllStackTraces().keySet() )
+        {
+            if ( thread.getName().startsWith( "test-client-" ) )
+            {
+                Assert.assertTrue( "Thread is not a daemon: " + thread.getName(), thread.isDaemon() );
+                threadCount++;
+            }
+        }
+        Assert.assertTrue( "Too many threads: " + threadCount, threadCount <= 3 );
+        Assert.assertEquals( "Wrong channel count", count, runtime.getChannelCount() );
+    }
+
+    @Test
+    public void testShutdown() throws Exception
+    {
+        RecordingObserver observer = new RecordingObserver();
+        runtime.open( createConfig(), observer );
+        Assert.assertTrue( "Did not open.", observer.opened.await( 5, TimeUnit.SECONDS ) );
+
+        runtime.shutdown();
+        Assert.assertTrue( "Did not close.", observer.closed.await( 5, TimeUnit.SECONDS ) );
+        Assert.assertEquals( "Channels are still open", 0, runtime.getChannelCount() );
+        try
+        {
+            runtime.create( createConfig(), new RecordingObserver() );
+            Assert.fail( "Created a socket after shutdown" );
+        }
+        catch ( IllegalStateException e )
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFrameWithHandshakeResponse() throws Exception
+    {
+        // greet on open, so the first frame tends to arrive in the same read as the response
+        NettyWebSocketServer greeter = new NettyWebSocketServer( new WebSocketConnectConfig(), new WebSocketObserverFactory()
+        {
+            public WebSocketObserver createObserver( final WebSocket aWebSocket )
+            {
+                return new EchoObserver( aWebSocket )
+                {
+                    @Override
+                    public void onOpen( String aProtocol, List<String> aExtensions )
+                    {
+                        aWebSocket.sendMessage( "Welcome" );
+                    }
+                };
+            }
+        }, 1 );
+        greeter.bind( new InetSocketAddress( "127.0.0.1", 0 ) );
+        try
+        {
+            WebSocketConnectConfig config = new WebSocketConnectConfig();
+            config.setUrl( new URI( "ws://127.0.0.1:" + greeter.getPort() + "/greet" ) );
+            RecordingObserver observer = new RecordingObserver();
+            WebSocket ws = runtime.open( config, observer );
+            Assert.assertTrue( "Did not open.", observer.opened.await( 5, TimeUnit.SECONDS ) );
+            Assert.assertEquals( "Lost the greeting.", "Welcome", observer.messages.poll( 5, TimeUnit.SECONDS ) );
+
+            ws.sendMessage( "Hello" );
+            Assert.assertEquals( "Did not echo text.", "Hello", observer.messages.poll( 5, TimeUnit.SECONDS ) );
+        }
+        finally
+        {
+            greeter.shutdown();
+        }
+    }
+
+    protected WebSocketConnectConfig createConfig() throws Exception
+    {
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setUrl( new URI( "ws://127.0.0.1:" + server.getPort() + "/echo" ) );
+        return config;
+    }
+}
@@ -0,0 +1,361 @@
+package com.unitt.framework.websocket.netty;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unitt.framework.websocket.WebSocket;
+import com.unitt.framework.websocket.WebSocketConnectConfig;
+import com.unitt.framework.websocket.WebSocketDispatcher;
+import com.unitt.framework.websocket.WebSocketObserver;
+import com.unitt.framework.websocket.WebSocketObserverFactory;
+import com.unitt.framework.websocket.simple.SimpleSocketFactory;
+
+
+public class NettyWebSocketServerTest
+{
+    protected NettyWebSocketServer server;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setMaxPayloadSize( 100 );
+        config.setPerMessageDeflate( true );
+        server = new NettyWebSocketServer( config, new WebSocketObserverFactory()
+        {
+            public WebSocketObserver createObserver( WebSocket aWebSocket )
+            {
+                return new EchoObserver( aWebSocket );
+            }
+        }, 2 );
+        server.bind( new InetSocketAddress( "127.0.0.1", 0 ) );
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        server.shutdown();
+    }
+
+    @Test
+    public void testNamedDaemonThreads() throws Exception
+    {
+        // the boss is running once we are bound
+        int threadCount = 0;
+        for ( Thread thread : Thread.getAllStackTraces().keySet() )
+        {
+            if ( thread.getName().startsWith( NettyWebSocketServer.DEFAULT_THREAD_NAME + "-" ) )
+            {
+                Assert.assertTrue( "Thread is not a daemon: " + thread.getName(), thread.isDaemon() );
+                threadCount++;
+            }
+        }
+        Assert.assertTrue( "Did not find the boss thread", threadCount > 0 );
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setUrl( new URI( "ws://127.0.0.1:" + server.getPort() + "/echo" ) );
+        config.setMaxPayloadSize( 100 );
+        RecordingObserver observer = new RecordingObserver();
+        WebSocket ws = SimpleSocketFactory.create( config, observer );
+        ws.open();
+        Assert.assertTrue( "Did not open.", observer.opened.await( 5, TimeUnit.SECONDS ) );
+
+        // single frame
+        ws.sendMessage( "Hello" );
+        Assert.assertEquals( "Did not echo text.", "Hello", observer.messages.poll( 5, TimeUnit.SECONDS ) );
+
+        // fragmented both ways
+        StringBuilder longMessage = new StringBuilder();
+        for ( int i = 0; i < 100; i++ )
+        {
+            longMessage.append( i ).append( "," );
+        }
+        ws.sendMessage( longMessage.toString() );
+        Assert.assertEquals( "Did not echo fragmented text.", longMessage.toString(), observer.messages.poll( 5, TimeUnit.SECONDS ) );
+
+        byte[] binary = new byte[1000];
+        for ( int i = 0; i < binary.length; i++ )
+        {
+            binary[i] = (byte) i;
+        }
+        ws.sendMessage( binary );
+        byte[] echoed = observer.binaryMessages.poll( 5, TimeUnit.SECONDS );
+        Assert.assertNotNull( "Did not echo binary.", echoed );
+        Assert.assertEquals( "Echo is not the same length.", binary.length, echoed.length );
+        for ( int i = 0; i < binary.length; i++ )
+        {
+            Assert.assertEquals( "Byte #" + i + " is different.", binary[i], echoed[i] );
+        }
+
+        ws.close();
+        Assert.assertTrue( "Did not close.", observer.closed.await( 5, TimeUnit.SECONDS ) );
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws Exception
+    {
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setUrl( new URI( "ws://127.0.0.1:" + server.getPort() + "/echo" ) );
+        config.setMaxPayloadSize( 100 );
+        config.setPerMessageDeflate( true );
+        RecordingObserver observer = new RecordingObserver();
+        WebSocket ws = SimpleSocketFactory.create( config, observer );
+        ws.open();
+        Assert.assertTrue( "Did not open.", observer.opened.await( 5, TimeUnit.SECONDS ) );
+        Assert.assertEquals( "Did not negotiate compression.", "permessage-deflate; server_no_context_takeover; client_no_context_takeover", observer.extensions.get( 0 ) );
+
+        // small messages are sent as is, large ones compressed across several fragments
+        ws.sendMessage( "Hello" );
+        Assert.assertEquals( "Did not echo text.", "Hello", observer.messages.poll( 5, TimeUnit.SECONDS ) );
+        StringBuilder json = new StringBuilder();
+        for ( int i = 0; i < 100; i++ )
+        {
+            json.append( "{\"id\":" ).append( i ).append( ",\"name\":\"item\"}," );
+        }
+        for ( int i = 0; i < 3; i++ )
+        {
+            ws.sendMessage( json.toString() );
+            Assert.assertEquals( "Did not echo compressed text.", json.toString(), observer.messages.poll( 5, TimeUnit.SECONDS ) );
+        }
+
+        ws.close();
+    }
+
+    @Test
+    public void testSendFile() throws Exception
+    {
+        byte[] data = new byte[10000];
+        for ( int i = 0; i < data.length; i++ )
+        {
+            data[i] = (byte) ( i * 31 );
+        }
+        File file = File.createTempFile( "websocket", ".bin" );
+        file.deleteOnExit();
+        FileOutputStream output = new FileOutputStream( file );
+        output.write( data );
+        output.close();
+
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setUrl( new URI( "ws://127.0.0.1:" + server.getPort() + "/echo" ) );
+        RecordingObserver observer = new RecordingObserver();
+        WebSocket ws = SimpleSocketFactory.create( config, observer );
+        ws.open();
+        Assert.assertTrue( "Did not open.", observer.opened.await( 5, TimeUnit.SECONDS ) );
+
+        // sent as a hundred file regions
+        ws.sendMessage( "file:" + file.getAbsolutePath() );
+        byte[] received = observer.binaryMessages.poll( 5, TimeUnit.SECONDS );
+        Assert.assertNotNull( "Did not send the file.", received );
+        Assert.assertTrue( "File is different.", Arrays.equals( data, received ) );
+        ws.sendMessage( "Hello" );
+        Assert.assertEquals( "Did not echo after the file.", "Hello", observer.messages.poll( 5, TimeUnit.SECONDS ) );
+        ws.close();
+    }
+
+    @Test
+    public void testManyConnections() throws Exception
+    {
+        int count = 50;
+        RecordingObserver[] observers = new RecordingObserver[count];
+        WebSocket[] sockets = new WebSocket[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            WebSocketConnectConfig config = new WebSocketConnectConfig();
+            config.setUrl( new URI( "ws://127.0.0.1:" + server.getPort() + "/echo" ) );
+            observers[i] = new RecordingObserver();
+            sockets[i] = SimpleSocketFactory.create( config, observers[i] );
+            sockets[i].open();
+        }
+        for ( int i = 0; i < count; i++ )
+        {
+            Assert.assertTrue( "Socket #" + i + " did not open.", observers[i].opened.await( 5, TimeUnit.SECONDS ) );
+            sockets[i].sendMessage( "Message " + i );
+        }
+        for ( int i = 0; i < count; i++ )
+        {
+            Assert.assertEquals( "Socket #" + i + " did not get its echo.", "Message " + i, observers[i].messages.poll( 5, TimeUnit.SECONDS ) );
+            sockets[i].close();
+        }
+    }
+
+    @Test
+    public void testDispatchedObserver() throws Exception
+    {
+        // a slow observer behind a small dispatch queue makes the server stop and start reading
+        final List<String> threads = Collections.synchronizedList( new ArrayList<String>() );
+        WebSocketDispatcher dispatcher = new WebSocketDispatcher( 2, "test-dispatch" );
+        WebSocketConnectConfig serverConfig = new WebSocketConnectConfig();
+        serverConfig.setDispatcher( dispatcher );
+        serverConfig.setMaxDispatchQueueSize( 4 );
+        NettyWebSocketServer slowServer = new NettyWebSocketServer( serverConfig, new WebSocketObserverFactory()
+        {
+            public WebSocketObserver createObserver( WebSocket aWebSocket )
+            {
+                return new EchoObserver( aWebSocket )
+                {
+                    @Override
+                    public void onTextMessage( String aMessage )
+                    {
+                        threads.add( Thread.currentThread().getName() );
+                        try
+                        {
+                            Thread.sleep( 2 );
+                        }
+                        catch ( InterruptedException e )
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                        super.onTextMessage( aMessage );
+                    }
+                };
+            }
+        }, 1 );
+        slowServer.bind( new InetSocketAddress( "127.0.0.1", 0 ) );
+        try
+        {
+            WebSocketConnectConfig config = new WebSocketConnectConfig();
+            config.setUrl( new URI( "ws://127.0.0.1:" + slowServer.getPort() + "/echo" ) );
+            RecordingObserver observer = new RecordingObserver();
+            WebSocket ws = SimpleSocketFactory.create( config, observer );
+            ws.open();
+            Assert.assertTrue( "Did not open.", observer.opened.await( 5, TimeUnit.SECONDS ) );
+
+            int count = 200;
+            for ( int i = 0; i < count; i++ )
+            {
+                ws.sendMessage( "Message " + i );
+            }
+            for ( int i = 0; i < count; i++ )
+            {
+                Assert.assertEquals( "Echo out of order.", "Message " + i, observer.messages.poll( 5, TimeUnit.SECONDS ) );
+            }
+            for ( String thread : threads )
+            {
+                Assert.assertTrue( "Observer ran on " + thread, thread.startsWith( "test-dispatch-" ) );
+            }
+
+            ws.close();
+            Assert.assertTrue( "Did not close.", observer.closed.await( 5, TimeUnit.SECONDS ) );
+        }
+        finally
+        {
+            slowServer.shutdown();
+            dispatcher.shutdown();
+        }
+    }
+
+    protected static class EchoObserver implements WebSocketObserver
+    {
+        protected WebSocket ws;
+
+        public EchoObserver( WebSocket aWebSocket )
+        {
+            ws = aWebSocket;
+        }
+
+        public void onOpen( String aProtocol, List<String> aExtensions )
+        {
+            // nothing to do
+        }
+
+        public void onError( Exception aException )
+        {
+            // nothing to do
+        }
+
+        public void onClose( int aStatusCode, String aMessage, Exception aException )
+        {
+            // nothing to do
+        }
+
+        public void onPong( String aMessage )
+        {
+            // nothing to do
+        }
+
+        public void onBinaryMessage( byte[] aMessage )
+        {
+            ws.sendMessage( aMessage );
+        }
+
+        public void onTextMessage( String aMessage )
+        {
+            // "file:<path>" asks for the file instead of an echo
+            if ( aMessage.startsWith( "file:" ) )
+            {
+                try
+                {
+                    ws.sendFile( new File( aMessage.substring( 5 ) ) );
+                }
+                catch ( IOException e )
+                {
+                    ws.sendMessage( e.getMessage() );
+                }
+                return;
+            }
+            ws.sendMessage( aMessage );
+        }
+    }
+
+    protected static class RecordingObserver implements WebSocketObserver
+    {
+        protected CountDownLatch        opened         = new CountDownLatch( 1 );
+        protected CountDownLatch        closed         = new CountDownLatch( 1 );
+        protected BlockingQueue<String> messages       = new LinkedBlockingQueue<String>();
+        protected BlockingQueue<byte[]> binaryMessages = new LinkedBlockingQueue<byte[]>();
+        protected List<String>          extensions;
+
+        public void onOpen( String aProtocol, List<String> aExtensions )
+        {
+            extensions = aExtensions;
+            opened.countDown();
+        }
+
+        public void onError( Exception aException )
+        {
+            // nothing to do
+        }
+
+        public void onClose( int aStatusCode, String aMessage, Exception aException )
+        {
+            closed.countDown();
+        }
+
+        public void onPong( String aMessage )
+        {
+            // nothing to do
+        }
+
+        public void onBinaryMessage( byte[] aMessage )
+        {
+            binaryMessages.add( aMessage );
+        }
+
+        public void onTextMessage( String aMessage )
+        {
+            messages.add( aMessage );
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.unitt.framework.websocket.nio;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unitt.framework.websocket.NetworkSocketObserver;
+import com.unitt.framework.websocket.WebSocketConnectConfig;
+
+
+public class NioNetworkSocketTest
+{
+    protected NioEventLoopGroup group;
+    protected ServerSocket      server;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        group = new NioEventLoopGroup( 2, 1024 );
+        server = new ServerSocket( 0 );
+
+        // echo everything back on a background thread
+        Thread echo = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    Socket socket = server.accept();
+                    InputStream input = socket.getInputStream();
+                    OutputStream output = socket.getOutputStream();
+                    byte[] buffer = new byte[4096];
+                    int length = input.read( buffer );
+                    while ( length > 0 )
+                    {
+                        output.write( buffer, 0, length );
+                        length = input.read( buffer );
+                    }
+                    socket.close();
+                }
+                catch ( Exception e )
+                {
+                    // server closed
+                }
+            }
+        } );
+        echo.setDaemon( true );
+        echo.start();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        server.close();
+        group.shutdown();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        byte[] payload = new byte[1024 * 1024];
+        for ( int i = 0; i < payload.length; i++ )
+        {
+            payload[i] = (byte) ( i % 251 );
+        }
+
+        RecordingObserver observer = new RecordingObserver( payload.length );
+        NioNetworkSocket socket = new NioNetworkSocket( group );
+        socket.setObserver( observer );
+        socket.connect( createConfig() );
+        Assert.assertTrue( "Did not connect.", observer.connected.await( 5, TimeUnit.SECONDS ) );
+
+        // header & payload style gathering write, larger than the read buffer
+        socket.write( ByteBuffer.wrap( payload, 0, 10 ), ByteBuffer.wrap( payload, 10, payload.length - 10 ) );
+        Assert.assertTrue( "Did not receive the echo.", observer.received.await( 10, TimeUnit.SECONDS ) );
+        Assert.assertEquals( "Did not drain the write queue.", 0, socket.getPendingWriteBytes() );
+
+        byte[] echoed = observer.data.toByteArray();
+        Assert.assertEquals( "Echo is not the same length.", payload.length, echoed.length );
+        for ( int i = 0; i < payload.length; i++ )
+        {
+            Assert.assertEquals( "Byte #" + i + " is different.", payload[i], echoed[i] );
+        }
+
+        socket.disconnect();
+        Assert.assertTrue( "Did not disconnect.", observer.disconnected.await( 5, TimeUnit.SECONDS ) );
+        Assert.assertFalse( "Still connected.", socket.isConnected() );
+    }
+
+    @Test
+    public void testAfterWrite() throws Exception
+    {
+        byte[] payload = new byte[4 * 1024 * 1024];
+        RecordingObserver observer = new RecordingObserver( 3 + payload.length );
+        NioNetworkSocket socket = new NioNetworkSocket( group );
+        socket.setObserver( observer );
+        socket.connect( createConfig() );
+        Assert.assertTrue( "Did not connect.", observer.connected.await( 5, TimeUnit.SECONDS ) );
+
+        // the socket takes a small write at once
+        CountingRunnable small = new CountingRunnable();
+        socket.write( new ByteBuffer[] { ByteBuffer.wrap( new byte[3] ) }, small );
+        Assert.assertEquals( "Did not finish the small write once.", 1, small.count.get() );
+
+        // more than the socket takes at once, so it completes on the loop
+        CountingRunnable large = new CountingRunnable();
+        CountingRunnable empty = new CountingRunnable();
+        socket.write( new ByteBuffer[] { ByteBuffer.wrap( payload ) }, large );
+        socket.write( new ByteBuffer[] { ByteBuffer.allocate( 0 ) }, empty );
+        Assert.assertEquals( "Did not finish the empty write once.", 1, empty.count.get() );
+        Assert.assertTrue( "Did not receive the echo.", observer.received.await( 10, TimeUnit.SECONDS ) );
+        Assert.assertEquals( "Did not drain the write queue.", 0, socket.getPendingWriteBytes() );
+        Assert.assertEquals( "Did not finish the large write once.", 1, large.count.get() );
+        Assert.assertEquals( "Finished the small write again.", 1, small.count.get() );
+
+        socket.disconnect();
+        Assert.assertTrue( "Did not disconnect.", observer.disconnected.await( 5, TimeUnit.SECONDS ) );
+        Assert.assertEquals( "Finished the large write again on close.", 1, large.count.get() );
+    }
+
+    @Test
+    public void testRemoteClose() throws Exception
+    {
+        RecordingObserver observer = new RecordingObserver( 1 );
+        NioNetworkSocket socket = new NioNetworkSocket( group );
+        socket.setObserver( observer );
+        socket.connect( createConfig() );
+        Assert.assertTrue( "Did not connect.", observer.connected.await( 5, TimeUnit.SECONDS ) );
+
+        socket.write( new byte[] { 1 } );
+        Assert.assertTrue( "Did not receive the echo.", observer.received.await( 5, TimeUnit.SECONDS ) );
+
+        // the echo thread closes its end once we stop writing
+        socket.channel.socket().shutdownOutput();
+        Assert.assertTrue( "Did not notice the server closing.", observer.disconnected.await( 5, TimeUnit.SECONDS ) );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSecureNotSupported() throws Exception
+    {
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setUrl( new URI( "wss://localhost:" + server.getLocalPort() + "/" ) );
+        new NioNetworkSocket( group ).connect( config );
+    }
+
+    protected WebSocketConnectConfig createConfig() throws Exception
+    {
+        WebSocketConnectConfig config = new WebSocketConnectConfig();
+        config.setUrl( new URI( "ws://localhost:" + server.getLocalPort() + "/" ) );
+        return config;
+    }
+
+    protected static class CountingRunnable implements Runnable
+    {
+        protected AtomicInteger count = new AtomicInteger();
+
+        public void run()
+        {
+            count.incrementAndGet();
+        }
+    }
+
+    protected static class RecordingObserver implements NetworkSocketObserver
+    {
+        protected CountDownLatch        connected    = new CountDownLatch( 1 );
+        protected CountDownLatch        received     = new CountDownLatch( 1 );
+        protected CountDownLatch        disconnected = new CountDownLatch( 1 );
+        protected ByteArrayOutputStream data         = new ByteArrayOutputStream();
+        protected int                   expected;
+
+        public RecordingObserver( int aExpected )
+        {
+            expected = aExpected;
+        }
+
+        public void onConnect()
+        {
+            connected.countDown();
+        }
+
+        public void onDisconnect( Exception aException )
+        {
+            disconnected.countDown();
+        }
+
+        public void onReceivedData( byte[] aData )
+        {
+            onReceivedData( aData, 0, aData.length );
+        }
+
+        public void onReceivedData( byte[] aData, int aOffset, int aLength )
+        {
+            data.write( aData, aOffset, aLength );
+            if ( data.size() >= expected )
+            {
+                received.countDown();
+            }
+        }
+    }
+}
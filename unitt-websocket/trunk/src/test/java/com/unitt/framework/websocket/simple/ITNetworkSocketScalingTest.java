@@ -0,0 +1,189 @@
+package com.unitt.framework.websocket.simple;
+
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unitt.framework.websocket.NetworkSocketObserver;
+import com.unitt.framework.websocket.WebSocketConnectConfig;
+
+
+/**
+ * Opens idle loopback connections with {@link NetworkSocket} and reports heap
+ * and thread usage. Excluded from the normal build; run explicitly with
+ * -Dtest=ITNetworkSocketScalingTest. The levels can be changed with
+ * -Dscaling.levels=1000,10000,50000. Large levels need a raised open file
+ * limit.
+ */
+public class ITNetworkSocketScalingTest
+{
+    protected static final int     LISTENER_COUNT = 4;
+
+    protected List<ServerSocketChannel> listeners = new ArrayList<ServerSocketChannel>();
+    protected List<SocketChannel>   accepted      = new ArrayList<SocketChannel>();
+    protected int[]                 levels;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        // spread connections over a few ports so we don't run out of ephemeral ports
+        for ( int i = 0; i < LISTENER_COUNT; i++ )
+        {
+            final ServerSocketChannel listener = ServerSocketChannel.open();
+            listener.socket().bind( new InetSocketAddress( "127.0.0.1", 0 ), 4096 );
+            listeners.add( listener );
+            Thread acceptor = new Thread( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        while ( true )
+                        {
+                            SocketChannel channel = listener.accept();
+                            synchronized ( accepted )
+                            {
+                                accepted.add( channel );
+                            }
+                        }
+                    }
+                    catch ( Exception e )
+                    {
+                        // listener closed
+                    }
+                }
+            } );
+            acceptor.setDaemon( true );
+            acceptor.start();
+        }
+
+        String[] values = System.getProperty( "scaling.levels", "1000,10000,50000" ).split( "," );
+        levels = new int[values.length];
+        for ( int i = 0; i < values.length; i++ )
+        {
+            levels[i] = Integer.parseInt( values[i].trim() );
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        for ( ServerSocketChannel listener : listeners )
+        {
+            listener.close();
+        }
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception
+    {
+        if ( !NetworkSocket.isVirtualThreadSupported() )
+        {
+            System.out.println( "Virtual threads are not supported by this JVM, skipping." );
+            return;
+        }
+
+        for ( int level : levels )
+        {
+            measure( level, true );
+        }
+    }
+
+    @Test
+    public void testPlatformThreads() throws Exception
+    {
+        // platform threads are only measured at the smallest level
+        measure( levels[0], false );
+    }
+
+    protected void measure( int aCount, boolean aUseVirtualThreads ) throws Exception
+    {
+        long heapBefore = getUsedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        // connect
+        CountingObserver observer = new CountingObserver();
+        List<NetworkSocket> sockets = new ArrayList<NetworkSocket>( aCount );
+        long start = System.currentTimeMillis();
+        for ( int i = 0; i < aCount; i++ )
+        {
+            WebSocketConnectConfig config = new WebSocketConnectConfig();
+            config.setUrl( new URI( "ws://127.0.0.1:" + listeners.get( i % LISTENER_COUNT ).socket().getLocalPort() + "/" ) );
+            config.setUseVirtualThreads( aUseVirtualThreads );
+            NetworkSocket socket = new NetworkSocket();
+            socket.setObserver( observer );
+            socket.connect( config );
+            sockets.add( socket );
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        Assert.assertEquals( "Not every socket connected.", aCount, observer.connected.get() );
+
+        // measure
+        long heapAfter = getUsedHeap();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+        System.out.println( ( aUseVirtualThreads ? "virtual" : "platform" ) + " threads, " + aCount + " connections: connected in " + elapsed + "ms, heap +" + ( ( heapAfter - heapBefore ) / 1024 ) + "KB ("
+                + ( ( heapAfter - heapBefore ) / aCount ) + " bytes/connection incl. server side), platform threads +" + ( threadsAfter - threadsBefore ) );
+
+        // cleanup
+        for ( NetworkSocket socket : sockets )
+        {
+            socket.disconnect();
+        }
+        synchronized ( accepted )
+        {
+            for ( SocketChannel channel : accepted )
+            {
+                channel.close();
+            }
+            accepted.clear();
+        }
+    }
+
+    protected long getUsedHeap() throws InterruptedException
+    {
+        for ( int i = 0; i < 3; i++ )
+        {
+            System.gc();
+            Thread.sleep( 100 );
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    protected static class CountingObserver implements NetworkSocketObserver
+    {
+        protected AtomicInteger connected = new AtomicInteger();
+
+        public void onConnect()
+        {
+            connected.incrementAndGet();
+        }
+
+        public void onDisconnect( Exception aException )
+        {
+            // nothing to do
+        }
+
+        public void onReceivedData( byte[] aData )
+        {
+            // nothing to do
+        }
+
+        public void onReceivedData( byte[] aData, int aOffset, int aLength )
+        {
+            // nothing to do
+        }
+    }
+}